@@ -0,0 +1,186 @@
+package org.cytoscape.heinz.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Synthetic inputs for the benchmarks, generated from a fixed seed so that
+ * every run measures the same data.
+ *
+ * Networks are random graphs with p-values drawn from a mixture of a
+ * uniform and a skewed distribution, as fitted by the BUM model. Node
+ * SUIDs are spread out and do not start at 0, as in Cytoscape, so that
+ * they take as many digits as real ones.
+ */
+public class BenchmarkData {
+	
+	/**
+	 * Seed of the random number generator.
+	 */
+	private static final long SEED = 20151216L;
+	/**
+	 * SUID of the first node.
+	 */
+	private static final long FIRST_SUID = 52;
+	/**
+	 * Share of the p-values that come from the skewed distribution.
+	 */
+	private static final double SIGNAL_SHARE = 0.1;
+	
+	/**
+	 * Generate a network.
+	 *
+	 * @param nodeCount  the number of nodes
+	 * @param edgeCount  the number of edges, between distinct random nodes
+	 *
+	 * @return  the network, without a node table
+	 */
+	public static NetworkSnapshot network(int nodeCount, int edgeCount) {
+		Random random = new Random(SEED);
+		long[] nodeSuids = new long[nodeCount];
+		double[] pValues = new double[nodeCount];
+		for (int i = 0; i < nodeCount; ++i) {
+			nodeSuids[i] = FIRST_SUID + 3L * i;
+			pValues[i] = pValue(random);
+		}
+		int[] edgeSources = new int[edgeCount];
+		int[] edgeTargets = new int[edgeCount];
+		for (int i = 0; i < edgeCount; ++i) {
+			edgeSources[i] = random.nextInt(nodeCount);
+			edgeTargets[i] = (edgeSources[i] + 1 + random.nextInt(nodeCount - 1)) %
+					nodeCount;
+		}
+		return NetworkSnapshot.create(
+				nodeSuids, pValues, edgeSources, edgeTargets);
+	}
+	
+	/**
+	 * Generate p-values alone, e.g. for fitting a BUM model.
+	 *
+	 * @param count  the number of p-values
+	 *
+	 * @return  the p-values
+	 */
+	public static double[] pValues(int count) {
+		Random random = new Random(SEED);
+		double[] pValues = new double[count];
+		for (int i = 0; i < count; ++i) {
+			pValues[i] = pValue(random);
+		}
+		return pValues;
+	}
+	
+	/**
+	 * @return  a p-value strictly between 0 and 1
+	 */
+	private static double pValue(Random random) {
+		double u;
+		do {
+			u = random.nextDouble();
+		} while (u == 0.0);
+		if (random.nextDouble() < SIGNAL_SHARE) {
+			// the skewed component of a BUM model with a = 0.2
+			return Math.pow(u, 1.0 / 0.2);
+		}
+		return u;
+	}
+	
+	/**
+	 * Choose a module of the network.
+	 *
+	 * @param network  the network
+	 * @param moduleShare  the share of the nodes in the module
+	 *
+	 * @return  for each node, whether it is in the module
+	 */
+	public static boolean[] module(NetworkSnapshot network, double moduleShare) {
+		Random random = new Random(SEED + 1);
+		boolean[] inModule = new boolean[network.getNodeCount()];
+		for (int i = 0; i < inModule.length; ++i) {
+			inModule[i] = random.nextDouble() < moduleShare;
+		}
+		return inModule;
+	}
+	
+	/**
+	 * Write the output file Heinz would write for a module: a line per
+	 * node with its SUID and its score, NaN if not in the module.
+	 *
+	 * @param network  the network
+	 * @param inModule  for each node, whether it is in the module
+	 *
+	 * @return  the contents of the file
+	 */
+	public static byte[] heinzOutput(
+			NetworkSnapshot network, boolean[] inModule) {
+		try {
+			AsciiEncoder encoder = new AsciiEncoder();
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			encoder.reset(output);
+			encoder.writeAscii("#label\tscore\n");
+			for (int i = 0; i < network.getNodeCount(); ++i) {
+				encoder.writeLong(network.getNodeSuid(i));
+				encoder.writeChar('\t');
+				if (inModule[i]) {
+					encoder.writeDouble(-Math.log(network.getPValue(i)));
+				} else {
+					encoder.writeAscii("nan");
+				}
+				encoder.writeChar('\n');
+			}
+			encoder.finish();
+			return output.toByteArray();
+		} catch (IOException e) {
+			// cannot happen when writing to memory
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Encode a module as the bitset the server sends for a binary node
+	 * file.
+	 *
+	 * @param inModule  for each node, whether it is in the module
+	 *
+	 * @return  the bitset, node i being bit i % 8 of byte i / 8
+	 */
+	public static byte[] bitset(boolean[] inModule) {
+		byte[] bitset = new byte[(inModule.length + 7) / 8];
+		for (int i = 0; i < inModule.length; ++i) {
+			if (inModule[i]) {
+				bitset[i >>> 3] |= 1 << (i & 7);
+			}
+		}
+		return bitset;
+	}
+	
+	/**
+	 * An output stream that only counts the bytes written to it, standing
+	 * in for a connection.
+	 */
+	public static class CountingOutputStream extends OutputStream {
+		
+		private long count = 0;
+		
+		@Override
+		public void write(int b) {
+			++count;
+		}
+		
+		@Override
+		public void write(byte[] b, int offset, int length) {
+			count += length;
+		}
+		
+		/**
+		 * @return  the number of bytes written so far
+		 */
+		public long getCount() {
+			return count;
+		}
+		
+	}
+	
+}
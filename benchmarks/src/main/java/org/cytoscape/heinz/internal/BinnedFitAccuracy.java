@@ -0,0 +1,58 @@
+package org.cytoscape.heinz.internal;
+
+/**
+ * Checks how far binning moves the parameters of a fitted BUM model.
+ *
+ * Fits models to synthetic p-values exactly and binned, at several numbers
+ * of p-values and bins, with and without one extreme p-value (1e-300)
+ * among them, and prints the number of non-empty bins, the largest
+ * difference in λ or a between the fits, and the time of each fit. The
+ * times are of a single fit, so only a rough guide; BumFittingBenchmark
+ * measures them properly.
+ *
+ * Takes the numbers of p-values as arguments, 100,000 and 1,000,000 by
+ * default.
+ *
+ * @see BumFittingBenchmark
+ */
+public class BinnedFitAccuracy {
+	
+	private static final int[] BIN_COUNTS = {100, 1000, 10000};
+	
+	public static void main(String[] args) {
+		String[] counts = args.length > 0 ?
+				args : new String[] {"100000", "1000000"};
+		System.out.println(
+				"p-values  extreme   bins  non-empty   max error   " +
+				"exact ms  binned ms");
+		for (String count : counts) {
+			for (boolean extreme : new boolean[] {false, true}) {
+				double[] pValues =
+						BenchmarkData.pValues(Integer.parseInt(count));
+				if (extreme) {
+					pValues[0] = 1e-300;
+				}
+				long start = System.nanoTime();
+				BumModel exact = BumModel.fit(
+						BumModel.logTransform(pValues), 0.5, 0.5);
+				double exactTime = (System.nanoTime() - start) / 1e6;
+				for (int bins : BIN_COUNTS) {
+					start = System.nanoTime();
+					BinnedPValues binned = BinnedPValues.bin(pValues, bins);
+					BumModel approximate = BumModel.fit(
+							binned.getLogPValues(), binned.getCounts(),
+							0.5, 0.5);
+					double binnedTime = (System.nanoTime() - start) / 1e6;
+					double error = Math.max(
+							Math.abs(exact.getLambda() - approximate.getLambda()),
+							Math.abs(exact.getA() - approximate.getA()));
+					System.out.println(String.format(
+							"%8s  %7s  %5d  %9d  %10.2e  %9.0f  %9.1f",
+							count, extreme, bins, binned.getBinCount(),
+							error, exactTime, binnedTime));
+				}
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,65 @@
+package org.cytoscape.heinz.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fitting a BUM model to p-values, exactly and binned, as the local
+ * fitter does, starting from the p-values either way.
+ *
+ * With extremePValue set, one p-value is replaced by 1e-300, far below
+ * the others, as a single perfect match in a screen would be.
+ *
+ * @see BinnedFitAccuracy
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+public class BumFittingBenchmark {
+	
+	@Param({"100000", "1000000"})
+	private int pValueCount;
+	
+	@Param({"1000"})
+	private int bins;
+	
+	@Param({"false", "true"})
+	private boolean extremePValue;
+	
+	private double[] pValues;
+	
+	@Setup
+	public void setUp() {
+		pValues = BenchmarkData.pValues(pValueCount);
+		if (extremePValue) {
+			pValues[0] = 1e-300;
+		}
+	}
+	
+	@Benchmark
+	public BumModel exactFit() {
+		return BumModel.fit(BumModel.logTransform(pValues), 0.5, 0.5);
+	}
+	
+	@Benchmark
+	public BumModel binnedFit() {
+		BinnedPValues binned = BinnedPValues.bin(pValues, bins);
+		return BumModel.fit(
+				binned.getLogPValues(), binned.getCounts(), 0.5, 0.5);
+	}
+	
+}
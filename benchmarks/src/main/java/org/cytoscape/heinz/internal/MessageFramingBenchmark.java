@@ -0,0 +1,124 @@
+package org.cytoscape.heinz.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.cytoscape.heinz.internal.AbstractSwClient.ClientMessage;
+import org.cytoscape.heinz.internal.AbstractSwClient.ServerMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Framing of messages: ClientMessage.send() of an edge file and
+ * ServerMessage.receive() of a Heinz output file, with and without
+ * compression.
+ *
+ * The text edge file is sent from memory, as for an FDR sweep; the binary
+ * one is written as it is sent. Either way, a compressed payload is built
+ * up in memory before sending, as its length must precede it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+public class MessageFramingBenchmark {
+	
+	@Param({"1000", "100000", "1000000"})
+	private int nodeCount;
+	
+	@Param({"4"})
+	private int edgesPerNode;
+	
+	@Param({"false", "true"})
+	private boolean deflate;
+	
+	private NetworkSnapshot network;
+	private byte[] textEdgeFile;
+	/**
+	 * A server message carrying the output file of Heinz, as received.
+	 */
+	private byte[] outputMessage;
+	
+	@Setup
+	public void setUp() throws IOException {
+		network = BenchmarkData.network(nodeCount, edgesPerNode * nodeCount);
+		textEdgeFile = SwHeinzClient.encodeEdgeFile(network);
+		outputMessage = encodeServerMessage(
+				ServerMessage.TYPE_OUTPUT,
+				BenchmarkData.heinzOutput(
+						network, BenchmarkData.module(network, 0.01)));
+	}
+	
+	/**
+	 * Encode a server message the way SwServerSession sends output files.
+	 */
+	private byte[] encodeServerMessage(int type, byte[] payload)
+			throws IOException {
+		ByteArrayOutputStream message = new ByteArrayOutputStream();
+		DataOutputStream stream = new DataOutputStream(message);
+		stream.writeByte(type);
+		if (!deflate) {
+			stream.writeInt(payload.length);
+			stream.write(payload);
+			return message.toByteArray();
+		}
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		DeflaterOutputStream deflaterStream =
+				new DeflaterOutputStream(compressed, deflater, 64 * 1024);
+		deflaterStream.write(payload);
+		deflaterStream.finish();
+		deflater.end();
+		stream.writeInt(compressed.size() + 1);
+		stream.writeByte(AbstractSwClient.ENCODING_DEFLATE);
+		compressed.writeTo(stream);
+		return message.toByteArray();
+	}
+	
+	@Benchmark
+	public long sendTextEdgeFile() throws IOException {
+		BenchmarkData.CountingOutputStream stream =
+				new BenchmarkData.CountingOutputStream();
+		new ClientMessage(ClientMessage.TYPE_INPUT_FILE, "-e", textEdgeFile)
+				.send(stream, deflate, null);
+		return stream.getCount();
+	}
+	
+	@Benchmark
+	public long sendBinaryEdgeFile() throws IOException {
+		BenchmarkData.CountingOutputStream stream =
+				new BenchmarkData.CountingOutputStream();
+		ClientMessage.streamed(
+				ClientMessage.TYPE_BINARY_INPUT_FILE,
+				"-e",
+				SwHeinzClient.encodeBinaryEdgeFile(network))
+				.send(stream, deflate, null);
+		return stream.getCount();
+	}
+	
+	@Benchmark
+	public byte[] receiveOutput() throws IOException {
+		return ServerMessage.receive(
+				new ByteArrayInputStream(outputMessage),
+				deflate,
+				null,
+				AbstractSwClient.DEFAULT_MAX_PAYLOAD_SIZE).getPayload();
+	}
+	
+}
@@ -0,0 +1,543 @@
+package org.cytoscape.heinz.internal;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A server wrapper that pretends to run Heinz or the BUM fitting script,
+ * for measuring whole runs of the app without either installed.
+ *
+ * Runs an SwServer, so that the protocol with all its extensions is the
+ * one the app meets in use, with a tool runner in place of the tool that
+ * answers with canned output: for Heinz, a line for each node of the node
+ * file received, scored if the node is in a given module and NaN
+ * otherwise; for the BUM fitting script, a given standard output. Runs
+ * take a fixed time, at most a fixed number at a time.
+ *
+ * The network between client and server is simulated per connection, by
+ * relaying it through a local socket: every message is delivered after
+ * half the round-trip latency, and both directions are throttled to a
+ * bandwidth. Without either, clients connect to the server directly.
+ *
+ * The server only accepts connections from the local machine.
+ *
+ * @see SwServer
+ */
+public class MockSwServer {
+	
+	/**
+	 * The tool a mock server pretends to run.
+	 */
+	public enum Tool {
+		/**
+		 * Heinz, writing the module to the output file of ‘-o’.
+		 */
+		HEINZ,
+		/**
+		 * The BUM fitting script, printing the parameters to standard
+		 * output.
+		 */
+		BUM
+	}
+	
+	/**
+	 * Size of the pipes of the tool’s output and of relayed reads.
+	 */
+	private static final int BUFFER_SIZE = 16 * 1024;
+	/**
+	 * Exit value of a run that was aborted, as of a process killed.
+	 */
+	private static final int ABORTED_EXIT_VALUE = 143;
+	
+	private final Tool tool;
+	private final SwServer server;
+	private final Set<Socket> relayedSockets =
+			Collections.synchronizedSet(new HashSet<Socket>());
+	private volatile long latency = 0;
+	private volatile long bandwidth = 0;
+	private volatile long solveDelay = 0;
+	private volatile Map<Integer, String> moduleScores =
+			Collections.emptyMap();
+	private volatile byte[] standardOutput = new byte[0];
+	private ServerSocket relaySocket = null;
+	private ExecutorService executor = null;
+	
+	/**
+	 * Initialise a server, without starting it yet.
+	 *
+	 * @param tool  the tool to pretend to run
+	 * @param maxProcesses  the maximum number of simultaneous runs
+	 */
+	public MockSwServer(Tool tool, int maxProcesses) {
+		this.tool = tool;
+		String name = tool.name().toLowerCase();
+		server = new SwServer(
+				Arrays.asList("mock-" + name),
+				tool == Tool.HEINZ ?
+						SwHeinzClient.FLAGS : SwBumFitterClient.FLAGS,
+				SwServer.createWorkDirectoryName("mock-" + name + "-server"),
+				maxProcesses);
+		server.setToolRunner(new SwServer.ToolRunner() {
+			@Override
+			public Process start(List<String> commandLine, File directory)
+					throws IOException {
+				return new CannedRun(commandLine, directory);
+			}
+		});
+	}
+	
+	/**
+	 * @param latency  the time from sending a message to receiving its
+	 *                 response, on top of transfer and run times, in ms
+	 */
+	public void setLatency(long latency) {
+		this.latency = latency;
+	}
+	
+	/**
+	 * @param bandwidth  the bytes per second each connection can carry in
+	 *                   each direction, or 0 for no limit
+	 */
+	public void setBandwidth(long bandwidth) {
+		this.bandwidth = bandwidth;
+	}
+	
+	/**
+	 * @param solveDelay  the time each run takes, in ms
+	 */
+	public void setSolveDelay(long solveDelay) {
+		this.solveDelay = solveDelay;
+	}
+	
+	/**
+	 * @param deflate  whether to agree to compressed payloads, for the
+	 *                 connections from then on
+	 */
+	public void setDeflate(boolean deflate) {
+		List<String> capabilities =
+				new ArrayList<String>(SwServer.CAPABILITIES);
+		if (!deflate) {
+			capabilities.remove(AbstractSwClient.CAPABILITY_DEFLATE);
+		}
+		server.setCapabilities(capabilities);
+	}
+	
+	/**
+	 * Set the module Heinz is to find, in any network sent to it.
+	 *
+	 * @param moduleScores  the scores of the nodes in the module, as
+	 *                      written to the output file, by the position of
+	 *                      the node in the node file, from 0
+	 */
+	public void setModule(Map<Integer, String> moduleScores) {
+		this.moduleScores = new HashMap<Integer, String>(moduleScores);
+	}
+	
+	/**
+	 * @param standardOutput  what the tool prints to standard output
+	 */
+	public void setStandardOutput(byte[] standardOutput) {
+		this.standardOutput = standardOutput.clone();
+	}
+	
+	/**
+	 * Start accepting connections.
+	 *
+	 * @param port  the port number to listen on, or 0 for any free one
+	 *
+	 * @throws IOException  if the server cannot listen on the port
+	 */
+	public synchronized void start(int port) throws IOException {
+		if (latency == 0 && bandwidth == 0) {
+			server.start(port);
+			return;
+		}
+		server.start(0);
+		// listen on the loopback interface only
+		relaySocket = new ServerSocket(port, 50, InetAddress.getByName(null));
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Mock network " + tool);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		final ServerSocket listener = relaySocket;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				relay(listener);
+			}
+		});
+	}
+	
+	/**
+	 * @return  the port number the server listens on
+	 *
+	 * @throws IllegalStateException  if the server has not been started
+	 */
+	public synchronized int getPort() {
+		return relaySocket != null ?
+				relaySocket.getLocalPort() : server.getPort();
+	}
+	
+	/**
+	 * Stop the server, closing all connections.
+	 */
+	public synchronized void shutDown() {
+		if (relaySocket != null) {
+			try {
+				relaySocket.close();
+			} catch (IOException e) {
+				// not accepting connections anyway
+			}
+			synchronized (relayedSockets) {
+				for (Socket socket : relayedSockets) {
+					SwServer.closeQuietly(socket);
+				}
+			}
+			executor.shutdownNow();
+		}
+		server.shutDown();
+	}
+	
+	/**
+	 * A run of the tool, writing the canned output after the solve delay.
+	 */
+	private class CannedRun extends Process implements Runnable {
+		
+		private final List<String> commandLine;
+		private final File directory;
+		private final PipedInputStream stdout =
+				new PipedInputStream(BUFFER_SIZE);
+		private final PipedInputStream stderr =
+				new PipedInputStream(BUFFER_SIZE);
+		private final PipedOutputStream stdoutSink = new PipedOutputStream();
+		private final PipedOutputStream stderrSink = new PipedOutputStream();
+		private final Thread thread;
+		private volatile int exitValue = 0;
+		
+		public CannedRun(List<String> commandLine, File directory)
+				throws IOException {
+			this.commandLine = commandLine;
+			this.directory = directory;
+			stdoutSink.connect(stdout);
+			stderrSink.connect(stderr);
+			thread = new Thread(this, "Mock " + tool + " run");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		
+		@Override
+		public void run() {
+			try {
+				if (tool == Tool.HEINZ) {
+					List<String> labels = readNodeLabels(getArgument("-n"));
+					// a line of the size Heinz reports, to stream as progress
+					print(stdoutSink, labels.size() + " nodes\n");
+					TimeUnit.MILLISECONDS.sleep(solveDelay);
+					writeModule(labels, getArgument("-o"));
+				} else {
+					TimeUnit.MILLISECONDS.sleep(solveDelay);
+					stdoutSink.write(standardOutput);
+				}
+			} catch (InterruptedException e) {
+				exitValue = ABORTED_EXIT_VALUE;
+			} catch (IOException e) {
+				exitValue = 1;
+				try {
+					print(stderrSink, e.getMessage() + "\n");
+				} catch (IOException f) {
+					// the run was aborted meanwhile
+				}
+			} finally {
+				closeQuietly(stdoutSink);
+				closeQuietly(stderrSink);
+			}
+		}
+		
+		/**
+		 * @return  the file given with a flag on the command line
+		 *
+		 * @throws IOException  if the flag is missing
+		 */
+		private File getArgument(String flag) throws IOException {
+			int index = commandLine.indexOf(flag);
+			if (index < 0 || index + 1 >= commandLine.size()) {
+				throw new IOException("Missing argument " + flag + ".");
+			}
+			File file = new File(commandLine.get(index + 1));
+			return file.isAbsolute() ?
+					file : new File(directory, file.getPath());
+		}
+		
+		/**
+		 * Write a line for each node, with its score if it is in the module.
+		 */
+		private void writeModule(List<String> labels, File file)
+				throws IOException {
+			Map<Integer, String> scores = moduleScores;
+			StringBuilder output = new StringBuilder("#label\tscore\n");
+			for (int i = 0; i < labels.size(); ++i) {
+				String score = scores.get(i);
+				output.append(labels.get(i)).append('\t');
+				output.append(score == null ? "NaN" : score).append('\n');
+			}
+			OutputStream stream = new FileOutputStream(file);
+			try {
+				print(stream, output.toString());
+			} finally {
+				stream.close();
+			}
+		}
+		
+		@Override
+		public OutputStream getOutputStream() {
+			return new ByteArrayOutputStream();
+		}
+		
+		@Override
+		public InputStream getInputStream() {
+			return stdout;
+		}
+		
+		@Override
+		public InputStream getErrorStream() {
+			return stderr;
+		}
+		
+		@Override
+		public int waitFor() throws InterruptedException {
+			thread.join();
+			return exitValue;
+		}
+		
+		@Override
+		public int exitValue() {
+			if (thread.isAlive()) {
+				throw new IllegalThreadStateException("Run not finished.");
+			}
+			return exitValue;
+		}
+		
+		@Override
+		public void destroy() {
+			thread.interrupt();
+		}
+		
+	}
+	
+	/**
+	 * Read the labels of the nodes of a node file, in file order.
+	 */
+	private static List<String> readNodeLabels(File file) throws IOException {
+		List<String> labels = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), Charset.forName("US-ASCII")));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() > 0 && line.charAt(0) != '#') {
+					int tab = line.indexOf('\t');
+					labels.add(tab < 0 ? line : line.substring(0, tab));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return labels;
+	}
+	
+	private static void print(OutputStream stream, String text)
+			throws IOException {
+		stream.write(text.getBytes(Charset.forName("US-ASCII")));
+		stream.flush();
+	}
+	
+	private static void closeQuietly(OutputStream stream) {
+		try {
+			stream.close();
+		} catch (IOException e) {
+			// nothing left to release
+		}
+	}
+	
+	/**
+	 * Accept connections until the relay socket is closed, relaying each
+	 * to the server through the simulated network.
+	 */
+	private void relay(ServerSocket listener) {
+		while (true) {
+			Socket client;
+			try {
+				client = listener.accept();
+			} catch (IOException e) {
+				// closed by shutDown()
+				return;
+			}
+			Socket upstream;
+			try {
+				upstream = new Socket(
+						InetAddress.getByName(null), server.getPort());
+				client.setTcpNoDelay(true);
+				upstream.setTcpNoDelay(true);
+			} catch (IOException e) {
+				SwServer.closeQuietly(client);
+				continue;
+			}
+			relayedSockets.add(client);
+			relayedSockets.add(upstream);
+			try {
+				new Link(client, upstream).start();
+				new Link(upstream, client).start();
+			} catch (RuntimeException e) {
+				// rejected while shutting down
+				SwServer.closeQuietly(client);
+				SwServer.closeQuietly(upstream);
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Data read on a relayed connection, with the time it is due at the
+	 * other end.
+	 */
+	private static class Chunk {
+		
+		final byte[] data;
+		final long due;
+		
+		Chunk(byte[] data, long due) {
+			this.data = data;
+			this.due = due;
+		}
+		
+	}
+	
+	/**
+	 * One direction of a relayed connection, delaying and throttling what
+	 * it carries.
+	 */
+	private class Link {
+		
+		private final Socket from;
+		private final Socket to;
+		/**
+		 * The chunks read and not delivered yet, ended by an empty one.
+		 */
+		private final BlockingQueue<Chunk> chunks =
+				new LinkedBlockingQueue<Chunk>();
+		
+		public Link(Socket from, Socket to) {
+			this.from = from;
+			this.to = to;
+		}
+		
+		public void start() {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					read();
+				}
+			});
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					deliver();
+				}
+			});
+		}
+		
+		private void read() {
+			try {
+				InputStream stream = from.getInputStream();
+				while (true) {
+					byte[] buffer = new byte[BUFFER_SIZE];
+					int count = stream.read(buffer);
+					long due = System.nanoTime() +
+							TimeUnit.MILLISECONDS.toNanos(latency) / 2;
+					if (count < 0) {
+						chunks.add(new Chunk(new byte[0], due));
+						return;
+					}
+					chunks.add(new Chunk(Arrays.copyOf(buffer, count), due));
+				}
+			} catch (IOException e) {
+				close();
+			}
+		}
+		
+		private void deliver() {
+			try {
+				OutputStream stream = to.getOutputStream();
+				long free = System.nanoTime();
+				while (true) {
+					Chunk chunk = chunks.take();
+					if (chunk.data.length == 0) {
+						to.shutdownOutput();
+						return;
+					}
+					// a chunk arrives once it is due and the ones before it
+					// have been carried
+					long arrival = Math.max(chunk.due, free);
+					if (bandwidth > 0) {
+						arrival += chunk.data.length * 1000000000L / bandwidth;
+					}
+					sleepUntil(arrival);
+					free = arrival;
+					stream.write(chunk.data);
+					stream.flush();
+				}
+			} catch (IOException e) {
+				close();
+			} catch (InterruptedException e) {
+				close();
+			}
+		}
+		
+		private void close() {
+			SwServer.closeQuietly(from);
+			SwServer.closeQuietly(to);
+			relayedSockets.remove(from);
+			relayedSockets.remove(to);
+		}
+		
+	}
+	
+	private static void sleepUntil(long deadline) throws InterruptedException {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0) {
+			TimeUnit.NANOSECONDS.sleep(remaining);
+		}
+	}
+	
+}
@@ -0,0 +1,93 @@
+package org.cytoscape.heinz.internal;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialisation of the node and edge files sent to Heinz, as text and in
+ * binary, into a stream that discards them.
+ *
+ * These are the encoding loops of SwHeinzClient.sendNodes() and
+ * sendEdges(), without the framing and the connection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+public class NetworkEncodingBenchmark {
+	
+	@Param({"1000", "100000", "1000000"})
+	private int nodeCount;
+	
+	@Param({"4"})
+	private int edgesPerNode;
+	
+	private NetworkSnapshot network;
+	private AsciiEncoder encoder;
+	
+	@Setup
+	public void setUp() {
+		network = BenchmarkData.network(nodeCount, edgesPerNode * nodeCount);
+		encoder = new AsciiEncoder();
+	}
+	
+	@Benchmark
+	public long textNodeFile() throws IOException {
+		BenchmarkData.CountingOutputStream stream =
+				new BenchmarkData.CountingOutputStream();
+		encoder.reset(stream);
+		SwHeinzClient.encodeNodeFile(encoder, network);
+		return encoder.finish();
+	}
+	
+	@Benchmark
+	public long textEdgeFile() throws IOException {
+		BenchmarkData.CountingOutputStream stream =
+				new BenchmarkData.CountingOutputStream();
+		encoder.reset(stream);
+		SwHeinzClient.encodeEdgeFile(encoder, network);
+		return encoder.finish();
+	}
+	
+	/**
+	 * Counting the bytes of a text file, done before sending it as its
+	 * length must precede it.
+	 */
+	@Benchmark
+	public long textEdgeFileLength() throws IOException {
+		encoder.reset(null);
+		SwHeinzClient.encodeEdgeFile(encoder, network);
+		return encoder.finish();
+	}
+	
+	@Benchmark
+	public long binaryNodeFile() throws IOException {
+		BenchmarkData.CountingOutputStream stream =
+				new BenchmarkData.CountingOutputStream();
+		SwHeinzClient.encodeBinaryNodeFile(network).writeTo(stream);
+		return stream.getCount();
+	}
+	
+	@Benchmark
+	public long binaryEdgeFile() throws IOException {
+		BenchmarkData.CountingOutputStream stream =
+				new BenchmarkData.CountingOutputStream();
+		SwHeinzClient.encodeBinaryEdgeFile(network).writeTo(stream);
+		return stream.getCount();
+	}
+	
+}
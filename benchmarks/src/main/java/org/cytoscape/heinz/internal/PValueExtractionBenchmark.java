@@ -0,0 +1,69 @@
+package org.cytoscape.heinz.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.cytoscape.model.CyNetwork;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Extraction of the p-values and edges from the network, their validation,
+ * and the binning of p-values for fitting a BUM model to many of them.
+ *
+ * @see SyntheticCyNetwork
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms6g", "-Xmx6g"})
+public class PValueExtractionBenchmark {
+	
+	private static final String PVALUE_COLUMN_NAME = "pvalue";
+	/**
+	 * Number of bins for binned BUM model fitting, as a user might choose.
+	 */
+	private static final int BIN_COUNT = 1000;
+	
+	@Param({"1000", "100000", "1000000"})
+	private int nodeCount;
+	
+	@Param({"4"})
+	private int edgesPerNode;
+	
+	private CyNetwork cyNetwork;
+	private NetworkSnapshot network;
+	
+	@Setup
+	public void setUp() {
+		network = BenchmarkData.network(nodeCount, edgesPerNode * nodeCount);
+		cyNetwork = SyntheticCyNetwork.create(network, PVALUE_COLUMN_NAME);
+	}
+	
+	@Benchmark
+	public NetworkSnapshot capture() {
+		return NetworkSnapshot.capture(cyNetwork, PVALUE_COLUMN_NAME);
+	}
+	
+	@Benchmark
+	public NetworkSnapshot validatePValues() {
+		network.validatePValues();
+		return network;
+	}
+	
+	@Benchmark
+	public BinnedPValues binPValues() {
+		return BinnedPValues.bin(network.getPValues(), BIN_COUNT);
+	}
+	
+}
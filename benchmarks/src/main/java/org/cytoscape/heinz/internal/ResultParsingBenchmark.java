@@ -0,0 +1,64 @@
+package org.cytoscape.heinz.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of the module found by Heinz, as done by
+ * SwHeinzClient.retrieveModule(): from the text output file, or from the
+ * bitset sent for a binary node file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+public class ResultParsingBenchmark {
+	
+	@Param({"1000", "100000", "1000000"})
+	private int nodeCount;
+	
+	/**
+	 * Share of the nodes in the module.
+	 */
+	@Param({"0.01", "0.5"})
+	private double moduleShare;
+	
+	private NetworkSnapshot network;
+	private byte[] outputFile;
+	private byte[] bitset;
+	
+	@Setup
+	public void setUp() {
+		network = BenchmarkData.network(nodeCount, 0);
+		boolean[] inModule = BenchmarkData.module(network, moduleShare);
+		outputFile = BenchmarkData.heinzOutput(network, inModule);
+		bitset = BenchmarkData.bitset(inModule);
+	}
+	
+	@Benchmark
+	public long[] readOutputFile() throws IOException {
+		return HeinzOutputReader.readModule(
+				new ByteArrayInputStream(outputFile));
+	}
+	
+	@Benchmark
+	public long[] decodeBitset() throws IOException {
+		return SwHeinzClient.decodeBitset(bitset, network);
+	}
+	
+}
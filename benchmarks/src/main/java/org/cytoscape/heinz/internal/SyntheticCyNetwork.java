@@ -0,0 +1,309 @@
+package org.cytoscape.heinz.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cytoscape.model.CyColumn;
+import org.cytoscape.model.CyEdge;
+import org.cytoscape.model.CyIdentifiable;
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.CyNode;
+import org.cytoscape.model.CyRow;
+import org.cytoscape.model.CyTable;
+
+/**
+ * A Cytoscape network of a synthetic graph, to capture snapshots from and
+ * run tasks on without running Cytoscape.
+ *
+ * Rows hold their values boxed in a hash map, as the rows of Cytoscape’s
+ * own tables do, so that reading them costs about the same. Only what
+ * NetworkSnapshot.capture() and the tasks use is implemented: the node and
+ * network tables, with columns that can be added; the network and its
+ * tables are proxies that fail on any other call. Networks are not thread
+ * safe, so concurrent tasks each need one of their own.
+ */
+public class SyntheticCyNetwork {
+	
+	/**
+	 * Create a network.
+	 *
+	 * @param graph  the nodes, p-values and edges of the network
+	 * @param pValueColumnName  the node table column to hold the p-values
+	 *
+	 * @return  the network
+	 */
+	public static CyNetwork create(
+			NetworkSnapshot graph, String pValueColumnName) {
+		int nodeCount = graph.getNodeCount();
+		final Table nodeTable = new Table();
+		nodeTable.columns.put(pValueColumnName, Double.class);
+		Node[] nodes = new Node[nodeCount];
+		for (int i = 0; i < nodeCount; ++i) {
+			Row row = nodeTable.getRow(graph.getNodeSuid(i));
+			row.values.put(pValueColumnName, graph.getPValue(i));
+			nodes[i] = new Node(graph.getNodeSuid(i));
+		}
+		
+		List<CyEdge> edges = new ArrayList<CyEdge>(graph.getEdgeCount());
+		// edge SUIDs follow those of the nodes
+		long edgeSuid = graph.getNodeSuid(nodeCount - 1) + 1;
+		for (int i = 0; i < graph.getEdgeCount(); ++i) {
+			edges.add(new Edge(
+					edgeSuid++,
+					nodes[graph.getEdgeSource(i)],
+					nodes[graph.getEdgeTarget(i)]));
+		}
+		final List<CyEdge> edgeList = Collections.unmodifiableList(edges);
+		// and that of the network follows those of the edges
+		final Long networkSuid = edgeSuid;
+		final Table networkTable = new Table();
+		networkTable.getRow(networkSuid);
+		
+		return proxy(CyNetwork.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getSUID")) {
+					return networkSuid;
+				}
+				if (method.getName().equals("getDefaultNodeTable")) {
+					return nodeTable.proxy;
+				}
+				if (method.getName().equals("getDefaultNetworkTable")) {
+					return networkTable.proxy;
+				}
+				if (method.getName().equals("getTable")) {
+					// the same tables for every namespace
+					if (args[0] == CyNode.class) {
+						return nodeTable.proxy;
+					}
+					if (args[0] == CyNetwork.class) {
+						return networkTable.proxy;
+					}
+				}
+				if (method.getName().equals("getEdgeList")) {
+					// a new list each time, as Cytoscape returns
+					return new ArrayList<CyEdge>(edgeList);
+				}
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+	
+	/**
+	 * @return  a column of a table
+	 */
+	private static CyColumn column(final String name, final Class<?> type) {
+		return proxy(CyColumn.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getName")) {
+					return name;
+				}
+				if (method.getName().equals("getType")) {
+					return type;
+				}
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+	
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(
+				SyntheticCyNetwork.class.getClassLoader(),
+				new Class<?>[] {type},
+				handler));
+	}
+	
+	/**
+	 * A table keyed by SUID, with rows created on first access as in
+	 * Cytoscape.
+	 */
+	private static class Table implements InvocationHandler {
+		
+		final CyTable proxy = proxy(CyTable.class, this);
+		final Map<String, Class<?>> columns =
+				new LinkedHashMap<String, Class<?>>();
+		private final List<CyRow> rows = new ArrayList<CyRow>();
+		private final Map<Long, Row> rowsBySuid = new HashMap<Long, Row>();
+		
+		Table() {
+			columns.put(CyIdentifiable.SUID, Long.class);
+		}
+		
+		Row getRow(Long suid) {
+			Row row = rowsBySuid.get(suid);
+			if (row == null) {
+				row = new Row(this);
+				row.values.put(CyIdentifiable.SUID, suid);
+				rows.add(row);
+				rowsBySuid.put(suid, row);
+			}
+			return row;
+		}
+		
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("getPrimaryKey")) {
+				return column(CyIdentifiable.SUID, Long.class);
+			}
+			if (name.equals("getColumn")) {
+				Class<?> type = columns.get(args[0]);
+				return type == null ? null : column((String) args[0], type);
+			}
+			if (name.equals("createColumn") && args.length == 3) {
+				if (columns.containsKey(args[0])) {
+					throw new IllegalArgumentException(
+							"Column " + args[0] + " already exists.");
+				}
+				columns.put((String) args[0], (Class<?>) args[1]);
+				return null;
+			}
+			if (name.equals("getAllRows")) {
+				// a new list each time, as Cytoscape returns
+				return new ArrayList<CyRow>(rows);
+			}
+			if (name.equals("getRow")) {
+				return getRow((Long) args[0]);
+			}
+			if (name.equals("getRowCount")) {
+				return rows.size();
+			}
+			throw new UnsupportedOperationException(name);
+		}
+		
+	}
+	
+	private static class Row implements CyRow {
+		
+		private final Table table;
+		private final Map<String, Object> values = new HashMap<String, Object>();
+		
+		Row(Table table) {
+			this.table = table;
+		}
+		
+		@Override
+		public <T> T get(String columnName, Class<? extends T> type) {
+			return type.cast(values.get(columnName));
+		}
+		
+		@Override
+		public <T> T get(
+				String columnName, Class<? extends T> type, T defaultValue) {
+			T value = get(columnName, type);
+			return value == null ? defaultValue : value;
+		}
+		
+		@Override
+		public <T> List<T> getList(
+				String columnName, Class<T> listElementType) {
+			throw new UnsupportedOperationException("getList");
+		}
+		
+		@Override
+		public <T> List<T> getList(
+				String columnName,
+				Class<T> listElementType,
+				List<T> defaultValue) {
+			throw new UnsupportedOperationException("getList");
+		}
+		
+		@Override
+		public <T> void set(String columnName, T value) {
+			if (!table.columns.containsKey(columnName)) {
+				throw new IllegalArgumentException(
+						"No column " + columnName + ".");
+			}
+			values.put(columnName, value);
+		}
+		
+		@Override
+		public boolean isSet(String columnName) {
+			return values.get(columnName) != null;
+		}
+		
+		@Override
+		public Map<String, Object> getAllValues() {
+			return Collections.unmodifiableMap(values);
+		}
+		
+		@Override
+		public Object getRaw(String columnName) {
+			return values.get(columnName);
+		}
+		
+		@Override
+		public CyTable getTable() {
+			return table.proxy;
+		}
+		
+	}
+	
+	private static class Node implements CyNode {
+		
+		private final Long suid;
+		
+		Node(long suid) {
+			this.suid = suid;
+		}
+		
+		@Override
+		public Long getSUID() {
+			return suid;
+		}
+		
+		@Override
+		public CyNetwork getNetworkPointer() {
+			return null;
+		}
+		
+		@Override
+		public void setNetworkPointer(CyNetwork network) {
+			throw new UnsupportedOperationException("setNetworkPointer");
+		}
+		
+	}
+	
+	private static class Edge implements CyEdge {
+		
+		private final Long suid;
+		private final CyNode source;
+		private final CyNode target;
+		
+		Edge(long suid, CyNode source, CyNode target) {
+			this.suid = suid;
+			this.source = source;
+			this.target = target;
+		}
+		
+		@Override
+		public Long getSUID() {
+			return suid;
+		}
+		
+		@Override
+		public CyNode getSource() {
+			return source;
+		}
+		
+		@Override
+		public CyNode getTarget() {
+			return target;
+		}
+		
+		@Override
+		public boolean isDirected() {
+			return false;
+		}
+		
+	}
+	
+}
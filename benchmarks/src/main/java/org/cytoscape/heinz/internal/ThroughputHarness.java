@@ -0,0 +1,425 @@
+package org.cytoscape.heinz.internal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.CyRow;
+import org.cytoscape.work.TaskMonitor;
+
+/**
+ * Measures whole runs of HeinzTask and BumFittingTask against mock server
+ * wrappers, at several numbers of simultaneous runs.
+ *
+ * Runs are on the DLBCL example network, with the module and the BUM
+ * model parameters of the example outputs as the canned results, and
+ * include everything the app does: capturing and validating the network,
+ * the protocol round trips, parsing the results and writing them to the
+ * tables. Each concurrency level reports runs per second, the median and
+ * 99th percentile time of a run, and the peak heap use.
+ *
+ * Options are given as ‘--name=value’, see usage().
+ */
+public class ThroughputHarness {
+	
+	private static final String P_VALUE_COLUMN = "p-value";
+	private static final String RESULT_COLUMN = "in Heinz module";
+	private static final double FDR = 0.001;
+	private static final int BUM_STARTS = 10;
+	/**
+	 * SUID of the first node, the others following in file order.
+	 */
+	private static final long FIRST_SUID = 52;
+	
+	private final Map<String, String> options;
+	private final String task;
+	private final int runs;
+	private final int heinzParallelism;
+	private final boolean pooled;
+	private NetworkSnapshot graph;
+	private MockSwServer heinzServer;
+	private MockSwServer bumServer;
+	private SwConnectionPool connectionPool;
+	
+	private ThroughputHarness(Map<String, String> options) {
+		this.options = options;
+		task = option("task", "workflow");
+		if (!Arrays.asList("workflow", "heinz", "bum").contains(task)) {
+			throw new IllegalArgumentException("Unknown task: " + task);
+		}
+		runs = Integer.parseInt(option("runs", "200"));
+		heinzParallelism = Integer.parseInt(option("parallelism", "4"));
+		pooled = Boolean.parseBoolean(option("pool", "true"));
+	}
+	
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (!arg.startsWith("--") || equals < 0) {
+				usage();
+				return;
+			}
+			options.put(arg.substring(2, equals), arg.substring(equals + 1));
+		}
+		new ThroughputHarness(options).run();
+	}
+	
+	private static void usage() {
+		System.err.println(
+				"Options, with their defaults:\n" +
+				"  --task=workflow       workflow (BUM fit, then Heinz), " +
+						"heinz or bum\n" +
+				"  --concurrency=1,2,4,8,16  simultaneous runs, per level\n" +
+				"  --runs=200            runs measured per level\n" +
+				"  --warmup=50           runs before the first level\n" +
+				"  --latency=1           round trip to the servers, in ms\n" +
+				"  --bandwidth=0         bytes per second per connection, " +
+						"0 for no limit\n" +
+				"  --solve-delay=100     time per run of a tool, in ms\n" +
+				"  --processes=8         simultaneous runs per server\n" +
+				"  --parallelism=4       simultaneous Heinz runs per task\n" +
+				"  --deflate=true        whether the servers accept " +
+						"compression\n" +
+				"  --pool=true           whether to reuse connections\n" +
+				"  --examples=../examples  directory of the DLBCL example");
+	}
+	
+	private String option(String name, String defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+	
+	private void run() throws Exception {
+		File examples = new File(option("examples", "../examples"));
+		Map<String, Long> suids = loadNetwork(examples);
+		startServers(examples, suids);
+		if (pooled) {
+			connectionPool = new SwConnectionPool();
+		}
+		try {
+			System.out.println(
+					task + " runs on the DLBCL network (" +
+					graph.getNodeCount() + " nodes, " +
+					graph.getEdgeCount() + " edges), latency " +
+					option("latency", "1") + " ms, bandwidth " +
+					option("bandwidth", "0") + " B/s, solve delay " +
+					option("solve-delay", "100") + " ms, " +
+					option("processes", "8") + " processes per server");
+			
+			measure(1, Integer.parseInt(option("warmup", "50")));
+			System.out.println(String.format(
+					"%11s %6s %8s %8s %8s %14s %7s",
+					"concurrency", "runs", "runs/s", "p50 ms", "p99 ms",
+					"peak heap MB", "errors"));
+			for (String level : option("concurrency", "1,2,4,8,16").split(",")) {
+				int concurrency = Integer.parseInt(level.trim());
+				Level result = measure(concurrency, runs);
+				System.out.println(String.format(
+						"%11d %6d %8.1f %8.1f %8.1f %14.1f %7d",
+						concurrency,
+						runs,
+						runs / (result.wallTime / 1e9),
+						percentile(result.runTimes, 0.50) / 1e6,
+						percentile(result.runTimes, 0.99) / 1e6,
+						result.peakHeap / (1024.0 * 1024.0),
+						result.errors));
+				if (result.firstError != null) {
+					System.err.println("First error:");
+					result.firstError.printStackTrace();
+				}
+			}
+		} finally {
+			if (connectionPool != null) {
+				connectionPool.shutDown();
+			}
+			heinzServer.shutDown();
+			bumServer.shutDown();
+		}
+	}
+	
+	/**
+	 * Read the nodes and edges of the example network.
+	 *
+	 * @return  the SUIDs of the nodes, by label
+	 */
+	private Map<String, Long> loadNetwork(File examples) throws IOException {
+		Map<String, Long> suids = new LinkedHashMap<String, Long>();
+		List<Double> pValues = new ArrayList<Double>();
+		long suid = FIRST_SUID;
+		for (String[] fields : readTable(new File(examples, "dlbcl_nodes.txt"))) {
+			suids.put(fields[0], suid++);
+			pValues.add(Double.valueOf(fields[1]));
+		}
+		List<String[]> edges = readTable(new File(examples, "dlbcl_edges.txt"));
+		
+		long[] nodeSuids = new long[suids.size()];
+		double[] nodePValues = new double[suids.size()];
+		int i = 0;
+		for (Long nodeSuid : suids.values()) {
+			nodeSuids[i] = nodeSuid;
+			nodePValues[i] = pValues.get(i);
+			++i;
+		}
+		int[] edgeSources = new int[edges.size()];
+		int[] edgeTargets = new int[edges.size()];
+		for (int edge = 0; edge < edges.size(); ++edge) {
+			// SUIDs are consecutive, so they map straight to indices
+			edgeSources[edge] = (int) (
+					getSuid(suids, edges.get(edge)[0]) - FIRST_SUID);
+			edgeTargets[edge] = (int) (
+					getSuid(suids, edges.get(edge)[1]) - FIRST_SUID);
+		}
+		graph = NetworkSnapshot.create(
+				nodeSuids, nodePValues, edgeSources, edgeTargets);
+		return suids;
+	}
+	
+	private static long getSuid(Map<String, Long> suids, String label)
+			throws IOException {
+		Long suid = suids.get(label);
+		if (suid == null) {
+			throw new IOException("Edge to unknown node ‘" + label + "’.");
+		}
+		return suid;
+	}
+	
+	/**
+	 * Start a mock server for each tool, with the example outputs as their
+	 * results.
+	 */
+	private void startServers(File examples, Map<String, Long> suids)
+			throws IOException {
+		Map<Integer, String> module = new HashMap<Integer, String>();
+		for (String[] fields : readTable(
+				new File(examples, "dlbcl_heinz_output-fdr001.txt"))) {
+			if (!fields[1].equalsIgnoreCase("nan")) {
+				// node files list the nodes in snapshot, i.e. SUID, order
+				module.put(
+						(int) (getSuid(suids, fields[0]) - FIRST_SUID),
+						fields[1]);
+			}
+		}
+		byte[] bumOutput = readFile(
+				new File(examples, "dlbcl_bum_fit_statistics.txt"));
+		
+		int processes = Integer.parseInt(option("processes", "8"));
+		heinzServer = new MockSwServer(MockSwServer.Tool.HEINZ, processes);
+		heinzServer.setModule(module);
+		bumServer = new MockSwServer(MockSwServer.Tool.BUM, processes);
+		bumServer.setStandardOutput(bumOutput);
+		for (MockSwServer server : Arrays.asList(heinzServer, bumServer)) {
+			server.setLatency(Long.parseLong(option("latency", "1")));
+			server.setBandwidth(Long.parseLong(option("bandwidth", "0")));
+			server.setSolveDelay(Long.parseLong(option("solve-delay", "100")));
+			server.setDeflate(Boolean.parseBoolean(option("deflate", "true")));
+			server.start(0);
+		}
+	}
+	
+	/**
+	 * The results of a concurrency level.
+	 */
+	private static class Level {
+		
+		long wallTime;
+		long[] runTimes;
+		long peakHeap;
+		int errors;
+		Throwable firstError;
+		
+	}
+	
+	/**
+	 * Do a number of runs, a given number at a time.
+	 */
+	private Level measure(int concurrency, final int runCount)
+			throws InterruptedException {
+		final long[] runTimes = new long[runCount];
+		final AtomicInteger nextRun = new AtomicInteger();
+		final AtomicInteger errors = new AtomicInteger();
+		final AtomicReference<Throwable> firstError =
+				new AtomicReference<Throwable>();
+		
+		// peaks of this level only, not of collectable garbage before it
+		System.gc();
+		List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+				pool.resetPeakUsage();
+				heapPools.add(pool);
+			}
+		}
+		
+		long start = System.nanoTime();
+		Thread[] workers = new Thread[concurrency];
+		for (int i = 0; i < concurrency; ++i) {
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					// tasks write to the network, so each worker has its own
+					CyNetwork network =
+							SyntheticCyNetwork.create(graph, P_VALUE_COLUMN);
+					int run;
+					while ((run = nextRun.getAndIncrement()) < runCount) {
+						long runStart = System.nanoTime();
+						try {
+							runOnce(network);
+						} catch (Throwable e) {
+							errors.incrementAndGet();
+							firstError.compareAndSet(null, e);
+						}
+						runTimes[run] = System.nanoTime() - runStart;
+					}
+				}
+			}, "Harness worker " + i);
+			workers[i].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		
+		Level level = new Level();
+		level.wallTime = System.nanoTime() - start;
+		level.runTimes = runTimes;
+		// an upper bound, as the pools need not peak at the same time
+		for (MemoryPoolMXBean pool : heapPools) {
+			level.peakHeap += pool.getPeakUsage().getUsed();
+		}
+		level.errors = errors.get();
+		level.firstError = firstError.get();
+		return level;
+	}
+	
+	/**
+	 * Run the tasks on a network, as the workflow task would.
+	 */
+	private void runOnce(CyNetwork network) throws Exception {
+		NetworkSnapshot snapshot =
+				NetworkSnapshot.capture(network, P_VALUE_COLUMN);
+		snapshot.validatePValues();
+		TaskMonitor taskMonitor = proxy(TaskMonitor.class);
+		
+		if (!task.equals("heinz")) {
+			CyRow networkTableRow = network.getTable(
+					CyNetwork.class, CyNetwork.LOCAL_ATTRS).getRow(
+							network.getSUID());
+			BumFittingTask bumFittingTask = new BumFittingTask(
+					network.getDefaultNodeTable().getColumn(P_VALUE_COLUMN),
+					snapshot,
+					networkTableRow,
+					BUM_STARTS,
+					0,
+					false,
+					"localhost", bumServer.getPort(),
+					connectionPool,
+					null);
+			bumFittingTask.showPlots = false;
+			bumFittingTask.run(taskMonitor);
+		}
+		if (!task.equals("bum")) {
+			// the workflow reads the parameters fitted by the BUM task, a
+			// Heinz run on its own is given those of the example
+			boolean fitted = task.equals("workflow");
+			new HeinzTask(
+					network,
+					snapshot,
+					RESULT_COLUMN,
+					FDR,
+					fitted ? null : Double.valueOf(0.527),
+					fitted ? null : Double.valueOf(0.267),
+					false,
+					true,
+					heinzParallelism,
+					"localhost",
+					heinzServer.getPort(),
+					connectionPool,
+					null,
+					new ModuleColumnWriter(null),
+					null).run(taskMonitor);
+		}
+	}
+	
+	/**
+	 * @return  the time below which a share of the runs finished
+	 */
+	private static long percentile(long[] runTimes, double share) {
+		long[] sorted = runTimes.clone();
+		Arrays.sort(sorted);
+		int rank = (int) Math.ceil(share * sorted.length);
+		return sorted[Math.max(rank - 1, 0)];
+	}
+	
+	/**
+	 * Read a tab-separated file, skipping comment lines.
+	 */
+	private static List<String[]> readTable(File file) throws IOException {
+		List<String[]> rows = new ArrayList<String[]>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), Charset.forName("UTF-8")));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() > 0 && line.charAt(0) != '#') {
+					rows.add(line.split("\t"));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return rows;
+	}
+	
+	private static byte[] readFile(File file) throws IOException {
+		FileInputStream stream = new FileInputStream(file);
+		try {
+			byte[] contents = new byte[(int) file.length()];
+			int read = 0;
+			while (read < contents.length) {
+				int count = stream.read(contents, read, contents.length - read);
+				if (count < 0) {
+					throw new IOException("File " + file + " changed.");
+				}
+				read += count;
+			}
+			return contents;
+		} finally {
+			stream.close();
+		}
+	}
+	
+	/**
+	 * @return  an implementation of an interface that ignores all calls
+	 */
+	private static <T> T proxy(Class<T> type) {
+		return type.cast(Proxy.newProxyInstance(
+				ThroughputHarness.class.getClassLoader(),
+				new Class<?>[] {type},
+				new InvocationHandler() {
+					@Override
+					public Object invoke(
+							Object proxy, Method method, Object[] args) {
+						return null;
+					}
+				}));
+	}
+	
+}
@@ -0,0 +1,241 @@
+package org.cytoscape.heinz.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+
+/**
+ * Runs a session with a server wrapper without blocking the calling
+ * thread, e.g. to keep dozens of sessions in progress at once.
+ *
+ * Each step of the session returns a future. The steps are performed in
+ * the order they were started by a blocking client, on the worker threads
+ * of a selector pool, so that the protocol is spoken exactly as by the
+ * blocking clients: capabilities negotiated, payloads compressed, files
+ * offered by their hash or sent in binary, output streamed, run times
+ * reported and connections pooled alike. While the tool runs, the
+ * connection is left to the pool’s selector and holds no thread.
+ *
+ * Once a step fails, the later ones fail with the same cause, except
+ * close(), which always runs.
+ *
+ * @param <C>  the type of the blocking client
+ *
+ * @see SwSelectorPool
+ */
+public abstract class AbstractAsyncSwClient<C extends AbstractSwClient> {
+
+	private final SwSelectorPool selectorPool;
+	private volatile C client = null;
+	/**
+	 * The future of the last step started, which the next one waits for.
+	 */
+	private SwFuture<?> lastStep;
+	private SwFuture<Void> closed = null;
+	private volatile boolean aborted = false;
+
+	/**
+	 * Start connecting to a server, on a worker thread of the pool.
+	 *
+	 * @param selectorPool  the pool to run the session on
+	 * @param connector  creates the blocking client, connecting it
+	 */
+	protected AbstractAsyncSwClient(
+			SwSelectorPool selectorPool, final Callable<C> connector) {
+		this.selectorPool = selectorPool;
+		lastStep = schedule(SwFuture.completed(null), new Callable<SwFuture<C>>() {
+			@Override
+			public SwFuture<C> call() throws Exception {
+				C connected = connector.call();
+				client = connected;
+				if (aborted) {
+					// abort() came too early to reach it
+					connected.abort();
+				}
+				return SwFuture.completed(connected);
+			}
+		});
+	}
+
+	/**
+	 * @return  the pool the session runs on
+	 */
+	public SwSelectorPool getSelectorPool() {
+		return selectorPool;
+	}
+
+	/**
+	 * @return  the blocking client, once connected, e.g. for its metrics
+	 *          once the session is closed
+	 */
+	public C getClient() {
+		return client;
+	}
+
+	/**
+	 * Add a step to the session, performed once the previous steps have
+	 * succeeded.
+	 *
+	 * @param step  performs the step with the blocking client
+	 *
+	 * @return  the future of its result
+	 */
+	protected <T> SwFuture<T> enqueue(final Callable<T> step) {
+		return enqueueAsync(new Callable<SwFuture<T>>() {
+			@Override
+			public SwFuture<T> call() throws Exception {
+				return SwFuture.completed(step.call());
+			}
+		});
+	}
+
+	/**
+	 * Add a step to the session that starts an asynchronous operation,
+	 * e.g. a run, and is only done once that operation is.
+	 *
+	 * @param step  starts the operation with the blocking client
+	 *
+	 * @return  the future of its result
+	 */
+	protected synchronized <T> SwFuture<T> enqueueAsync(
+			Callable<SwFuture<T>> step) {
+		if (closed != null) {
+			return SwFuture.failed(new IOException("Session closed."));
+		}
+		SwFuture<T> future = schedule(lastStep, step);
+		lastStep = future;
+		return future;
+	}
+
+	/**
+	 * Perform a step on a worker thread once another one has succeeded.
+	 *
+	 * @param previous  the future of the other step
+	 * @param step  starts the step
+	 *
+	 * @return  the future of the step, failed if the other step failed
+	 */
+	private <T> SwFuture<T> schedule(
+			SwFuture<?> previous, final Callable<SwFuture<T>> step) {
+		final SwFuture<T> future = new SwFuture<T>();
+		previous.addListener(new SwFuture.Listener<Object>() {
+			@Override
+			public void completed(Object result) {
+				// never on the thread that started the step, which may be
+				// that of a task
+				selectorPool.execute(new Runnable() {
+					@Override
+					public void run() {
+						perform(step, future);
+					}
+				});
+			}
+			@Override
+			public void failed(Throwable cause) {
+				future.fail(cause);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Perform a step, completing its future with the outcome.
+	 *
+	 * @param step  starts the step
+	 * @param future  the future of the step
+	 */
+	private <T> void perform(
+			Callable<SwFuture<T>> step, final SwFuture<T> future) {
+		if (aborted) {
+			future.fail(new InterruptedIOException("Run aborted."));
+			return;
+		}
+		if (selectorPool.isShutDown()) {
+			future.fail(new IOException("Session pool shut down."));
+			return;
+		}
+		SwFuture<T> operation;
+		try {
+			operation = step.call();
+		} catch (Exception e) {
+			future.fail(e);
+			return;
+		}
+		operation.addListener(new SwFuture.Listener<T>() {
+			@Override
+			public void completed(T result) {
+				future.complete(result);
+			}
+			@Override
+			public void failed(Throwable cause) {
+				future.fail(cause);
+			}
+		});
+	}
+
+	/**
+	 * Abort the session, from any thread, e.g. when the user cancels a
+	 * task.
+	 *
+	 * A run in progress is aborted as by AbstractSwClient.abort(), and the
+	 * steps not started yet fail with an InterruptedIOException.
+	 *
+	 * @see AbstractSwClient#abort()
+	 */
+	public void abort() {
+		aborted = true;
+		C connected = client;
+		if (connected != null) {
+			connected.abort();
+		}
+	}
+
+	/**
+	 * Close the session once the previous steps are done, whether they
+	 * succeeded or not, returning the connection to its pool if it can be
+	 * used again.
+	 *
+	 * No steps can be added after this.
+	 *
+	 * @return  the future of closing, which does not fail
+	 */
+	public synchronized SwFuture<Void> close() {
+		if (closed != null) {
+			return closed;
+		}
+		closed = new SwFuture<Void>();
+		lastStep.addListener(new SwFuture.Listener<Object>() {
+			@Override
+			public void completed(Object result) {
+				closeClient();
+			}
+			@Override
+			public void failed(Throwable cause) {
+				closeClient();
+			}
+		});
+		return closed;
+	}
+
+	/**
+	 * Close the blocking client, if it connected, on a worker thread.
+	 */
+	private void closeClient() {
+		selectorPool.execute(new Runnable() {
+			@Override
+			public void run() {
+				C connected = client;
+				try {
+					if (connected != null) {
+						connected.close();
+					}
+				} catch (IOException e) {
+					// the connection has been closed rather than reused
+				} finally {
+					closed.complete(null);
+				}
+			}
+		});
+	}
+
+}
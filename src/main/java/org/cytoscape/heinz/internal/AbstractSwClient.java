@@ -1,14 +1,36 @@
 package org.cytoscape.heinz.internal;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.net.Socket;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Client to run a command line tool via a simple network server wrapper.
@@ -19,6 +41,392 @@ import java.nio.charset.Charset;
  * @see <a href="https://github.com/melkebir/server-wrapper">server-wrapper</a>
  */
 public abstract class AbstractSwClient {
+	
+	/**
+	 * Capability of compressing payloads, see ClientMessage.TYPE_CAPABILITIES.
+	 */
+	public static final String CAPABILITY_DEFLATE = "deflate";
+	/**
+	 * Capability of accepting files by their hash, see
+	 * ClientMessage.TYPE_OFFER_FILE.
+	 */
+	public static final String CAPABILITY_OFFER_FILE = "offer-file";
+	/**
+	 * Capability of exchanging networks in a binary format, see
+	 * ClientMessage.TYPE_BINARY_INPUT_FILE.
+	 */
+	public static final String CAPABILITY_BINARY_NETWORK = "binary-network";
+	/**
+	 * Capability of streaming the tool’s output during a run, see
+	 * ServerMessage.TYPE_PROGRESS.
+	 */
+	public static final String CAPABILITY_PROGRESS = "progress";
+	/**
+	 * Capability of reporting how long a run waited and ran, see
+	 * ClientMessage.TYPE_RUN.
+	 */
+	public static final String CAPABILITY_RUN_TIMES = "run-times";
+	
+	/**
+	 * First payload byte, once compression is enabled, of a payload that
+	 * follows as is.
+	 */
+	static final int ENCODING_STORED = 0;
+	/**
+	 * First payload byte, once compression is enabled, of a payload that
+	 * follows compressed in the zlib format.
+	 */
+	static final int ENCODING_DEFLATE = 1;
+	/**
+	 * Payloads smaller than this (in bytes) are never compressed, as the
+	 * zlib header and checksum would likely outweigh the gain.
+	 */
+	static final int MIN_DEFLATED_SIZE = 256;
+	/**
+	 * Compressed payloads larger than this (in bytes) are held in a
+	 * temporary file rather than in memory until they are sent.
+	 */
+	static final int MAX_BUFFERED_DEFLATED_SIZE = 4 * 1024 * 1024;
+	
+	/**
+	 * A message payload that is written directly to the connection.
+	 * 
+	 * Allows large payloads, such as network files, to be sent without
+	 * first building them up as a byte array in memory.
+	 */
+	protected interface StreamedPayload {
+		
+		/**
+		 * Determine the size of the payload.
+		 * 
+		 * @return  the exact number of bytes that writeTo() will write
+		 * 
+		 * @throws IOException  if the payload cannot be produced
+		 */
+		public int getLength() throws IOException;
+		
+		/**
+		 * Write the payload to a stream.
+		 * 
+		 * @param stream  an output stream connected to the server
+		 * 
+		 * @throws IOException  if an I/O error occurs
+		 */
+		public void writeTo(OutputStream stream) throws IOException;
+		
+		/**
+		 * Compute a content hash of the payload.
+		 * 
+		 * @return  the SHA-256 digest of the bytes writeTo() will write
+		 * 
+		 * @throws IOException  if the payload cannot be produced
+		 */
+		public byte[] getDigest() throws IOException;
+		
+	}
+	
+	/**
+	 * A text file payload, encoded on the fly each time it is needed.
+	 * 
+	 * The file is encoded twice: once to count its bytes, so the length can
+	 * be sent ahead of it as the protocol requires, and once more while
+	 * sending it. Memory use is thus bounded by the encoder buffer instead
+	 * of the size of the file. The first pass also hashes the bytes, in
+	 * case the file is offered by its digest.
+	 */
+	protected abstract class EncodedPayload implements StreamedPayload {
+		
+		private long length = -1;
+		private byte[] digest = null;
+		
+		/**
+		 * Write the contents of the file using the given encoder.
+		 * 
+		 * Must produce the same bytes every time it is called.
+		 * 
+		 * @param encoder  the encoder to write to
+		 * 
+		 * @throws IOException  if an I/O error occurs
+		 */
+		protected abstract void encode(AsciiEncoder encoder)
+				throws IOException;
+		
+		@Override
+		public int getLength() throws IOException {
+			if (length < 0) {
+				// do a dry run to count the bytes, hashing them meanwhile
+				final MessageDigest fileDigest = newDigest();
+				encoder.reset(new OutputStream() {
+					@Override
+					public void write(int b) {
+						fileDigest.update((byte) b);
+					}
+					@Override
+					public void write(byte[] b, int offset, int length) {
+						fileDigest.update(b, offset, length);
+					}
+				});
+				encode(encoder);
+				length = encoder.finish();
+				digest = fileDigest.digest();
+			}
+			// the protocol stores lengths as signed four-byte integers
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException(
+						"File too large to send to the server.");
+			}
+			return (int) length;
+		}
+		
+		@Override
+		public void writeTo(OutputStream stream) throws IOException {
+			encoder.reset(stream);
+			encode(encoder);
+			encoder.finish();
+		}
+		
+		@Override
+		public byte[] getDigest() throws IOException {
+			// computed along with the length
+			getLength();
+			return digest;
+		}
+		
+	}
+	
+	/**
+	 * A text file payload shared by several clients, e.g. the edge file of
+	 * a network sent to several runs at once.
+	 * 
+	 * Like EncodedPayload, it is encoded on the fly each time it is sent,
+	 * but with an encoder of its own for each send, so that clients on
+	 * different threads can send it together. The length and digest are
+	 * worked out only once, by whichever client needs them first.
+	 */
+	protected abstract static class SharedEncodedPayload
+			implements StreamedPayload {
+		
+		private long length = -1;
+		private byte[] digest = null;
+		
+		/**
+		 * Write the contents of the file using the given encoder.
+		 * 
+		 * Must produce the same bytes every time it is called, and may be
+		 * called on several threads at once.
+		 * 
+		 * @param encoder  the encoder to write to
+		 * 
+		 * @throws IOException  if an I/O error occurs
+		 */
+		protected abstract void encode(AsciiEncoder encoder)
+				throws IOException;
+		
+		@Override
+		public synchronized int getLength() throws IOException {
+			if (length < 0) {
+				// do a dry run to count the bytes, hashing them meanwhile
+				final MessageDigest fileDigest = newDigest();
+				AsciiEncoder encoder = new AsciiEncoder();
+				encoder.reset(new OutputStream() {
+					@Override
+					public void write(int b) {
+						fileDigest.update((byte) b);
+					}
+					@Override
+					public void write(byte[] b, int offset, int length) {
+						fileDigest.update(b, offset, length);
+					}
+				});
+				encode(encoder);
+				length = encoder.finish();
+				digest = fileDigest.digest();
+			}
+			// the protocol stores lengths as signed four-byte integers
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException(
+						"File too large to send to the server.");
+			}
+			return (int) length;
+		}
+		
+		@Override
+		public void writeTo(OutputStream stream) throws IOException {
+			AsciiEncoder encoder = new AsciiEncoder();
+			encoder.reset(stream);
+			encode(encoder);
+			encoder.finish();
+		}
+		
+		@Override
+		public synchronized byte[] getDigest() throws IOException {
+			// computed along with the length
+			getLength();
+			return digest;
+		}
+	
+	}
+	
+	/**
+	 * A binary file payload, written on the fly each time it is needed.
+	 * 
+	 * Unlike a text file, the length of a binary file follows from the
+	 * number of records in it, so it is written only once per send. The
+	 * digest is worked out once, so that the payload can be shared by
+	 * several clients.
+	 */
+	protected abstract static class BinaryPayload implements StreamedPayload {
+		
+		private byte[] digest = null;
+		
+		/**
+		 * Write the contents of the file.
+		 * 
+		 * Must produce the same getLength() bytes every time it is called.
+		 * 
+		 * @param stream  the stream to write to
+		 * 
+		 * @throws IOException  if an I/O error occurs
+		 */
+		protected abstract void write(DataOutputStream stream)
+				throws IOException;
+		
+		@Override
+		public void writeTo(OutputStream stream) throws IOException {
+			// buffer the many small writes, e.g. to a compressing stream
+			DataOutputStream dataStream = new DataOutputStream(
+					new BufferedOutputStream(stream, 64 * 1024));
+			write(dataStream);
+			dataStream.flush();
+		}
+		
+		@Override
+		public synchronized byte[] getDigest() throws IOException {
+			if (digest == null) {
+				final MessageDigest fileDigest = newDigest();
+				writeTo(new OutputStream() {
+					@Override
+					public void write(int b) {
+						fileDigest.update((byte) b);
+					}
+					@Override
+					public void write(byte[] b, int offset, int length) {
+						fileDigest.update(b, offset, length);
+					}
+				});
+				digest = fileDigest.digest();
+			}
+			return digest;
+		}
+		
+	}
+	
+	/**
+	 * Holds a compressed payload until its length is known and it can be
+	 * sent, in memory up to MAX_BUFFERED_DEFLATED_SIZE and in a temporary
+	 * file beyond.
+	 */
+	private static class DeflatedBuffer extends OutputStream {
+		
+		private final ByteArrayOutputStream memory =
+				new ByteArrayOutputStream();
+		private File file = null;
+		private OutputStream fileStream = null;
+		private long length = 0;
+		
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int offset, int length)
+				throws IOException {
+			if (file == null &&
+					memory.size() + length > MAX_BUFFERED_DEFLATED_SIZE) {
+				file = File.createTempFile("heinz-payload-", ".deflate");
+				fileStream = new BufferedOutputStream(
+						new FileOutputStream(file), 64 * 1024);
+				memory.writeTo(fileStream);
+				memory.reset();
+			}
+			if (fileStream != null) {
+				fileStream.write(b, offset, length);
+			} else {
+				memory.write(b, offset, length);
+			}
+			this.length += length;
+		}
+		
+		/**
+		 * @return  the number of bytes written so far
+		 */
+		public long getLength() {
+			return length;
+		}
+		
+		/**
+		 * Copy the bytes written to another stream.
+		 * 
+		 * @param stream  an output stream connected to the server
+		 * 
+		 * @throws IOException  if reading the temporary file or writing
+		 *                      fails
+		 */
+		public void writeTo(OutputStream stream) throws IOException {
+			if (fileStream == null) {
+				memory.writeTo(stream);
+				return;
+			}
+			fileStream.flush();
+			InputStream fileInput = new FileInputStream(file);
+			try {
+				byte[] buffer = new byte[64 * 1024];
+				int count;
+				while ((count = fileInput.read(buffer)) != -1) {
+					stream.write(buffer, 0, count);
+				}
+			} finally {
+				fileInput.close();
+			}
+		}
+		
+		/**
+		 * Free the buffer, deleting the temporary file if any.
+		 */
+		public void delete() {
+			if (fileStream != null) {
+				try {
+					fileStream.close();
+				} catch (IOException e) {
+					// the file is deleted anyway
+				}
+				file.delete();
+				fileStream = null;
+			}
+			memory.reset();
+		}
+		
+	}
+	
+	/**
+	 * Receives the output of the tool while it runs.
+	 * 
+	 * @see ServerMessage#TYPE_PROGRESS
+	 */
+	public interface OutputListener {
+		
+		/**
+		 * Called on the thread waiting for the run, with complete lines.
+		 * 
+		 * @param output  the name of the stream, "254" for standard output
+		 *                or "255" for standard error
+		 * @param lines  one or more lines, each ending with a line break
+		 */
+		public void outputReceived(String output, String lines);
+		
+	}
+	
 	/**
 	 * Represents a message from the client to the server wrapper.
 	 */
@@ -53,8 +461,20 @@ public abstract class AbstractSwClient {
 		public static final int TYPE_OUTPUT_FILE = 30;
 		/**
 		 * A request to run the command.
+		 * 
+		 * Once "run-times" is in effect (see TYPE_CAPABILITIES), the
+		 * server acknowledges a run with the time it waited for a free
+		 * process and the time the command ran, in milliseconds, as the
+		 * payload "queued,ran", e.g. "0,1520".
 		 */
 		public static final int TYPE_RUN = 40;
+		/**
+		 * Payload of a run request asking for the tool’s output to be
+		 * streamed while it runs, once "progress" is in effect.
+		 * 
+		 * @see ServerMessage#TYPE_PROGRESS
+		 */
+		public static final String RUN_STREAM_OUTPUT = "progress";
 		/**
 		 * An output file retrieval request.
 		 * 
@@ -64,10 +484,84 @@ public abstract class AbstractSwClient {
 		 * output and standard error streams by 254 and 255, respectively.
 		 */
 		public static final int TYPE_GET_OUTPUT = 50;
+		/**
+		 * A request to end the current session but keep the connection.
+		 * 
+		 * The server forgets the parameters, files and outputs of the
+		 * previous run, so that another run can be set up on the same
+		 * connection. This is an extension of the server-wrapper protocol:
+		 * servers that do not acknowledge it are simply disconnected.
+		 */
+		public static final int TYPE_RESET = 60;
+		/**
+		 * An offer of an input file by its content hash.
+		 * 
+		 * The payload is the hexadecimal SHA-256 digest of the file. A
+		 * server that still holds a file with that digest, e.g. from an
+		 * earlier run, uses it as if it had been sent as an input file and
+		 * acknowledges with the payload "1"; otherwise it acknowledges
+		 * with "0" and the file must be sent as usual. This is an
+		 * extension of the server-wrapper protocol: servers without it
+		 * answer with a NACK, after which files are just sent.
+		 */
+		public static final int TYPE_OFFER_FILE = 70;
+		/**
+		 * A capability query, sent along with the first ping.
+		 * 
+		 * The payload is a comma-separated list of the protocol
+		 * extensions the client supports, such as "deflate". The server
+		 * acknowledges with the list of those it supports too, which are
+		 * then in effect for the rest of the connection. Servers that do
+		 * not know this extension answer with a NACK, and the plain
+		 * protocol is used.
+		 * 
+		 * Once "deflate" is in effect, every non-empty payload in either
+		 * direction starts with a byte telling how the rest is encoded:
+		 * 0 for as is, 1 for compressed in the zlib format. The payload
+		 * length includes this byte.
+		 */
+		public static final int TYPE_CAPABILITIES = 80;
+		/**
+		 * An input file in binary format, for the server to convert to
+		 * the format the tool reads.
+		 * 
+		 * This is an extension of the server-wrapper protocol, only sent
+		 * once "binary-network" is in effect (see TYPE_CAPABILITIES).
+		 * All numbers are big-endian. Nodes are identified by dense
+		 * integer IDs 0..n-1, which the server passes on to the tool:
+		 * 
+		 * <ul>
+		 * <li>A node file ("-n") is an int n followed by the p-values of
+		 *     nodes 0 to n-1 as IEEE 754 doubles.</li>
+		 * <li>An edge file ("-e") is an int m followed by m pairs of ints,
+		 *     the IDs of the source and target of each edge.</li>
+		 * </ul>
+		 * 
+		 * An output file that lists nodes from a binary node file can then
+		 * be requested as a bitset, by a TYPE_GET_OUTPUT message with the
+		 * payload "bitset": n bits, bit i being set (in byte i / 8, least
+		 * significant bit first) if the tool reported a score for node i.
+		 */
+		public static final int TYPE_BINARY_INPUT_FILE = 90;
+		/**
+		 * A request to abort the run in progress, sent while waiting for
+		 * the acknowledgement of the run request.
+		 * 
+		 * The server stops waiting for a free process, or kills the tool,
+		 * and answers the run request with a NACK. It then acknowledges
+		 * the abort with the payload "1", once the process is free for
+		 * other runs, or "0" if the run had finished already. A client
+		 * disconnecting during a run aborts it too. This is an extension
+		 * of the server-wrapper protocol: servers without it only answer
+		 * with a NACK once the run is over, so the client gives up on the
+		 * connection if the run does not end soon after the request.
+		 */
+		public static final int TYPE_ABORT = 100;
 		
 		private final int type;
 		private final String name;
 		private final byte[] payload;
+		private final StreamedPayload streamedPayload;
 		
 		/**
 		 * Construct a new client message
@@ -82,19 +576,68 @@ public abstract class AbstractSwClient {
 		 * @see #TYPE_OUTPUT_FILE
 		 * @see #TYPE_RUN
 		 * @see #TYPE_GET_OUTPUT
+		 * @see #TYPE_RESET
+		 * @see #TYPE_OFFER_FILE
+		 * @see #TYPE_CAPABILITIES
+		 * @see #TYPE_BINARY_INPUT_FILE
+		 * @see #TYPE_ABORT
 		 */
 		public ClientMessage(int type, String name, byte[] payload) {
+			this(type, name, payload, null);
+		}
+		
+		/**
+		 * Construct a new client message with a payload written on sending.
+		 * 
+		 * @param type  the message type, see ClientMessage class constants
+		 * @param name  the name (command line flag) for parameters, or null
+		 * @param payload  an object writing the file contents to the server
+		 * 
+		 * @return  the new client message
+		 */
+		public static ClientMessage streamed(
+				int type, String name, StreamedPayload payload) {
+			return new ClientMessage(type, name, null, payload);
+		}
+		
+		private ClientMessage(
+				int type,
+				String name,
+				byte[] payload,
+				StreamedPayload streamedPayload) {
 			this.type = type;
 			this.name = name;
 			this.payload = payload;
+			this.streamedPayload = streamedPayload;
 		}
 		
 		/**
 		 * Send this message to the server.
 		 * 
+		 * The stream is not flushed, so that several messages can be sent
+		 * together; callers should flush it before waiting for a response.
+		 * 
 		 * @param stream  an output stream connected to the server
 		 */
 		public void send(OutputStream stream) throws IOException {
+			send(stream, false, null);
+		}
+		
+		/**
+		 * Send this message to the server, compressing its payload.
+		 * 
+		 * @param stream  an output stream connected to the server
+		 * @param deflate  whether compression is in effect
+		 * @param statistics  the statistics to add the payload size to,
+		 *                    or null
+		 * 
+		 * @see #TYPE_CAPABILITIES
+		 * @see #TYPE_BINARY_INPUT_FILE
+		 */
+		public void send(
+				OutputStream stream,
+				boolean deflate,
+				SwTransferStatistics statistics) throws IOException {
 			
 			// wrap the OutputStream in a DataOutputStream, which implements
 			// methods for conveniently writing primitive data types
@@ -117,22 +660,165 @@ public abstract class AbstractSwClient {
 				dataStream.writeInt(0);
 			}
 			
+			int length = 0;
+			long wireLength = 0;
+			// if no payload was specified 
+			if (payload == null && streamedPayload == null) {
+				// indicate a payload length of 0 (four bytes, NBO)
+				dataStream.writeInt(0);
+			// if the payload may be compressed
+			} else if (deflate) {
+				length = payload != null ?
+						payload.length : streamedPayload.getLength();
+				wireLength = writeDeflated(dataStream, length);
 			// if a payload was specified
-			if (payload != null) {
+			} else if (payload != null) {
 				// send the length of the payload (four bytes, NBO)
-				dataStream.writeInt(payload.length);
+				length = payload.length;
+				dataStream.writeInt(length);
 				dataStream.write(payload);
-			// if no payload was specified 
+				wireLength = length;
+			// if the payload is to be written as it is sent
 			} else {
-				// indicate a payload length of 0 (four bytes, NBO)
-				dataStream.writeInt(0);
+				// send the length ahead of the payload (four bytes, NBO)
+				length = streamedPayload.getLength();
+				dataStream.writeInt(length);
+				writeStreamedPayload(dataStream, length);
+				wireLength = length;
 			}
 			
-			// actually send bytes if the stream happens to be buffered
-			dataStream.flush();
+			if (statistics != null) {
+				statistics.addSent(length, wireLength);
+			}
 			
 		}
 		
+		/**
+		 * Send the payload with its encoding byte, compressed if worthwhile.
+		 * 
+		 * As the length of a compressed payload must be sent ahead of it,
+		 * the payload is compressed once into a DeflatedBuffer, which keeps
+		 * large payloads in a temporary file, and then sent from there.
+		 * 
+		 * @param dataStream  an output stream connected to the server
+		 * @param length  the length of the uncompressed payload
+		 * 
+		 * @return  the number of payload bytes sent
+		 */
+		private long writeDeflated(DataOutputStream dataStream, int length)
+				throws IOException {
+			if (length == 0) {
+				dataStream.writeInt(0);
+				return 0;
+			}
+			// send small and incompressible payloads as they are
+			if (length >= MIN_DEFLATED_SIZE) {
+				DeflatedBuffer compressed = compress();
+				try {
+					long compressedLength = compressed.getLength();
+					if (compressedLength < length) {
+						dataStream.writeInt((int) compressedLength + 1);
+						dataStream.writeByte(ENCODING_DEFLATE);
+						compressed.writeTo(dataStream);
+						return compressedLength + 1;
+					}
+				} finally {
+					compressed.delete();
+				}
+			}
+			dataStream.writeInt(length + 1);
+			dataStream.writeByte(ENCODING_STORED);
+			if (payload != null) {
+				dataStream.write(payload);
+			} else {
+				writeStreamedPayload(dataStream, length);
+			}
+			return length + 1;
+		}
+		
+		/**
+		 * Compress the payload in the zlib format.
+		 * 
+		 * @return  the compressed payload
+		 */
+		private DeflatedBuffer compress() throws IOException {
+			DeflatedBuffer buffer = new DeflatedBuffer();
+			// the fastest level already shrinks tab-separated numbers
+			// severalfold, and keeps up with fast connections
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			boolean done = false;
+			try {
+				DeflaterOutputStream deflaterStream = new DeflaterOutputStream(
+						buffer, deflater, 64 * 1024);
+				if (payload != null) {
+					deflaterStream.write(payload);
+				} else {
+					streamedPayload.writeTo(deflaterStream);
+				}
+				deflaterStream.finish();
+				done = true;
+				return buffer;
+			} finally {
+				deflater.end();
+				if (!done) {
+					buffer.delete();
+				}
+			}
+		}
+		
+		/**
+		 * Write the streamed payload, checking that it has the announced length.
+		 * 
+		 * @param dataStream  an output stream connected to the server
+		 * @param length  the announced length of the payload
+		 */
+		private void writeStreamedPayload(
+				DataOutputStream dataStream, int length) throws IOException {
+			int sizeBefore = dataStream.size();
+			streamedPayload.writeTo(dataStream);
+			// the server would misinterpret everything after a payload
+			// that does not match its announced length
+			if (dataStream.size() - sizeBefore != length) {
+				throw new IOException(
+						"Payload changed while sending it to the server.");
+			}
+		}
+		
+		/**
+		 * Describe the message for use in error messages.
+		 * 
+		 * @return  a short description, e.g. <code>parameter -lambda</code>
+		 */
+		@Override
+		public String toString() {
+			switch (type) {
+			case TYPE_ALIVE:
+				return "ping";
+			case TYPE_PARAMETER:
+				return "parameter " + name;
+			case TYPE_INPUT_FILE:
+				return "input file " + name;
+			case TYPE_OUTPUT_FILE:
+				return "output file " + name;
+			case TYPE_RUN:
+				return "run request";
+			case TYPE_GET_OUTPUT:
+				return "output request " + name;
+			case TYPE_RESET:
+				return "reset request";
+			case TYPE_OFFER_FILE:
+				return "input file offer " + name;
+			case TYPE_CAPABILITIES:
+				return "capability query";
+			case TYPE_BINARY_INPUT_FILE:
+				return "binary input file " + name;
+			case TYPE_ABORT:
+				return "abort request";
+			default:
+				return "message of type " + type;
+			}
+		}
+		
 	}
 	
 	/**
@@ -152,6 +838,21 @@ public abstract class AbstractSwClient {
 		 * A package bearing an output stream as its payload.
 		 */
 		public static final int TYPE_OUTPUT = 59;
+		/**
+		 * Output of the tool, streamed while it runs.
+		 * 
+		 * This is an extension of the server-wrapper protocol, only sent
+		 * once "progress" is in effect (see ClientMessage.TYPE_CAPABILITIES)
+		 * and the run request asked for it with the payload "progress".
+		 * Any number of these messages precede the answer to the run
+		 * request. The first payload byte names the stream, 254 for
+		 * standard output and 255 for standard error, as in
+		 * ClientMessage.TYPE_GET_OUTPUT; the rest is one or more complete
+		 * lines of text. Output is streamed on a best-effort basis: lines
+		 * may be dropped if the tool writes faster than they can be sent,
+		 * but the output files are complete.
+		 */
+		public static final int TYPE_PROGRESS = 69;
 		
 		private final int type;
 		private final byte[] payload;
@@ -165,6 +866,7 @@ public abstract class AbstractSwClient {
 		 * @see #TYPE_ACK
 		 * @see #TYPE_NACK
 		 * @see #TYPE_OUTPUT
+		 * @see #TYPE_PROGRESS
 		 */
 		private ServerMessage(int type, byte[] payload) {
 			this.type = type;
@@ -183,12 +885,40 @@ public abstract class AbstractSwClient {
 		 */
 		public static ServerMessage receive(InputStream stream)
 				throws IOException {
+			return receive(stream, false, null, DEFAULT_MAX_PAYLOAD_SIZE);
+		}
+		
+		/**
+		 * Read a server message, decompressing its payload.
+		 * 
+		 * @param stream  the stream to read from
+		 * @param deflate  whether compression is in effect
+		 * @param statistics  the statistics to add the payload size to,
+		 *                    or null
+		 * @param maxPayloadSize  the largest payload to accept, in bytes,
+		 *                        before and after decompression
+		 * 
+		 * @return  the server message read from the stream
+		 * 
+		 * @throws IOException  if any error occurs reading from the stream,
+		 *                      or the payload is too large
+		 * @throws EOFException  if the stream ends before the end of the message
+		 * 
+		 * @see ClientMessage#TYPE_CAPABILITIES
+		 */
+		public static ServerMessage receive(
+				InputStream stream,
+				boolean deflate,
+				SwTransferStatistics statistics,
+				int maxPayloadSize) throws IOException {
 			DataInputStream dataStream = new DataInputStream(stream);
 			// read the type byte
 			int type = dataStream.read();
 			// read four bytes in big-endian byte order (network byte order)
 			// and interpret them as an int, the length of the payload
 			int payloadLength = dataStream.readInt();
+			// don't let a corrupt length prefix allocate all memory
+			checkPayloadLength(payloadLength, maxPayloadSize);
 			// create a byte array to store the payload
 			byte[] payload = new byte[payloadLength];
 			// how many bytes of the payload have been read so far
@@ -208,17 +938,79 @@ public abstract class AbstractSwClient {
 				}
 				payloadBytesRead += newBytesRead;
 			}
+			
+			if (deflate && payloadLength > 0) {
+				payload = decode(payload, maxPayloadSize);
+			}
+			if (statistics != null) {
+				statistics.addReceived(payload.length, payloadLength);
+			}
 			return new ServerMessage(type, payload);
 		}
 		
 		/**
-		 * Get the message type of this server message.
-		 *  
-		 * @return  the message type byte, see ServerMessage class constants
+		 * Decode a payload according to its encoding byte.
 		 * 
-		 * @see #TYPE_ACK
-		 * @see #TYPE_NACK
-		 * @see #TYPE_OUTPUT
+		 * @param encoded  the payload as received
+		 * @param maxPayloadSize  the largest decoded payload to accept
+		 * 
+		 * @return  the payload as sent by the tool
+		 * 
+		 * @throws IOException  if the encoding is unknown or invalid, or the
+		 *                      decoded payload is too large
+		 */
+		private static byte[] decode(byte[] encoded, int maxPayloadSize)
+				throws IOException {
+			switch (encoded[0]) {
+			case ENCODING_STORED:
+				return Arrays.copyOfRange(encoded, 1, encoded.length);
+			case ENCODING_DEFLATE:
+				InflaterInputStream inflaterStream = new InflaterInputStream(
+						new ByteArrayInputStream(encoded, 1, encoded.length - 1));
+				ByteArrayOutputStream decoded =
+						new ByteArrayOutputStream(4 * encoded.length);
+				byte[] buffer = new byte[64 * 1024];
+				int bytesRead;
+				while ((bytesRead = inflaterStream.read(buffer)) != -1) {
+					decoded.write(buffer, 0, bytesRead);
+					checkPayloadLength(decoded.size(), maxPayloadSize);
+				}
+				return decoded.toByteArray();
+			default:
+				throw new IOException(
+						"Unknown payload encoding from server: " + encoded[0]);
+			}
+		}
+		
+		/**
+		 * Check the length of a payload against the limit.
+		 * 
+		 * @param length  the length given or found so far
+		 * @param maxPayloadSize  the largest payload to accept
+		 * 
+		 * @throws IOException  if the length is negative or too large
+		 */
+		private static void checkPayloadLength(long length, int maxPayloadSize)
+				throws IOException {
+			if (length < 0) {
+				throw new IOException("Invalid response from server.");
+			}
+			if (length > maxPayloadSize) {
+				throw new IOException(
+						"Response from server larger than the maximum of " +
+						maxPayloadSize + " bytes.");
+			}
+		}
+		
+		/**
+		 * Get the message type of this server message.
+		 *  
+		 * @return  the message type byte, see ServerMessage class constants
+		 * 
+		 * @see #TYPE_ACK
+		 * @see #TYPE_NACK
+		 * @see #TYPE_OUTPUT
+		 * @see #TYPE_PROGRESS
 		 */
 		public int getType() {
 			return type;
@@ -235,9 +1027,104 @@ public abstract class AbstractSwClient {
 		
 	}
 	
-	private Socket socket;
+	/**
+	 * A command sent to the server and not yet answered.
+	 */
+	private static class QueuedCommand {
+		
+		/**
+		 * A description of the command, for error messages.
+		 */
+		final String description;
+		/**
+		 * For a file offer, the message sending the file if the server
+		 * does not hold it, and null for any other command.
+		 */
+		final ClientMessage offeredFile;
+		
+		QueuedCommand(String description, ClientMessage offeredFile) {
+			this.description = description;
+			this.offeredFile = offeredFile;
+		}
+		
+	}
+	
+	/**
+	 * Default maximum size of a payload received from the server, in bytes.
+	 */
+	public static final int DEFAULT_MAX_PAYLOAD_SIZE = 256 * 1024 * 1024;
+	
+	/**
+	 * Files smaller than this (in bytes) are sent without offering them by
+	 * their hash first, as the extra round trip would cost more time than
+	 * it could save.
+	 */
+	private static final int MIN_OFFERED_FILE_SIZE = 64 * 1024;
+	/**
+	 * Time given to the server to confirm an abort request, in
+	 * milliseconds, after which the connection is closed instead.
+	 */
+	private static final int ABORT_TIMEOUT = 5000;
+	/**
+	 * Time given to the server to answer a capability query, once it has
+	 * answered the ping sent along, in milliseconds. A server that ignores
+	 * unknown messages never answers it.
+	 */
+	private static final int CAPABILITY_TIMEOUT = 5000;
+	
+	private final SwConnectionPool pool;
+	/**
+	 * The server in use, whose statistics are updated as it serves.
+	 */
+	private SwEndpoint endpoint;
+	private SwConnection connection;
 	protected InputStream inputStream;
 	protected OutputStream outputStream;
+	/**
+	 * Encoder reused for all files streamed to the server.
+	 */
+	private final AsciiEncoder encoder = new AsciiEncoder();
+	private final SwTransferStatistics transferStatistics =
+			new SwTransferStatistics();
+	/**
+	 * Times of the phases the client performs, e.g. the run.
+	 */
+	private final RunMetrics metrics = new RunMetrics();
+	/**
+	 * Whether commands are queued instead of waited for one by one.
+	 */
+	private boolean pipelined = false;
+	/**
+	 * The commands sent but not yet acknowledged, in order.
+	 */
+	private final Queue<QueuedCommand> unacknowledgedCommands =
+			new LinkedList<QueuedCommand>();
+	/**
+	 * Whether an exchange with the server broke off halfway, leaving the
+	 * connection in an unknown state.
+	 */
+	private boolean failed = false;
+	/**
+	 * Whether sending or receiving failed, e.g. the connection was lost or
+	 * timed out, as opposed to the server refusing a message. Only such
+	 * failures count against the server when balancing the load.
+	 */
+	private boolean transportFailed = false;
+	private boolean closed = false;
+	private int maxPayloadSize = DEFAULT_MAX_PAYLOAD_SIZE;
+	/**
+	 * Guards the state of the run, which abort() changes from another thread.
+	 */
+	private final Object runLock = new Object();
+	/**
+	 * Whether a run request was sent and not yet answered.
+	 */
+	private boolean running = false;
+	/**
+	 * Whether the run was aborted, or is to be before it starts.
+	 */
+	private boolean abortRequested = false;
+	private volatile OutputListener outputListener = null;
 	
 	/**
 	 * Initialise a connection to the server.
@@ -250,23 +1137,1172 @@ public abstract class AbstractSwClient {
 	 */
 	public AbstractSwClient (String host, int port)
 			throws IOException, UnknownHostException {
-		socket = new Socket(host, port);
-		inputStream = socket.getInputStream();
-		outputStream = socket.getOutputStream();
+		this(null, host, port);
+	}
+	
+	/**
+	 * Initialise a connection to the server, reusing a pooled one if possible.
+	 * 
+	 * A pooled connection that was verified recently is used without
+	 * pinging the server again.
+	 * 
+	 * The host may also be a comma-separated list of servers running the
+	 * same tool, each optionally with its own port number, in which case
+	 * the least-loaded healthy one is used. Servers that cannot be reached
+	 * are skipped in favour of the next best one.
+	 * 
+	 * @param pool  the pool to take the connection from and return it to,
+	 *              or null to use a connection of its own
+	 * @param host  host  the host name of the server, or a list of servers
+	 * @param port  the port number to connect to, unless given with the host
+	 * 
+	 * @throws IOException  if a connection to a compatible server could not be made
+	 * @throws UnknownHostException  if the server’s IP address could not be determined
+	 * 
+	 * @see SwEndpointGroup#parse(String, int)
+	 */
+	public AbstractSwClient (SwConnectionPool pool, String host, int port)
+			throws IOException, UnknownHostException {
+		this.pool = pool;
+		SwEndpointGroup endpoints = pool == null ?
+				new SwEndpointGroup(SwEndpointGroup.parse(host, port)) :
+				pool.getEndpointGroup(host, port);
 		
-		// test if the server responds as defined in the protocol
-		ping();
+		List<SwEndpoint> unreachable = new ArrayList<SwEndpoint>();
+		IOException lastError = null;
+		for (
+				SwEndpoint candidate = endpoints.select(unreachable);
+				candidate != null;
+				candidate = endpoints.select(unreachable)) {
+			try {
+				// known while connecting, as it remembers what the server supports
+				endpoint = candidate;
+				connect(candidate);
+				return;
+			} catch (IOException e) {
+				candidate.sessionFinished(false);
+				unreachable.add(candidate);
+				lastError = e;
+			}
+		}
+		// with a single server, this is the error connecting to it
+		throw lastError;
+	}
+	
+	/**
+	 * Connect to a server and check that it responds.
+	 * 
+	 * @param candidate  the server to connect to
+	 * 
+	 * @throws IOException  if a connection to a compatible server could not be made
+	 */
+	private void connect(SwEndpoint candidate) throws IOException {
+		String host = candidate.getHost();
+		int port = candidate.getPort();
+		if (pool == null) {
+			useConnection(new SwConnection(host, port));
+		} else {
+			useConnection(pool.acquire(host, port));
+			if (!pool.needsHandshake(connection)) {
+				return;
+			}
+			// a pooled connection may have been closed by the server
+			// while idle, in which case it is replaced by a fresh one
+			if (connection.getTimeSinceVerified() != Long.MAX_VALUE) {
+				try {
+					ping();
+					return;
+				} catch (IOException e) {
+					connection.closeQuietly();
+					useConnection(new SwConnection(host, port));
+				}
+			}
+		}
+		
+		try {
+			// test if the server responds as defined in the protocol
+			ping();
+		} catch (IOException e) {
+			connection.closeQuietly();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Start communicating over the given connection.
+	 * 
+	 * @param connection  a connection to the server
+	 */
+	private void useConnection(SwConnection connection) {
+		this.connection = connection;
+		inputStream = connection.getInputStream();
+		outputStream = connection.getOutputStream();
+		failed = false;
+		transportFailed = false;
 	}
 	
 	/**
 	 * Test if the server is compatible and responsive.
 	 * 
+	 * On a new connection, the protocol extensions to use are negotiated
+	 * along with the ping, in the same round trip. If the server answers
+	 * the ping but not the query, whether it does not answer within
+	 * CAPABILITY_TIMEOUT or closes the connection, the connection is
+	 * replaced by a fresh one using the plain protocol, as a late answer
+	 * would be taken for the answer to a later message. This is
+	 * remembered for the server’s host and port, so that later
+	 * connections to it use the plain protocol without asking again, with
+	 * or without a connection pool.
+	 * 
 	 * @throws IOException  if the server does not respond as expected
+	 * 
+	 * @see ClientMessage#TYPE_CAPABILITIES
 	 */
 	protected void ping() throws IOException {
-		new ClientMessage(
-				ClientMessage.TYPE_ALIVE, null, null).send(outputStream);
-		receiveAck();
+		ClientMessage ping =
+				new ClientMessage(ClientMessage.TYPE_ALIVE, null, null);
+		if (connection.getCapabilities() != null) {
+			awaitCommand(ping);
+			return;
+		}
+		if (endpoint.usesPlainProtocol()) {
+			usePlainProtocol();
+			awaitCommand(ping);
+			return;
+		}
+		
+		flushCommands();
+		boolean done = false;
+		try {
+			ClientMessage query = new ClientMessage(
+					ClientMessage.TYPE_CAPABILITIES,
+					null,
+					(CAPABILITY_DEFLATE + "," + CAPABILITY_OFFER_FILE + "," +
+							CAPABILITY_BINARY_NETWORK + "," +
+							CAPABILITY_PROGRESS + "," +
+							CAPABILITY_RUN_TIMES).getBytes(
+							Charset.forName("US-ASCII")));
+			long start = System.nanoTime();
+			sendMessage(ping);
+			sendMessage(query);
+			flush();
+			receiveAck(ping.toString());
+			recordLatency(start);
+			
+			ServerMessage response;
+			connection.setReadTimeout(CAPABILITY_TIMEOUT);
+			try {
+				response = receiveMessage();
+			} catch (SocketTimeoutException e) {
+				// the server ignores unknown messages
+				response = null;
+			} catch (EOFException e) {
+				// the server closed the connection on the unknown message
+				response = null;
+			} catch (SocketException e) {
+				// or reset it
+				response = null;
+			}
+			if (response == null) {
+				endpoint.setPlainProtocol();
+				reconnectWithoutExtensions();
+				done = true;
+				return;
+			}
+			connection.setReadTimeout(0);
+			Set<String> capabilities = new HashSet<String>();
+			if (response.getType() == ServerMessage.TYPE_ACK) {
+				String list = new String(
+						response.getPayload(), Charset.forName("US-ASCII"));
+				for (String capability : list.split(",")) {
+					if (capability.trim().length() > 0) {
+						capabilities.add(capability.trim());
+					}
+				}
+				connection.setSupportsFileOffers(
+						capabilities.contains(CAPABILITY_OFFER_FILE));
+			} else if (response.getType() != ServerMessage.TYPE_NACK) {
+				throw new IOException(
+						"Invalid response from server to " + query + ".");
+			}
+			// the extensions are in effect from the next message on
+			connection.setCapabilities(capabilities);
+			done = true;
+		} finally {
+			failed |= !done;
+		}
+	}
+	
+	/**
+	 * Replace the connection by a fresh one to the same server, using the
+	 * plain protocol, and ping the server over it.
+	 * 
+	 * @throws IOException  if the server does not respond as expected
+	 */
+	private void reconnectWithoutExtensions() throws IOException {
+		connection.closeQuietly();
+		useConnection(new SwConnection(
+				connection.getHost(), connection.getPort()));
+		usePlainProtocol();
+		awaitCommand(new ClientMessage(ClientMessage.TYPE_ALIVE, null, null));
+	}
+	
+	/**
+	 * Use the plain protocol on the connection, without negotiating.
+	 */
+	private void usePlainProtocol() {
+		connection.setCapabilities(Collections.<String>emptySet());
+		connection.setSupportsFileOffers(false);
+	}
+	
+	/**
+	 * @return  the sizes of the payloads exchanged with the server so far,
+	 *          before and after compression
+	 */
+	public SwTransferStatistics getTransferStatistics() {
+		return transferStatistics;
+	}
+	
+	/**
+	 * @return  the times of the phases of the session the client performed
+	 *          so far, e.g. waiting for the run
+	 */
+	public RunMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * @return  the server in use
+	 */
+	public SwEndpoint getEndpoint() {
+		return endpoint;
+	}
+	
+	/**
+	 * @return  the largest payload accepted from the server, in bytes
+	 */
+	public int getMaxPayloadSize() {
+		return maxPayloadSize;
+	}
+	
+	/**
+	 * Limit the size of the payloads accepted from the server.
+	 * 
+	 * Responses are refused when their length prefix, or their size after
+	 * decompression, exceeds the limit, instead of allocating memory for
+	 * whatever a faulty server claims to send.
+	 * 
+	 * @param maxPayloadSize  the largest payload to accept, in bytes
+	 */
+	public void setMaxPayloadSize(int maxPayloadSize) {
+		if (maxPayloadSize < 0) {
+			throw new IllegalArgumentException(
+					"Invalid maximum payload size: " + maxPayloadSize);
+		}
+		this.maxPayloadSize = maxPayloadSize;
+	}
+	
+	/**
+	 * Choose whether to pipeline commands.
+	 * 
+	 * In pipelined mode, commands sent with sendCommand() are buffered
+	 * rather than each waiting for its acknowledgement. They are all sent
+	 * at once by flushCommands(), after which their acknowledgements are
+	 * checked in order, costing a single round trip to the server.
+	 * 
+	 * @param pipelined  true to queue commands, false to send them one by one
+	 * 
+	 * @throws IOException  if leaving pipelined mode, and a queued
+	 *                      command was not acknowledged
+	 */
+	protected void setPipelined(boolean pipelined) throws IOException {
+		if (!pipelined) {
+			flushCommands();
+		}
+		this.pipelined = pipelined;
+	}
+	
+	/**
+	 * Send a message that the server will acknowledge.
+	 * 
+	 * Unless in pipelined mode, blocks until the acknowledgement arrives.
+	 * 
+	 * @param message  the message, e.g. a parameter or input file
+	 * 
+	 * @throws IOException  if the message could not be sent, or (when not
+	 *                      pipelined) was not acknowledged
+	 * 
+	 * @see #setPipelined(boolean)
+	 */
+	protected void sendCommand(ClientMessage message) throws IOException {
+		boolean done = false;
+		try {
+			sendMessage(message);
+			if (pipelined) {
+				unacknowledgedCommands.add(
+						new QueuedCommand(message.toString(), null));
+			} else {
+				flush();
+				receiveAck(message.toString());
+			}
+			done = true;
+		} finally {
+			failed |= !done;
+		}
+	}
+	
+	/**
+	 * Send an input file, unless the server already holds it.
+	 * 
+	 * Large files are first offered by their content hash, and only sent
+	 * if the server does not hold a file with the same hash, e.g. an edge
+	 * file unchanged since the previous run. In pipelined mode the offer is
+	 * queued like any command, and the file sent when the commands are
+	 * flushed, if the server’s answer asks for it, so that offering several
+	 * files costs a single round trip. Servers that do not support offers
+	 * are remembered per connection and just sent the file.
+	 * 
+	 * @param name  the name (command line flag) of the file
+	 * @param payload  the file contents
+	 * 
+	 * @throws IOException  if the file could not be sent or (when not
+	 *                      pipelined) was not acknowledged
+	 * 
+	 * @see ClientMessage#TYPE_OFFER_FILE
+	 */
+	protected void sendInputFile(String name, StreamedPayload payload)
+			throws IOException {
+		sendInputFile(ClientMessage.TYPE_INPUT_FILE, name, payload);
+	}
+	
+	/**
+	 * Send an input file of the given type, unless the server already
+	 * holds it.
+	 * 
+	 * A file offered by its hash is used in the format it was first sent in.
+	 * 
+	 * @param type  the message type, TYPE_INPUT_FILE or TYPE_BINARY_INPUT_FILE
+	 * @param name  the name (command line flag) of the file
+	 * @param payload  the file contents
+	 * 
+	 * @throws IOException  if the file could not be sent or (when not
+	 *                      pipelined) was not acknowledged
+	 * 
+	 * @see #sendInputFile(String, StreamedPayload)
+	 */
+	protected void sendInputFile(
+			int type, String name, StreamedPayload payload)
+					throws IOException {
+		ClientMessage file = ClientMessage.streamed(type, name, payload);
+		if (
+				connection.getSupportsFileOffers() != Boolean.FALSE &&
+				payload.getLength() >= MIN_OFFERED_FILE_SIZE) {
+			offerInputFile(name, file, payload.getDigest());
+		} else {
+			sendCommand(file);
+		}
+	}
+	
+	/**
+	 * Offer an input file by its hash, sending it later if needed.
+	 * 
+	 * @param name  the name (command line flag) of the file
+	 * @param file  the message that sends the file
+	 * @param digest  the hash of the file contents
+	 * 
+	 * @throws IOException  if the offer could not be sent or (when not
+	 *                      pipelined) the file was not accepted
+	 */
+	private void offerInputFile(String name, ClientMessage file, byte[] digest)
+			throws IOException {
+		StringBuilder hash = new StringBuilder();
+		for (byte b : digest) {
+			hash.append(Character.forDigit((b >> 4) & 0xF, 16));
+			hash.append(Character.forDigit(b & 0xF, 16));
+		}
+		ClientMessage offer = new ClientMessage(
+				ClientMessage.TYPE_OFFER_FILE,
+				name,
+				hash.toString().getBytes(Charset.forName("US-ASCII")));
+		boolean done = false;
+		try {
+			sendMessage(offer);
+			unacknowledgedCommands.add(
+					new QueuedCommand(offer.toString(), file));
+			done = true;
+		} finally {
+			failed |= !done;
+		}
+		if (!pipelined) {
+			flushCommands();
+		}
+	}
+	
+	/**
+	 * Read the answer to a file offer.
+	 * 
+	 * @param description  a description of the offer, for error messages
+	 * 
+	 * @return  true if the server used the file it already held, false if
+	 *          the file is to be sent
+	 * 
+	 * @throws IOException  if receiving an invalid answer or none at all
+	 */
+	private boolean receiveOfferAnswer(String description)
+			throws IOException {
+		ServerMessage response = receiveMessage();
+		if (response.getType() == ServerMessage.TYPE_NACK) {
+			connection.setSupportsFileOffers(false);
+			return false;
+		}
+		if (
+				response.getType() == ServerMessage.TYPE_ACK &&
+				response.getPayload().length == 1) {
+			connection.setSupportsFileOffers(true);
+			connection.markVerified();
+			return response.getPayload()[0] == '1';
+		}
+		// the rest of the pipeline can no longer be trusted
+		unacknowledgedCommands.clear();
+		throw new IOException(
+				"Invalid response from server to " + description + ".");
+	}
+	
+	/**
+	 * Send a message and wait for its acknowledgement, even if pipelined.
+	 * 
+	 * Any queued commands are flushed and checked first, so that e.g. a run
+	 * is never started after part of its setup was rejected.
+	 * 
+	 * @param message  the message, e.g. a run request
+	 * 
+	 * @throws IOException  if this or a queued message was not acknowledged
+	 */
+	protected void awaitCommand(ClientMessage message) throws IOException {
+		flushCommands();
+		boolean done = false;
+		try {
+			long start = System.nanoTime();
+			sendMessage(message);
+			flush();
+			receiveAck(message.toString());
+			recordLatency(start);
+			done = true;
+		} finally {
+			failed |= !done;
+		}
+	}
+	
+	/**
+	 * A run request sent to the server, and what it answered so far.
+	 */
+	private static class RunRequest {
+		
+		final ClientMessage message;
+		final OutputListener listener;
+		/**
+		 * The value of System.nanoTime() when the request was sent.
+		 */
+		final long start;
+		/**
+		 * The answer to the request, once received.
+		 */
+		ServerMessage response = null;
+		/**
+		 * Why no answer could be received, e.g. the connection closed by
+		 * abort().
+		 */
+		IOException error = null;
+		
+		RunRequest(ClientMessage message, OutputListener listener, long start) {
+			this.message = message;
+			this.listener = listener;
+			this.start = start;
+		}
+		
+	}
+	
+	/**
+	 * Run the tool and wait for it to finish, unless aborted meanwhile.
+	 * 
+	 * Any queued commands are flushed and checked first.
+	 * 
+	 * @throws InterruptedIOException  if the run was aborted
+	 * @throws IOException  if this or a queued message was not acknowledged
+	 * 
+	 * @see #abort()
+	 */
+	protected void awaitRun() throws IOException {
+		RunRequest run = sendRun();
+		while (!receiveRunMessages(run, true)) {
+			// keep reading the output streamed meanwhile
+		}
+		finishRun(run);
+	}
+	
+	/**
+	 * Run the tool without holding a thread while it runs.
+	 * 
+	 * Like awaitRun(), but the connection is left to a selector pool until
+	 * the server answers, and the answer is read on one of the pool’s
+	 * worker threads, which also receive any streamed output.
+	 * 
+	 * @param selectorPool  the pool to wait on
+	 * 
+	 * @return  the future of the run, failed with an
+	 *          InterruptedIOException if the run was aborted
+	 * 
+	 * @see #awaitRun()
+	 */
+	protected SwFuture<Void> startRun(final SwSelectorPool selectorPool) {
+		final SwFuture<Void> future = new SwFuture<Void>();
+		try {
+			continueRun(selectorPool, sendRun(), false, future);
+		} catch (IOException e) {
+			future.fail(e);
+		}
+		return future;
+	}
+	
+	/**
+	 * Read what the server sent for a run started by startRun(), and
+	 * either wait on the selector pool for more or finish the run.
+	 * 
+	 * @param selectorPool  the pool to wait on
+	 * @param run  the run request
+	 * @param readable  whether the selector found the connection readable
+	 * @param future  the future of the run
+	 */
+	private void continueRun(
+			final SwSelectorPool selectorPool,
+			final RunRequest run,
+			boolean readable,
+			final SwFuture<Void> future) {
+		if (!receiveRunMessages(run, readable)) {
+			selectorPool.awaitReadable(connection, new Runnable() {
+				@Override
+				public void run() {
+					continueRun(selectorPool, run, true, future);
+				}
+			});
+			return;
+		}
+		try {
+			finishRun(run);
+		} catch (IOException e) {
+			future.fail(e);
+			return;
+		} catch (RuntimeException e) {
+			future.fail(e);
+			return;
+		}
+		future.complete(null);
+	}
+	
+	/**
+	 * Send a run request, unless the run was aborted already.
+	 * 
+	 * Any queued commands are flushed and checked first.
+	 * 
+	 * @return  the request sent
+	 * 
+	 * @throws InterruptedIOException  if the run was aborted
+	 * @throws IOException  if a queued message was not acknowledged, or
+	 *                      the request could not be sent
+	 */
+	private RunRequest sendRun() throws IOException {
+		flushCommands();
+		OutputListener listener = outputListener;
+		ClientMessage message = new ClientMessage(
+				ClientMessage.TYPE_RUN,
+				null,
+				listener != null && hasCapability(CAPABILITY_PROGRESS) ?
+						ClientMessage.RUN_STREAM_OUTPUT.getBytes(
+								Charset.forName("US-ASCII")) :
+						null);
+		boolean done = false;
+		try {
+			long start = System.nanoTime();
+			synchronized (runLock) {
+				if (abortRequested) {
+					// nothing was sent, so the connection is still fine
+					done = true;
+					throw new InterruptedIOException("Run aborted.");
+				}
+				sendMessage(message);
+				flush();
+				running = true;
+			}
+			done = true;
+			return new RunRequest(message, listener, start);
+		} finally {
+			failed |= !done;
+		}
+	}
+	
+	/**
+	 * Receive the messages the server sent for a run, passing streamed
+	 * output on to the listener, until the run is answered or nothing
+	 * more has arrived.
+	 * 
+	 * @param run  the run request
+	 * @param block  whether to wait for a message, rather than reading
+	 *               only what has arrived already
+	 * 
+	 * @return  true if the run was answered, or no answer can be received
+	 */
+	private boolean receiveRunMessages(RunRequest run, boolean block) {
+		try {
+			while (block || inputStream.available() > 0) {
+				ServerMessage response = receiveMessage();
+				if (response.getType() != ServerMessage.TYPE_PROGRESS) {
+					run.response = response;
+					return true;
+				}
+				reportOutput(run.listener, response.getPayload());
+				block = false;
+			}
+			return false;
+		} catch (IOException e) {
+			// e.g. the connection closed by abort()
+			run.error = e;
+			return true;
+		}
+	}
+	
+	/**
+	 * Check the answer to a run request, or the reason there is none.
+	 * 
+	 * @param run  the run request, answered or failed
+	 * 
+	 * @throws InterruptedIOException  if the run was aborted
+	 * @throws IOException  if the run was not accepted
+	 */
+	private void finishRun(RunRequest run) throws IOException {
+		boolean done = false;
+		try {
+			IOException error = run.error;
+			boolean aborted;
+			synchronized (runLock) {
+				running = false;
+				aborted = abortRequested;
+				runLock.notifyAll();
+			}
+			
+			if (aborted) {
+				if (error == null) {
+					// read the answer to the abort request too, after which
+					// the connection can be used again
+					done = receiveAbortAnswer();
+				}
+				// a connection closed by abort() is no fault of the server
+				transportFailed = false;
+				throw new InterruptedIOException("Run aborted.");
+			}
+			long[] runTimes = null;
+			if (error == null) {
+				runTimes = parseRunTimes(run.response);
+				if (runTimes == null) {
+					error = new IOException("Invalid response from server.");
+				}
+			}
+			if (error != null) {
+				throw new IOException(
+						"Server did not accept " + run.message + ": " +
+						error.getMessage(),
+						error);
+			}
+			connection.markVerified();
+			if (runTimes.length == 2) {
+				metrics.addTime(
+						RunMetrics.Phase.QUEUE, runTimes[0] * 1000 * 1000);
+				metrics.addTime(
+						RunMetrics.Phase.SOLVE, runTimes[1] * 1000 * 1000);
+			} else {
+				metrics.addTimeSince(RunMetrics.Phase.SOLVE, run.start);
+			}
+			done = true;
+		} finally {
+			failed |= !done;
+		}
+	}
+	
+	/**
+	 * Read the answer to an abort request, once the run was answered.
+	 * 
+	 * The watchdog of abort() no longer guards the connection by then, and
+	 * a server that does not know the request may never answer it, so the
+	 * wait is limited to ABORT_TIMEOUT, after which the connection is
+	 * closed.
+	 * 
+	 * @return  true if the server answered, so that the connection can be
+	 *          used again
+	 */
+	private boolean receiveAbortAnswer() {
+		try {
+			connection.setReadTimeout(ABORT_TIMEOUT);
+			receiveMessage();
+			connection.setReadTimeout(0);
+			return true;
+		} catch (IOException e) {
+			// e.g. timed out, leaving the answer on its way
+			connection.closeQuietly();
+			return false;
+		}
+	}
+	
+	/**
+	 * Check the answer to a run request.
+	 * 
+	 * @param response  the answer
+	 * 
+	 * @return  the times the run waited and ran in milliseconds, as
+	 *          reported by the server, an empty array if not reported, or
+	 *          null if the answer is invalid
+	 * 
+	 * @see ClientMessage#TYPE_RUN
+	 */
+	private long[] parseRunTimes(ServerMessage response) {
+		if (response.getType() != ServerMessage.TYPE_ACK) {
+			return null;
+		}
+		if (response.getPayload().length == 0) {
+			return new long[0];
+		}
+		if (!hasCapability(CAPABILITY_RUN_TIMES)) {
+			return null;
+		}
+		String[] times = new String(
+				response.getPayload(), Charset.forName("US-ASCII")).split(",");
+		if (times.length != 2) {
+			return null;
+		}
+		try {
+			long[] runTimes = new long[] {
+					Long.parseLong(times[0]), Long.parseLong(times[1])};
+			return runTimes[0] >= 0 && runTimes[1] >= 0 ? runTimes : null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Pass the output streamed by the server on to the listener.
+	 * 
+	 * @param listener  the listener, or null to drop the output
+	 * @param payload  the payload of a progress message
+	 * 
+	 * @throws IOException  if the payload is invalid
+	 */
+	private void reportOutput(OutputListener listener, byte[] payload)
+			throws IOException {
+		if (payload.length == 0) {
+			throw new IOException("Invalid response from server.");
+		}
+		if (listener != null) {
+			listener.outputReceived(
+					Integer.toString(payload[0] & 0xFF),
+					new String(
+							payload,
+							1,
+							payload.length - 1,
+							Charset.forName("UTF-8")));
+		}
+	}
+	
+	/**
+	 * Receive the output of the tool while it runs, if the server can
+	 * stream it, e.g. to report the progress of a long run.
+	 * 
+	 * @param listener  the listener, or null to stop receiving output
+	 * 
+	 * @see ServerMessage#TYPE_PROGRESS
+	 */
+	public void setOutputListener(OutputListener listener) {
+		outputListener = listener;
+	}
+	
+	/**
+	 * Abort the run in progress, from another thread, e.g. when the user
+	 * cancels a task.
+	 * 
+	 * The server is asked to stop the tool, freeing its process for other
+	 * runs, and the thread waiting in awaitRun() gets an
+	 * InterruptedIOException once the server confirms, as does the future
+	 * of startRun(). If it does not do
+	 * so in time, the connection is closed, which ends the wait as well.
+	 * A run not yet started is aborted as soon as it would be.
+	 * 
+	 * @see ClientMessage#TYPE_ABORT
+	 */
+	public void abort() {
+		synchronized (runLock) {
+			if (abortRequested) {
+				return;
+			}
+			abortRequested = true;
+			if (!running) {
+				return;
+			}
+			try {
+				// the waiting thread only reads until the run is answered
+				sendMessage(new ClientMessage(
+						ClientMessage.TYPE_ABORT, null, null));
+				outputStream.flush();
+			} catch (IOException e) {
+				connection.closeQuietly();
+				return;
+			}
+		}
+		
+		// the server may not know the abort request, or be unresponsive
+		Thread watchdog = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long deadline = System.currentTimeMillis() + ABORT_TIMEOUT;
+				synchronized (runLock) {
+					try {
+						long remaining;
+						while (
+								running &&
+								(remaining = deadline - System.currentTimeMillis()) > 0) {
+							runLock.wait(remaining);
+						}
+					} catch (InterruptedException e) {
+						// give up waiting
+					}
+					if (running) {
+						connection.closeQuietly();
+					}
+				}
+			}
+		}, "Server wrapper abort watchdog");
+		watchdog.setDaemon(true);
+		watchdog.start();
+	}
+	
+	/**
+	 * Send any queued commands and check that all were acknowledged.
+	 * 
+	 * Files offered meanwhile that the server does not hold are sent
+	 * together after all answers are read, costing one more round trip.
+	 * 
+	 * @throws IOException  naming the first command that was not acknowledged
+	 */
+	protected void flushCommands() throws IOException {
+		boolean done = false;
+		try {
+			flush();
+			while (!unacknowledgedCommands.isEmpty()) {
+				List<ClientMessage> requestedFiles =
+						new ArrayList<ClientMessage>();
+				while (!unacknowledgedCommands.isEmpty()) {
+					QueuedCommand command = unacknowledgedCommands.remove();
+					if (command.offeredFile == null) {
+						receiveAck(command.description);
+					} else if (!receiveOfferAnswer(command.description)) {
+						requestedFiles.add(command.offeredFile);
+					}
+				}
+				for (ClientMessage file : requestedFiles) {
+					sendMessage(file);
+					unacknowledgedCommands.add(
+							new QueuedCommand(file.toString(), null));
+				}
+				flush();
+			}
+			done = true;
+		} finally {
+			failed |= !done;
+		}
+	}
+	
+	/**
+	 * Send a message and receive the server’s response to it.
+	 * 
+	 * Any queued commands are flushed first.
+	 * 
+	 * @param message  the message, e.g. an output file request
+	 * 
+	 * @return  the response
+	 * 
+	 * @throws IOException  if an I/O error occurs
+	 */
+	protected ServerMessage request(ClientMessage message) throws IOException {
+		flushCommands();
+		boolean done = false;
+		try {
+			sendMessage(message);
+			flush();
+			ServerMessage response = receiveMessage();
+			done = true;
+			return response;
+		} finally {
+			failed |= !done;
+		}
+	}
+	
+	/**
+	 * Send a message and open the payload of the server’s output response
+	 * as a stream, rather than receiving it into memory first.
+	 * 
+	 * The payload is read from the connection (and decompressed) as the
+	 * stream is read. The stream must be closed before anything else is
+	 * sent to the server; closing it skips whatever was not read.
+	 * 
+	 * Any queued commands are flushed first.
+	 * 
+	 * @param message  the message, e.g. an output file request
+	 * 
+	 * @return  the payload of the response
+	 * 
+	 * @throws IOException  if an I/O error occurs, or the response is not
+	 *                      an output message
+	 */
+	protected InputStream requestOutput(ClientMessage message)
+			throws IOException {
+		flushCommands();
+		boolean done = false;
+		try {
+			sendMessage(message);
+			flush();
+			DataInputStream dataStream = new DataInputStream(inputStream);
+			int type;
+			int payloadLength;
+			boolean received = false;
+			try {
+				type = dataStream.read();
+				payloadLength = dataStream.readInt();
+				received = true;
+			} finally {
+				transportFailed |= !received;
+			}
+			if (type != ServerMessage.TYPE_OUTPUT) {
+				throw new IOException("Invalid response from server.");
+			}
+			ServerMessage.checkPayloadLength(payloadLength, maxPayloadSize);
+			
+			InputStream payload = new PayloadInputStream(payloadLength);
+			if (connection.hasCapability(CAPABILITY_DEFLATE) &&
+					payloadLength > 0) {
+				int encoding = payload.read();
+				if (encoding == ENCODING_DEFLATE) {
+					payload = new InflaterInputStream(payload);
+				} else if (encoding != ENCODING_STORED) {
+					throw new IOException(
+							"Unknown payload encoding from server: " +
+							encoding);
+				}
+			}
+			payload = new OutputInputStream(payload, payloadLength);
+			done = true;
+			return payload;
+		} finally {
+			failed |= !done;
+		}
+	}
+	
+	/**
+	 * The payload of a response as it arrives on the connection.
+	 */
+	private class PayloadInputStream extends InputStream {
+		
+		private int remaining;
+		
+		/**
+		 * @param length  the length of the payload on the connection
+		 */
+		public PayloadInputStream(int length) {
+			remaining = length;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+		}
+		
+		@Override
+		public int read(byte[] b, int offset, int length) throws IOException {
+			if (remaining == 0) {
+				return -1;
+			}
+			boolean done = false;
+			try {
+				int bytesRead = inputStream.read(
+						b, offset, Math.min(length, remaining));
+				if (bytesRead == -1) {
+					throw new EOFException("Incomplete response from server.");
+				}
+				remaining -= bytesRead;
+				done = true;
+				return bytesRead;
+			} finally {
+				failed |= !done;
+				transportFailed |= !done;
+			}
+		}
+		
+		/**
+		 * Skip the rest of the payload, so that the next response can be
+		 * read.
+		 */
+		@Override
+		public void close() throws IOException {
+			byte[] buffer = new byte[8 * 1024];
+			while (read(buffer, 0, buffer.length) != -1) {
+				// discard
+			}
+		}
+		
+	}
+	
+	/**
+	 * The decoded payload of a response, limited in size and counted in
+	 * the transfer statistics when closed.
+	 */
+	private class OutputInputStream extends FilterInputStream {
+		
+		private final int wireLength;
+		private long length = 0;
+		private boolean finished = false;
+		
+		/**
+		 * @param in  the decoded payload
+		 * @param wireLength  the length of the payload on the connection
+		 */
+		public OutputInputStream(InputStream in, int wireLength) {
+			super(in);
+			this.wireLength = wireLength;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b != -1) {
+				count(1);
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int offset, int length) throws IOException {
+			int bytesRead = in.read(b, offset, length);
+			if (bytesRead > 0) {
+				count(bytesRead);
+			}
+			return bytesRead;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			long bytesSkipped = in.skip(n);
+			count(bytesSkipped);
+			return bytesSkipped;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (finished) {
+				return;
+			}
+			finished = true;
+			in.close();
+			transferStatistics.addReceived(length, wireLength);
+		}
+		
+		private void count(long bytes) throws IOException {
+			length += bytes;
+			ServerMessage.checkPayloadLength(length, maxPayloadSize);
+		}
+		
+	}
+	
+	/**
+	 * @return  a new SHA-256 digest
+	 */
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * @param capability  a protocol extension, e.g. CAPABILITY_DEFLATE
+	 * 
+	 * @return  true if the extension is in effect on the connection
+	 */
+	protected boolean hasCapability(String capability) {
+		return connection.hasCapability(capability);
+	}
+	
+	/**
+	 * Add a response time to the statistics of the server.
+	 * 
+	 * @param start  the value of System.nanoTime() when the message was sent
+	 */
+	private void recordLatency(long start) {
+		endpoint.recordLatency((System.nanoTime() - start) / 1e6);
+	}
+	
+	/**
+	 * Send a message, compressing it if negotiated with the server.
+	 * 
+	 * @param message  the message
+	 * 
+	 * @throws IOException  if an I/O error occurs
+	 */
+	private void sendMessage(ClientMessage message) throws IOException {
+		boolean done = false;
+		try {
+			message.send(
+					outputStream,
+					connection.hasCapability(CAPABILITY_DEFLATE),
+					transferStatistics);
+			done = true;
+		} finally {
+			transportFailed |= !done;
+		}
+	}
+	
+	/**
+	 * Send whatever is buffered to the server.
+	 * 
+	 * @throws IOException  if an I/O error occurs
+	 */
+	private void flush() throws IOException {
+		boolean done = false;
+		try {
+			outputStream.flush();
+			done = true;
+		} finally {
+			transportFailed |= !done;
+		}
+	}
+	
+	/**
+	 * Receive a message, decompressing it if negotiated with the server.
+	 * 
+	 * @return  the message
+	 * 
+	 * @throws IOException  if an I/O error occurs
+	 */
+	private ServerMessage receiveMessage() throws IOException {
+		boolean done = false;
+		try {
+			ServerMessage message = ServerMessage.receive(
+					inputStream,
+					connection.hasCapability(CAPABILITY_DEFLATE),
+					transferStatistics,
+					maxPayloadSize);
+			done = true;
+			return message;
+		} finally {
+			transportFailed |= !done;
+		}
 	}
 	
 	/**
@@ -278,7 +2314,7 @@ public abstract class AbstractSwClient {
 	 * @throws IOException  if receiving something else or nothing at all.
 	 */
 	protected void receiveAck() throws IOException {
-		ServerMessage response = ServerMessage.receive(inputStream);	
+		ServerMessage response = receiveMessage();
 		if (!(
 				response.getType() ==	ServerMessage.TYPE_ACK &&
 				response.getPayload().length == 0)) {
@@ -286,13 +2322,57 @@ public abstract class AbstractSwClient {
 		}
 	}
 	
+	/**
+	 * Read an acknowledgement for a specific message.
+	 * 
+	 * @param description  a description of the message, for error messages
+	 * 
+	 * @throws IOException  if receiving something else or nothing at all
+	 */
+	private void receiveAck(String description) throws IOException {
+		try {
+			receiveAck();
+			connection.markVerified();
+		} catch (IOException e) {
+			// the rest of the pipeline can no longer be trusted
+			unacknowledgedCommands.clear();
+			throw new IOException(
+					"Server did not accept " + description + ": " +
+					e.getMessage(),
+					e);
+		}
+	}
+	
 	/**
 	 * Close the connection, releasing system resources (the port).
 	 * 
+	 * A pooled connection is instead reset and returned to its pool, if
+	 * the server acknowledges the reset.
+	 * 
 	 * @throws IOException  if I/O errors occur, e.g. the connection is busy
 	 */
 	protected void close() throws IOException {
-		socket.close();
+		if (closed) {
+			return;
+		}
+		closed = true;
+		// let the load balancer know how the server did: refused messages,
+		// e.g. invalid parameters, are no sign of an unhealthy server
+		endpoint.sessionFinished(!transportFailed);
+		endpoint.getTransferStatistics().add(transferStatistics);
+		if (pool != null && !failed) {
+			try {
+				// wait for anything still queued, e.g. after cancelling,
+				// then start a clean session for the next user
+				awaitCommand(new ClientMessage(
+						ClientMessage.TYPE_RESET, null, null));
+				pool.release(connection);
+				return;
+			} catch (IOException e) {
+				// the connection cannot be reused, so close it below
+			}
+		}
+		connection.close();
 	}
 	
 }
\ No newline at end of file
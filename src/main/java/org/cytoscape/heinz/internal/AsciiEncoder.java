@@ -0,0 +1,145 @@
+package org.cytoscape.heinz.internal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes numbers and text as ASCII into a reusable buffer.
+ *
+ * Used to produce the tab-separated files sent to the server wrapper
+ * without going through <code>String.format</code> or building up the
+ * whole file in memory: the buffer is written to the sink whenever it
+ * fills up. Without a sink, the encoder only counts the bytes it would
+ * have written, which allows the length of a file to be determined before
+ * sending it.
+ */
+public class AsciiEncoder {
+
+	/**
+	 * Size of the buffer, and thus of the writes to the sink.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+	/**
+	 * Maximum number of characters in a decimal long integer.
+	 */
+	private static final int MAX_LONG_LENGTH = 20;
+
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int position = 0;
+	private long count = 0;
+	private OutputStream sink = null;
+
+	/**
+	 * Start encoding a new file.
+	 *
+	 * @param sink  the stream to write the encoded bytes to, or null to
+	 *              only count them
+	 */
+	public void reset(OutputStream sink) {
+		this.sink = sink;
+		position = 0;
+		count = 0;
+	}
+
+	/**
+	 * Encode a single ASCII character.
+	 *
+	 * @param c  the character, e.g. a tab or newline
+	 *
+	 * @throws IOException  if writing to the sink fails
+	 */
+	public void writeChar(char c) throws IOException {
+		if (position == buffer.length) {
+			flushBuffer();
+		}
+		buffer[position++] = (byte) c;
+	}
+
+	/**
+	 * Encode a string consisting of ASCII characters only.
+	 *
+	 * @param s  the string, e.g. a header line
+	 *
+	 * @throws IOException  if writing to the sink fails
+	 */
+	public void writeAscii(String s) throws IOException {
+		for (int i = 0; i < s.length(); ++i) {
+			writeChar(s.charAt(i));
+		}
+	}
+
+	/**
+	 * Encode a long integer in decimal notation.
+	 *
+	 * @param value  the number to write
+	 *
+	 * @throws IOException  if writing to the sink fails
+	 */
+	public void writeLong(long value) throws IOException {
+		// the negation below would overflow for this single value
+		if (value == Long.MIN_VALUE) {
+			writeAscii(Long.toString(value));
+			return;
+		}
+		if (position + MAX_LONG_LENGTH > buffer.length) {
+			flushBuffer();
+		}
+		if (value < 0) {
+			buffer[position++] = '-';
+			value = -value;
+		}
+		// count the digits, so they can be written back to front
+		int digits = 1;
+		for (long rest = value / 10; rest != 0; rest /= 10) {
+			++digits;
+		}
+		int end = position + digits;
+		for (int i = end - 1; i >= position; --i) {
+			buffer[i] = (byte) ('0' + (int) (value % 10));
+			value /= 10;
+		}
+		position = end;
+	}
+
+	/**
+	 * Encode a floating-point number.
+	 *
+	 * Uses the shortest representation that parses back to the exact same
+	 * double, in decimal or computerised scientific notation (e.g. 1.5E-7).
+	 *
+	 * @param value  the number to write
+	 *
+	 * @throws IOException  if writing to the sink fails
+	 */
+	public void writeDouble(double value) throws IOException {
+		writeAscii(Double.toString(value));
+	}
+
+	/**
+	 * Write out anything left in the buffer.
+	 *
+	 * Does not flush the sink itself.
+	 *
+	 * @return  the total number of bytes encoded since the last reset
+	 *
+	 * @throws IOException  if writing to the sink fails
+	 */
+	public long finish() throws IOException {
+		flushBuffer();
+		return count;
+	}
+
+	/**
+	 * Pass the contents of the buffer on to the sink and empty it.
+	 *
+	 * @throws IOException  if writing to the sink fails
+	 */
+	private void flushBuffer() throws IOException {
+		if (sink != null) {
+			sink.write(buffer, 0, position);
+		}
+		count += position;
+		position = 0;
+	}
+
+}
@@ -0,0 +1,163 @@
+package org.cytoscape.heinz.internal;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Fits a BUM model on a server wrapper without blocking the calling
+ * thread.
+ *
+ * Each step returns a future, and the steps are performed in order by an
+ * SwBumFitterClient, as by AsyncHeinzClient. The time spent sending the
+ * p-values and settings is added to the client’s metrics as the upload,
+ * and that spent reading the fitted parameters as parsing.
+ *
+ * @see SwBumFitterClient
+ */
+public class AsyncBumFitterClient
+		extends AbstractAsyncSwClient<SwBumFitterClient> {
+
+	/**
+	 * Start a session with a BUM model fitting server.
+	 *
+	 * @param selectorPool  the pool to run the session on
+	 * @param connectionPool  the connection pool, or null to open a
+	 *                        connection of its own
+	 * @param host  the host name of the server
+	 * @param port  the port number to connect to
+	 */
+	public AsyncBumFitterClient(
+			SwSelectorPool selectorPool,
+			final SwConnectionPool connectionPool,
+			final String host,
+			final int port) {
+		super(selectorPool, new Callable<SwBumFitterClient>() {
+			@Override
+			public SwBumFitterClient call() throws Exception {
+				return new SwBumFitterClient(connectionPool, host, port);
+			}
+		});
+	}
+
+	/**
+	 * @param bins  the number of bins to fit the model to
+	 *
+	 * @return  the future of enabling binning, as by
+	 *          SwBumFitterClient.enableBinning()
+	 */
+	public SwFuture<Void> enableBinning(final int bins) {
+		return enqueue(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				getClient().enableBinning(bins);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @param pvalues  the p-values to fit the model to
+	 *
+	 * @return  the future of sending them
+	 */
+	public SwFuture<Void> sendPValues(final double[] pvalues) {
+		return upload(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				getClient().sendPValues(pvalues);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @param starts  the number of starting points of the fit
+	 *
+	 * @return  the future of sending it
+	 */
+	public SwFuture<Void> sendStarts(final int starts) {
+		return upload(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				getClient().sendStarts(starts);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Run the script, leaving the connection to the selector pool
+	 * meanwhile, and download the fitted model.
+	 *
+	 * @return  the future of the run, failed with an
+	 *          InterruptedIOException if the run was aborted
+	 *
+	 * @see SwBumFitterClient#run(SwSelectorPool)
+	 */
+	public SwFuture<Void> run() {
+		return enqueueAsync(new Callable<SwFuture<Void>>() {
+			@Override
+			public SwFuture<Void> call() {
+				return getClient().run(getSelectorPool());
+			}
+		});
+	}
+
+	/**
+	 * @return  the future of the fitted mixture parameter, once run
+	 */
+	public SwFuture<Double> getLambda() {
+		return enqueue(new Callable<Double>() {
+			@Override
+			public Double call() throws Exception {
+				long start = System.nanoTime();
+				try {
+					return getClient().getLambda();
+				} finally {
+					getClient().getMetrics().addTimeSince(
+							RunMetrics.Phase.PARSE, start);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return  the future of the fitted shape parameter, once run
+	 */
+	public SwFuture<Double> getA() {
+		return enqueue(new Callable<Double>() {
+			@Override
+			public Double call() throws Exception {
+				long start = System.nanoTime();
+				try {
+					return getClient().getA();
+				} finally {
+					getClient().getMetrics().addTimeSince(
+							RunMetrics.Phase.PARSE, start);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Add a step that sends something, timing it as the upload.
+	 *
+	 * @param step  the step
+	 *
+	 * @return  the future of the step
+	 */
+	private SwFuture<Void> upload(final Callable<Void> step) {
+		return enqueue(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				long start = System.nanoTime();
+				try {
+					return step.call();
+				} finally {
+					getClient().getMetrics().addTimeSince(
+							RunMetrics.Phase.UPLOAD, start);
+				}
+			}
+		});
+	}
+
+}
@@ -0,0 +1,225 @@
+package org.cytoscape.heinz.internal;
+
+import java.util.concurrent.Callable;
+
+import org.cytoscape.model.CyTable;
+
+/**
+ * Runs Heinz on a server wrapper without blocking the calling thread.
+ *
+ * Each step returns a future, so that many runs can be in progress at
+ * once while only the threads of a selector pool serve them. Steps may be
+ * started before the previous ones have finished; they are performed in
+ * order by an SwHeinzClient. The time spent sending the parameters and
+ * files is added to the client’s metrics as the upload.
+ *
+ * @see SwHeinzClient
+ */
+public class AsyncHeinzClient extends AbstractAsyncSwClient<SwHeinzClient> {
+
+	/**
+	 * Start a session with a Heinz server.
+	 *
+	 * @param selectorPool  the pool to run the session on
+	 * @param connectionPool  the connection pool, or null to open a
+	 *                        connection of its own
+	 * @param host  the host name of the server
+	 * @param port  the port number to connect to
+	 */
+	public AsyncHeinzClient(
+			SwSelectorPool selectorPool,
+			final SwConnectionPool connectionPool,
+			final String host,
+			final int port) {
+		super(selectorPool, new Callable<SwHeinzClient>() {
+			@Override
+			public SwHeinzClient call() throws Exception {
+				return new SwHeinzClient(connectionPool, host, port);
+			}
+		});
+	}
+
+	/**
+	 * @return  the future of enabling reduction, as by
+	 *          SwHeinzClient.enableReduction()
+	 */
+	public SwFuture<Void> enableReduction() {
+		return enqueue(new Callable<Void>() {
+			@Override
+			public Void call() {
+				getClient().enableReduction();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @param lambda  the BUM model mixture parameter
+	 *
+	 * @return  the future of sending it
+	 */
+	public SwFuture<Void> sendLambda(final double lambda) {
+		return upload(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				getClient().sendLambda(lambda);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @param a  the BUM model shape parameter
+	 *
+	 * @return  the future of sending it
+	 */
+	public SwFuture<Void> sendA(final double a) {
+		return upload(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				getClient().sendA(a);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @param fdr  the false discovery rate
+	 *
+	 * @return  the future of sending it
+	 */
+	public SwFuture<Void> sendFdr(final double fdr) {
+		return upload(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				getClient().sendFdr(fdr);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @param network  the network with the p-values of its nodes
+	 *
+	 * @return  the future of sending the node file
+	 *
+	 * @see SwHeinzClient#sendNodes(NetworkSnapshot)
+	 */
+	public SwFuture<Void> sendNodes(final NetworkSnapshot network) {
+		return upload(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				getClient().sendNodes(network);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @param nodeFile  a node file shared with other runs
+	 *
+	 * @return  the future of sending it
+	 *
+	 * @see SwHeinzClient#sendNodes(SwHeinzClient.SharedNodeFile)
+	 */
+	public SwFuture<Void> sendNodes(final SwHeinzClient.SharedNodeFile nodeFile) {
+		return upload(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				getClient().sendNodes(nodeFile);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @param network  the network with its edges
+	 *
+	 * @return  the future of sending the edge file
+	 *
+	 * @see SwHeinzClient#sendEdges(NetworkSnapshot)
+	 */
+	public SwFuture<Void> sendEdges(final NetworkSnapshot network) {
+		return upload(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				getClient().sendEdges(network);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @param edgeFile  an edge file shared with other runs
+	 *
+	 * @return  the future of sending it
+	 *
+	 * @see SwHeinzClient#sendEdges(SwHeinzClient.SharedEdgeFile)
+	 */
+	public SwFuture<Void> sendEdges(final SwHeinzClient.SharedEdgeFile edgeFile) {
+		return upload(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				getClient().sendEdges(edgeFile);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Run Heinz, leaving the connection to the selector pool meanwhile.
+	 *
+	 * @return  the future of the run, failed with an
+	 *          InterruptedIOException if the run was aborted
+	 *
+	 * @see SwHeinzClient#runHeinz(SwSelectorPool)
+	 */
+	public SwFuture<Void> runHeinz() {
+		return enqueueAsync(new Callable<SwFuture<Void>>() {
+			@Override
+			public SwFuture<Void> call() {
+				return getClient().runHeinz(getSelectorPool());
+			}
+		});
+	}
+
+	/**
+	 * @param nodeTable  the node table of the network, to check its
+	 *                   primary key
+	 *
+	 * @return  the future of the SUIDs of the nodes in the module
+	 *
+	 * @see SwHeinzClient#retrieveModule(CyTable)
+	 */
+	public SwFuture<long[]> retrieveModule(final CyTable nodeTable) {
+		return enqueue(new Callable<long[]>() {
+			@Override
+			public long[] call() throws Exception {
+				return getClient().retrieveModule(nodeTable);
+			}
+		});
+	}
+
+	/**
+	 * Add a step that sends something, timing it as the upload.
+	 *
+	 * @param step  the step
+	 *
+	 * @return  the future of the step
+	 */
+	private SwFuture<Void> upload(final Callable<Void> step) {
+		return enqueue(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				long start = System.nanoTime();
+				try {
+					return step.call();
+				} finally {
+					getClient().getMetrics().addTimeSince(
+							RunMetrics.Phase.UPLOAD, start);
+				}
+			}
+		});
+	}
+
+}
@@ -0,0 +1,223 @@
+package org.cytoscape.heinz.internal;
+
+import java.util.Random;
+
+/**
+ * A log-spaced histogram of p-values, for approximate BUM model fitting.
+ *
+ * The range from a low quantile of the p-values up to 1 is divided into
+ * bins of equal width on a log scale, so that the small p-values the beta
+ * component of the model describes are binned as finely as the rest. The
+ * p-values below the quantile share an underflow bin, so that a few
+ * extreme ones cannot stretch the range and empty most bins; that far
+ * into the tail the beta component dominates, and its likelihood is
+ * linear in log p, so little is lost by lumping them together. Each
+ * non-empty bin keeps its count and the mean of the logarithms of its
+ * p-values, which is the sufficient statistic of the beta component: the
+ * likelihood over the bins, with the counts as weights, approaches the
+ * exact one as the bins get finer, but costs time in proportion to the
+ * number of bins rather than the number of p-values.
+ */
+public class BinnedPValues {
+	
+	/**
+	 * Share of the p-values, the smallest, binned in the underflow bin.
+	 */
+	private static final double UNDERFLOW_SHARE = 0.001;
+	
+	/**
+	 * Mean natural logarithm of the p-values in each non-empty bin.
+	 */
+	private final double[] logPValues;
+	/**
+	 * Number of p-values in each non-empty bin.
+	 */
+	private final double[] counts;
+	private final int pValueCount;
+	
+	private BinnedPValues(double[] logPValues, double[] counts, int pValueCount) {
+		this.logPValues = logPValues;
+		this.counts = counts;
+		this.pValueCount = pValueCount;
+	}
+	
+	/**
+	 * Bin p-values into a log-spaced histogram.
+	 *
+	 * @param pValues  the p-values, each in (0, 1]
+	 * @param bins  the number of bins, besides the underflow bin
+	 *
+	 * @return  the histogram
+	 *
+	 * @throws IllegalArgumentException  if there are fewer than one bin, or
+	 *                                   a p-value is not in (0, 1]
+	 */
+	public static BinnedPValues bin(double[] pValues, int bins) {
+		if (bins < 1) {
+			throw new IllegalArgumentException(
+					"At least one bin is needed for binned model fitting.");
+		}
+		double[] logs = new double[pValues.length];
+		for (int i = 0; i < pValues.length; ++i) {
+			double p = pValues[i];
+			if (!(p > 0.0 && p <= 1.0)) {
+				throw new IllegalArgumentException(
+						"Invalid p-value for BUM model fitting: " + p);
+			}
+			logs[i] = Math.log(p);
+		}
+		
+		// the bins span [minLog, 0], the p-values below minLog go to the
+		// underflow bin; without enough p-values to spare, minLog is the
+		// smallest and the underflow bin stays empty
+		double minLog = 0.0;
+		if (logs.length > 0) {
+			minLog = Math.min(
+					0.0, select(logs, (int) (logs.length * UNDERFLOW_SHARE)));
+		}
+		// the underflow bin first, then the bins in order
+		double[] sums = new double[bins + 1];
+		double[] binCounts = new double[bins + 1];
+		// bins per unit of log p, over [minLog, 0]
+		double scale = minLog < 0.0 ? bins / -minLog : 0.0;
+		for (double logP : logs) {
+			int bin = logP < minLog ?
+					0 :
+					1 + Math.min(bins - 1, (int) ((logP - minLog) * scale));
+			sums[bin] += logP;
+			binCounts[bin] += 1;
+		}
+		
+		// keep only the non-empty bins
+		int nonEmpty = 0;
+		for (double count : binCounts) {
+			if (count > 0) {
+				++nonEmpty;
+			}
+		}
+		double[] logPValues = new double[nonEmpty];
+		double[] counts = new double[nonEmpty];
+		for (int bin = 0, i = 0; bin < binCounts.length; ++bin) {
+			if (binCounts[bin] > 0) {
+				logPValues[i] = sums[bin] / binCounts[bin];
+				counts[i] = binCounts[bin];
+				++i;
+			}
+		}
+		return new BinnedPValues(logPValues, counts, pValues.length);
+	}
+	
+	/**
+	 * Find the k-th smallest of some values, reordering them.
+	 *
+	 * @param values  the values, in any order
+	 * @param k  the rank of the value to find, from 0 for the smallest
+	 *
+	 * @return  the value that would be at index k if they were sorted
+	 */
+	private static double select(double[] values, int k) {
+		int left = 0;
+		int right = values.length - 1;
+		while (left < right) {
+			double pivot = values[(left + right) >>> 1];
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (values[i] < pivot) {
+					++i;
+				}
+				while (values[j] > pivot) {
+					--j;
+				}
+				if (i <= j) {
+					double swap = values[i];
+					values[i] = values[j];
+					values[j] = swap;
+					++i;
+					--j;
+				}
+			}
+			// the values up to j are at most the pivot, from i on at least
+			if (k <= j) {
+				right = j;
+			} else if (k >= i) {
+				left = i;
+			} else {
+				return values[k];
+			}
+		}
+		return values[k];
+	}
+	
+	/**
+	 * @return  the mean natural logarithm of the p-values of each non-empty
+	 *          bin, to fit to with the counts as weights
+	 *
+	 * @see BumModel#fit(double[], double[], double, double)
+	 */
+	public double[] getLogPValues() {
+		return logPValues;
+	}
+	
+	/**
+	 * @return  the number of p-values in each non-empty bin
+	 */
+	public double[] getCounts() {
+		return counts;
+	}
+	
+	/**
+	 * @return  the number of non-empty bins
+	 */
+	public int getBinCount() {
+		return logPValues.length;
+	}
+	
+	/**
+	 * @return  the number of p-values binned
+	 */
+	public int getPValueCount() {
+		return pValueCount;
+	}
+	
+	/**
+	 * Estimate how far binning moves the fitted parameters.
+	 *
+	 * Draws a random subsample of the p-values and fits a model to it both
+	 * exactly and binned, from the same starting point, so that the
+	 * difference is due to the binning alone.
+	 *
+	 * @param pValues  the p-values, each in (0, 1]
+	 * @param bins  the number of bins
+	 * @param sampleSize  the maximum number of p-values to fit to exactly
+	 * @param random  the source of randomness for the subsample
+	 *
+	 * @return  the largest absolute difference in λ or a between the fits
+	 */
+	public static double estimateError(
+			double[] pValues, int bins, int sampleSize, Random random) {
+		double[] sample = pValues;
+		if (pValues.length > sampleSize) {
+			// partial Fisher-Yates shuffle of a copy
+			sample = pValues.clone();
+			for (int i = 0; i < sampleSize; ++i) {
+				int j = i + random.nextInt(sample.length - i);
+				double swap = sample[i];
+				sample[i] = sample[j];
+				sample[j] = swap;
+			}
+			double[] head = new double[sampleSize];
+			System.arraycopy(sample, 0, head, 0, sampleSize);
+			sample = head;
+		}
+		
+		BumModel exact = BumModel.fit(BumModel.logTransform(sample), 0.5, 0.5);
+		BinnedPValues binned = bin(sample, bins);
+		BumModel approximate = BumModel.fit(
+				binned.getLogPValues(), binned.getCounts(), 0.5, 0.5);
+		return Math.max(
+				Math.abs(exact.getLambda() - approximate.getLambda()),
+				Math.abs(exact.getA() - approximate.getA()));
+	}
+	
+}
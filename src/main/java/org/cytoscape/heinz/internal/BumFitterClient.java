@@ -14,6 +14,21 @@ public interface BumFitterClient {
 	public void sendPValues(double[] pvalues)
 			throws IOException;
 	
+	/**
+	 * Fit to a log-spaced histogram of the p-values instead of to each one.
+	 * 
+	 * Must be called before the p-values are sent. Fitting then costs time
+	 * in proportion to the number of bins rather than of p-values, at the
+	 * price of a small error in the parameters.
+	 * 
+	 * @param bins  the number of bins
+	 * 
+	 * @throws IOException  if an I/O error occurs
+	 * 
+	 * @see BinnedPValues
+	 */
+	public void enableBinning(int bins) throws IOException;
+	
 	/**
 	 * Set the number of start points to use while fitting.
 	 * 
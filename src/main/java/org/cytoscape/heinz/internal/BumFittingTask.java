@@ -1,8 +1,8 @@
 package org.cytoscape.heinz.internal;
 
 
-import java.util.List;
 import java.io.IOException;
+import java.util.Random;
 
 import java.awt.Window;
 import javax.swing.JDialog;
@@ -26,10 +26,25 @@ import org.cytoscape.model.CyColumn;
  */
 public class BumFittingTask extends AbstractTableColumnTask {
 	
+	/**
+	 * Maximum number of p-values fitted to exactly to estimate the error
+	 * of a binned fit.
+	 */
+	private static final int ERROR_SAMPLE_SIZE = 100 * 1000;
+	
+	private final NetworkSnapshot snapshot;
 	private final CyRow networkTableRow;
 	private final int starts;
+	private final int bins;
+	private final boolean fitLocally;
 	private final String serverHost;
 	private final int serverPort;
+	private final SwConnectionPool connectionPool;
+	private final ToolMetrics toolMetrics;
+	/**
+	 * Times and payload sizes of the fit.
+	 */
+	private final RunMetrics metrics = new RunMetrics();
 	
 	@Tunable(description="Generate plots to evaluate the fit")
 	public boolean showPlots = true;
@@ -38,56 +53,108 @@ public class BumFittingTask extends AbstractTableColumnTask {
 	 * Initialise the task, obtaining required parameters.
 	 * 
 	 * @param pValueColumn  node table column holding the p-values to fit to
+	 * @param snapshot  the p-values of that column, validated
 	 * @param starts  number of starts for model fitting
+	 * @param bins  number of histogram bins to fit to, or 0 to fit to
+	 *              every p-value
 	 * @param networkTableRow  network table row to write the results to
+	 * @param fitLocally  whether to fit within Cytoscape instead of on a server
 	 * @param serverHost  the host name of the model fitting server
 	 * @param serverPort  the port number of the model fitting server
+	 * @param connectionPool  pool of server connections, or null
+	 * @param toolMetrics  totals of all BUM model fits, or null
 	 */
     public BumFittingTask(
     		CyColumn pValueColumn,
+    		NetworkSnapshot snapshot,
     		CyRow networkTableRow,
     		int starts,
+    		int bins,
+    		boolean fitLocally,
     		String serverHost,
-    		int serverPort) {
+    		int serverPort,
+    		SwConnectionPool connectionPool,
+    		ToolMetrics toolMetrics) {
     	// set the `column' field
     	super(pValueColumn);
     	// set the other parameters as fields
+    	if (snapshot == null) {
+    		throw new IllegalArgumentException(
+    				"No snapshot of the p-values.");
+    	}
+    	this.snapshot = snapshot;
     	if (networkTableRow == null) {
     		throw new IllegalArgumentException(
     				"No network table row to write the BUM parameters to.");
     	}
     	this.networkTableRow = networkTableRow;
     	this.starts = starts;
+    	if (bins < 0) {
+    		throw new IllegalArgumentException(
+    				"The number of histogram bins cannot be negative.");
+    	}
+    	this.bins = bins;
+    	this.fitLocally = fitLocally;
     	this.serverHost = serverHost;
-    	this.serverPort = serverPort;	
+    	this.serverPort = serverPort;
+    	this.connectionPool = connectionPool;
+    	this.toolMetrics = toolMetrics;
     }
 
 	/**
      * Fit a BUM model and write the parameters to the network table.
      * 
+     * The time spent in each phase is written to the network table as
+     * well, and added to the totals of all fits.
+     * 
      * @throws IOException  if an error occurs communicating to the server
      */
 	@Override
 	public void run(final TaskMonitor taskMonitor)
 			throws IOException {
+		ToolMetrics.Outcome outcome = ToolMetrics.Outcome.FAILED;
+		try {
+			fit(taskMonitor);
+			if (!cancelled) {
+				outcome = ToolMetrics.Outcome.FINISHED;
+			}
+		} finally {
+			if (toolMetrics != null) {
+				toolMetrics.record(metrics, outcome);
+			}
+		}
+	}
+	
+	/**
+	 * Fit a BUM model and write the parameters to the network table.
+	 * 
+	 * @param taskMonitor  the monitor to report progress to
+	 * 
+	 * @throws IOException  if an error occurs communicating to the server
+	 */
+	private void fit(final TaskMonitor taskMonitor) throws IOException {
 		
 		// Give the task a title (shown in status monitor)
 		taskMonitor.setTitle("BUM Model Fitting");
 		
-		BumFitterClient client = new SwBumFitterClient(serverHost, serverPort);
+		BumFitterClient client;
+		if (fitLocally) {
+			client = new LocalBumFitterClient();
+		} else {
+			client = new SwBumFitterClient(
+					connectionPool, serverHost, serverPort);
+		}
 		
 		try {
 			
 			taskMonitor.setStatusMessage(
 					"Sending p-values to the model fitting server");
-			// unbox the CyColumn with a List of Double instances to a double[]
-			List<Double> pValueList = column.getValues(Double.class);
-			double[] pValueArray = new double[pValueList.size()];
-			for (int i = 0; i < pValueArray.length; ++i) {
-				pValueArray[i] = pValueList.get(i).doubleValue();
+			long start = System.nanoTime();
+			if (bins > 0) {
+				client.enableBinning(bins);
 			}
-			// send the p-values to the server
-			client.sendPValues(pValueArray);
+			// send the p-values captured for the workflow to the server
+			client.sendPValues(snapshot.getPValues());
 
 			taskMonitor.setStatusMessage(
 					"Sending settings to the model fitting server");
@@ -95,56 +162,46 @@ public class BumFittingTask extends AbstractTableColumnTask {
 			if (showPlots) {
 				client.enablePlotting();
 			}
+			metrics.addTimeSince(RunMetrics.Phase.UPLOAD, start);
 
 			taskMonitor.setStatusMessage(
 					"Fitting a BUM model to the p-values");
+			start = System.nanoTime();
 			client.run();
+			if (!(client instanceof AbstractSwClient)) {
+				// server clients time the wait, run and download themselves
+				metrics.addTimeSince(RunMetrics.Phase.SOLVE, start);
+			}
+			if (bins > 0) {
+				taskMonitor.setStatusMessage(
+						"Estimating the error of the binned fit");
+				double error = BinnedPValues.estimateError(
+						snapshot.getPValues(),
+						bins,
+						ERROR_SAMPLE_SIZE,
+						new Random());
+				taskMonitor.setStatusMessage(
+						"Binned fit: λ and a within " +
+						String.format("%.2g", error) +
+						" of an exact fit, on a sample of up to " +
+						ERROR_SAMPLE_SIZE + " p-values");
+			}
+			if (client instanceof AbstractSwClient) {
+				taskMonitor.setStatusMessage(
+						"Transfers with the model fitting server: " +
+						((AbstractSwClient) client).getTransferStatistics());
+			}
 
+			start = System.nanoTime();
+			double lambda = client.getLambda();
+			double a = client.getA();
+			metrics.addTimeSince(RunMetrics.Phase.PARSE, start);
+			
 			taskMonitor.setStatusMessage(
 					"Writing fitted BUM model parameters to the network table");
-			CyTable networkTable = networkTableRow.getTable();
-
-			String lambdaColumnName = column.getName() + ".BUM.lambda";
-			// if the column does not yet exist in the network table 
-			if (networkTable.getColumn(lambdaColumnName) == null) {
-				// create the column
-				networkTable.createColumn(lambdaColumnName, Double.class, false);
-				// if the lambda column does already exist
-			} else {
-				// check if the column has the correct type
-				if (networkTable.getColumn(lambdaColumnName).getType() !=
-						Double.class) {
-					throw new IllegalArgumentException(
-							"Network table column " +
-									lambdaColumnName +
-							" is not of type Double.");
-				}
-			}
-			// write the fitted value to the network table
-			networkTableRow.set(
-					lambdaColumnName,
-					client.getLambda());
-
-			String aColumnName = column.getName() + ".BUM.a";
-			// if the column does not yet exist in the network table 
-			if (networkTable.getColumn(aColumnName) == null) {
-				// create the column
-				networkTable.createColumn(aColumnName, Double.class, false);
-				// if the a column does already exist
-			} else {
-				// check if the column has the correct type
-				if (networkTable.getColumn(aColumnName).getType() !=
-						Double.class) {
-					throw new IllegalArgumentException(
-							"Network table column " +
-									aColumnName +
-							" is not of type Double.");
-				}
-			}
-			// write the fitted value to the network table
-			networkTableRow.set(
-					aColumnName,
-					client.getA());
+			start = System.nanoTime();
+			writeParameters(networkTableRow, column.getName(), lambda, a);
+			metrics.addTimeSince(RunMetrics.Phase.TABLE_WRITE, start);
 
 			if (showPlots) {
 				taskMonitor.setStatusMessage("Displaying plots");
@@ -163,7 +220,54 @@ public class BumFittingTask extends AbstractTableColumnTask {
 			
 		} finally {
 			client.close();
+			if (client instanceof AbstractSwClient) {
+				metrics.addSession((AbstractSwClient) client);
+			}
 		}
 		
+		metrics.writeTo(networkTableRow, column.getName() + ".BUM");
+		taskMonitor.setStatusMessage("Time spent: " + metrics);
+		
+	}
+	
+	/**
+	 * Write fitted BUM model parameters to the network table, creating the
+	 * columns ‘{@code pValueColumnName}.BUM.lambda’ and ‘.BUM.a’ if needed.
+	 * 
+	 * @param networkTableRow  the network’s row in the network table
+	 * @param pValueColumnName  the node table column the model was fitted to
+	 * @param lambda  the mixture parameter
+	 * @param a  the shape parameter
+	 * 
+	 * @throws IllegalArgumentException  if a column is of the wrong type
+	 * 
+	 * @see HeinzTask#readBumParameter(CyRow, String, String)
+	 */
+	static void writeParameters(
+			CyRow networkTableRow,
+			String pValueColumnName,
+			double lambda,
+			double a) {
+		writeParameter(networkTableRow, pValueColumnName + ".BUM.lambda", lambda);
+		writeParameter(networkTableRow, pValueColumnName + ".BUM.a", a);
+	}
+	
+	private static void writeParameter(
+			CyRow networkTableRow, String columnName, double value) {
+		CyTable networkTable = networkTableRow.getTable();
+		// if the column does not yet exist in the network table 
+		if (networkTable.getColumn(columnName) == null) {
+			// create the column
+			networkTable.createColumn(columnName, Double.class, false);
+		// if it does, check if the column has the correct type
+		} else if (networkTable.getColumn(columnName).getType() !=
+				Double.class) {
+			throw new IllegalArgumentException(
+					"Network table column " +
+					columnName +
+					" is not of type Double.");
+		}
+		// write the fitted value to the network table
+		networkTableRow.set(columnName, value);
 	}
 }
@@ -0,0 +1,377 @@
+package org.cytoscape.heinz.internal;
+
+/**
+ * Beta-uniform mixture (BUM) model of a p-value distribution.
+ *
+ * Java counterpart of the BioNet functions in <code>fitBumModel.R</code>:
+ * the density is <code>f(x) = λ + (1 - λ) a x^(a - 1)</code>, with mixture
+ * parameter λ and shape parameter a both constrained to [1e-5, 1 - 1e-5]
+ * during fitting, as in <code>bumOptim</code>.
+ */
+public class BumModel {
+
+	/**
+	 * Lower bound for both parameters while fitting.
+	 */
+	public static final double LOWER_BOUND = 1e-5;
+	/**
+	 * Upper bound for both parameters while fitting.
+	 */
+	public static final double UPPER_BOUND = 1 - 1e-5;
+
+	/**
+	 * Maximum number of Newton iterations per optimisation.
+	 */
+	private static final int MAX_ITERATIONS = 200;
+	/**
+	 * Maximum number of step halvings in the line search.
+	 */
+	private static final int MAX_STEP_HALVINGS = 60;
+	/**
+	 * Parameter change below which the optimisation is considered converged.
+	 */
+	private static final double TOLERANCE = 1e-10;
+
+	private final double lambda;
+	private final double a;
+	private final double negLogLikelihood;
+
+	/**
+	 * Construct a model with the given parameters.
+	 *
+	 * @param lambda  the mixture parameter
+	 * @param a  the shape parameter
+	 * @param negLogLikelihood  the negative log-likelihood of the data the
+	 *                          model was fitted to, or NaN if not applicable
+	 */
+	public BumModel(double lambda, double a, double negLogLikelihood) {
+		this.lambda = lambda;
+		this.a = a;
+		this.negLogLikelihood = negLogLikelihood;
+	}
+
+	/**
+	 * @return  the mixture parameter (λ)
+	 */
+	public double getLambda() {
+		return lambda;
+	}
+
+	/**
+	 * @return  the shape parameter (a)
+	 */
+	public double getA() {
+		return a;
+	}
+
+	/**
+	 * @return  the negative log-likelihood of the fitted data
+	 */
+	public double getNegLogLikelihood() {
+		return negLogLikelihood;
+	}
+
+	/**
+	 * Evaluate the density of the model.
+	 *
+	 * @param x  a p-value
+	 *
+	 * @return  the density at x, as <code>fbum</code> in the R script
+	 */
+	public double density(double x) {
+		return lambda + (1 - lambda) * a * Math.pow(x, a - 1);
+	}
+
+	/**
+	 * Evaluate the cumulative distribution function of the model.
+	 *
+	 * @param x  a p-value
+	 *
+	 * @return  the probability of a p-value of at most x
+	 */
+	public double cumulative(double x) {
+		return lambda * x + (1 - lambda) * Math.pow(x, a);
+	}
+
+	/**
+	 * Upper bound for the fraction of noise, as <code>piUpper</code>.
+	 *
+	 * @return  λ + (1 - λ) a
+	 */
+	public double piUpper() {
+		return lambda + (1 - lambda) * a;
+	}
+
+	/**
+	 * p-value threshold for a false discovery rate, as <code>fdrThr</code>
+	 * in BioNet and Heinz.
+	 *
+	 * @param fdr  the false discovery rate
+	 *
+	 * @return  τ = ((π̂ - λ FDR) / (FDR (1 - λ)))^(1 / (a - 1))
+	 */
+	public double fdrThreshold(double fdr) {
+		return Math.pow(
+				(piUpper() - lambda * fdr) / (fdr * (1 - lambda)),
+				1 / (a - 1));
+	}
+	
+	/**
+	 * Score a node as Heinz does, positive if its p-value is below the
+	 * threshold.
+	 *
+	 * @param pValue  the p-value of the node
+	 * @param threshold  the threshold, see fdrThreshold()
+	 *
+	 * @return  (a - 1) (log p - log τ)
+	 */
+	public double score(double pValue, double threshold) {
+		return (a - 1) * (Math.log(pValue) - Math.log(threshold));
+	}
+	
+	/**
+	 * The p-value a node would need for a given score, the inverse of
+	 * score().
+	 *
+	 * @param score  the score
+	 * @param threshold  the threshold, see fdrThreshold()
+	 *
+	 * @return  τ exp(score / (a - 1))
+	 */
+	public double pValue(double score, double threshold) {
+		return threshold * Math.exp(score / (a - 1));
+	}
+	
+	/**
+	 * Take the natural logarithm of every p-value.
+	 *
+	 * The fitting methods take log-transformed p-values, so the logarithms
+	 * can be computed once and shared between optimisation runs.
+	 *
+	 * @param pValues  the p-values, each in (0, 1]
+	 *
+	 * @return  a new array holding the logarithms
+	 */
+	public static double[] logTransform(double[] pValues) {
+		double[] logPValues = new double[pValues.length];
+		for (int i = 0; i < pValues.length; ++i) {
+			logPValues[i] = Math.log(pValues[i]);
+		}
+		return logPValues;
+	}
+
+	/**
+	 * Fit a model by maximum likelihood from a single starting point.
+	 *
+	 * Minimises the negative log-likelihood (<code>.fbumnLL</code>) with a
+	 * projected Newton method using the analytical gradient and Hessian,
+	 * keeping both parameters within the bounds <code>bumOptim</code> uses.
+	 *
+	 * @param logPValues  the natural logarithms of the p-values
+	 * @param lambda  the starting value for the mixture parameter
+	 * @param a  the starting value for the shape parameter
+	 *
+	 * @return  the fitted model
+	 */
+	public static BumModel fit(double[] logPValues, double lambda, double a) {
+		return fit(logPValues, null, lambda, a);
+	}
+	
+	/**
+	 * Fit a model to weighted p-values, e.g. the bins of a histogram.
+	 *
+	 * Each log-transformed p-value counts as many times as its weight in
+	 * the likelihood, so that fitting to binned p-values costs time in
+	 * proportion to the number of bins.
+	 *
+	 * @param logPValues  the natural logarithms of the p-values
+	 * @param weights  the weight of each p-value, or null for all ones
+	 * @param lambda  the starting value for the mixture parameter
+	 * @param a  the starting value for the shape parameter
+	 *
+	 * @return  the fitted model
+	 *
+	 * @see BinnedPValues
+	 */
+	public static BumModel fit(
+			double[] logPValues, double[] weights, double lambda, double a) {
+
+		double[] parameters = {clamp(lambda), clamp(a)};
+		double[] gradient = new double[2];
+		// the Hessian as {d²/dλ², d²/dλda, d²/da²}
+		double[] hessian = new double[3];
+		double[] candidate = new double[2];
+		double value =
+				evaluate(logPValues, weights, parameters, gradient, hessian);
+
+		for (int iteration = 0; iteration < MAX_ITERATIONS; ++iteration) {
+
+			// a parameter at a bound, with the gradient pointing outward,
+			// stays where it is for this iteration
+			boolean[] free = new boolean[2];
+			for (int k = 0; k < 2; ++k) {
+				free[k] = !(
+						(parameters[k] <= LOWER_BOUND && gradient[k] > 0) ||
+						(parameters[k] >= UPPER_BOUND && gradient[k] < 0));
+			}
+
+			double[] direction = newtonDirection(gradient, hessian, free);
+			// fall back to steepest descent if the Newton step goes uphill
+			if (gradient[0] * direction[0] + gradient[1] * direction[1] >= 0) {
+				for (int k = 0; k < 2; ++k) {
+					direction[k] = free[k] ? -gradient[k] : 0.0;
+				}
+			}
+			if (direction[0] == 0.0 && direction[1] == 0.0) {
+				break;
+			}
+
+			// backtracking line search along the projected path
+			double step = 1.0;
+			double candidateValue = Double.NaN;
+			boolean improved = false;
+			for (int h = 0; h < MAX_STEP_HALVINGS; ++h) {
+				double decrease = 0.0;
+				for (int k = 0; k < 2; ++k) {
+					candidate[k] = clamp(parameters[k] + step * direction[k]);
+					decrease += gradient[k] * (candidate[k] - parameters[k]);
+				}
+				candidateValue =
+						evaluate(logPValues, weights, candidate, null, null);
+				// Armijo condition for sufficient decrease
+				if (candidateValue <= value + 1e-4 * decrease) {
+					improved = true;
+					break;
+				}
+				step /= 2;
+			}
+			if (!improved) {
+				break;
+			}
+
+			double change = Math.max(
+					Math.abs(candidate[0] - parameters[0]),
+					Math.abs(candidate[1] - parameters[1]));
+			parameters[0] = candidate[0];
+			parameters[1] = candidate[1];
+			value = evaluate(
+					logPValues, weights, parameters, gradient, hessian);
+			if (change < TOLERANCE) {
+				break;
+			}
+
+		}
+
+		return new BumModel(parameters[0], parameters[1], value);
+
+	}
+
+	/**
+	 * Compute the negative log-likelihood and, optionally, its derivatives.
+	 *
+	 * @param logPValues  the natural logarithms of the p-values
+	 * @param weights  the weight of each p-value, or null for all ones
+	 * @param parameters  the parameters {λ, a}
+	 * @param gradient  array to store the gradient in, or null
+	 * @param hessian  array to store the Hessian in, or null
+	 *
+	 * @return  the negative log-likelihood
+	 */
+	private static double evaluate(
+			double[] logPValues,
+			double[] weights,
+			double[] parameters,
+			double[] gradient,
+			double[] hessian) {
+
+		double l = parameters[0];
+		double a = parameters[1];
+		double value = 0.0;
+		double gl = 0.0, ga = 0.0;
+		double hll = 0.0, hla = 0.0, haa = 0.0;
+
+		for (int i = 0; i < logPValues.length; ++i) {
+			double logX = logPValues[i];
+			double w = weights == null ? 1.0 : weights[i];
+			// x^(a-1)
+			double u = Math.exp((a - 1) * logX);
+			double f = l + (1 - l) * a * u;
+			value -= w * Math.log(f);
+			if (gradient == null) {
+				continue;
+			}
+			// first and second derivatives of f
+			double fl = 1 - a * u;
+			double fa = (1 - l) * u * (1 + a * logX);
+			double fla = -u * (1 + a * logX);
+			double faa = (1 - l) * u * logX * (2 + a * logX);
+			gl -= w * fl / f;
+			ga -= w * fa / f;
+			double f2 = f * f;
+			hll += w * fl * fl / f2;
+			hla += w * (fl * fa / f2 - fla / f);
+			haa += w * (fa * fa / f2 - faa / f);
+		}
+
+		if (gradient != null) {
+			gradient[0] = gl;
+			gradient[1] = ga;
+		}
+		if (hessian != null) {
+			hessian[0] = hll;
+			hessian[1] = hla;
+			hessian[2] = haa;
+		}
+		return value;
+
+	}
+
+	/**
+	 * Compute a Newton step for the free parameters.
+	 *
+	 * @param gradient  the gradient
+	 * @param hessian  the Hessian, see evaluate()
+	 * @param free  which parameters may move
+	 *
+	 * @return  the step, or the negative gradient if the Hessian (restricted
+	 *          to the free parameters) is not positive definite
+	 */
+	private static double[] newtonDirection(
+			double[] gradient, double[] hessian, boolean[] free) {
+		double[] direction = new double[2];
+		if (free[0] && free[1]) {
+			double determinant = hessian[0] * hessian[2] - hessian[1] * hessian[1];
+			if (hessian[0] > 0 && determinant > 0) {
+				direction[0] =
+						-(hessian[2] * gradient[0] - hessian[1] * gradient[1]) /
+						determinant;
+				direction[1] =
+						-(hessian[0] * gradient[1] - hessian[1] * gradient[0]) /
+						determinant;
+				return direction;
+			}
+		} else if (free[0] && hessian[0] > 0) {
+			direction[0] = -gradient[0] / hessian[0];
+			return direction;
+		} else if (free[1] && hessian[2] > 0) {
+			direction[1] = -gradient[1] / hessian[2];
+			return direction;
+		}
+		for (int k = 0; k < 2; ++k) {
+			direction[k] = free[k] ? -gradient[k] : 0.0;
+		}
+		return direction;
+	}
+
+	/**
+	 * Restrict a parameter value to the bounds used while fitting.
+	 *
+	 * @param value  the parameter value
+	 *
+	 * @return  the nearest value within the bounds
+	 */
+	private static double clamp(double value) {
+		return Math.min(UPPER_BOUND, Math.max(LOWER_BOUND, value));
+	}
+
+}
@@ -0,0 +1,194 @@
+package org.cytoscape.heinz.internal;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Draws BUM model fit evaluation plots without R.
+ *
+ * Produces the same two panels as <code>fitBumModel.R</code>: a histogram
+ * of the p-values with the fitted density and the π upper bound, and a
+ * QQ-plot of the observed p-values against the quantiles of the model.
+ */
+public class BumModelPlot {
+
+	private static final int PANEL_WIDTH = 480;
+	private static final int HEIGHT = 480;
+	private static final int MARGIN = 50;
+	private static final int HISTOGRAM_BREAKS = 50;
+	/**
+	 * Number of points drawn on the QQ-plot curve, however many p-values.
+	 */
+	private static final int QQ_POINTS = 200;
+
+	/**
+	 * Render the plots as a PNG image.
+	 *
+	 * @param model  the fitted model
+	 * @param pValues  the p-values the model was fitted to
+	 *
+	 * @return  the contents of the PNG file
+	 *
+	 * @throws IOException  if the image could not be encoded
+	 */
+	public static byte[] renderPng(BumModel model, double[] pValues)
+			throws IOException {
+
+		BufferedImage image = new BufferedImage(
+				2 * PANEL_WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = image.createGraphics();
+		graphics.setRenderingHint(
+				RenderingHints.KEY_ANTIALIASING,
+				RenderingHints.VALUE_ANTIALIAS_ON);
+		graphics.setColor(Color.WHITE);
+		graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+
+		drawHistogram(graphics, model, pValues);
+		graphics.translate(PANEL_WIDTH, 0);
+		drawQqPlot(graphics, model, pValues);
+		graphics.dispose();
+
+		ByteArrayOutputStream pngFile = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", pngFile);
+		return pngFile.toByteArray();
+
+	}
+
+	/**
+	 * Draw the histogram panel, as <code>hist.bum</code>.
+	 */
+	private static void drawHistogram(
+			Graphics2D graphics, BumModel model, double[] pValues) {
+
+		// count the p-values per bin and scale the counts to densities
+		int[] counts = new int[HISTOGRAM_BREAKS];
+		for (double p : pValues) {
+			counts[Math.min((int) (p * HISTOGRAM_BREAKS), HISTOGRAM_BREAKS - 1)]++;
+		}
+		double[] densities = new double[HISTOGRAM_BREAKS];
+		double maxDensity = model.piUpper();
+		for (int i = 0; i < HISTOGRAM_BREAKS; ++i) {
+			densities[i] =
+					(double) counts[i] * HISTOGRAM_BREAKS / pValues.length;
+			maxDensity = Math.max(maxDensity, densities[i]);
+		}
+
+		drawFrame(graphics, "Histogram of p-values");
+		graphics.setColor(Color.LIGHT_GRAY);
+		for (int i = 0; i < HISTOGRAM_BREAKS; ++i) {
+			int left = toX((double) i / HISTOGRAM_BREAKS);
+			int right = toX((double) (i + 1) / HISTOGRAM_BREAKS);
+			int top = toY(densities[i] / maxDensity);
+			graphics.fillRect(left, top, right - left, toY(0) - top);
+		}
+
+		// the fitted density, clipped to the top of the plot
+		graphics.setColor(new Color(0xCD, 0x00, 0x00));
+		graphics.setStroke(new BasicStroke(3));
+		int previousX = -1, previousY = -1;
+		for (int i = 1; i <= 100; ++i) {
+			double x = i / 100.0;
+			int pixelX = toX(x);
+			int pixelY = toY(Math.min(1.0, model.density(x) / maxDensity));
+			if (previousX >= 0) {
+				graphics.drawLine(previousX, previousY, pixelX, pixelY);
+			}
+			previousX = pixelX;
+			previousY = pixelY;
+		}
+
+		// the upper bound for the fraction of noise
+		graphics.setColor(new Color(0x00, 0x00, 0xCD));
+		graphics.setStroke(new BasicStroke(2));
+		int piY = toY(model.piUpper() / maxDensity);
+		graphics.drawLine(toX(0), piY, toX(1), piY);
+		graphics.drawString("π", MARGIN - 15, piY + 5);
+
+	}
+
+	/**
+	 * Draw the QQ-plot panel, as <code>plot.bum</code>.
+	 */
+	private static void drawQqPlot(
+			Graphics2D graphics, BumModel model, double[] pValues) {
+
+		double[] sorted = pValues.clone();
+		Arrays.sort(sorted);
+		int n = sorted.length;
+
+		drawFrame(graphics, "QQ-Plot");
+		graphics.setColor(Color.GRAY);
+		graphics.drawLine(toX(0), toY(0), toX(1), toY(1));
+
+		graphics.setColor(Color.BLACK);
+		graphics.setStroke(new BasicStroke(
+				1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER,
+				10, new float[] {4, 4}, 0));
+		int points = Math.min(n, QQ_POINTS);
+		int previousX = -1, previousY = -1;
+		for (int j = 0; j < points; ++j) {
+			// spread the plotted points evenly over the sorted p-values
+			int i = points == 1 ? 0 : (int) ((long) j * (n - 1) / (points - 1));
+			double quantile = quantile(model, (i + 0.5) / n);
+			int pixelX = toX(quantile);
+			int pixelY = toY(sorted[i]);
+			if (previousX >= 0) {
+				graphics.drawLine(previousX, previousY, pixelX, pixelY);
+			}
+			previousX = pixelX;
+			previousY = pixelY;
+		}
+
+	}
+
+	/**
+	 * Invert the cumulative distribution function by bisection.
+	 *
+	 * @param model  the BUM model
+	 * @param probability  the probability, in (0, 1)
+	 *
+	 * @return  x such that the model’s CDF at x equals the probability
+	 */
+	private static double quantile(BumModel model, double probability) {
+		double low = 0.0, high = 1.0;
+		for (int i = 0; i < 50; ++i) {
+			double middle = (low + high) / 2;
+			if (model.cumulative(middle) < probability) {
+				low = middle;
+			} else {
+				high = middle;
+			}
+		}
+		return (low + high) / 2;
+	}
+
+	/**
+	 * Draw the axes and title of a panel.
+	 */
+	private static void drawFrame(Graphics2D graphics, String title) {
+		graphics.setColor(Color.BLACK);
+		graphics.setStroke(new BasicStroke(1));
+		graphics.drawRect(MARGIN, MARGIN,
+				PANEL_WIDTH - 2 * MARGIN, HEIGHT - 2 * MARGIN);
+		graphics.drawString(title, MARGIN, MARGIN - 15);
+		graphics.drawString("0", MARGIN - 4, HEIGHT - MARGIN + 15);
+		graphics.drawString("1", PANEL_WIDTH - MARGIN - 4, HEIGHT - MARGIN + 15);
+	}
+
+	private static int toX(double x) {
+		return MARGIN + (int) Math.round(x * (PANEL_WIDTH - 2 * MARGIN));
+	}
+
+	private static int toY(double y) {
+		return HEIGHT - MARGIN - (int) Math.round(y * (HEIGHT - 2 * MARGIN));
+	}
+
+}
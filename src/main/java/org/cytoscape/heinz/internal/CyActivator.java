@@ -1,7 +1,13 @@
 package org.cytoscape.heinz.internal;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Properties;
+import javax.management.JMException;
+import org.cytoscape.application.CyApplicationConfiguration;
+import org.cytoscape.event.CyEventHelper;
 import org.cytoscape.service.util.AbstractCyActivator;
+import org.cytoscape.task.NetworkCollectionTaskFactory;
 import org.cytoscape.task.NetworkTaskFactory;
 import org.osgi.framework.BundleContext;
 
@@ -15,12 +21,59 @@ import static org.cytoscape.application.swing.ActionEnableSupport.ENABLE_FOR_NET
 public class CyActivator extends AbstractCyActivator {
 	
 	/**
-	 * Register a HeinzTaskFactory as an OSGi service for Cytoscape to find.
+	 * Connections to the servers, kept open between runs.
+	 */
+	private SwConnectionPool connectionPool;
+	/**
+	 * Servers for running the tools locally, started when first used.
+	 */
+	private EmbeddedSwServers embeddedServers;
+	/**
+	 * Totals of the runs of each tool, exposed over JMX.
+	 */
+	private ToolMetrics heinzMetrics;
+	private ToolMetrics bumMetrics;
+	
+	/**
+	 * Register the task factories as OSGi services for Cytoscape to find.
 	 */
 	@Override
 	public void start(BundleContext context) throws Exception {
 		
-		HeinzWorkflowTaskFactory taskFactory = new HeinzWorkflowTaskFactory();
+		connectionPool = new SwConnectionPool();
+		
+		// keep modules of earlier runs in the Cytoscape configuration directory
+		CyApplicationConfiguration configuration =
+				getService(context, CyApplicationConfiguration.class);
+		HeinzResultCache resultCache = new HeinzResultCache(new File(
+				configuration.getConfigurationDirectoryLocation(),
+				"heinz" + File.separator + "cache"));
+		
+		// write results in batches, firing a single event per column
+		ModuleColumnWriter moduleWriter = new ModuleColumnWriter(
+				getService(context, CyEventHelper.class));
+		
+		// install the BUM model fitting script next to the cache
+		embeddedServers = EmbeddedSwServers.fromSystemProperties(new File(
+				configuration.getConfigurationDirectoryLocation(), "heinz"));
+		try {
+			embeddedServers.installBumScript();
+		} catch (IOException e) {
+			// reported when the embedded BUM server is first used
+		}
+		
+		heinzMetrics = new ToolMetrics("Heinz");
+		bumMetrics = new ToolMetrics("BUM");
+		try {
+			heinzMetrics.register();
+			bumMetrics.register();
+		} catch (JMException e) {
+			// the metrics are still written to the network tables
+		}
+		
+		HeinzWorkflowTaskFactory taskFactory = new HeinzWorkflowTaskFactory(
+				connectionPool, resultCache, moduleWriter, embeddedServers,
+				heinzMetrics, bumMetrics);
 		
 		Properties properties = new Properties();
 		properties.put(TITLE, "Run Heinz");
@@ -31,6 +84,46 @@ public class CyActivator extends AbstractCyActivator {
 		
 		registerService(context, taskFactory, NetworkTaskFactory.class, properties);
 		
+		// the same workflow, for many p-value columns of the selected networks
+		HeinzBatchTaskFactory batchTaskFactory = new HeinzBatchTaskFactory(
+				connectionPool, resultCache, moduleWriter, embeddedServers,
+				heinzMetrics, bumMetrics);
+		
+		Properties batchProperties = new Properties();
+		batchProperties.put(TITLE, "Run Heinz on Several Columns");
+		batchProperties.put(PREFERRED_MENU, "Apps");
+		batchProperties.put(ENABLE_FOR, ENABLE_FOR_NETWORK);
+		batchProperties.put(TOOLTIP,
+				"Identify modules for each of several p-value columns " +
+				"of the selected networks");
+		
+		registerService(
+				context,
+				batchTaskFactory,
+				NetworkCollectionTaskFactory.class,
+				batchProperties);
+		
+	}
+	
+	/**
+	 * Close the pooled server connections, stop the embedded servers and
+	 * unregister the metrics when the app is stopped.
+	 */
+	@Override
+	public void stop(BundleContext context) throws Exception {
+		super.stop(context);
+		if (connectionPool != null) {
+			connectionPool.shutDown();
+		}
+		if (embeddedServers != null) {
+			embeddedServers.shutDown();
+		}
+		if (heinzMetrics != null) {
+			heinzMetrics.unregister();
+		}
+		if (bumMetrics != null) {
+			bumMetrics.unregister();
+		}
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,282 @@
+package org.cytoscape.heinz.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The embedded servers for Heinz and BUM model fitting, started on demand.
+ *
+ * Each server is started the first time a task asks for its port, on a
+ * free port of the loopback interface, and keeps running until the app is
+ * stopped. The tools are run as configured by system properties, e.g.
+ * given to Cytoscape with -D options:
+ *
+ * <ul>
+ * <li>heinz.embedded.heinz: the Heinz command line, by default
+ *     <code>heinz</code> from the search path.</li>
+ * <li>heinz.embedded.bum: the BUM model fitting command line, by default
+ *     <code>Rscript fitBumModel.R</code>, with the script shipped with the
+ *     app copied to the script directory.</li>
+ * <li>heinz.embedded.processes: the maximum number of simultaneous runs of
+ *     each tool, by default the number of processors.</li>
+ * </ul>
+ *
+ * Command lines are split at whitespace.
+ *
+ * @see SwServer
+ */
+public class EmbeddedSwServers {
+	
+	public static final String HEINZ_COMMAND_PROPERTY = "heinz.embedded.heinz";
+	public static final String BUM_COMMAND_PROPERTY = "heinz.embedded.bum";
+	public static final String MAX_PROCESSES_PROPERTY =
+			"heinz.embedded.processes";
+	/**
+	 * Name of the BUM model fitting script, both as a resource of this
+	 * class and in the script directory.
+	 */
+	static final String BUM_SCRIPT_NAME = "fitBumModel.R";
+	
+	private final List<String> heinzCommand;
+	private final List<String> bumCommand;
+	private final int maxProcesses;
+	/**
+	 * The script run by the default BUM model fitting command line, or
+	 * null if another command line is configured.
+	 */
+	private final File bumScript;
+	private SwServer heinzServer = null;
+	private SwServer bumServer = null;
+	
+	/**
+	 * @param heinzCommand  the Heinz command line
+	 * @param bumCommand  the BUM model fitting command line
+	 * @param maxProcesses  the maximum number of simultaneous runs of each
+	 */
+	public EmbeddedSwServers(
+			List<String> heinzCommand, List<String> bumCommand, int maxProcesses) {
+		this(heinzCommand, bumCommand, maxProcesses, null);
+	}
+	
+	private EmbeddedSwServers(
+			List<String> heinzCommand,
+			List<String> bumCommand,
+			int maxProcesses,
+			File bumScript) {
+		if (maxProcesses < 1) {
+			throw new IllegalArgumentException(
+					"At least one process is needed to run the tools.");
+		}
+		this.heinzCommand = new ArrayList<String>(heinzCommand);
+		this.bumCommand = new ArrayList<String>(bumCommand);
+		this.maxProcesses = maxProcesses;
+		this.bumScript = bumScript;
+	}
+	
+	/**
+	 * Configure the servers from the system properties.
+	 *
+	 * @param scriptDirectory  the directory of fitBumModel.R, unless another
+	 *                         BUM model fitting command line is configured
+	 *
+	 * @return  the servers, not started yet
+	 *
+	 * @throws IllegalArgumentException  if a property has an invalid value
+	 */
+	public static EmbeddedSwServers fromSystemProperties(File scriptDirectory) {
+		List<String> heinzCommand = splitCommand(
+				System.getProperty(HEINZ_COMMAND_PROPERTY, "heinz"));
+		String bum = System.getProperty(BUM_COMMAND_PROPERTY);
+		File bumScript = bum != null ?
+				null : new File(scriptDirectory, BUM_SCRIPT_NAME);
+		List<String> bumCommand = bum != null ?
+				splitCommand(bum) :
+				Arrays.asList("Rscript", bumScript.getPath());
+		int maxProcesses = Runtime.getRuntime().availableProcessors();
+		String processes = System.getProperty(MAX_PROCESSES_PROPERTY);
+		if (processes != null) {
+			try {
+				maxProcesses = Integer.parseInt(processes.trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(
+						"Invalid value for " + MAX_PROCESSES_PROPERTY + ": " +
+						processes);
+			}
+		}
+		return new EmbeddedSwServers(
+				heinzCommand, bumCommand, maxProcesses, bumScript);
+	}
+	
+	/**
+	 * Copy the BUM model fitting script shipped with the app to the script
+	 * directory, unless another command line is configured.
+	 *
+	 * A copy that is already there is only replaced if it differs, e.g.
+	 * after the app was updated.
+	 *
+	 * @throws IOException  if the script cannot be copied
+	 */
+	public void installBumScript() throws IOException {
+		if (bumScript == null) {
+			return;
+		}
+		InputStream resource =
+				EmbeddedSwServers.class.getResourceAsStream(BUM_SCRIPT_NAME);
+		if (resource == null) {
+			throw new IOException(
+					BUM_SCRIPT_NAME + " is missing from the app.");
+		}
+		byte[] script = readFully(resource);
+		if (
+				bumScript.isFile() &&
+				Arrays.equals(script, readFully(new FileInputStream(bumScript)))) {
+			return;
+		}
+		File directory = bumScript.getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create directory " + directory);
+		}
+		// write to a temporary file first, so that no partial script is run
+		File temporaryFile = new File(directory, BUM_SCRIPT_NAME + ".tmp");
+		try {
+			OutputStream stream = new FileOutputStream(temporaryFile);
+			try {
+				stream.write(script);
+			} finally {
+				stream.close();
+			}
+			bumScript.delete();
+			if (!temporaryFile.renameTo(bumScript)) {
+				throw new IOException("Cannot write " + bumScript);
+			}
+		} finally {
+			temporaryFile.delete();
+		}
+	}
+	
+	/**
+	 * Get the port of the Heinz server, starting it if needed.
+	 *
+	 * @return  the port number, on the loopback interface
+	 *
+	 * @throws IOException  if the server cannot be started
+	 */
+	public synchronized int getHeinzPort() throws IOException {
+		if (heinzServer == null) {
+			heinzServer = startServer(
+					heinzCommand, SwHeinzClient.FLAGS, "heinz-server");
+		}
+		return heinzServer.getPort();
+	}
+	
+	/**
+	 * Get the port of the BUM model fitting server, starting it if needed.
+	 *
+	 * @return  the port number, on the loopback interface
+	 *
+	 * @throws IOException  if the server cannot be started
+	 */
+	public synchronized int getBumPort() throws IOException {
+		if (bumServer == null) {
+			// the server would start, but every run would fail
+			if (bumScript != null && !bumScript.isFile()) {
+				throw new IOException(
+						"The BUM model fitting script was not found at " +
+						bumScript + "; set the " + BUM_COMMAND_PROPERTY +
+						" system property to the command line to fit " +
+						"BUM models with, or use another server.");
+			}
+			bumServer = startServer(
+					bumCommand, SwBumFitterClient.FLAGS, "bum-server");
+		}
+		return bumServer.getPort();
+	}
+	
+	/**
+	 * Stop the servers that were started, aborting any runs.
+	 */
+	public synchronized void shutDown() {
+		if (heinzServer != null) {
+			heinzServer.shutDown();
+			heinzServer = null;
+		}
+		if (bumServer != null) {
+			bumServer.shutDown();
+			bumServer = null;
+		}
+	}
+	
+	/**
+	 * Start a server on a free port.
+	 *
+	 * @param command  the command line of the tool
+	 * @param flags  the command line flags clients may pass to it
+	 * @param name  the start of the name of its working directory
+	 *
+	 * @return  the started server
+	 *
+	 * @throws IOException  if the server cannot be started
+	 */
+	private SwServer startServer(
+			List<String> command, Set<String> flags, String name)
+			throws IOException {
+		SwServer server = new SwServer(
+				command,
+				flags,
+				SwServer.createWorkDirectoryName(name),
+				maxProcesses);
+		server.start(0);
+		return server;
+	}
+	
+	/**
+	 * Read a stream to its end, and close it.
+	 *
+	 * @param stream  the stream
+	 *
+	 * @return  the bytes read
+	 *
+	 * @throws IOException  if the stream cannot be read
+	 */
+	private static byte[] readFully(InputStream stream) throws IOException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = stream.read(buffer)) >= 0) {
+				bytes.write(buffer, 0, count);
+			}
+			return bytes.toByteArray();
+		} finally {
+			stream.close();
+		}
+	}
+	
+	/**
+	 * @param command  a command line
+	 *
+	 * @return  its words
+	 */
+	private static List<String> splitCommand(String command) {
+		List<String> words = new ArrayList<String>();
+		for (String word : command.trim().split("\\s+")) {
+			if (word.length() > 0) {
+				words.add(word);
+			}
+		}
+		if (words.isEmpty()) {
+			throw new IllegalArgumentException("Empty command line configured.");
+		}
+		return words;
+	}
+	
+}
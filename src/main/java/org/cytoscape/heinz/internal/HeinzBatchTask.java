@@ -0,0 +1,794 @@
+package org.cytoscape.heinz.internal;
+
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.cytoscape.task.AbstractNetworkCollectionTask;
+import org.cytoscape.work.TaskMonitor;
+import org.cytoscape.work.Tunable;
+import org.cytoscape.work.util.BoundedDouble;
+import org.cytoscape.work.util.ListMultipleSelection;
+import org.cytoscape.model.CyColumn;
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.CyTable;
+import org.cytoscape.model.CyRow;
+import org.cytoscape.model.CyNode;
+
+
+/**
+ * Task that runs the workflow for many p-value columns, of one or more
+ * networks, as a single job.
+ *
+ * Each network is read once for all of its columns, and its edge file
+ * shared by every Heinz run on it: it is sent in binary to servers that
+ * accept it, written on the fly rather than held in memory, and received
+ * only once by servers that accept file offers. The BUM model fits and Heinz runs of
+ * all columns share a bounded number of simultaneous runs. Each column
+ * gets its own BUM model parameters in the network table, as written by
+ * BumFittingTask, and its own node table result column, named after the
+ * result column and the p-value column, e.g. ‘in Heinz module@contrast1’.
+ * The columns and module sizes are summarised in list columns of the
+ * network table of each network. The time spent in each phase of each fit
+ * and run is written to the network table as well, next to the parameters
+ * and result column, and added to the totals of all fits and runs.
+ *
+ * Heinz is run on each network as a whole, rather than reduced or split
+ * into components as by a single run, so that all runs on a network share
+ * its edge file.
+ *
+ * The fits and runs are sessions of AsyncBumFitterClient and
+ * AsyncHeinzClient on a selector pool, so that those waiting for a server
+ * hold no thread; parameters and modules are written to the tables by the
+ * task’s own thread as the columns finish.
+ */
+public class HeinzBatchTask extends AbstractNetworkCollectionTask {
+	
+	// Tunable parameters to be provided by the user before run() is called
+	@Tunable(
+			description="Fit BUM model parameters to each column",
+			groups={"BUM model"})
+	public boolean fitBum = true;
+	@Tunable(
+			description="Fit within Cytoscape (no server needed)",
+			groups={"BUM model", "Parameter fitting"},
+			dependsOn="fitBum=true")
+	public boolean bumFitLocally = false;
+	@Tunable(
+			description="Run the R script on a server within Cytoscape",
+			groups={"BUM model", "Parameter fitting"},
+			dependsOn="fitBum=true")
+	public boolean bumEmbeddedServer = false;
+	@Tunable(
+			description="Host (or list, e.g. ‘node1, node2:9002’)",
+			groups={"BUM model", "Parameter fitting", "server"},
+			dependsOn="fitBum=true")
+	public String bumServerHost = "localhost";
+	@Tunable(
+			description="Port",
+			groups={"BUM model", "Parameter fitting", "server"},
+			dependsOn="fitBum=true")
+	public int bumServerPort = 9000;
+	@Tunable(
+			description="Number of starts for model fitting",
+			groups={"BUM model", "Parameter fitting"},
+			dependsOn="fitBum=true")
+	public int bumFittingStarts = 10;
+	@Tunable(
+			description="Histogram bins to fit to (0 to fit to every p-value)",
+			groups={"BUM model", "Parameter fitting"},
+			dependsOn="fitBum=true")
+	public int bumFittingBins = 0;
+	
+	@Tunable(
+			description="False-discovery rate",
+			groups = {"Heinz"})
+	public BoundedDouble fdr = new BoundedDouble(0.0, 0.01,	1.0, true, true);
+	@Tunable(
+			description="Maximum simultaneous runs (model fits and Heinz runs)",
+			groups={"Heinz"})
+	public int parallelism = 4;
+	@Tunable(
+			description="Run heinz on a server within Cytoscape",
+			groups={"Heinz"})
+	public boolean heinzEmbeddedServer = false;
+	@Tunable(
+			description="Host (or list, e.g. ‘node1, node2:9003’)",
+			groups={"Heinz", "Heinz server"},
+			dependsOn="heinzEmbeddedServer=false")
+	public String heinzServerHost = "localhost";
+	@Tunable(
+			description="Port",
+			groups={"Heinz", "Heinz server"},
+			dependsOn="heinzEmbeddedServer=false")
+	public int heinzServerPort = 9001;
+	
+	@Tunable(
+			description="Node table columns holding the p-values",
+			groups = {"General"})
+	public ListMultipleSelection<String> pValueColumnNames;
+	@Tunable(
+			description="Output column name",
+			groups = {"General"})
+	public String resultColumnName = "in Heinz module";
+	
+	private final SwConnectionPool connectionPool;
+	private final HeinzResultCache resultCache;
+	private final ModuleColumnWriter moduleWriter;
+	private final EmbeddedSwServers embeddedServers;
+	private final ToolMetrics heinzMetrics;
+	private final ToolMetrics bumMetrics;
+	private String bumHost;
+	private int bumPort;
+	private String heinzHost;
+	private int heinzPort;
+	/**
+	 * Clients with a session in progress, whose runs are aborted when the
+	 * batch is cancelled.
+	 */
+	private final Set<AbstractAsyncSwClient<?>> activeClients =
+			new HashSet<AbstractAsyncSwClient<?>>();
+	/**
+	 * Payload sizes of all runs together.
+	 */
+	private final SwTransferStatistics transferStatistics =
+			new SwTransferStatistics();
+	
+	/**
+	 * A p-value column of a network, to fit a model to and run Heinz on.
+	 */
+	private static class Job {
+		
+		final CyNetwork network;
+		final NetworkSnapshot snapshot;
+		/**
+		 * The edge file, shared by all jobs on the network.
+		 */
+		final SwHeinzClient.SharedEdgeFile edgeFile;
+		int moduleSize = 0;
+		/**
+		 * The times of the model fit, if fitted.
+		 */
+		RunMetrics bumRunMetrics = null;
+		ToolMetrics.Outcome bumOutcome = ToolMetrics.Outcome.FAILED;
+		double lambda;
+		double a;
+		/**
+		 * The times of the Heinz run, once started.
+		 */
+		RunMetrics heinzRunMetrics = null;
+		ToolMetrics.Outcome heinzOutcome = ToolMetrics.Outcome.FAILED;
+		String cacheKey = null;
+		/**
+		 * The module found or looked up, unless the run failed.
+		 */
+		long[] module = null;
+		/**
+		 * Why the fit or run failed, if one did.
+		 */
+		Throwable failure = null;
+		
+		Job(
+				CyNetwork network,
+				NetworkSnapshot snapshot,
+				SwHeinzClient.SharedEdgeFile edgeFile) {
+			this.network = network;
+			this.snapshot = snapshot;
+			this.edgeFile = edgeFile;
+		}
+		
+	}
+	
+	/**
+	 * Initialise the task, offering the Double columns of the networks as
+	 * p-value columns.
+	 *
+	 * @param networks  the networks to operate on
+	 * @param connectionPool  pool of server connections shared by the tasks
+	 * @param resultCache  modules of earlier Heinz runs, or null
+	 * @param moduleWriter  writer of the Heinz result columns
+	 * @param embeddedServers  servers for running the tools locally
+	 * @param heinzMetrics  totals of all Heinz runs, or null
+	 * @param bumMetrics  totals of all BUM model fits, or null
+	 */
+	public HeinzBatchTask(
+			final Collection<CyNetwork> networks,
+			final SwConnectionPool connectionPool,
+			final HeinzResultCache resultCache,
+			final ModuleColumnWriter moduleWriter,
+			final EmbeddedSwServers embeddedServers,
+			final ToolMetrics heinzMetrics,
+			final ToolMetrics bumMetrics) {
+		
+		// Will set a CyNetwork collection field called "networks"
+		super(networks);
+		this.connectionPool = connectionPool;
+		this.resultCache = resultCache;
+		this.moduleWriter = moduleWriter;
+		this.embeddedServers = embeddedServers;
+		this.heinzMetrics = heinzMetrics;
+		this.bumMetrics = bumMetrics;
+		
+		// Collect the names of the node table columns that have the type
+		// Double in any of the networks
+		Set<String> doubleColumnNames = new LinkedHashSet<String>();
+		for (CyNetwork network : networks) {
+			for (CyColumn column : network.getDefaultNodeTable().getColumns()) {
+				if (column.getType() == Double.class) {
+					doubleColumnNames.add(column.getName());
+				}
+			}
+		}
+		// Set the column names as options in the Tunable
+		pValueColumnNames = new ListMultipleSelection<String>(
+				new ArrayList<String>(doubleColumnNames));
+		
+	}
+	
+	/**
+	 * Get the name of the result column for a given p-value column.
+	 *
+	 * @param resultColumnName  the prefix of the result columns
+	 * @param pValueColumnName  the p-value column
+	 *
+	 * @return  e.g. ‘in Heinz module@contrast1’
+	 */
+	public static String getResultColumnName(
+			String resultColumnName, String pValueColumnName) {
+		return resultColumnName + "@" + pValueColumnName;
+	}
+
+    /**
+     * Fit a model to and run Heinz on each selected column of each
+     * network, adding a column per run to the node tables.
+     *
+     * @throws Exception  the error of the first run that failed, e.g. an
+     *                    IOException if an error occurs communicating to a
+     *                    server
+     */
+	@Override
+	public void run(final TaskMonitor taskMonitor)
+			throws Exception {
+		
+		// Give the task a title (shown in status monitor)
+		taskMonitor.setTitle("Heinz Batch");
+		
+		taskMonitor.setStatusMessage("Validating parameters");
+		List<String> selectedColumnNames =
+				pValueColumnNames.getSelectedValues();
+		if (selectedColumnNames == null || selectedColumnNames.isEmpty()) {
+			throw new IllegalArgumentException("No p-value columns selected.");
+		}
+		if (resultColumnName == null) {
+			throw new IllegalArgumentException(
+					"No Heinz result column name.");
+		}
+		if (!(fdr.getValue() > 0.0 && fdr.getValue() < 1.0)) {
+			throw new IllegalArgumentException(
+					"FDR parameter out of range.");
+		}
+		if (parallelism < 1) {
+			throw new IllegalArgumentException(
+					"At least one run must be allowed at a time.");
+		}
+		
+		// validate all columns before starting any run, sharing the edges
+		// of each network among its runs
+		List<Job> jobs = new ArrayList<Job>();
+		List<List<Job>> jobsByNetwork = new ArrayList<List<Job>>();
+		for (CyNetwork network : networks) {
+			List<String> columnNames = new ArrayList<String>();
+			CyTable nodeTable = network.getDefaultNodeTable();
+			for (String columnName : selectedColumnNames) {
+				CyColumn column = nodeTable.getColumn(columnName);
+				if (column != null && column.getType() == Double.class) {
+					columnNames.add(columnName);
+				}
+			}
+			if (columnNames.isEmpty()) {
+				taskMonitor.setStatusMessage(
+						"Skipping network ‘" + getName(network) +
+						"’, which has none of the columns");
+				continue;
+			}
+			taskMonitor.setStatusMessage(
+					"Reading " + columnNames.size() +
+					" p-value columns of network ‘" + getName(network) + "’");
+			// read the network once, for all of its columns
+			List<NetworkSnapshot> snapshots =
+					NetworkSnapshot.capture(network, columnNames);
+			for (NetworkSnapshot snapshot : snapshots) {
+				snapshot.validatePValues();
+			}
+			
+			// stop if Cancel was clicked
+			if (cancelled) { return; }
+			
+			SwHeinzClient.SharedEdgeFile edgeFile =
+					new SwHeinzClient.SharedEdgeFile(snapshots.get(0));
+			List<Job> networkJobs = new ArrayList<Job>();
+			for (NetworkSnapshot snapshot : snapshots) {
+				networkJobs.add(new Job(network, snapshot, edgeFile));
+			}
+			jobs.addAll(networkJobs);
+			jobsByNetwork.add(networkJobs);
+		}
+		if (jobs.isEmpty()) {
+			throw new IllegalArgumentException(
+					"None of the networks has any of the selected columns.");
+		}
+		taskMonitor.setProgress(0.05);
+		
+		// start the embedded servers if they are to be used
+		bumHost = bumServerHost;
+		bumPort = bumServerPort;
+		if (fitBum && !bumFitLocally && bumEmbeddedServer) {
+			bumHost = "localhost";
+			bumPort = embeddedServers.getBumPort();
+		}
+		heinzHost = heinzServerHost;
+		heinzPort = heinzServerPort;
+		if (heinzEmbeddedServer) {
+			heinzHost = "localhost";
+			heinzPort = embeddedServers.getHeinzPort();
+		}
+		
+		// stop if Cancel was clicked
+		if (cancelled) { return; }
+		
+		taskMonitor.setStatusMessage(
+				"Running the workflow for " + jobs.size() + " columns");
+		SwSelectorPool selectorPool = connectionPool != null ?
+				connectionPool.getSelectorPool() :
+				new SwSelectorPool(
+						1, Runtime.getRuntime().availableProcessors());
+		SwFuture.CompletionQueue<Job> runs =
+				new SwFuture.CompletionQueue<Job>();
+		try {
+			int started = 0;
+			while (started < Math.min(parallelism, jobs.size())) {
+				runs.add(startJob(jobs.get(started++), selectorPool));
+			}
+			for (int finished = 0; runs.getPending() > 0; ++finished) {
+				try {
+					record(runs.take().await());
+				} catch (Exception e) {
+					// report the first failed run, and stop the others
+					abortActiveClients();
+					throw e;
+				}
+				if (!cancelled && started < jobs.size()) {
+					runs.add(startJob(jobs.get(started++), selectorPool));
+				}
+				taskMonitor.setStatusMessage(
+						"Finished " + (finished + 1) + " of " +
+						jobs.size() + " columns");
+				taskMonitor.setProgress(
+						0.05 + 0.90 * (finished + 1) / jobs.size());
+			}
+		} finally {
+			if (connectionPool == null) {
+				selectorPool.shutDown();
+			}
+		}
+		
+		// stop if Cancel was clicked
+		if (cancelled) { return; }
+		
+		taskMonitor.setStatusMessage(
+				"Transfers with the servers: " + transferStatistics);
+		if (resultCache != null) {
+			taskMonitor.setStatusMessage(
+					"Result cache: " + resultCache.getStatistics());
+		}
+		taskMonitor.setStatusMessage("Writing a summary to the network tables");
+		writeSummaries(jobsByNetwork);
+		taskMonitor.setProgress(1.00);
+		
+	}
+	
+	/**
+	 * Stop the batch, aborting runs in progress and not starting others.
+	 */
+	@Override
+	public void cancel() {
+		super.cancel();
+		abortActiveClients();
+	}
+	
+	/**
+	 * Abort the runs in progress, or about to start.
+	 */
+	private void abortActiveClients() {
+		synchronized (activeClients) {
+			for (AbstractAsyncSwClient<?> client : activeClients) {
+				client.abort();
+			}
+		}
+	}
+	
+	/**
+	 * Fit a model to a column, or read the one fitted before, and run
+	 * Heinz on it.
+	 *
+	 * @param job  the column and its network
+	 * @param selectorPool  the pool to run the sessions on
+	 *
+	 * @return  the future of the job, which does not fail but records why
+	 *          the fit or run did
+	 */
+	private SwFuture<Job> startJob(
+			final Job job, final SwSelectorPool selectorPool) {
+		
+		final SwFuture<Job> future = new SwFuture<Job>();
+		if (!fitBum) {
+			CyRow networkTableRow = job.network.getTable(
+					CyNetwork.class, CyNetwork.LOCAL_ATTRS).getRow(
+							job.network.getSUID());
+			String pValueColumnName = job.snapshot.getPValueColumnName();
+			job.lambda = HeinzTask.readBumParameter(
+					networkTableRow, pValueColumnName, "lambda");
+			job.a = HeinzTask.readBumParameter(
+					networkTableRow, pValueColumnName, "a");
+			startHeinz(job, selectorPool, future);
+			return future;
+		}
+		
+		job.bumRunMetrics = new RunMetrics();
+		fitBumModel(job, selectorPool).addListener(
+				new SwFuture.Listener<double[]>() {
+					@Override
+					public void completed(double[] parameters) {
+						job.lambda = parameters[0];
+						job.a = parameters[1];
+						job.bumOutcome = ToolMetrics.Outcome.FINISHED;
+						startHeinz(job, selectorPool, future);
+					}
+					@Override
+					public void failed(Throwable cause) {
+						job.failure = cause;
+						future.complete(job);
+					}
+				});
+		return future;
+		
+	}
+	
+	/**
+	 * Fit a BUM model to the p-values of a column.
+	 *
+	 * @param job  the column, whose metrics to add the time of each phase to
+	 * @param selectorPool  the pool to run the session on, or the local
+	 *                      fit
+	 *
+	 * @return  the future of the mixture and shape parameters
+	 */
+	private SwFuture<double[]> fitBumModel(
+			final Job job, SwSelectorPool selectorPool) {
+		
+		final double[] pvalues = job.snapshot.getPValues();
+		if (bumFitLocally) {
+			return selectorPool.submit(new Callable<double[]>() {
+				@Override
+				public double[] call() throws IOException {
+					return fitBumModelLocally(pvalues, job.bumRunMetrics);
+				}
+			});
+		}
+		
+		final AsyncBumFitterClient client = new AsyncBumFitterClient(
+				selectorPool, connectionPool, bumHost, bumPort);
+		track(client);
+		if (bumFittingBins > 0) {
+			client.enableBinning(bumFittingBins);
+		}
+		client.sendPValues(pvalues);
+		client.sendStarts(bumFittingStarts);
+		client.run();
+		final SwFuture<Double> lambda = client.getLambda();
+		final SwFuture<Double> a = client.getA();
+		final SwFuture<double[]> parameters = new SwFuture<double[]>();
+		client.close().addListener(new SwFuture.Listener<Void>() {
+			@Override
+			public void completed(Void result) {
+				untrack(client, job.bumRunMetrics);
+				// done by now, as the session closes after its last step
+				try {
+					parameters.complete(
+							new double[] {lambda.await(), a.await()});
+				} catch (Exception e) {
+					parameters.fail(e);
+				}
+			}
+			@Override
+			public void failed(Throwable cause) {
+				// closing does not fail
+				parameters.fail(cause);
+			}
+		});
+		return parameters;
+		
+	}
+	
+	/**
+	 * Fit a BUM model within Cytoscape, on a worker thread.
+	 *
+	 * @param pvalues  the p-values of the column
+	 * @param metrics  the metrics to add the time of each phase to
+	 *
+	 * @return  the mixture and shape parameters
+	 *
+	 * @throws IOException  if the fit fails
+	 */
+	private double[] fitBumModelLocally(double[] pvalues, RunMetrics metrics)
+			throws IOException {
+		BumFitterClient client = new LocalBumFitterClient();
+		try {
+			long start = System.nanoTime();
+			if (bumFittingBins > 0) {
+				client.enableBinning(bumFittingBins);
+			}
+			client.sendPValues(pvalues);
+			client.sendStarts(bumFittingStarts);
+			metrics.addTimeSince(RunMetrics.Phase.UPLOAD, start);
+			
+			start = System.nanoTime();
+			client.run();
+			metrics.addTimeSince(RunMetrics.Phase.SOLVE, start);
+			start = System.nanoTime();
+			double[] parameters = {client.getLambda(), client.getA()};
+			metrics.addTimeSince(RunMetrics.Phase.PARSE, start);
+			return parameters;
+		} finally {
+			client.close();
+		}
+	}
+	
+	/**
+	 * Start the Heinz run on a column, or look up its module in the cache.
+	 *
+	 * @param job  the column, with its model parameters
+	 * @param selectorPool  the pool to run the session on
+	 * @param future  the future of the job, completed once the run is done
+	 */
+	private void startHeinz(
+			final Job job,
+			SwSelectorPool selectorPool,
+			final SwFuture<Job> future) {
+		
+		// skip the run if Cancel was clicked
+		if (cancelled) {
+			job.failure = new InterruptedIOException("Run aborted.");
+			future.complete(job);
+			return;
+		}
+		
+		job.heinzRunMetrics = new RunMetrics();
+		job.heinzRunMetrics.addTime(
+				RunMetrics.Phase.VALIDATION, job.snapshot.getValidationTime());
+		double fdrValue = fdr.getValue();
+		if (resultCache != null) {
+			try {
+				job.cacheKey = HeinzResultCache.computeKey(
+						job.snapshot, job.lambda, job.a, fdrValue);
+			} catch (IOException e) {
+				job.failure = e;
+				future.complete(job);
+				return;
+			}
+			job.module = resultCache.get(job.cacheKey);
+			if (job.module != null) {
+				job.heinzOutcome = ToolMetrics.Outcome.CACHED;
+				future.complete(job);
+				return;
+			}
+		}
+		
+		final AsyncHeinzClient client = new AsyncHeinzClient(
+				selectorPool, connectionPool, heinzHost, heinzPort);
+		track(client);
+		client.sendLambda(job.lambda);
+		client.sendA(job.a);
+		client.sendFdr(fdrValue);
+		// the node file is written as it is sent, like the edges
+		client.sendNodes(job.snapshot);
+		client.sendEdges(job.edgeFile);
+		client.runHeinz();
+		final SwFuture<long[]> module = client.retrieveModule(
+				job.network.getTable(CyNode.class, CyNetwork.LOCAL_ATTRS));
+		client.close().addListener(new SwFuture.Listener<Void>() {
+			@Override
+			public void completed(Void result) {
+				untrack(client, job.heinzRunMetrics);
+				// done by now, as the session closes after its last step
+				module.addListener(new SwFuture.Listener<long[]>() {
+					@Override
+					public void completed(long[] result) {
+						job.module = result;
+						job.heinzOutcome = ToolMetrics.Outcome.FINISHED;
+						future.complete(job);
+					}
+					@Override
+					public void failed(Throwable cause) {
+						job.failure = cause;
+						future.complete(job);
+					}
+				});
+			}
+			@Override
+			public void failed(Throwable cause) {
+				// closing does not fail
+				job.failure = cause;
+				future.complete(job);
+			}
+		});
+		
+	}
+	
+	/**
+	 * Write the model parameters and module of a finished job to the
+	 * tables, and record the metrics of its fit and run.
+	 *
+	 * @param job  the job
+	 *
+	 * @throws Exception  why the fit or run failed, unless aborted by
+	 *                    cancel(), e.g. an IOException if an error occurs
+	 *                    communicating to a server
+	 */
+	private void record(Job job) throws Exception {
+		
+		String pValueColumnName = job.snapshot.getPValueColumnName();
+		CyRow networkTableRow = job.network.getTable(
+				CyNetwork.class, CyNetwork.LOCAL_ATTRS).getRow(
+						job.network.getSUID());
+		if (job.bumRunMetrics != null) {
+			try {
+				if (job.bumOutcome == ToolMetrics.Outcome.FINISHED) {
+					job.bumOutcome = ToolMetrics.Outcome.FAILED;
+					long start = System.nanoTime();
+					BumFittingTask.writeParameters(
+							networkTableRow, pValueColumnName, job.lambda, job.a);
+					job.bumRunMetrics.addTimeSince(
+							RunMetrics.Phase.TABLE_WRITE, start);
+					job.bumRunMetrics.writeTo(
+							networkTableRow, pValueColumnName + ".BUM");
+					job.bumOutcome = ToolMetrics.Outcome.FINISHED;
+				}
+			} finally {
+				if (bumMetrics != null) {
+					bumMetrics.record(job.bumRunMetrics, job.bumOutcome);
+				}
+			}
+		}
+		
+		if (job.heinzRunMetrics != null) {
+			try {
+				if (job.module != null) {
+					long start = System.nanoTime();
+					moduleWriter.write(
+							job.network.getTable(
+									CyNode.class, CyNetwork.LOCAL_ATTRS),
+							getResultColumnName(
+									resultColumnName, pValueColumnName),
+							job.module);
+					job.heinzRunMetrics.addTimeSince(
+							RunMetrics.Phase.TABLE_WRITE, start);
+					if (
+							job.cacheKey != null &&
+							job.heinzOutcome == ToolMetrics.Outcome.FINISHED) {
+						resultCache.put(job.cacheKey, job.module);
+					}
+					job.moduleSize = job.module.length;
+				}
+			} catch (RuntimeException e) {
+				job.heinzOutcome = ToolMetrics.Outcome.FAILED;
+				throw e;
+			} finally {
+				if (heinzMetrics != null) {
+					heinzMetrics.record(job.heinzRunMetrics, job.heinzOutcome);
+				}
+			}
+			if (job.heinzOutcome != ToolMetrics.Outcome.FAILED) {
+				job.heinzRunMetrics.writeTo(
+						networkTableRow,
+						getResultColumnName(
+								resultColumnName, pValueColumnName) + ".Heinz");
+			}
+		}
+		
+		if (job.failure != null) {
+			// the fit or run was aborted by cancel()
+			if (cancelled && job.failure instanceof InterruptedIOException) {
+				return;
+			}
+			if (job.failure instanceof Exception) {
+				throw (Exception) job.failure;
+			}
+			throw (Error) job.failure;
+		}
+		
+	}
+	
+	/**
+	 * Register a client, so that cancel() aborts its run.
+	 */
+	private void track(AbstractAsyncSwClient<?> client) {
+		synchronized (activeClients) {
+			activeClients.add(client);
+		}
+		if (cancelled) {
+			// cancelled after the caller checked
+			client.abort();
+		}
+	}
+	
+	/**
+	 * Unregister a client, once closed, and add up its times and transfers.
+	 *
+	 * @param client  the client
+	 * @param metrics  the metrics of its fit or run
+	 */
+	private void untrack(AbstractAsyncSwClient<?> client, RunMetrics metrics) {
+		synchronized (activeClients) {
+			activeClients.remove(client);
+		}
+		AbstractSwClient session = client.getClient();
+		if (session != null) {
+			metrics.addSession(session);
+			transferStatistics.add(session.getTransferStatistics());
+		}
+	}
+	
+	/**
+	 * Write the columns and module sizes to the network table of each
+	 * network.
+	 *
+	 * Creates the list columns ‘{@code resultColumnName}.batch.column’ and
+	 * ‘{@code resultColumnName}.batch.size’, with an entry per column.
+	 *
+	 * @param jobsByNetwork  the columns run on each network, with the
+	 *                       sizes of their modules
+	 */
+	private void writeSummaries(List<List<Job>> jobsByNetwork) {
+		String columnColumnName = resultColumnName + ".batch.column";
+		String sizeColumnName = resultColumnName + ".batch.size";
+		for (List<Job> networkJobs : jobsByNetwork) {
+			List<String> columnList = new ArrayList<String>();
+			List<Integer> sizeList = new ArrayList<Integer>();
+			for (Job job : networkJobs) {
+				columnList.add(job.snapshot.getPValueColumnName());
+				sizeList.add(job.moduleSize);
+			}
+			CyNetwork network = networkJobs.get(0).network;
+			CyTable networkTable =
+					network.getTable(CyNetwork.class, CyNetwork.LOCAL_ATTRS);
+			if (networkTable.getColumn(columnColumnName) == null) {
+				networkTable.createListColumn(
+						columnColumnName, String.class, false);
+			}
+			if (networkTable.getColumn(sizeColumnName) == null) {
+				networkTable.createListColumn(
+						sizeColumnName, Integer.class, false);
+			}
+			CyRow networkTableRow = networkTable.getRow(network.getSUID());
+			networkTableRow.set(columnColumnName, columnList);
+			networkTableRow.set(sizeColumnName, sizeList);
+		}
+	}
+	
+	/**
+	 * @return  the name of a network, for messages
+	 */
+	private static String getName(CyNetwork network) {
+		return network.getDefaultNetworkTable().getRow(
+				network.getSUID()).get(CyNetwork.NAME, String.class);
+	}
+	
+}
@@ -0,0 +1,61 @@
+package org.cytoscape.heinz.internal;
+
+import java.util.Collection;
+
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.task.AbstractNetworkCollectionTaskFactory;
+import org.cytoscape.work.TaskIterator;
+
+/**
+ * TaskFactory for HeinzBatchTask, to be provided as an OSGi service.
+ */
+public class HeinzBatchTaskFactory extends AbstractNetworkCollectionTaskFactory {
+	
+	private final SwConnectionPool connectionPool;
+	private final HeinzResultCache resultCache;
+	private final ModuleColumnWriter moduleWriter;
+	private final EmbeddedSwServers embeddedServers;
+	private final ToolMetrics heinzMetrics;
+	private final ToolMetrics bumMetrics;
+	
+	/**
+	 * Initialise the factory with the resources shared by its tasks.
+	 * 
+	 * @param connectionPool  pool of server connections
+	 * @param resultCache  modules of earlier Heinz runs, or null
+	 * @param moduleWriter  writer of the Heinz result columns
+	 * @param embeddedServers  servers for running the tools locally
+	 * @param heinzMetrics  totals of all Heinz runs, or null
+	 * @param bumMetrics  totals of all BUM model fits, or null
+	 */
+	public HeinzBatchTaskFactory(
+			SwConnectionPool connectionPool,
+			HeinzResultCache resultCache,
+			ModuleColumnWriter moduleWriter,
+			EmbeddedSwServers embeddedServers,
+			ToolMetrics heinzMetrics,
+			ToolMetrics bumMetrics) {
+		this.connectionPool = connectionPool;
+		this.resultCache = resultCache;
+		this.moduleWriter = moduleWriter;
+		this.embeddedServers = embeddedServers;
+		this.heinzMetrics = heinzMetrics;
+		this.bumMetrics = bumMetrics;
+	}
+	
+	/**
+	 * Create a TaskIterator with a new HeinzBatchTask, for the networks
+	 * selected.
+	 */
+	public TaskIterator createTaskIterator(Collection<CyNetwork> networks) {
+		return new TaskIterator(
+				new HeinzBatchTask(
+						networks,
+						connectionPool,
+						resultCache,
+						moduleWriter,
+						embeddedServers,
+						heinzMetrics,
+						bumMetrics));
+	}
+}
@@ -1,10 +1,8 @@
 package org.cytoscape.heinz.internal;
 
 import java.io.IOException;
-import java.util.List;
 
 import org.cytoscape.model.CyTable;
-import org.cytoscape.model.CyEdge;
 
 /**
  * Provides the HeinzTask with a way to run Heinz.
@@ -18,27 +16,34 @@ public interface HeinzClient {
 	 */
 	public void ping() throws IOException;
 	
+	/**
+	 * Send a reduced network with the same best module instead of the
+	 * network itself, and expand the module retrieved back to it.
+	 * 
+	 * The BUM model parameters and the FDR must be sent before the network,
+	 * as the reduction depends on the node scores.
+	 * 
+	 * @see NetworkReduction
+	 */
+	public void enableReduction();
+	
 	/**
 	 * Set/write node attributes to be read by Heinz.
 	 * 
-	 * @param nodeTable  the node table in which the attributes can be found
-	 * @param pValueColumnName  the name of the p-value column in nodeTable
+	 * @param network  the snapshot holding the node SUIDs and p-values
 	 * 
 	 * @throws IOException  if the table cannot be written successfully
 	 */
-	public void sendNodeTable(CyTable nodeTable, String pValueColumnName)
-			throws IOException;
+	public void sendNodes(NetworkSnapshot network) throws IOException;
 	
 	/**
 	 * Set/write the edge table to be read by Heinz.
 	 * 
-	 * @param edgeList  a list of the edges in the network.
+	 * @param network  the snapshot holding the edges
 	 * 
 	 * @throws IOException  if the table cannot be written successfully
-	 * 
-	 * @see org.cytoscape.model.CyNetwork#getEdgeList()
 	 */
-	public void sendEdgeTable(List<CyEdge> edgeList) throws IOException;
+	public void sendEdges(NetworkSnapshot network) throws IOException;
 	
 	/**
 	 * Set/write the BUM mixture parameter for the Heinz run.
@@ -70,6 +75,17 @@ public interface HeinzClient {
 	 */
 	public void runHeinz() throws IOException;
 	
+	/**
+	 * Abort the run of Heinz, from another thread, e.g. when the task is
+	 * cancelled.
+	 * 
+	 * A waiting <code>runHeinz()</code> then throws an
+	 * InterruptedIOException, and a run not yet started is not started.
+	 * 
+	 * @see #runHeinz()
+	 */
+	public void abort();
+	
 	/**
 	 * Retrieve Heinz results and add a boolean column to the node table.
 	 * 
@@ -88,6 +104,36 @@ public interface HeinzClient {
 	public void retrieveResults(CyTable nodeTable, String resultColumnName)
 			throws IOException, IllegalArgumentException;
 	
+	/**
+	 * Retrieve Heinz results without writing them to the node table.
+	 * 
+	 * Heinz must have been run beforehand to generate the results. The
+	 * module can then be written in one batch, e.g. with a
+	 * {@link ModuleColumnWriter}.
+	 * 
+	 * @param nodeTable  the node table the node file was sent from
+	 * 
+	 * @return  the SUIDs of the nodes in the module
+	 * 
+	 * @throws IOException  if the results could not be retrieved
+	 * @throws IllegalArgumentException  if the table is not keyed by SUID
+	 * 
+	 * @see #runHeinz()
+	 */
+	public long[] retrieveModule(CyTable nodeTable)
+			throws IOException, IllegalArgumentException;
+	
+	/**
+	 * Get the module found by Heinz.
+	 * 
+	 * @return  the SUIDs of the nodes in the module, or null if the results
+	 *          have not been retrieved
+	 * 
+	 * @see #retrieveResults(CyTable, String)
+	 * @see #retrieveModule(CyTable)
+	 */
+	public long[] getModuleNodes();
+	
 	/**
 	 * End the connection (if applicable) after the run is over.
 	 * 
@@ -0,0 +1,286 @@
+package org.cytoscape.heinz.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads the output file of Heinz node by node, straight from a stream.
+ *
+ * The file has a line for each node, with its SUID and its score separated
+ * by whitespace, where the score is NaN if the node is not in the module.
+ * Lines starting with ‘#’ are comments. The file is tokenised byte by byte
+ * in a reusable buffer, without creating a String for any line or field,
+ * so reading it takes constant memory however many nodes it lists.
+ */
+public class HeinzOutputReader {
+	
+	/**
+	 * Size of the buffer, and thus of the reads from the stream.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+	/**
+	 * Maximum number of characters in a score; longer ones are invalid.
+	 */
+	private static final int MAX_SCORE_LENGTH = 64;
+	
+	private final InputStream stream;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int position = 0;
+	private int limit = 0;
+	private final byte[] score = new byte[MAX_SCORE_LENGTH];
+	private int lineNumber = 0;
+	private long nodeSuid;
+	private boolean inModule;
+	
+	/**
+	 * @param stream  the stream to read the output file from
+	 */
+	public HeinzOutputReader(InputStream stream) {
+		this.stream = stream;
+	}
+	
+	/**
+	 * Read a whole output file and collect the nodes in the module.
+	 *
+	 * @param stream  the stream to read the output file from
+	 *
+	 * @return  the SUIDs of the nodes in the module, in file order
+	 *
+	 * @throws IOException  if reading fails or a line is invalid
+	 */
+	public static long[] readModule(InputStream stream) throws IOException {
+		HeinzOutputReader reader = new HeinzOutputReader(stream);
+		long[] module = new long[16];
+		int moduleSize = 0;
+		// for each node in the file
+		while (reader.next()) {
+			// it’s in the module if it has a score rather than NaN
+			if (reader.isInModule()) {
+				if (moduleSize == module.length) {
+					module = Arrays.copyOf(module, 2 * moduleSize);
+				}
+				module[moduleSize++] = reader.getNodeSuid();
+			}
+		}
+		return Arrays.copyOf(module, moduleSize);
+	}
+	
+	/**
+	 * Read the line of the next node, skipping comments and blank lines.
+	 *
+	 * @return  true if a node was read, false at the end of the file
+	 *
+	 * @throws IOException  if reading fails or the line is invalid
+	 */
+	public boolean next() throws IOException {
+		while (true) {
+			int c = skipSpace(read());
+			if (c == -1) {
+				return false;
+			}
+			++lineNumber;
+			if (c == '\n') {
+				continue;
+			}
+			if (c == '#') {
+				skipLine();
+				continue;
+			}
+			
+			// the first field is the SUID, as a decimal integer
+			c = readSuid(c);
+			if (c != ' ' && c != '\t' && c != '\r') {
+				throw invalid("does not have two columns");
+			}
+			// the second field is the score, or NaN
+			c = skipSpace(readScore(skipSpace(c)));
+			if (c != '\n' && c != -1) {
+				throw invalid("does not have two columns");
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * @return  the SUID of the node read last
+	 */
+	public long getNodeSuid() {
+		return nodeSuid;
+	}
+	
+	/**
+	 * @return  whether the node read last is in the module, i.e. has a
+	 *          score rather than NaN
+	 */
+	public boolean isInModule() {
+		return inModule;
+	}
+	
+	/**
+	 * Parse the SUID field.
+	 *
+	 * @param c  the first character of the field
+	 *
+	 * @return  the character after the field
+	 *
+	 * @throws IOException  if the field is not a valid SUID
+	 */
+	private int readSuid(int c) throws IOException {
+		if (c < '0' || c > '9') {
+			throw invalid("has an invalid node SUID");
+		}
+		long value = 0;
+		do {
+			if (value > (Long.MAX_VALUE - (c - '0')) / 10) {
+				throw invalid("has an invalid node SUID");
+			}
+			value = 10 * value + (c - '0');
+			c = read();
+		} while (c >= '0' && c <= '9');
+		nodeSuid = value;
+		return c;
+	}
+	
+	/**
+	 * Read the score field and determine whether it is NaN.
+	 *
+	 * @param c  the first character of the field
+	 *
+	 * @return  the character after the field
+	 *
+	 * @throws IOException  if the field is not a valid number
+	 */
+	private int readScore(int c) throws IOException {
+		int length = 0;
+		while (c != -1 && c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+			if (length == score.length) {
+				throw invalid("has an invalid score");
+			}
+			score[length++] = (byte) c;
+			c = read();
+		}
+		
+		int start = 0;
+		if (length > 0 && (score[0] == '-' || score[0] == '+')) {
+			// e.g. ‘-nan’ as printed by C++
+			start = 1;
+		}
+		if (equalsIgnoreCase(start, length, "nan")) {
+			inModule = false;
+		} else if (
+				equalsIgnoreCase(start, length, "inf") ||
+				equalsIgnoreCase(start, length, "infinity") ||
+				isDecimal(start, length)) {
+			inModule = true;
+		} else {
+			throw invalid("has an invalid score");
+		}
+		return c;
+	}
+	
+	/**
+	 * @return  whether the score characters from start to end spell the
+	 *          given lower-case word in any case
+	 */
+	private boolean equalsIgnoreCase(int start, int end, String word) {
+		if (end - start != word.length()) {
+			return false;
+		}
+		for (int i = start; i < end; ++i) {
+			if ((score[i] | 0x20) != word.charAt(i - start)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return  whether the score characters from start to end are an
+	 *          unsigned decimal number, e.g. ‘12’, ‘.5’ or ‘1.5e-3’
+	 */
+	private boolean isDecimal(int start, int end) {
+		int i = start;
+		int digits = 0;
+		while (i < end && score[i] >= '0' && score[i] <= '9') {
+			++i;
+			++digits;
+		}
+		if (i < end && score[i] == '.') {
+			++i;
+			while (i < end && score[i] >= '0' && score[i] <= '9') {
+				++i;
+				++digits;
+			}
+		}
+		if (digits == 0) {
+			return false;
+		}
+		if (i < end && (score[i] == 'e' || score[i] == 'E')) {
+			++i;
+			if (i < end && (score[i] == '-' || score[i] == '+')) {
+				++i;
+			}
+			int exponentDigits = 0;
+			while (i < end && score[i] >= '0' && score[i] <= '9') {
+				++i;
+				++exponentDigits;
+			}
+			if (exponentDigits == 0) {
+				return false;
+			}
+		}
+		return i == end;
+	}
+	
+	/**
+	 * Skip spaces, tabs and carriage returns.
+	 *
+	 * @param c  the current character
+	 *
+	 * @return  the first other character, which may be c itself
+	 */
+	private int skipSpace(int c) throws IOException {
+		while (c == ' ' || c == '\t' || c == '\r') {
+			c = read();
+		}
+		return c;
+	}
+	
+	/**
+	 * Skip to the start of the next line.
+	 */
+	private void skipLine() throws IOException {
+		int c;
+		do {
+			c = read();
+		} while (c != '\n' && c != -1);
+	}
+	
+	/**
+	 * @return  the next byte of the file, or -1 at its end
+	 */
+	private int read() throws IOException {
+		if (position == limit) {
+			limit = stream.read(buffer, 0, buffer.length);
+			position = 0;
+			if (limit <= 0) {
+				limit = 0;
+				return -1;
+			}
+		}
+		return buffer[position++] & 0xFF;
+	}
+	
+	/**
+	 * @param problem  what is wrong with the current line
+	 *
+	 * @return  an exception describing the problem
+	 */
+	private IOException invalid(String problem) {
+		return new IOException(
+				"Line " + lineNumber + " of the file received from server " +
+				problem + ".");
+	}
+	
+}
@@ -0,0 +1,332 @@
+package org.cytoscape.heinz.internal;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The progress of a Heinz run, parsed from its output as it is streamed.
+ *
+ * Heinz reports the size of the instance before and after preprocessing,
+ * and the solver then logs the objective value of the best module found
+ * so far, the incumbent, and a bound on that of the optimal module. As
+ * Heinz maximises, the run is over once the relative gap between the two
+ * is closed; the share of the first gap closed so far serves as the
+ * progress, and extrapolating the rate at which it closes as the
+ * remaining time. The gap tends to close slower towards the end, so this
+ * is an optimistic estimate.
+ *
+ * Lines in other formats are ignored, so that any version of Heinz can be
+ * followed, only with less detail.
+ *
+ * @see AbstractSwClient.OutputListener
+ */
+public class HeinzProgress {
+	
+	/**
+	 * A number in the output, e.g. "38.2233" or "-1.5e+02".
+	 */
+	private static final String NUMBER =
+			"[-+]?(?:\\d+\\.?\\d*|\\.\\d+)(?:[eE][-+]?\\d+)?";
+	/**
+	 * The node count of an instance, e.g. "|V| = 2034" or "2034 nodes".
+	 */
+	private static final Pattern NODES = Pattern.compile(
+			"\\|V\\|\\s*=\\s*(\\d+)|\\b(\\d+)\\s+nodes\\b");
+	/**
+	 * The edge count of an instance, e.g. "|E| = 8354" or "8354 edges".
+	 */
+	private static final Pattern EDGES = Pattern.compile(
+			"\\|E\\|\\s*=\\s*(\\d+)|\\b(\\d+)\\s+edges\\b");
+	/**
+	 * A row of the node log of the solver that ends with the incumbent,
+	 * the bound, the iteration count and the gap, e.g.
+	 * "   120    34   40.1   12   38.2233   42.1312   5210   10.23%".
+	 */
+	private static final Pattern NODE_LOG = Pattern.compile(
+			"^\\s*\\*?\\s*\\d+\\+?\\s+\\d+\\+?\\s.*?" +
+			"(" + NUMBER + ")\\s+(" + NUMBER + ")\\s+\\d+\\s+" +
+			"(" + NUMBER + ")%\\s*$");
+	/**
+	 * The incumbent in a line of its own, e.g. "Incumbent: 38.2233" or
+	 * "LB = 38.2233".
+	 */
+	private static final Pattern INCUMBENT = Pattern.compile(
+			"(?i)\\b(?:incumbent|lower bound|LB)\\s*[=:]\\s*(" + NUMBER + ")");
+	/**
+	 * The bound in a line of its own, e.g. "UB = 42.1312".
+	 */
+	private static final Pattern BOUND = Pattern.compile(
+			"(?i)\\b(?:upper bound|UB)\\s*[=:]\\s*(" + NUMBER + ")");
+	
+	private int originalNodeCount = -1;
+	private int originalEdgeCount = -1;
+	private int nodeCount = -1;
+	private int edgeCount = -1;
+	private double incumbent = Double.NaN;
+	private double bound = Double.NaN;
+	private double gap = Double.NaN;
+	/**
+	 * The first gap reported, and when, in nanoseconds.
+	 */
+	private double firstGap = Double.NaN;
+	private long firstGapTime;
+	private long gapTime;
+	/**
+	 * The end of a line cut off at the end of the output parsed so far.
+	 */
+	private final StringBuilder partialLine = new StringBuilder();
+	
+	/**
+	 * Parse output of Heinz, in the order it was written.
+	 *
+	 * @param output  one or more lines of output, the last one possibly
+	 *                continued by the next call
+	 *
+	 * @return  whether the progress changed
+	 */
+	public boolean parse(String output) {
+		boolean changed = false;
+		int start = 0;
+		int end;
+		while ((end = output.indexOf('\n', start)) >= 0) {
+			partialLine.append(output, start, end);
+			changed |= parseLine(partialLine.toString());
+			partialLine.setLength(0);
+			start = end + 1;
+		}
+		partialLine.append(output, start, output.length());
+		return changed;
+	}
+	
+	/**
+	 * @param line  a line of output, without the line break
+	 *
+	 * @return  whether the progress changed
+	 */
+	private boolean parseLine(String line) {
+		Matcher nodeLog = NODE_LOG.matcher(line);
+		if (nodeLog.find()) {
+			return update(
+					Double.parseDouble(nodeLog.group(1)),
+					Double.parseDouble(nodeLog.group(2)),
+					Double.parseDouble(nodeLog.group(3)) / 100.0);
+		}
+		
+		Matcher nodes = NODES.matcher(line);
+		Matcher edges = EDGES.matcher(line);
+		if (nodes.find() && edges.find()) {
+			nodeCount = parseCount(nodes);
+			edgeCount = parseCount(edges);
+			if (originalNodeCount < 0) {
+				originalNodeCount = nodeCount;
+				originalEdgeCount = edgeCount;
+			}
+			return true;
+		}
+		
+		double newIncumbent = incumbent;
+		double newBound = bound;
+		Matcher incumbentMatcher = INCUMBENT.matcher(line);
+		if (incumbentMatcher.find()) {
+			newIncumbent = Double.parseDouble(incumbentMatcher.group(1));
+		}
+		Matcher boundMatcher = BOUND.matcher(line);
+		if (boundMatcher.find()) {
+			newBound = Double.parseDouble(boundMatcher.group(1));
+		}
+		if (newIncumbent == incumbent && newBound == bound) {
+			return false;
+		}
+		return update(
+				newIncumbent,
+				newBound,
+				(newBound - newIncumbent) / Math.abs(newIncumbent));
+	}
+	
+	/**
+	 * @return  the count matched by either alternative of a size pattern
+	 */
+	private static int parseCount(Matcher matcher) {
+		String count =
+				matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+		try {
+			return Integer.parseInt(count);
+		} catch (NumberFormatException e) {
+			return Integer.MAX_VALUE;
+		}
+	}
+	
+	/**
+	 * Record a new incumbent, bound and gap, any of which may be NaN.
+	 *
+	 * @return  whether the progress changed
+	 */
+	private boolean update(double newIncumbent, double newBound, double newGap) {
+		boolean changed =
+				Double.compare(newIncumbent, incumbent) != 0 ||
+				Double.compare(newBound, bound) != 0;
+		incumbent = newIncumbent;
+		bound = newBound;
+		// a gap is meaningless without an incumbent, e.g. one of 0
+		if (Double.isNaN(newGap) || Double.isInfinite(newGap) || newGap < 0.0) {
+			return changed;
+		}
+		long now = System.nanoTime();
+		if (Double.isNaN(firstGap)) {
+			firstGap = newGap;
+			firstGapTime = now;
+		}
+		if (newGap != gap) {
+			gap = newGap;
+			gapTime = now;
+			changed = true;
+		}
+		return changed;
+	}
+	
+	/**
+	 * @return  the number of nodes of the instance before preprocessing,
+	 *          or -1 if not reported yet
+	 */
+	public int getOriginalNodeCount() {
+		return originalNodeCount;
+	}
+	
+	/**
+	 * @return  the number of edges of the instance before preprocessing,
+	 *          or -1 if not reported yet
+	 */
+	public int getOriginalEdgeCount() {
+		return originalEdgeCount;
+	}
+	
+	/**
+	 * @return  the number of nodes of the instance last reported, e.g.
+	 *          after preprocessing, or -1 if none
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+	
+	/**
+	 * @return  the number of edges of the instance last reported, e.g.
+	 *          after preprocessing, or -1 if none
+	 */
+	public int getEdgeCount() {
+		return edgeCount;
+	}
+	
+	/**
+	 * @return  the objective value of the best module found so far, or
+	 *          NaN if none
+	 */
+	public double getIncumbent() {
+		return incumbent;
+	}
+	
+	/**
+	 * @return  the bound on the objective value of the optimal module, or
+	 *          NaN if none was reported yet
+	 */
+	public double getBound() {
+		return bound;
+	}
+	
+	/**
+	 * @return  the gap between the bound and the incumbent, relative to
+	 *          the incumbent, or NaN if not known yet
+	 */
+	public double getGap() {
+		return gap;
+	}
+	
+	/**
+	 * @return  the share of the first gap reported that has been closed,
+	 *          from 0 to 1, or NaN if no gap was reported yet
+	 */
+	public double getCompletion() {
+		if (Double.isNaN(gap)) {
+			return Double.NaN;
+		}
+		if (firstGap <= 0.0) {
+			return 1.0;
+		}
+		return Math.max(0.0, Math.min(1.0, 1.0 - gap / firstGap));
+	}
+	
+	/**
+	 * @return  the estimated time until the gap is closed, in milliseconds,
+	 *          or -1 if it has not narrowed yet
+	 */
+	public long getRemainingTime() {
+		double completion = getCompletion();
+		if (!(completion > 0.0)) {
+			return -1;
+		}
+		double elapsed = (gapTime - firstGapTime) / 1e6;
+		return (long) (elapsed * (1.0 - completion) / completion);
+	}
+	
+	/**
+	 * @return  a description of the progress, for the user
+	 */
+	@Override
+	public String toString() {
+		if (Double.isNaN(incumbent) && Double.isNaN(bound)) {
+			if (nodeCount < 0) {
+				return "Running Heinz";
+			}
+			if (nodeCount == originalNodeCount && edgeCount == originalEdgeCount) {
+				return
+						"Running Heinz on " + nodeCount + " nodes, " +
+						edgeCount + " edges";
+			}
+			return
+					"Heinz preprocessed to " +
+					nodeCount + " of " + originalNodeCount + " nodes, " +
+					edgeCount + " of " + originalEdgeCount + " edges";
+		}
+		StringBuilder description = new StringBuilder("Running Heinz: ");
+		if (!Double.isNaN(incumbent)) {
+			description.append("best module ");
+			description.append(String.format("%.4g", incumbent));
+		}
+		if (!Double.isNaN(bound)) {
+			if (!Double.isNaN(incumbent)) {
+				description.append(", ");
+			}
+			description.append("bound ");
+			description.append(String.format("%.4g", bound));
+		}
+		if (!Double.isNaN(gap)) {
+			description.append(", gap ");
+			description.append(String.format("%.2f", gap * 100.0));
+			description.append('%');
+		}
+		long remaining = getRemainingTime();
+		if (remaining >= 0) {
+			description.append(", about ");
+			description.append(formatTime(remaining));
+			description.append(" left");
+		}
+		return description.toString();
+	}
+	
+	/**
+	 * @param milliseconds  a duration
+	 *
+	 * @return  the duration in seconds, minutes or hours, rounded up
+	 */
+	private static String formatTime(long milliseconds) {
+		long seconds = (milliseconds + 999) / 1000;
+		if (seconds < 120) {
+			return seconds + " s";
+		}
+		long minutes = (seconds + 59) / 60;
+		if (minutes < 120) {
+			return minutes + " min";
+		}
+		return ((minutes + 59) / 60) + " h";
+	}
+	
+}
@@ -0,0 +1,355 @@
+package org.cytoscape.heinz.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the modules found by earlier Heinz runs.
+ *
+ * Runs are identified by a digest of everything sent to Heinz: the node
+ * file (SUIDs and p-values), the edge file and the BUM model and FDR
+ * parameters. The module, as a set of node SUIDs, is kept in memory for
+ * the most recently used runs, and in files in a directory of bounded
+ * total size for older ones.
+ *
+ * As Cytoscape assigns new SUIDs when a session is loaded, modules are
+ * only found again for networks whose nodes kept their SUIDs.
+ */
+public class HeinzResultCache {
+	
+	/**
+	 * Number of modules kept in memory.
+	 */
+	private static final int MEMORY_ENTRIES = 64;
+	/**
+	 * Maximum total size of the module files on disk, in bytes.
+	 */
+	private static final long DISK_LIMIT = 64 * 1024 * 1024;
+	/**
+	 * File name extension of the module files.
+	 */
+	private static final String FILE_EXTENSION = ".module";
+	
+	/**
+	 * Directory to store modules in, or null to keep them in memory only.
+	 */
+	private final File directory;
+	/**
+	 * Modules in memory, least recently used first.
+	 */
+	private final Map<String, long[]> memory =
+			new LinkedHashMap<String, long[]>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<String, long[]> eldest) {
+					return size() > MEMORY_ENTRIES;
+				}
+			};
+	private int memoryHits = 0;
+	private int diskHits = 0;
+	private int misses = 0;
+	
+	/**
+	 * Create a cache, using modules stored in the directory by earlier
+	 * instances.
+	 *
+	 * @param directory  the directory to store modules in, created if
+	 *                   needed, or null to keep modules in memory only
+	 */
+	public HeinzResultCache(File directory) {
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+			// carry on with the memory tier only
+			directory = null;
+		}
+		this.directory = directory;
+	}
+	
+	/**
+	 * Compute the key of a run from a snapshot of the network.
+	 *
+	 * @param network  the snapshot holding the nodes, p-values and edges
+	 * @param lambda  the BUM model mixture parameter
+	 * @param a  the BUM model shape parameter
+	 * @param fdr  the false discovery rate
+	 *
+	 * @return  the key, as a hexadecimal digest
+	 *
+	 * @throws IOException  if the network cannot be encoded
+	 */
+	public static String computeKey(
+			NetworkSnapshot network,
+			double lambda,
+			double a,
+			double fdr) throws IOException {
+		return finishKey(digestNetwork(network), lambda, a, fdr);
+	}
+	
+	/**
+	 * Compute the keys of runs on the same network with several FDRs, e.g.
+	 * of a sweep, digesting the network only once.
+	 *
+	 * Gives the same keys as computeKey(NetworkSnapshot, double, double,
+	 * double) for each FDR.
+	 *
+	 * @param network  the snapshot holding the nodes, p-values and edges
+	 * @param lambda  the BUM model mixture parameter
+	 * @param a  the BUM model shape parameter
+	 * @param fdrs  the false discovery rates
+	 *
+	 * @return  the key of each FDR, as hexadecimal digests
+	 *
+	 * @throws IOException  if the network cannot be encoded
+	 */
+	public static String[] computeKeys(
+			NetworkSnapshot network,
+			double lambda,
+			double a,
+			double[] fdrs) throws IOException {
+		MessageDigest networkDigest = digestNetwork(network);
+		String[] keys = new String[fdrs.length];
+		for (int i = 0; i < fdrs.length; ++i) {
+			MessageDigest digest;
+			try {
+				digest = (MessageDigest) networkDigest.clone();
+			} catch (CloneNotSupportedException e) {
+				// the platform’s SHA-256 can be cloned, but start over if not
+				digest = digestNetwork(network);
+			}
+			keys[i] = finishKey(digest, lambda, a, fdrs[i]);
+		}
+		return keys;
+	}
+	
+	/**
+	 * Digest the node and edge files of a network, as they would be sent
+	 * as text, without storing them.
+	 *
+	 * @param network  the snapshot holding the nodes, p-values and edges
+	 *
+	 * @return  the digest, to add the parameters to
+	 *
+	 * @throws IOException  if the network cannot be encoded
+	 */
+	private static MessageDigest digestNetwork(NetworkSnapshot network)
+			throws IOException {
+		final MessageDigest digest = newDigest();
+		OutputStream digestStream = new OutputStream() {
+			@Override
+			public void write(int b) {
+				digest.update((byte) b);
+			}
+			@Override
+			public void write(byte[] b, int offset, int length) {
+				digest.update(b, offset, length);
+			}
+		};
+		AsciiEncoder encoder = new AsciiEncoder();
+		encoder.reset(digestStream);
+		SwHeinzClient.encodeNodeFile(encoder, network);
+		encoder.finish();
+		// separate the files, so that bytes cannot move from one to the other
+		digest.update((byte) 0);
+		encoder.reset(digestStream);
+		SwHeinzClient.encodeEdgeFile(encoder, network);
+		encoder.finish();
+		return digest;
+	}
+	
+	/**
+	 * Look up the module of a run.
+	 *
+	 * @param key  the key of the run
+	 *
+	 * @return  the SUIDs of the nodes in the module, or null if not cached
+	 */
+	public synchronized long[] get(String key) {
+		long[] module = memory.get(key);
+		if (module != null) {
+			++memoryHits;
+			return module;
+		}
+		module = readModule(key);
+		if (module != null) {
+			++diskHits;
+			memory.put(key, module);
+			return module;
+		}
+		++misses;
+		return null;
+	}
+	
+	/**
+	 * Store the module of a run.
+	 *
+	 * @param key  the key of the run
+	 * @param module  the SUIDs of the nodes in the module
+	 */
+	public synchronized void put(String key, long[] module) {
+		memory.put(key, module);
+		writeModule(key, module);
+	}
+	
+	/**
+	 * @return  a description of the hits and misses so far
+	 */
+	public synchronized String getStatistics() {
+		return
+				(memoryHits + diskHits) + " hits (" + diskHits +
+				" from disk), " + misses + " misses";
+	}
+	
+	/**
+	 * Read a module file.
+	 *
+	 * @param key  the key of the run
+	 *
+	 * @return  the module, or null if there is no (readable) file
+	 */
+	private long[] readModule(String key) {
+		if (directory == null) {
+			return null;
+		}
+		File file = new File(directory, key + FILE_EXTENSION);
+		if (!file.isFile()) {
+			return null;
+		}
+		try {
+			DataInputStream stream = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(file)));
+			try {
+				long[] module = new long[stream.readInt()];
+				for (int i = 0; i < module.length; ++i) {
+					module[i] = stream.readLong();
+				}
+				// mark the file as recently used, to keep it on disk
+				file.setLastModified(System.currentTimeMillis());
+				return module;
+			} finally {
+				stream.close();
+			}
+		} catch (IOException e) {
+			// a damaged file is as good as none
+			file.delete();
+			return null;
+		}
+	}
+	
+	/**
+	 * Write a module file, then remove the least recently used files if
+	 * the directory has grown too large.
+	 *
+	 * @param key  the key of the run
+	 * @param module  the module
+	 */
+	private void writeModule(String key, long[] module) {
+		if (directory == null) {
+			return;
+		}
+		File file = new File(directory, key + FILE_EXTENSION);
+		// write to a temporary file first, so that no partial file is read
+		File temporaryFile = new File(directory, key + ".tmp");
+		try {
+			DataOutputStream stream = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+			try {
+				stream.writeInt(module.length);
+				for (long suid : module) {
+					stream.writeLong(suid);
+				}
+			} finally {
+				stream.close();
+			}
+			file.delete();
+			if (!temporaryFile.renameTo(file)) {
+				temporaryFile.delete();
+				return;
+			}
+		} catch (IOException e) {
+			// the module is still cached in memory
+			temporaryFile.delete();
+			return;
+		}
+		trimDirectory();
+	}
+	
+	/**
+	 * Remove the least recently used module files beyond the size limit.
+	 */
+	private void trimDirectory() {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		long totalSize = 0;
+		for (File file : files) {
+			totalSize += file.length();
+		}
+		if (totalSize <= DISK_LIMIT) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File file, File other) {
+				long difference = file.lastModified() - other.lastModified();
+				return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+			}
+		});
+		for (File file : files) {
+			if (totalSize <= DISK_LIMIT) {
+				break;
+			}
+			if (file.getName().endsWith(FILE_EXTENSION)) {
+				totalSize -= file.length();
+				file.delete();
+			}
+		}
+	}
+	
+	/**
+	 * @return  a new SHA-256 digest
+	 */
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Add the parameters to a digest and format it.
+	 *
+	 * @return  the digest as hexadecimal digits
+	 */
+	private static String finishKey(
+			MessageDigest digest, double lambda, double a, double fdr) {
+		for (double parameter : new double[] {lambda, a, fdr}) {
+			long bits = Double.doubleToLongBits(parameter);
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				digest.update((byte) (bits >>> shift));
+			}
+		}
+		StringBuilder key = new StringBuilder();
+		for (byte b : digest.digest()) {
+			key.append(Character.forDigit((b >> 4) & 0xF, 16));
+			key.append(Character.forDigit(b & 0xF, 16));
+		}
+		return key.toString();
+	}
+	
+}
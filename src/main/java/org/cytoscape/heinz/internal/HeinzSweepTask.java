@@ -0,0 +1,546 @@
+package org.cytoscape.heinz.internal;
+
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.cytoscape.task.AbstractNetworkTask;
+import org.cytoscape.work.TaskMonitor;
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.CyTable;
+import org.cytoscape.model.CyRow;
+import org.cytoscape.model.CyNode;
+
+
+/**
+ * Task that runs Heinz for a range of FDR values at the same time.
+ *
+ * The node and edge files are shared by all runs: they are sent in binary
+ * to servers that accept it, written on the fly rather than held in
+ * memory, and received only once by servers that accept file offers. The
+ * cache keys of all runs are computed from a single digest of the network.
+ * Each module is written to its own node table column, named after the result
+ * column and the FDR, e.g. ‘in Heinz module@fdr=0.001’. The FDR values
+ * and module sizes are summarised in list columns of the network table.
+ * Each run counts as a run of its own in the metrics, which are written
+ * to the network table next to its result column.
+ *
+ * Heinz is run on the network as a whole, rather than reduced or split
+ * into components as by a single run, as the reduced networks would differ
+ * per FDR and so could not share their files.
+ *
+ * The runs are sessions of AsyncHeinzClient on a selector pool, so that
+ * runs waiting for Heinz hold no thread; modules are written to the table
+ * by the task’s own thread as the runs finish.
+ */
+public class HeinzSweepTask extends AbstractNetworkTask {
+	
+	private final NetworkSnapshot snapshot;
+	private final String pValueColumnName;
+	private final String resultColumnName;
+	private final double[] fdrs;
+	private final int parallelism;
+	private final String serverHost;
+	private final int serverPort;
+	private final SwConnectionPool connectionPool;
+	private final HeinzResultCache resultCache;
+	private final ModuleColumnWriter moduleWriter;
+	private final ToolMetrics toolMetrics;
+	private Double lambda = null;
+	private Double a = null;
+	/**
+	 * The number of nodes in the module of each FDR.
+	 */
+	private int[] moduleSizes = null;
+	/**
+	 * Clients with a session in progress, whose runs are aborted when the
+	 * sweep is cancelled.
+	 */
+	private final Set<AsyncHeinzClient> activeClients =
+			new HashSet<AsyncHeinzClient>();
+	/**
+	 * Times and transfers of all runs together.
+	 */
+	private final RunMetrics sweepMetrics = new RunMetrics();
+	
+	/**
+	 * A run for a single FDR, and how it ended.
+	 */
+	private static class Run {
+		
+		final int index;
+		final String cacheKey;
+		final RunMetrics metrics = new RunMetrics();
+		ToolMetrics.Outcome outcome = ToolMetrics.Outcome.FAILED;
+		/**
+		 * The module found or looked up, unless the run failed.
+		 */
+		long[] module = null;
+		/**
+		 * Why the run failed, if it did.
+		 */
+		Throwable failure = null;
+		
+		Run(int index, String cacheKey) {
+			this.index = index;
+			this.cacheKey = cacheKey;
+		}
+		
+	}
+	
+	/**
+	 * Initialise the task, setting the required parameters as fields.
+	 *
+	 * If the BUM model parameters ({@code lamda} and {@code a})
+	 * are null, they will be read from the network table, as by HeinzTask.
+	 *
+	 * @param network  the CyNetwork to detect modules in
+	 * @param snapshot  the nodes, p-values and edges of the network, with
+	 *                  the p-values validated
+	 * @param resultColumnName  the prefix of the node table result columns
+	 * @param fdrs  the false discovery rates to run Heinz with
+	 * @param parallelism  the maximum number of simultaneous runs
+	 * @param lambda  the BUM model mixture parameter or null
+	 * @param a  the BUM model shape parameter or null
+	 * @param serverHost  the host name of the Heinz server
+	 * @param serverPort  the port number of the Heinz server
+	 * @param connectionPool  pool of server connections, or null
+	 * @param resultCache  modules of earlier runs, or null
+	 * @param moduleWriter  writer of the result columns
+	 * @param toolMetrics  totals of all Heinz runs, or null
+	 *
+	 * @see HeinzTask
+	 */
+	public HeinzSweepTask(
+			CyNetwork network,
+			NetworkSnapshot snapshot,
+			String resultColumnName,
+			double[] fdrs,
+			int parallelism,
+			Double lambda,
+			Double a,
+			String serverHost,
+			int serverPort,
+			SwConnectionPool connectionPool,
+			HeinzResultCache resultCache,
+			ModuleColumnWriter moduleWriter,
+			ToolMetrics toolMetrics) {
+		// The superclass constructor will set the network field
+		super(network);
+		if (snapshot == null) {
+			throw new IllegalArgumentException(
+					"No snapshot of the network.");
+		}
+		this.snapshot = snapshot;
+		this.pValueColumnName = snapshot.getPValueColumnName();
+		if (resultColumnName == null) {
+			throw new IllegalArgumentException(
+					"No Heinz result column name.");
+		}
+		this.resultColumnName = resultColumnName;
+		if (fdrs.length == 0) {
+			throw new IllegalArgumentException(
+					"No FDR values to sweep.");
+		}
+		for (double fdr : fdrs) {
+			if (!(fdr > 0.0 && fdr < 1.0)) {
+				throw new IllegalArgumentException(
+						"FDR parameter out of range.");
+			}
+		}
+		this.fdrs = fdrs;
+		if (parallelism < 1) {
+			throw new IllegalArgumentException(
+					"At least one run must be allowed at a time.");
+		}
+		this.parallelism = parallelism;
+		this.lambda = lambda;
+		this.a = a;
+		this.serverHost = serverHost;
+		this.serverPort = serverPort;
+		this.connectionPool = connectionPool;
+		this.resultCache = resultCache;
+		this.moduleWriter = moduleWriter;
+		this.toolMetrics = toolMetrics;
+	}
+	
+	/**
+	 * Get the name of the result column for a given FDR.
+	 *
+	 * @param resultColumnName  the prefix of the result columns
+	 * @param fdr  the false discovery rate
+	 *
+	 * @return  e.g. ‘in Heinz module@fdr=0.001’
+	 */
+	public static String getResultColumnName(
+			String resultColumnName, double fdr) {
+		return
+				resultColumnName + "@fdr=" +
+				BigDecimal.valueOf(fdr).stripTrailingZeros().toPlainString();
+	}
+	
+	/**
+	 * Parse a list or range of FDR values.
+	 *
+	 * Accepts either a comma-separated list, such as ‘0.001, 0.01, 0.05’,
+	 * or a range ‘from:to:count’, such as ‘0.001:0.1:5’, which gives
+	 * {@code count} logarithmically spaced values rounded to three
+	 * significant digits. Values that occur more than once, e.g. as steps
+	 * finer than the rounding, are only kept the first time, as each FDR
+	 * gets a result column of its own.
+	 *
+	 * @param text  the list or range
+	 *
+	 * @return  the distinct FDR values, in order
+	 *
+	 * @throws IllegalArgumentException  if the text cannot be parsed
+	 */
+	public static double[] parseFdrs(String text) {
+		Set<Double> fdrs = new LinkedHashSet<Double>();
+		try {
+			String[] range = text.split(":");
+			if (range.length == 3) {
+				double from = Double.parseDouble(range[0].trim());
+				double to = Double.parseDouble(range[1].trim());
+				int count = Integer.parseInt(range[2].trim());
+				if (!(from > 0.0 && to > 0.0 && count >= 1)) {
+					throw new IllegalArgumentException(
+							"Invalid FDR range: " + text);
+				}
+				for (int i = 0; i < count; ++i) {
+					double fraction = count == 1 ? 0.0 : (double) i / (count - 1);
+					double fdr = from * Math.pow(to / from, fraction);
+					fdrs.add(new BigDecimal(fdr).round(
+							new MathContext(3)).doubleValue());
+				}
+				return toArray(fdrs);
+			} else if (range.length == 1) {
+				for (String value : text.split(",")) {
+					fdrs.add(Double.parseDouble(value.trim()));
+				}
+				return toArray(fdrs);
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new IllegalArgumentException("Invalid FDR values: " + text);
+	}
+	
+	private static double[] toArray(Set<Double> values) {
+		double[] array = new double[values.size()];
+		int i = 0;
+		for (double value : values) {
+			array[i++] = value;
+		}
+		return array;
+	}
+
+    /**
+     * Run Heinz for each FDR and add a column per run to the node table.
+     *
+     * @throws Exception  the error of the first run that failed, e.g. an
+     *                    IOException if an error occurs communicating to Heinz
+     */
+	@Override
+	public void run(final TaskMonitor taskMonitor)
+			throws Exception {
+		
+		// Give the task a title (shown in status monitor)
+		taskMonitor.setTitle("Heinz FDR sweep");
+		
+		CyRow networkTableRow =
+				network.getDefaultNetworkTable().getRow(network.getSUID());
+		if (lambda == null) {
+			lambda = HeinzTask.readBumParameter(
+					networkTableRow, pValueColumnName, "lambda");
+		}
+		if (a == null) {
+			a = HeinzTask.readBumParameter(
+					networkTableRow, pValueColumnName, "a");
+		}
+		
+		// stop if Cancel was clicked
+		if (cancelled) { return; }
+		
+		// shared by all runs, and encoded as each of them sends it
+		final SwHeinzClient.SharedNodeFile nodeFile =
+				new SwHeinzClient.SharedNodeFile(snapshot);
+		final SwHeinzClient.SharedEdgeFile edgeFile =
+				new SwHeinzClient.SharedEdgeFile(snapshot);
+		final String[] cacheKeys;
+		if (resultCache != null) {
+			taskMonitor.setStatusMessage("Looking up earlier Heinz runs");
+			cacheKeys = HeinzResultCache.computeKeys(snapshot, lambda, a, fdrs);
+		} else {
+			cacheKeys = null;
+		}
+		// results are written by this thread, as the runs finish
+		final CyTable resultTable =
+				network.getTable(CyNode.class, CyNetwork.LOCAL_ATTRS);
+		taskMonitor.setProgress(0.05);
+		
+		// stop if Cancel was clicked
+		if (cancelled) { return; }
+		
+		taskMonitor.setStatusMessage(
+				"Running Heinz for " + fdrs.length + " FDR values");
+		SwSelectorPool selectorPool = connectionPool != null ?
+				connectionPool.getSelectorPool() :
+				new SwSelectorPool(
+						1, Runtime.getRuntime().availableProcessors());
+		SwFuture.CompletionQueue<Run> runs =
+				new SwFuture.CompletionQueue<Run>();
+		moduleSizes = new int[fdrs.length];
+		try {
+			int started = 0;
+			while (started < Math.min(parallelism, fdrs.length)) {
+				runs.add(startRun(
+						started++, nodeFile, edgeFile, cacheKeys,
+						resultTable, selectorPool));
+			}
+			for (int finished = 0; runs.getPending() > 0; ++finished) {
+				try {
+					record(runs.take().await(), resultTable);
+				} catch (Exception e) {
+					// report the first failed run, and stop the others
+					abortActiveClients();
+					throw e;
+				}
+				if (!cancelled && started < fdrs.length) {
+					runs.add(startRun(
+							started++, nodeFile, edgeFile, cacheKeys,
+							resultTable, selectorPool));
+				}
+				taskMonitor.setStatusMessage(
+						"Finished " + (finished + 1) + " of " +
+						fdrs.length + " Heinz runs");
+				taskMonitor.setProgress(
+						0.05 + 0.90 * (finished + 1) / fdrs.length);
+			}
+		} finally {
+			if (connectionPool == null) {
+				selectorPool.shutDown();
+			}
+		}
+		
+		// stop if Cancel was clicked
+		if (cancelled) { return; }
+		
+		taskMonitor.setStatusMessage(
+				"Transfers with the Heinz servers: " +
+				sweepMetrics.getTransferStatistics());
+		taskMonitor.setStatusMessage("Time spent by all runs: " + sweepMetrics);
+		if (resultCache != null) {
+			taskMonitor.setStatusMessage(
+					"Result cache: " + resultCache.getStatistics());
+		}
+		taskMonitor.setStatusMessage("Writing a summary to the network table");
+		writeSummary(moduleSizes);
+		taskMonitor.setProgress(1.00);
+		
+	}
+	
+	/**
+	 * Stop the sweep, aborting runs in progress and not starting others.
+	 */
+	@Override
+	public void cancel() {
+		super.cancel();
+		abortActiveClients();
+	}
+	
+	/**
+	 * Abort the Heinz runs in progress, or about to start.
+	 */
+	private void abortActiveClients() {
+		synchronized (activeClients) {
+			for (AsyncHeinzClient client : activeClients) {
+				client.abort();
+			}
+		}
+	}
+	
+	/**
+	 * Start a Heinz run for a single FDR, or look up its module in the
+	 * cache.
+	 *
+	 * @param index  the index of the false discovery rate
+	 * @param nodeFile  the node file shared by all runs
+	 * @param edgeFile  the edge file shared by all runs
+	 * @param cacheKeys  the keys of the runs in the result cache, or null
+	 * @param resultTable  the node table to write the module to
+	 * @param selectorPool  the pool to run the session on
+	 *
+	 * @return  the future of the run, which does not fail but records why
+	 *          the run did
+	 */
+	private SwFuture<Run> startRun(
+			int index,
+			SwHeinzClient.SharedNodeFile nodeFile,
+			SwHeinzClient.SharedEdgeFile edgeFile,
+			String[] cacheKeys,
+			CyTable resultTable,
+			SwSelectorPool selectorPool) {
+		
+		final Run run = new Run(
+				index, cacheKeys == null ? null : cacheKeys[index]);
+		// each run counts the shared work, as each needed all of it
+		run.metrics.addTime(
+				RunMetrics.Phase.VALIDATION, snapshot.getValidationTime());
+		if (run.cacheKey != null) {
+			run.module = resultCache.get(run.cacheKey);
+			if (run.module != null) {
+				run.outcome = ToolMetrics.Outcome.CACHED;
+				return SwFuture.completed(run);
+			}
+		}
+		
+		final AsyncHeinzClient client = new AsyncHeinzClient(
+				selectorPool, connectionPool, serverHost, serverPort);
+		synchronized (activeClients) {
+			activeClients.add(client);
+		}
+		if (cancelled) {
+			// cancelled after the caller checked
+			client.abort();
+		}
+		client.sendLambda(lambda);
+		client.sendA(a);
+		client.sendFdr(fdrs[index]);
+		client.sendNodes(nodeFile);
+		client.sendEdges(edgeFile);
+		client.runHeinz();
+		final SwFuture<long[]> module = client.retrieveModule(resultTable);
+		final SwFuture<Run> future = new SwFuture<Run>();
+		client.close().addListener(new SwFuture.Listener<Void>() {
+			@Override
+			public void completed(Void result) {
+				synchronized (activeClients) {
+					activeClients.remove(client);
+				}
+				if (client.getClient() != null) {
+					run.metrics.addSession(client.getClient());
+				}
+				// done by now, as the session closes after its last step
+				module.addListener(new SwFuture.Listener<long[]>() {
+					@Override
+					public void completed(long[] result) {
+						run.module = result;
+						run.outcome = ToolMetrics.Outcome.FINISHED;
+						future.complete(run);
+					}
+					@Override
+					public void failed(Throwable cause) {
+						run.failure = cause;
+						future.complete(run);
+					}
+				});
+			}
+			@Override
+			public void failed(Throwable cause) {
+				// closing does not fail
+				run.failure = cause;
+				future.complete(run);
+			}
+		});
+		return future;
+		
+	}
+	
+	/**
+	 * Write the module of a finished run to its result column, and record
+	 * the metrics of the run.
+	 *
+	 * The metrics of a run that finished are written to the network table,
+	 * in columns named after its result column, e.g.
+	 * ‘in Heinz module@fdr=0.001.Heinz.time.solve’.
+	 *
+	 * @param run  the run
+	 * @param resultTable  the node table to write the module to
+	 *
+	 * @throws Exception  why the run failed, unless aborted by cancel(),
+	 *                    e.g. an IOException if an error occurs
+	 *                    communicating to Heinz
+	 */
+	private void record(Run run, CyTable resultTable) throws Exception {
+		
+		String columnName =
+				getResultColumnName(resultColumnName, fdrs[run.index]);
+		try {
+			if (run.module != null) {
+				long start = System.nanoTime();
+				moduleWriter.write(resultTable, columnName, run.module);
+				run.metrics.addTimeSince(RunMetrics.Phase.TABLE_WRITE, start);
+				if (
+						run.cacheKey != null &&
+						run.outcome == ToolMetrics.Outcome.FINISHED) {
+					resultCache.put(run.cacheKey, run.module);
+				}
+				moduleSizes[run.index] = run.module.length;
+			}
+		} catch (RuntimeException e) {
+			run.outcome = ToolMetrics.Outcome.FAILED;
+			throw e;
+		} finally {
+			if (toolMetrics != null) {
+				toolMetrics.record(run.metrics, run.outcome);
+			}
+			sweepMetrics.add(run.metrics);
+		}
+		
+		if (run.failure != null) {
+			// the run was aborted by cancel()
+			if (cancelled && run.failure instanceof InterruptedIOException) {
+				return;
+			}
+			if (run.failure instanceof Exception) {
+				throw (Exception) run.failure;
+			}
+			throw (Error) run.failure;
+		}
+		CyTable networkTable =
+				network.getTable(CyNetwork.class, CyNetwork.LOCAL_ATTRS);
+		run.metrics.writeTo(
+				networkTable.getRow(network.getSUID()),
+				columnName + ".Heinz");
+		
+	}
+	
+	/**
+	 * Write the FDR values and module sizes to the network table.
+	 *
+	 * Creates the list columns ‘{@code resultColumnName}.sweep.FDR’ and
+	 * ‘{@code resultColumnName}.sweep.size’, with an entry per run.
+	 *
+	 * @param moduleSizes  the number of nodes in each module
+	 */
+	private void writeSummary(int[] moduleSizes) {
+		List<Double> fdrList = new ArrayList<Double>();
+		List<Integer> sizeList = new ArrayList<Integer>();
+		for (int i = 0; i < fdrs.length; ++i) {
+			fdrList.add(fdrs[i]);
+			sizeList.add(moduleSizes[i]);
+		}
+		CyTable networkTable =
+				network.getTable(CyNetwork.class, CyNetwork.LOCAL_ATTRS);
+		String fdrColumnName = resultColumnName + ".sweep.FDR";
+		String sizeColumnName = resultColumnName + ".sweep.size";
+		if (networkTable.getColumn(fdrColumnName) == null) {
+			networkTable.createListColumn(fdrColumnName, Double.class, false);
+		}
+		if (networkTable.getColumn(sizeColumnName) == null) {
+			networkTable.createListColumn(sizeColumnName, Integer.class, false);
+		}
+		CyRow networkTableRow = networkTable.getRow(network.getSUID());
+		networkTableRow.set(fdrColumnName, fdrList);
+		networkTableRow.set(sizeColumnName, sizeList);
+	}
+	
+}
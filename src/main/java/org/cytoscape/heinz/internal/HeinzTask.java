@@ -2,10 +2,16 @@ package org.cytoscape.heinz.internal;
 
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.cytoscape.task.AbstractNetworkTask;
 import org.cytoscape.work.TaskMonitor;
 import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.CyTable;
 import org.cytoscape.model.CyRow;
 import org.cytoscape.model.CyNode;
 
@@ -15,13 +21,47 @@ import org.cytoscape.model.CyNode;
  */
 public class HeinzTask extends AbstractNetworkTask {
 	
+	/**
+	 * Least time between status updates while Heinz runs, in milliseconds,
+	 * so that a fast-scrolling solver log does not flood the task monitor.
+	 */
+	private static final long STATUS_INTERVAL = 1000;
+	
+	private final NetworkSnapshot snapshot;
 	private final String pValueColumnName;
 	private final String resultColumnName;
 	private final double fdr;
+	private final boolean heuristic;
+	private final boolean reduce;
+	private final int parallelism;
 	private final String serverHost;
 	private final int serverPort;
+	private final SwConnectionPool connectionPool;
+	private final HeinzResultCache resultCache;
+	private final ModuleColumnWriter moduleWriter;
 	private Double lambda = null;
 	private Double a = null;
+	/**
+	 * Clients with a session in progress, whose runs are aborted when the
+	 * task is cancelled.
+	 */
+	private final Set<HeinzClient> activeClients = new HashSet<HeinzClient>();
+	/**
+	 * Likewise for the sessions of component runs.
+	 */
+	private final Set<AsyncHeinzClient> activeSessions =
+			new HashSet<AsyncHeinzClient>();
+	/**
+	 * Times and payload sizes of all runs together.
+	 */
+	private final RunMetrics metrics = new RunMetrics();
+	private final ToolMetrics toolMetrics;
+	/**
+	 * The best module found in any component so far, and its objective
+	 * value.
+	 */
+	private long[] bestModule = null;
+	private double bestObjectiveValue = Double.NEGATIVE_INFINITY;
 	
 	/**
 	 * Initialise the task, setting the required parameters as fields.
@@ -32,30 +72,49 @@ public class HeinzTask extends AbstractNetworkTask {
 	 * ‘{@code pValueColumnName}.BUM.a’.
 	 * 
 	 * @param network  the CyNetwork to detect a module in
-	 * @param pValueColumnName  the node table column holding the p-values
+	 * @param snapshot  the nodes, p-values and edges of the network, with
+	 *                  the p-values validated
 	 * @param resultColumnName  the node table column to write the results to
 	 * @param fdr  the false discovery rate
 	 * @param lambda  the BUM model mixture parameter or null
 	 * @param a  the BUM model shape parameter or null
+	 * @param heuristic  whether to preview the module with a heuristic
+	 *                   within Cytoscape, instead of running Heinz
+	 * @param reduce  whether to send Heinz a reduced network with the same
+	 *                best module
+	 * @param parallelism  the maximum number of components to run Heinz
+	 *                     on at the same time
 	 * @param serverHost  the host name of the Heinz server
 	 * @param serverPort  the port number of the Heinz server
+	 * @param connectionPool  pool of server connections, or null
+	 * @param resultCache  modules of earlier runs, or null
+	 * @param moduleWriter  writer of the result column
+	 * @param toolMetrics  totals of all Heinz runs, or null
 	 */
 	public HeinzTask(
 			CyNetwork network,
-			String pValueColumnName,
+			NetworkSnapshot snapshot,
 			String resultColumnName,
 			double fdr,
 			Double lambda,
 			Double a,
+			boolean heuristic,
+			boolean reduce,
+			int parallelism,
 			String serverHost,
-			int serverPort) {
+			int serverPort,
+			SwConnectionPool connectionPool,
+			HeinzResultCache resultCache,
+			ModuleColumnWriter moduleWriter,
+			ToolMetrics toolMetrics) {
 		// The superclass constructor will set the network field
 		super(network);
-		if (pValueColumnName == null) {
+		if (snapshot == null) {
 			throw new IllegalArgumentException(
-					"No p-value column name.");
+					"No snapshot of the network.");
 		}
-		this.pValueColumnName = pValueColumnName;
+		this.snapshot = snapshot;
+		this.pValueColumnName = snapshot.getPValueColumnName();
 		if (resultColumnName == null) {
 			throw new IllegalArgumentException(
 					"No Heinz result column name.");
@@ -68,123 +127,612 @@ public class HeinzTask extends AbstractNetworkTask {
 		this.fdr = fdr;
 		this.lambda = lambda;
 		this.a = a;
+		this.heuristic = heuristic;
+		this.reduce = reduce;
+		if (parallelism < 1) {
+			throw new IllegalArgumentException(
+					"At least one run must be allowed at a time.");
+		}
+		this.parallelism = parallelism;
 		this.serverHost = serverHost;
 		this.serverPort = serverPort;
+		this.connectionPool = connectionPool;
+		this.resultCache = resultCache;
+		this.moduleWriter = moduleWriter;
+		this.toolMetrics = toolMetrics;
 	}
 	
     /**
      * Run Heinz and add a column to the node table.
      * 
+     * Heinz is run on each connected component that may hold the best
+     * module, see solveComponents(). The time spent in each phase is
+     * written to the network table and added to the totals of all runs.
+     * 
      * @throws IOException  if an error occurs communicating to Heinz
      */
 	@Override
 	public void run(final TaskMonitor taskMonitor)
 			throws IOException {
+		ToolMetrics.Outcome outcome = ToolMetrics.Outcome.FAILED;
+		try {
+			outcome = detectModule(taskMonitor);
+		} finally {
+			if (toolMetrics != null) {
+				toolMetrics.record(metrics, outcome);
+			}
+		}
+	}
+	
+	/**
+	 * Run Heinz, or look up the module in the cache, and add a column to
+	 * the node table.
+	 * 
+	 * @param taskMonitor  the monitor to report progress to
+	 * 
+	 * @return  how the run ended
+	 * 
+	 * @throws IOException  if an error occurs communicating to Heinz
+	 */
+	private ToolMetrics.Outcome detectModule(TaskMonitor taskMonitor)
+			throws IOException {
 		
 		// Give the task a title (shown in status monitor)
 		taskMonitor.setTitle("Heinz");
-		
-		taskMonitor.setStatusMessage("Validating parameters");
-		// Check if the p-value column consists of numbers between 0 and 1
-		for (CyRow row : network.getDefaultNodeTable().getAllRows()) {
-			if (!row.isSet(pValueColumnName)) {
-				throw new IllegalArgumentException(
-						"p-value for node ‘" +
-						row.get(CyNetwork.NAME, String.class) +
-						"’ missing.");
-			}
-			double pValue =  row.get(pValueColumnName, Double.class);
-			if (!(pValue > 0.0 && pValue < 1.0)) {
-				throw new IllegalArgumentException(
-						"Invalid p-value for node ‘" +
-						row.get(CyNetwork.NAME, String.class) +
-						"’.");
-			}
-		}
+		metrics.addTime(
+				RunMetrics.Phase.VALIDATION, snapshot.getValidationTime());
 		
 		CyRow networkTableRow = 
 				network.getDefaultNetworkTable().getRow(network.getSUID());
 		if (lambda == null) {
 			taskMonitor.setStatusMessage(
 					"Reading ‘lambda’ parameter from network table");
-			lambda = networkTableRow.get(
-					pValueColumnName + ".BUM.lambda",
-					Double.class);
-			if (lambda == null) {
-				throw new NullPointerException(
-						"Network table column ‘" +
-						pValueColumnName +
-						".BUM.lambda’ not found");
-			}
+			lambda = readBumParameter(
+					networkTableRow, pValueColumnName, "lambda");
 		}
 		if (a == null) {
 			taskMonitor.setStatusMessage(
 					"Reading ‘a’ parameter from network table");
-			a = networkTableRow.get(
-					pValueColumnName + ".BUM.a", 
-					Double.class);
-			if (a == null) {
-				throw new NullPointerException(
-						"Network table column ‘" +
-						pValueColumnName +
-						".BUM.a’ not found");
-			}
+			a = readBumParameter(networkTableRow, pValueColumnName, "a");
 		}
 		
 		taskMonitor.setProgress(0.02);
 		
 		// stop if Cancel was clicked
-		if (cancelled) { return; }
+		if (cancelled) { return ToolMetrics.Outcome.FAILED; }
+		
+		String cacheKey = null;
+		// the cache holds exact modules only
+		if (resultCache != null && !heuristic) {
+			taskMonitor.setStatusMessage("Looking up earlier Heinz runs");
+			cacheKey = HeinzResultCache.computeKey(snapshot, lambda, a, fdr);
+			long[] module = resultCache.get(cacheKey);
+			if (module != null) {
+				taskMonitor.setStatusMessage(
+						"Module found in the result cache (" +
+						resultCache.getStatistics() + ")");
+				long start = System.nanoTime();
+				moduleWriter.write(
+						network.getTable(CyNode.class, CyNetwork.LOCAL_ATTRS),
+						resultColumnName,
+						module);
+				metrics.addTimeSince(RunMetrics.Phase.TABLE_WRITE, start);
+				writeMetrics();
+				taskMonitor.setProgress(1.00);
+				return ToolMetrics.Outcome.CACHED;
+			}
+		}
+		
+		// stop if Cancel was clicked
+		if (cancelled) { return ToolMetrics.Outcome.FAILED; }
 		
-		taskMonitor.setStatusMessage("Connecting to the Heinz server");
-		HeinzClient client = new SwHeinzClient(serverHost, serverPort);
+		// this writes to the local node table, specific to this subnetwork
+		CyTable resultTable =
+				network.getTable(CyNode.class, CyNetwork.LOCAL_ATTRS);
+		long[] module;
+		double objectiveValue;
+		if (heuristic) {
+			LocalHeinzClient client = new LocalHeinzClient();
+			module = solve(client, snapshot, resultTable, taskMonitor);
+			objectiveValue = client.getObjectiveValue();
+		} else {
+			module = solveComponents(resultTable, taskMonitor);
+			objectiveValue = module == null ? Double.NaN :
+					LocalHeinzClient.computeObjectiveValue(
+							snapshot, module, lambda, a, fdr);
+		}
 		
+		// stop if Cancel was clicked
+		if (cancelled || module == null) { return ToolMetrics.Outcome.FAILED; }
+		
+		taskMonitor.setStatusMessage("Writing results into node table");
+		long start = System.nanoTime();
+		moduleWriter.write(resultTable, resultColumnName, module);
+		metrics.addTimeSince(RunMetrics.Phase.TABLE_WRITE, start);
+		// report the objective value, to compare the heuristic with Heinz
+		taskMonitor.setStatusMessage(
+				(heuristic ? "Heuristic module" : "Module") + " of " +
+				module.length + " nodes, with objective value " +
+				objectiveValue);
+		if (!heuristic) {
+			taskMonitor.setStatusMessage(
+					"Transfers with the Heinz server: " +
+					metrics.getTransferStatistics());
+		}
+		if (cacheKey != null) {
+			resultCache.put(cacheKey, module);
+			taskMonitor.setStatusMessage(
+					"Module stored in the result cache (" +
+					resultCache.getStatistics() + ")");
+		}
+		writeMetrics();
+		taskMonitor.setStatusMessage("Time spent: " + metrics);
+		taskMonitor.setProgress(1.00);
+		return ToolMetrics.Outcome.FINISHED;
+		
+	}
+	
+	/**
+	 * Write the times and transfers of the run into the network table,
+	 * next to the result column.
+	 */
+	private void writeMetrics() {
+		metrics.writeTo(
+				network.getTable(CyNetwork.class, CyNetwork.LOCAL_ATTRS).getRow(
+						network.getSUID()),
+				resultColumnName + ".Heinz");
+	}
+	
+	/**
+	 * Stop the task, aborting Heinz runs in progress so that the server
+	 * can take on other runs, and not starting other component runs.
+	 */
+	@Override
+	public void cancel() {
+		super.cancel();
+		abortActiveClients();
+	}
+	
+	/**
+	 * Abort the Heinz runs in progress, or about to start.
+	 */
+	private void abortActiveClients() {
+		synchronized (activeClients) {
+			for (HeinzClient client : activeClients) {
+				client.abort();
+			}
+		}
+		synchronized (activeSessions) {
+			for (AsyncHeinzClient client : activeSessions) {
+				client.abort();
+			}
+		}
+	}
+	
+	/**
+	 * Find the best module of each connected component with Heinz, and
+	 * take the best of those.
+	 *
+	 * Components are run largest potential first, as separate sessions
+	 * spread over the servers, and skipped once a module at least as good
+	 * as their potential has been found. The sessions run on a selector
+	 * pool, so that components waiting for Heinz hold no thread.
+	 *
+	 * @param resultTable  the node table the network was captured from
+	 * @param taskMonitor  the monitor to report progress to
+	 *
+	 * @return  the SUIDs of the nodes in the module, or null if cancelled
+	 *
+	 * @throws IOException  if an error occurs communicating to Heinz
+	 *
+	 * @see NetworkComponents
+	 */
+	private long[] solveComponents(
+			final CyTable resultTable, final TaskMonitor taskMonitor)
+			throws IOException {
+		
+		taskMonitor.setStatusMessage("Splitting the network into components");
+		NetworkComponents components =
+				NetworkComponents.decompose(snapshot, lambda, a, fdr);
+		if (components.getComponents().isEmpty()) {
+			// no positive nodes, so let Heinz pick from the whole network
+			return solve(
+					newClient(), snapshot, resultTable, taskMonitor);
+		}
+		
+		// the best cluster is a module, and a lower bound for the others
+		NetworkComponents.Component best = components.getBestClusterComponent();
+		bestModule = best.getCluster();
+		bestObjectiveValue = best.getClusterWeight();
+		final List<NetworkComponents.Component> unsolved =
+				new ArrayList<NetworkComponents.Component>();
+		for (NetworkComponents.Component component :
+				components.getComponents()) {
+			if (
+					!component.isSolved() &&
+					component.getPotential() > bestObjectiveValue) {
+				unsolved.add(component);
+			}
+		}
+		taskMonitor.setStatusMessage(
+				components.getComponents().size() +
+				" components with positive nodes, " + unsolved.size() +
+				" to run Heinz on");
+		if (unsolved.isEmpty()) {
+			return bestModule;
+		}
+		if (unsolved.size() == 1) {
+			// a single run, reporting its progress as usual
+			NetworkComponents.Component component = unsolved.get(0);
+			long[] module = solve(
+					newClient(), component.getNetwork(), resultTable,
+					taskMonitor);
+			if (module != null) {
+				updateBest(component, module);
+			}
+			return module == null ? null : bestModule;
+		}
+		
+		SwSelectorPool selectorPool = connectionPool != null ?
+				connectionPool.getSelectorPool() :
+				new SwSelectorPool(
+						1, Runtime.getRuntime().availableProcessors());
+		SwFuture.CompletionQueue<long[]> runs =
+				new SwFuture.CompletionQueue<long[]>();
+		try {
+			int next = 0;
+			int finished = 0;
+			while (true) {
+				// started in order of decreasing potential
+				while (
+						!cancelled &&
+						runs.getPending() < parallelism &&
+						next < unsolved.size()) {
+					NetworkComponents.Component component = unsolved.get(next++);
+					// skip the run if it cannot beat the best module
+					if (component.getPotential() <= getBestObjectiveValue()) {
+						++finished;
+						continue;
+					}
+					runs.add(startComponent(
+							component, resultTable, selectorPool));
+				}
+				if (runs.getPending() == 0) {
+					break;
+				}
+				try {
+					runs.take().await();
+				} catch (InterruptedIOException e) {
+					// the run was aborted by cancel()
+					if (!cancelled) {
+						abortActiveClients();
+						throw e;
+					}
+				} catch (IOException e) {
+					// report the first failed run, and stop the others
+					abortActiveClients();
+					throw e;
+				} catch (RuntimeException e) {
+					abortActiveClients();
+					throw e;
+				}
+				++finished;
+				taskMonitor.setStatusMessage(
+						"Finished " + finished + " of " +
+						unsolved.size() + " components");
+				taskMonitor.setProgress(
+						0.10 + 0.85 * finished / unsolved.size());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			abortActiveClients();
+			return null;
+		} finally {
+			if (connectionPool == null) {
+				selectorPool.shutDown();
+			}
+		}
+		return cancelled ? null : getBestModule();
+		
+	}
+	
+	/**
+	 * Start a Heinz run on a component, keeping its module if it is the
+	 * best so far once done.
+	 *
+	 * @param component  the component
+	 * @param resultTable  the node table the network was captured from
+	 * @param selectorPool  the pool to run the session on
+	 *
+	 * @return  the future of the module of the component, failed with an
+	 *          InterruptedIOException if cancelled
+	 */
+	private SwFuture<long[]> startComponent(
+			final NetworkComponents.Component component,
+			CyTable resultTable,
+			SwSelectorPool selectorPool) {
+		
+		final AsyncHeinzClient client = new AsyncHeinzClient(
+				selectorPool, connectionPool, serverHost, serverPort);
+		synchronized (activeSessions) {
+			activeSessions.add(client);
+		}
+		if (cancelled) {
+			// cancelled after the caller checked
+			client.abort();
+		}
+		client.sendLambda(lambda);
+		client.sendA(a);
+		client.sendFdr(fdr);
+		if (reduce) {
+			client.enableReduction();
+		}
+		client.sendNodes(component.getNetwork());
+		client.sendEdges(component.getNetwork());
+		client.runHeinz();
+		final SwFuture<long[]> module = client.retrieveModule(resultTable);
+		final SwFuture<long[]> future = new SwFuture<long[]>();
+		client.close().addListener(new SwFuture.Listener<Void>() {
+			@Override
+			public void completed(Void result) {
+				synchronized (activeSessions) {
+					activeSessions.remove(client);
+				}
+				if (client.getClient() != null) {
+					metrics.addSession(client.getClient());
+				}
+				// done by now, as the session closes after its last step
+				module.addListener(new SwFuture.Listener<long[]>() {
+					@Override
+					public void completed(long[] result) {
+						updateBest(component, result);
+						future.complete(result);
+					}
+					@Override
+					public void failed(Throwable cause) {
+						future.fail(cause);
+					}
+				});
+			}
+			@Override
+			public void failed(Throwable cause) {
+				// closing does not fail
+				future.fail(cause);
+			}
+		});
+		return future;
+		
+	}
+	
+	/**
+	 * @return  a client for a new session with the Heinz server
+	 *
+	 * @throws IOException  if no connection can be made
+	 */
+	private HeinzClient newClient() throws IOException {
+		return new SwHeinzClient(connectionPool, serverHost, serverPort);
+	}
+	
+	/**
+	 * Run Heinz on a network.
+	 *
+	 * @param client  the client to run Heinz with, closed afterwards
+	 * @param network  the network, or a component of it
+	 * @param resultTable  the node table the network was captured from
+	 * @param taskMonitor  the monitor to report progress to, or null if
+	 *                     runs are in progress at the same time
+	 *
+	 * @return  the SUIDs of the nodes in the module, or null if cancelled
+	 *
+	 * @throws IOException  if an error occurs communicating to Heinz
+	 */
+	private long[] solve(
+			HeinzClient client,
+			NetworkSnapshot network,
+			CyTable resultTable,
+			TaskMonitor taskMonitor) throws IOException {
+		
+		synchronized (activeClients) {
+			activeClients.add(client);
+		}
 		try {
 			
 			// skip to `finally` and stop if Cancel was clicked
-			if (cancelled) { return; }
+			if (cancelled) { return null; }
 			
-			taskMonitor.setStatusMessage("Sending parameters to Heinz");
+			setStatusMessage(taskMonitor, "Sending parameters to Heinz");
+			long start = System.nanoTime();
 			client.sendLambda(lambda);
 			client.sendA(a);
 			client.sendFdr(fdr);
+			if (reduce) {
+				client.enableReduction();
+			}
 			
 			// skip to `finally` and stop if Cancel was clicked
-			if (cancelled) { return; }
+			if (cancelled) { return null; }
 
-			taskMonitor.setStatusMessage("Sending node table to Heinz");
-			client.sendNodeTable(
-					network.getDefaultNodeTable(),
-					pValueColumnName);
-			taskMonitor.setProgress(0.06);
+			setStatusMessage(taskMonitor, "Sending node table to Heinz");
+			client.sendNodes(network);
+			if (client instanceof SwHeinzClient &&
+					((SwHeinzClient) client).getReduction() != null) {
+				setStatusMessage(
+						taskMonitor,
+						"Network reduced to " +
+						((SwHeinzClient) client).getReduction());
+			}
+			setProgress(taskMonitor, 0.06);
 			
 			// skip to `finally` and stop if Cancel was clicked
-			if (cancelled) { return; }
+			if (cancelled) { return null; }
 			
-			taskMonitor.setStatusMessage("Sending edge table to Heinz");
-			client.sendEdgeTable(network.getEdgeList());
-			taskMonitor.setProgress(0.10);
+			setStatusMessage(taskMonitor, "Sending edge table to Heinz");
+			client.sendEdges(network);
+			metrics.addTimeSince(RunMetrics.Phase.UPLOAD, start);
+			setProgress(taskMonitor, 0.10);
 			
 			// skip to `finally` and stop if Cancel was clicked
-			if (cancelled) { return; }
+			if (cancelled) { return null; }
 
-			taskMonitor.setStatusMessage("Running Heinz");
+			setStatusMessage(taskMonitor, "Running Heinz");
+			if (taskMonitor != null && client instanceof AbstractSwClient) {
+				// follow the solver’s output, if the server can stream it
+				((AbstractSwClient) client).setOutputListener(
+						new ProgressReporter(taskMonitor));
+			}
+			start = System.nanoTime();
 			client.runHeinz();
-			taskMonitor.setProgress(0.95);
+			if (!(client instanceof AbstractSwClient)) {
+				// server clients time the wait and the run themselves
+				metrics.addTimeSince(RunMetrics.Phase.SOLVE, start);
+			}
+			setProgress(taskMonitor, 0.95);
 			
 			// skip to `finally` and stop if Cancel was clicked
-			if (cancelled) { return; }
+			if (cancelled) { return null; }
 
-			taskMonitor.setStatusMessage("Reading results into node table");
-			// this writes to the local node table, specific to this subnetwork
-			client.retrieveResults(
-					network.getTable(CyNode.class, CyNetwork.LOCAL_ATTRS),
-					resultColumnName);
-			taskMonitor.setProgress(1.00);
+			setStatusMessage(taskMonitor, "Retrieving results from Heinz");
+			long[] module = client.retrieveModule(resultTable);
+			setProgress(taskMonitor, 0.97);
+			return module;
 			
+		} catch (InterruptedIOException e) {
+			// the run was aborted by cancel()
+			if (cancelled) { return null; }
+			throw e;
 		} finally {
+			synchronized (activeClients) {
+				activeClients.remove(client);
+			}
 			client.close();
+			if (client instanceof AbstractSwClient) {
+				metrics.addSession((AbstractSwClient) client);
+			}
+		}
+		
+	}
+	
+	/**
+	 * Keep the module of a component if it is the best so far.
+	 *
+	 * @param component  the component
+	 * @param module  the SUIDs of the nodes of its module
+	 */
+	private synchronized void updateBest(
+			NetworkComponents.Component component, long[] module) {
+		double objectiveValue = LocalHeinzClient.computeObjectiveValue(
+				component.getNetwork(), module, lambda, a, fdr);
+		if (objectiveValue > bestObjectiveValue) {
+			bestObjectiveValue = objectiveValue;
+			bestModule = module;
+		}
+	}
+	
+	/**
+	 * @return  the objective value of the best module so far
+	 */
+	private synchronized double getBestObjectiveValue() {
+		return bestObjectiveValue;
+	}
+	
+	/**
+	 * @return  the best module so far
+	 */
+	private synchronized long[] getBestModule() {
+		return bestModule;
+	}
+	
+	/**
+	 * Report the status of a run, unless several are in progress.
+	 */
+	private static void setStatusMessage(
+			TaskMonitor taskMonitor, String message) {
+		if (taskMonitor != null) {
+			taskMonitor.setStatusMessage(message);
+		}
+	}
+	
+	/**
+	 * Report the progress of a run, unless several are in progress.
+	 */
+	private static void setProgress(TaskMonitor taskMonitor, double progress) {
+		if (taskMonitor != null) {
+			taskMonitor.setProgress(progress);
+		}
+	}
+	
+	/**
+	 * Reports the progress of a run to the task monitor, as parsed from
+	 * the output of Heinz, between the progress before and after the run.
+	 */
+	private static class ProgressReporter
+			implements AbstractSwClient.OutputListener {
+		
+		private static final double START = 0.10;
+		private static final double END = 0.95;
+		
+		private final TaskMonitor taskMonitor;
+		private final HeinzProgress progress = new HeinzProgress();
+		private double reportedProgress = START;
+		private String reportedStatus = null;
+		private long statusTime = 0;
+		
+		public ProgressReporter(TaskMonitor taskMonitor) {
+			this.taskMonitor = taskMonitor;
+		}
+		
+		@Override
+		public void outputReceived(String output, String lines) {
+			if (!progress.parse(lines)) {
+				return;
+			}
+			// the gap may widen again, but the progress bar should not
+			double completion = progress.getCompletion();
+			if (completion > 0.0) {
+				double newProgress = START + (END - START) * completion;
+				if (newProgress > reportedProgress) {
+					reportedProgress = newProgress;
+					taskMonitor.setProgress(newProgress);
+				}
+			}
+			long now = System.currentTimeMillis();
+			String status = progress.toString();
+			if (
+					!status.equals(reportedStatus) &&
+					now - statusTime >= STATUS_INTERVAL) {
+				reportedStatus = status;
+				statusTime = now;
+				taskMonitor.setStatusMessage(status);
+			}
 		}
 		
 	}
+	
+	/**
+	 * Read a fitted BUM model parameter from the network table.
+	 * 
+	 * @param networkTableRow  the network’s row in the network table
+	 * @param pValueColumnName  the node table column the model was fitted to
+	 * @param parameter  the parameter name, ‘lambda’ or ‘a’
+	 * 
+	 * @return  the value of column ‘{@code pValueColumnName}.BUM.{@code parameter}’
+	 * 
+	 * @throws NullPointerException  if the column or value is missing
+	 */
+	public static double readBumParameter(
+			CyRow networkTableRow,
+			String pValueColumnName,
+			String parameter) {
+		Double value = networkTableRow.get(
+				pValueColumnName + ".BUM." + parameter,
+				Double.class);
+		if (value == null) {
+			throw new NullPointerException(
+					"Network table column ‘" +
+					pValueColumnName +
+					".BUM." + parameter + "’ not found");
+		}
+		return value;
+	}
+	
 }
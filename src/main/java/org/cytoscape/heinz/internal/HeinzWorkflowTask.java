@@ -8,7 +8,6 @@ import java.io.IOException;
 import org.cytoscape.task.AbstractNetworkTask;
 import org.cytoscape.model.CyNetwork;
 import org.cytoscape.model.CyColumn;
-import org.cytoscape.model.CyRow;
 import org.cytoscape.work.Task;
 import org.cytoscape.work.TaskIterator;
 import org.cytoscape.work.TaskMonitor;
@@ -41,7 +40,17 @@ public class HeinzWorkflowTask extends AbstractNetworkTask {
 			dependsOn="fitBum=false")
 	public BoundedDouble a = new BoundedDouble(0.0, 0.25, 1.0, true, true);
 	@Tunable(
-			description="Host",
+			description="Fit within Cytoscape (no server needed)",
+			groups={"BUM model", "Parameter fitting"},
+			dependsOn="fitBum=true")
+	public boolean bumFitLocally = false;
+	@Tunable(
+			description="Run the R script on a server within Cytoscape",
+			groups={"BUM model", "Parameter fitting"},
+			dependsOn="fitBum=true")
+	public boolean bumEmbeddedServer = false;
+	@Tunable(
+			description="Host (or list, e.g. ‘node1, node2:9002’)",
 			groups={"BUM model", "Parameter fitting", "server"},
 			dependsOn="fitBum=true")
 	public String bumServerHost = "localhost";
@@ -55,6 +64,11 @@ public class HeinzWorkflowTask extends AbstractNetworkTask {
 			groups={"BUM model", "Parameter fitting"},
 			dependsOn="fitBum=true")
 	public int bumFittingStarts = 10;
+	@Tunable(
+			description="Histogram bins to fit to (0 to fit to every p-value)",
+			groups={"BUM model", "Parameter fitting"},
+			dependsOn="fitBum=true")
+	public int bumFittingBins = 0;
 	
 
 	@Tunable(
@@ -62,13 +76,37 @@ public class HeinzWorkflowTask extends AbstractNetworkTask {
 			groups = {"Heinz"})
 	public BoundedDouble fdr = new BoundedDouble(0.0, 0.01,	1.0, true, true);
 	@Tunable(
-			description="Host",
-			groups={"Heinz", "Heinz server"})
+			description="Quick preview with a heuristic (no server, not for sweeps)",
+			groups={"Heinz"})
+	public boolean heinzHeuristic = false;
+	@Tunable(
+			description="Reduce the network before sending it to Heinz",
+			groups={"Heinz"},
+			dependsOn="heinzHeuristic=false")
+	public boolean heinzReduction = true;
+	@Tunable(
+			description="Maximum simultaneous runs (components or FDRs)",
+			groups={"Heinz"},
+			dependsOn="heinzHeuristic=false")
+	public int heinzParallelism = 4;
+	@Tunable(
+			description="Run heinz on a server within Cytoscape",
+			groups={"Heinz"})
+	public boolean heinzEmbeddedServer = false;
+	@Tunable(
+			description="Host (or list, e.g. ‘node1, node2:9003’)",
+			groups={"Heinz", "Heinz server"},
+			dependsOn="heinzEmbeddedServer=false")
 	public String heinzServerHost = "localhost";
 	@Tunable(
 			description="Port",
-			groups={"Heinz", "Heinz server"})
+			groups={"Heinz", "Heinz server"},
+			dependsOn="heinzEmbeddedServer=false")
 	public int heinzServerPort = 9001;
+	@Tunable(
+			description="FDR sweep, on the whole network (e.g. ‘0.001, 0.01, 0.1’ or ‘0.001:0.1:5’)",
+			groups={"Heinz", "FDR sweep"})
+	public String fdrSweep = "";
 	
 	@Tunable(
 			description="Node table column holding the p-values",
@@ -78,16 +116,42 @@ public class HeinzWorkflowTask extends AbstractNetworkTask {
 			description="Output column name",
 			groups = {"General"})
 	public String resultColumnName = "in Heinz module";
+	
+	private final SwConnectionPool connectionPool;
+	private final HeinzResultCache resultCache;
+	private final ModuleColumnWriter moduleWriter;
+	private final EmbeddedSwServers embeddedServers;
+	private final ToolMetrics heinzMetrics;
+	private final ToolMetrics bumMetrics;
 
 	/**
 	 * Initialise the task, getting a CyNetwork. 
 	 * 
 	 * @param n  the network to operate on
+	 * @param connectionPool  pool of server connections shared by the tasks
+	 * @param resultCache  modules of earlier Heinz runs, or null
+	 * @param moduleWriter  writer of the Heinz result columns
+	 * @param embeddedServers  servers for running the tools locally
+	 * @param heinzMetrics  totals of all Heinz runs, or null
+	 * @param bumMetrics  totals of all BUM model fits, or null
 	 */
-	public HeinzWorkflowTask(final CyNetwork n) {
+	public HeinzWorkflowTask(
+			final CyNetwork n,
+			final SwConnectionPool connectionPool,
+			final HeinzResultCache resultCache,
+			final ModuleColumnWriter moduleWriter,
+			final EmbeddedSwServers embeddedServers,
+			final ToolMetrics heinzMetrics,
+			final ToolMetrics bumMetrics) {
 		
 		// Will set a CyNetwork field called "network"
 		super(n);
+		this.connectionPool = connectionPool;
+		this.resultCache = resultCache;
+		this.moduleWriter = moduleWriter;
+		this.embeddedServers = embeddedServers;
+		this.heinzMetrics = heinzMetrics;
+		this.bumMetrics = bumMetrics;
 		
 		// Collect the names of the node table columns that have the type Double
 		List<String> doubleColumnNameList = new ArrayList<String>();
@@ -118,32 +182,33 @@ public class HeinzWorkflowTask extends AbstractNetworkTask {
 		if (pValueColumnName.getSelectedValue() == null) {
 			throw new IllegalArgumentException("No p-value column selected.");
 		}
+		// read the network once, for all the tasks of the workflow
+		NetworkSnapshot snapshot = NetworkSnapshot.capture(
+				network, pValueColumnName.getSelectedValue());
 		// Check if the p-value column consists of numbers between 0 and 1
-		for (CyRow row : network.getDefaultNodeTable().getAllRows()) {
-			// stop if Cancel was clicked
-			if (cancelled) { return; }
-			// test if a p-value exists for this row
-			if (!row.isSet(pValueColumnName.getSelectedValue())) {
-				throw new IllegalArgumentException(
-						"p-value for node ‘" +
-						row.get(CyNetwork.NAME, String.class) +
-						"’ missing.");
-			}
-			// test if the p-value is in the valid range
-			double pValue =  row.get(pValueColumnName.getSelectedValue(), Double.class);
-			if (!(pValue >= 0.0 && pValue <= 1.0)) {
-				throw new IllegalArgumentException(
-						"Invalid p-value for node ‘" +
-						row.get(CyNetwork.NAME, String.class) +
-						"’.");
-			}
-		}
+		snapshot.validatePValues();
 		
 		// stop if Cancel was clicked
 		if (cancelled) { return; }
 		
 		taskMonitor.setStatusMessage("Setting up the workflow");
 		
+		// start the embedded servers if they are to be used
+		String bumHost = bumServerHost;
+		int bumPort = bumServerPort;
+		if (fitBum && !bumFitLocally && bumEmbeddedServer) {
+			bumHost = "localhost";
+			bumPort = embeddedServers.getBumPort();
+		}
+		// FDR sweeps always run Heinz itself
+		boolean heuristic = heinzHeuristic && fdrSweep.trim().length() == 0;
+		String heinzHost = heinzServerHost;
+		int heinzPort = heinzServerPort;
+		if (heinzEmbeddedServer && !heuristic) {
+			heinzHost = "localhost";
+			heinzPort = embeddedServers.getHeinzPort();
+		}
+		
 		// create an empty task iterator
 		TaskIterator workflowTaskIterator = new TaskIterator();
 		
@@ -151,35 +216,70 @@ public class HeinzWorkflowTask extends AbstractNetworkTask {
 			Task bumFittingTask = new BumFittingTask(
 					network.getDefaultNodeTable().getColumn(
 							pValueColumnName.getSelectedValue()),
+					snapshot,
 					network.getTable(
 							CyNetwork.class, CyNetwork.LOCAL_ATTRS).getRow(
 									network.getSUID()),
 					bumFittingStarts,
-					bumServerHost, bumServerPort);
+					bumFittingBins,
+					bumFitLocally,
+					bumHost, bumPort,
+					connectionPool,
+					bumMetrics);
 			workflowTaskIterator.append(bumFittingTask);
 		}
 		
 		Task heinzTask;
-		if (fitBum) {
+		if (fdrSweep.trim().length() > 0) {
+			// one run per FDR, instead of a single run
+			heinzTask = new HeinzSweepTask(
+					network,
+					snapshot,
+					resultColumnName,
+					HeinzSweepTask.parseFdrs(fdrSweep),
+					heinzParallelism,
+					fitBum ? null : lambda.getValue(),
+					fitBum ? null : a.getValue(),
+					heinzHost,
+					heinzPort,
+					connectionPool,
+					resultCache,
+					moduleWriter,
+					heinzMetrics);
+		} else if (fitBum) {
 			heinzTask = new HeinzTask(
 					network,
-					pValueColumnName.getSelectedValue(),
+					snapshot,
 					resultColumnName,
 					fdr.getValue(),
 					null,
 					null,
-					heinzServerHost,
-					heinzServerPort);
+					heuristic,
+					heinzReduction,
+					heinzParallelism,
+					heinzHost,
+					heinzPort,
+					connectionPool,
+					resultCache,
+					moduleWriter,
+					heinzMetrics);
 		} else {
 			heinzTask = new HeinzTask(
 					network,
-					pValueColumnName.getSelectedValue(),
+					snapshot,
 					resultColumnName,
 					fdr.getValue(),
 					lambda.getValue(),
 					a.getValue(),
-					heinzServerHost,
-					heinzServerPort);
+					heuristic,
+					heinzReduction,
+					heinzParallelism,
+					heinzHost,
+					heinzPort,
+					connectionPool,
+					resultCache,
+					moduleWriter,
+					heinzMetrics);
 		}
 		workflowTaskIterator.append(heinzTask);
 		
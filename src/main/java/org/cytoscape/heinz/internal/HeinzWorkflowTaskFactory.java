@@ -9,6 +9,38 @@ import org.cytoscape.work.TaskIterator;
  * TaskFactory for HeinzTask, to be provided as an OSGi service.
  */
 public class HeinzWorkflowTaskFactory extends AbstractNetworkTaskFactory {
+	
+	private final SwConnectionPool connectionPool;
+	private final HeinzResultCache resultCache;
+	private final ModuleColumnWriter moduleWriter;
+	private final EmbeddedSwServers embeddedServers;
+	private final ToolMetrics heinzMetrics;
+	private final ToolMetrics bumMetrics;
+	
+	/**
+	 * Initialise the factory with the resources shared by its tasks.
+	 * 
+	 * @param connectionPool  pool of server connections
+	 * @param resultCache  modules of earlier Heinz runs, or null
+	 * @param moduleWriter  writer of the Heinz result columns
+	 * @param embeddedServers  servers for running the tools locally
+	 * @param heinzMetrics  totals of all Heinz runs, or null
+	 * @param bumMetrics  totals of all BUM model fits, or null
+	 */
+	public HeinzWorkflowTaskFactory(
+			SwConnectionPool connectionPool,
+			HeinzResultCache resultCache,
+			ModuleColumnWriter moduleWriter,
+			EmbeddedSwServers embeddedServers,
+			ToolMetrics heinzMetrics,
+			ToolMetrics bumMetrics) {
+		this.connectionPool = connectionPool;
+		this.resultCache = resultCache;
+		this.moduleWriter = moduleWriter;
+		this.embeddedServers = embeddedServers;
+		this.heinzMetrics = heinzMetrics;
+		this.bumMetrics = bumMetrics;
+	}
 
 	/**
 	 * Create a TaskIterator with a new HeinzTask.
@@ -19,6 +51,14 @@ public class HeinzWorkflowTaskFactory extends AbstractNetworkTaskFactory {
 	 * already called the setNetwork() method.
 	 */
 	public TaskIterator createTaskIterator(CyNetwork network) {
-		return new TaskIterator(new HeinzWorkflowTask(network));
+		return new TaskIterator(
+				new HeinzWorkflowTask(
+						network,
+						connectionPool,
+						resultCache,
+						moduleWriter,
+						embeddedServers,
+						heinzMetrics,
+						bumMetrics));
 	}
 }
@@ -0,0 +1,200 @@
+package org.cytoscape.heinz.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fits BUM models within Cytoscape, without contacting a server.
+ *
+ * Maximises the same likelihood as <code>bumOptim</code> in
+ * <code>fitBumModel.R</code>, from the same kind of random starting points,
+ * running the starts in parallel.
+ */
+public class LocalBumFitterClient implements BumFitterClient {
+
+	private double[] pValues = null;
+	private int starts = 10;
+	private boolean plotting = false;
+	/**
+	 * Number of histogram bins to fit to, or 0 to fit to every p-value.
+	 */
+	private int bins = 0;
+	private BumModel model = null;
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * @throws IllegalArgumentException  if a p-value is not in (0, 1]
+	 */
+	@Override
+	public void sendPValues(double[] pvalues) throws IOException {
+		for (double p : pvalues) {
+			// the likelihood is infinite for a p-value of 0
+			if (!(p > 0.0 && p <= 1.0)) {
+				throw new IllegalArgumentException(
+						"Invalid p-value for BUM model fitting: " + p);
+			}
+		}
+		this.pValues = pvalues;
+		model = null;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void enableBinning(int bins) throws IOException {
+		if (bins < 1) {
+			throw new IllegalArgumentException(
+					"At least one bin is needed for binned model fitting.");
+		}
+		this.bins = bins;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void sendStarts(int starts) throws IOException {
+		if (starts < 1) {
+			throw new IllegalArgumentException(
+					"At least one start is needed for model fitting.");
+		}
+		this.starts = starts;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void enablePlotting() throws IOException {
+		plotting = true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void run() throws IOException {
+
+		if (pValues == null || pValues.length == 0) {
+			throw new IOException("No p-values to fit a BUM model to.");
+		}
+
+		// shared by all starts, as only the starting points differ
+		final double[] logPValues;
+		final double[] weights;
+		if (bins > 0) {
+			BinnedPValues binned = BinnedPValues.bin(pValues, bins);
+			logPValues = binned.getLogPValues();
+			weights = binned.getCounts();
+		} else {
+			logPValues = BumModel.logTransform(pValues);
+			weights = null;
+		}
+
+		// draw the starting points as bumOptim does
+		Random random = new Random();
+		List<Callable<BumModel>> fits = new ArrayList<Callable<BumModel>>();
+		for (int i = 0; i < starts; ++i) {
+			final double startLambda = 0.3 + 0.4 * random.nextDouble();
+			final double startA = 0.3 + 0.4 * random.nextDouble();
+			fits.add(new Callable<BumModel>() {
+				@Override
+				public BumModel call() {
+					return BumModel.fit(
+							logPValues, weights, startLambda, startA);
+				}
+			});
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+				starts, Runtime.getRuntime().availableProcessors()));
+		BumModel best = null;
+		try {
+			for (Future<BumModel> fit : executor.invokeAll(fits)) {
+				BumModel candidate = fit.get();
+				// keep the fit with the highest likelihood
+				if (
+						!Double.isNaN(candidate.getNegLogLikelihood()) &&
+						(best == null ||
+						candidate.getNegLogLikelihood() <
+						best.getNegLogLikelihood())) {
+					best = candidate;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("BUM model fitting was interrupted.");
+		} catch (ExecutionException e) {
+			throw new IOException(
+					"BUM model fitting failed: " + e.getCause().getMessage());
+		} finally {
+			executor.shutdownNow();
+		}
+
+		if (best == null) {
+			throw new IOException("BUM model could not be fitted to data");
+		}
+		model = best;
+
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public double getLambda() throws IOException {
+		return getModel().getLambda();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public double getA() throws IOException {
+		return getModel().getA();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public byte[] getPlotPng() throws IOException {
+		if (!plotting) {
+			throw new IOException("Plotting was not enabled.");
+		}
+		return BumModelPlot.renderPng(getModel(), pValues);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void close() throws IOException {
+		// nothing to release, just let go of the data
+		pValues = null;
+	}
+
+	/**
+	 * Get the fitted model.
+	 *
+	 * @return  the fitted model
+	 *
+	 * @throws IOException  if no model has been fitted
+	 */
+	private BumModel getModel() throws IOException {
+		if (model == null) {
+			throw new IOException("No BUM model fit found.");
+		}
+		return model;
+	}
+
+}
@@ -0,0 +1,228 @@
+package org.cytoscape.heinz.internal;
+
+import java.io.IOException;
+
+import org.cytoscape.model.CyTable;
+
+/**
+ * Finds modules within Cytoscape with a heuristic, without a server.
+ *
+ * Scores the nodes from the BUM model and FDR as Heinz does, then finds a
+ * module with {@link MwcsHeuristic} instead of solving the problem exactly.
+ * This takes well under a second for most networks, so the module can be
+ * previewed while tuning the FDR. Its objective value, the sum of the
+ * scores of its nodes, can be compared with that of the exact module.
+ */
+public class LocalHeinzClient implements HeinzClient {
+	
+	private NetworkSnapshot nodes = null;
+	private NetworkSnapshot edges = null;
+	private Double lambda = null;
+	private Double a = null;
+	private Double fdr = null;
+	private long[] module = null;
+	private long[] moduleNodes = null;
+	private double objectiveValue = Double.NaN;
+	
+	/**
+	 * Compute the score of every node of a network, as Heinz does.
+	 *
+	 * @param network  the snapshot holding the p-values
+	 * @param lambda  the BUM model mixture parameter
+	 * @param a  the BUM model shape parameter
+	 * @param fdr  the false discovery rate
+	 *
+	 * @return  the scores, in the order of the snapshot
+	 */
+	public static double[] computeScores(
+			NetworkSnapshot network, double lambda, double a, double fdr) {
+		BumModel model = new BumModel(lambda, a, Double.NaN);
+		double threshold = model.fdrThreshold(fdr);
+		double[] scores = new double[network.getNodeCount()];
+		for (int i = 0; i < scores.length; ++i) {
+			scores[i] = model.score(network.getPValue(i), threshold);
+		}
+		return scores;
+	}
+	
+	/**
+	 * Compute the objective value of a module, e.g. one found by Heinz, to
+	 * compare it with that of the heuristic.
+	 *
+	 * @param network  the snapshot holding the p-values
+	 * @param module  the SUIDs of the nodes in the module
+	 * @param lambda  the BUM model mixture parameter
+	 * @param a  the BUM model shape parameter
+	 * @param fdr  the false discovery rate
+	 *
+	 * @return  the sum of the scores of the nodes in the module
+	 *
+	 * @throws IllegalArgumentException  if a node is not in the network
+	 */
+	public static double computeObjectiveValue(
+			NetworkSnapshot network,
+			long[] module,
+			double lambda,
+			double a,
+			double fdr) {
+		double[] scores = computeScores(network, lambda, a, fdr);
+		int[] indices = new int[module.length];
+		for (int k = 0; k < module.length; ++k) {
+			indices[k] = network.getNodeIndex().getId(module[k]);
+			if (indices[k] < 0) {
+				throw new IllegalArgumentException(
+						"Module node " + module[k] + " not in the network.");
+			}
+		}
+		return MwcsHeuristic.objective(scores, indices);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void ping() throws IOException {
+		// always ready
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 *
+	 * Does nothing, as the heuristic takes little time on any network.
+	 */
+	@Override
+	public void enableReduction() {
+		// nothing to send
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void sendNodes(NetworkSnapshot network) throws IOException {
+		nodes = network;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void sendEdges(NetworkSnapshot network) throws IOException {
+		edges = network;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void sendLambda(double lambda) throws IOException {
+		this.lambda = lambda;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void sendA(double a) throws IOException {
+		this.a = a;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 *
+	 * @throws IllegalArgumentException  if the FDR is not in (0, 1)
+	 */
+	@Override
+	public void sendFdr(double fdr) throws IOException {
+		if (!(fdr > 0.0 && fdr < 1.0)) {
+			throw new IllegalArgumentException("FDR parameter out of range.");
+		}
+		this.fdr = fdr;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 *
+	 * Runs the heuristic rather than Heinz itself.
+	 */
+	@Override
+	public void runHeinz() throws IOException {
+		if (nodes == null || edges == null) {
+			throw new IOException("No network to find a module in.");
+		}
+		if (nodes != edges) {
+			throw new IOException("Nodes and edges of different networks.");
+		}
+		if (lambda == null || a == null || fdr == null) {
+			throw new IOException("BUM model parameters or FDR not set.");
+		}
+		
+		double[] scores = computeScores(nodes, lambda, a, fdr);
+		int[] indices = new MwcsHeuristic(nodes).solve(scores);
+		module = new long[indices.length];
+		for (int k = 0; k < indices.length; ++k) {
+			module[k] = nodes.getNodeSuid(indices[k]);
+		}
+		objectiveValue = MwcsHeuristic.objective(scores, indices);
+		moduleNodes = null;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void retrieveResults(CyTable nodeTable, String resultColumnName)
+			throws IOException, IllegalArgumentException {
+		new ModuleColumnWriter(null).write(
+				nodeTable, resultColumnName, retrieveModule(nodeTable));
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long[] retrieveModule(CyTable nodeTable)
+			throws IOException, IllegalArgumentException {
+		SwHeinzClient.checkPrimaryKey(nodeTable);
+		if (module == null) {
+			throw new IOException("No module found yet.");
+		}
+		moduleNodes = module;
+		return moduleNodes;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long[] getModuleNodes() {
+		return moduleNodes;
+	}
+	
+	/**
+	 * @return  the sum of the scores of the nodes in the module, or NaN if
+	 *          no module has been found yet
+	 */
+	public double getObjectiveValue() {
+		return objectiveValue;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 *
+	 * Does nothing, as the heuristic takes little time on any network.
+	 */
+	@Override
+	public void abort() {
+		// nothing to stop
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void close() throws IOException {
+		// nothing to release
+	}
+	
+}
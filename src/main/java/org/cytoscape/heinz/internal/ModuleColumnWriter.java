@@ -0,0 +1,77 @@
+package org.cytoscape.heinz.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cytoscape.event.CyEventHelper;
+import org.cytoscape.model.CyRow;
+import org.cytoscape.model.CyTable;
+import org.cytoscape.model.events.RowSetRecord;
+import org.cytoscape.model.events.RowsSetEvent;
+
+/**
+ * Writes a module to a boolean column of a node table in one batch.
+ *
+ * Setting a value in a Cytoscape table fires a row event for the UI,
+ * styles and other apps to process, which for large networks takes longer
+ * than finding the module. The table is therefore silenced while the
+ * whole column is written in a single pass, after which a single event
+ * reports all the changed rows.
+ */
+public class ModuleColumnWriter {
+	
+	private final CyEventHelper eventHelper;
+	
+	/**
+	 * @param eventHelper  the event helper of Cytoscape, or null to write
+	 *                     without batching the events
+	 */
+	public ModuleColumnWriter(CyEventHelper eventHelper) {
+		this.eventHelper = eventHelper;
+	}
+	
+	/**
+	 * Write a module to a result column, creating it if needed.
+	 *
+	 * Nodes in the module are set to true, all other nodes to false.
+	 *
+	 * @param nodeTable  the node table, into which to add the column
+	 * @param resultColumnName  name of the column to add
+	 * @param module  the SUIDs of the nodes in the module
+	 *
+	 * @throws IllegalArgumentException  if the column is of the wrong type
+	 */
+	public void write(
+			CyTable nodeTable, String resultColumnName, long[] module) {
+		SwHeinzClient.createResultColumn(nodeTable, resultColumnName);
+		SuidIndex moduleIndex = new SuidIndex(module);
+		List<CyRow> rows = nodeTable.getAllRows();
+		
+		if (eventHelper == null) {
+			for (CyRow row : rows) {
+				row.set(
+						resultColumnName,
+						moduleIndex.getId(row.get("SUID", Long.class)) >= 0);
+			}
+			return;
+		}
+		
+		List<RowSetRecord> records = new ArrayList<RowSetRecord>(rows.size());
+		// deliver any earlier events first, so that they stay in order
+		eventHelper.flushPayloadEvents();
+		eventHelper.silenceEventSource(nodeTable);
+		try {
+			for (CyRow row : rows) {
+				Boolean inModule = Boolean.valueOf(
+						moduleIndex.getId(row.get("SUID", Long.class)) >= 0);
+				row.set(resultColumnName, inModule);
+				records.add(new RowSetRecord(
+						row, resultColumnName, inModule, inModule));
+			}
+		} finally {
+			eventHelper.unsilenceEventSource(nodeTable);
+		}
+		eventHelper.fireEvent(new RowsSetEvent(nodeTable, records));
+	}
+	
+}
@@ -0,0 +1,564 @@
+package org.cytoscape.heinz.internal;
+
+import java.util.Arrays;
+
+/**
+ * Fast heuristic for the maximum-weight connected subgraph problem.
+ *
+ * Finds a connected set of nodes with a large sum of scores, as Heinz does
+ * exactly, in near-linear time:
+ *
+ * <ol>
+ * <li>The positive nodes are grouped into clusters, the connected
+ *     components of the graph they induce.</li>
+ * <li>A multi-source shortest path search from all clusters at once, with
+ *     the negated scores of the other nodes as costs, assigns every node
+ *     to its nearest cluster. Each edge between the regions of two
+ *     clusters is a candidate path connecting them.</li>
+ * <li>As in Kruskal’s algorithm, the candidate paths are taken cheapest
+ *     first, joining two groups of clusters whenever the path costs less
+ *     than either group is worth. The group worth the most is the initial
+ *     module.</li>
+ * <li>Local search then alternately adds neighbouring clusters worth
+ *     more than the node connecting them, and prunes the module to the
+ *     best connected subtree of a spanning tree of it, until the module no
+ *     longer improves.</li>
+ * </ol>
+ *
+ * The module is not optimal in general, but usually close, and suits
+ * previews while the exact solution is computed.
+ */
+public class MwcsHeuristic {
+	
+	/**
+	 * Maximum number of rounds of local search.
+	 */
+	private static final int MAX_ROUNDS = 20;
+	
+	private final int nodeCount;
+	/**
+	 * The neighbours of node v are adjacency[adjacencyStart[v]] up to
+	 * adjacency[adjacencyStart[v + 1]] (exclusive).
+	 */
+	private final int[] adjacencyStart;
+	private final int[] adjacency;
+	
+	private double[] scores;
+	/**
+	 * The cluster of each positive node, or -1 for the other nodes.
+	 */
+	private int[] clusterOf;
+	private int clusterCount;
+	/**
+	 * The nodes of cluster c are clusterMembers[clusterStart[c]] up to
+	 * clusterMembers[clusterStart[c + 1]] (exclusive).
+	 */
+	private int[] clusterStart;
+	private int[] clusterMembers;
+	private double[] clusterWeights;
+	
+	/**
+	 * Prepare the heuristic for the graph of a network.
+	 *
+	 * @param network  the snapshot holding the nodes and edges
+	 */
+	public MwcsHeuristic(NetworkSnapshot network) {
+		nodeCount = network.getNodeCount();
+		int edgeCount = network.getEdgeCount();
+		
+		// store the undirected graph in compressed sparse row format
+		adjacencyStart = new int[nodeCount + 1];
+		for (int i = 0; i < edgeCount; ++i) {
+			int source = network.getEdgeSource(i);
+			int target = network.getEdgeTarget(i);
+			if (source != target) {
+				++adjacencyStart[source + 1];
+				++adjacencyStart[target + 1];
+			}
+		}
+		for (int v = 0; v < nodeCount; ++v) {
+			adjacencyStart[v + 1] += adjacencyStart[v];
+		}
+		adjacency = new int[adjacencyStart[nodeCount]];
+		int[] position = Arrays.copyOf(adjacencyStart, nodeCount);
+		for (int i = 0; i < edgeCount; ++i) {
+			int source = network.getEdgeSource(i);
+			int target = network.getEdgeTarget(i);
+			if (source != target) {
+				adjacency[position[source]++] = target;
+				adjacency[position[target]++] = source;
+			}
+		}
+	}
+	
+	/**
+	 * Find a module of high score.
+	 *
+	 * @param scores  the score of each node, in the order of the snapshot
+	 *
+	 * @return  the indices of the nodes in the module, in increasing order,
+	 *          empty if no node has a positive score
+	 */
+	public int[] solve(double[] scores) {
+		if (scores.length != nodeCount) {
+			throw new IllegalArgumentException(
+					"Expected " + nodeCount + " scores, got " + scores.length);
+		}
+		this.scores = scores;
+		findClusters();
+		if (clusterCount == 0) {
+			return new int[0];
+		}
+		
+		boolean[] inModule = joinClusters();
+		double objective = objective(scores, toIndices(inModule));
+		for (int round = 0; round < MAX_ROUNDS; ++round) {
+			addNeighbours(inModule);
+			pruneToBestSubtree(inModule);
+			double improved = objective(scores, toIndices(inModule));
+			if (!(improved > objective)) {
+				break;
+			}
+			objective = improved;
+		}
+		return toIndices(inModule);
+	}
+	
+	/**
+	 * Compute the objective value of a module.
+	 *
+	 * @param scores  the score of each node
+	 * @param module  the indices of the nodes in the module
+	 *
+	 * @return  the sum of the scores of the nodes in the module
+	 */
+	public static double objective(double[] scores, int[] module) {
+		double sum = 0.0;
+		for (int v : module) {
+			sum += scores[v];
+		}
+		return sum;
+	}
+	
+	/**
+	 * Group the positive nodes into clusters, the connected components of
+	 * the subgraph they induce.
+	 */
+	private void findClusters() {
+		clusterOf = new int[nodeCount];
+		Arrays.fill(clusterOf, -1);
+		clusterCount = 0;
+		int[] members = new int[nodeCount];
+		int memberCount = 0;
+		int[] starts = new int[nodeCount + 1];
+		double[] weights = new double[nodeCount];
+		
+		for (int seed = 0; seed < nodeCount; ++seed) {
+			if (!(scores[seed] > 0.0) || clusterOf[seed] >= 0) {
+				continue;
+			}
+			// breadth-first search, using the member list as the queue
+			int cluster = clusterCount++;
+			starts[cluster] = memberCount;
+			clusterOf[seed] = cluster;
+			members[memberCount++] = seed;
+			for (int head = starts[cluster]; head < memberCount; ++head) {
+				int v = members[head];
+				weights[cluster] += scores[v];
+				for (int i = adjacencyStart[v]; i < adjacencyStart[v + 1]; ++i) {
+					int w = adjacency[i];
+					if (scores[w] > 0.0 && clusterOf[w] < 0) {
+						clusterOf[w] = cluster;
+						members[memberCount++] = w;
+					}
+				}
+			}
+		}
+		starts[clusterCount] = memberCount;
+		clusterStart = Arrays.copyOf(starts, clusterCount + 1);
+		clusterMembers = Arrays.copyOf(members, memberCount);
+		clusterWeights = Arrays.copyOf(weights, clusterCount);
+	}
+	
+	/**
+	 * Join clusters along their cheapest connecting paths, and select the
+	 * most valuable group.
+	 *
+	 * @return  the nodes of the group and its connecting paths
+	 */
+	private boolean[] joinClusters() {
+		// multi-source shortest paths from all clusters, with the cost of
+		// a path being the negated scores of the nodes on it
+		double totalWeight = 0.0;
+		for (double weight : clusterWeights) {
+			totalWeight += weight;
+		}
+		double[] distance = new double[nodeCount];
+		Arrays.fill(distance, Double.POSITIVE_INFINITY);
+		int[] nearest = new int[nodeCount];
+		Arrays.fill(nearest, -1);
+		int[] predecessor = new int[nodeCount];
+		Arrays.fill(predecessor, -1);
+		NodeQueue queue = new NodeQueue(clusterMembers.length);
+		for (int v : clusterMembers) {
+			distance[v] = 0.0;
+			nearest[v] = clusterOf[v];
+			queue.add(v, 0.0);
+		}
+		while (!queue.isEmpty()) {
+			double d = queue.peekKey();
+			int v = queue.poll();
+			if (d > distance[v]) {
+				// outdated entry
+				continue;
+			}
+			for (int i = adjacencyStart[v]; i < adjacencyStart[v + 1]; ++i) {
+				int w = adjacency[i];
+				if (clusterOf[w] >= 0) {
+					continue;
+				}
+				double dw = d - scores[w];
+				// a path costing more than all clusters together is useless
+				if (dw < distance[w] && dw < totalWeight) {
+					distance[w] = dw;
+					nearest[w] = nearest[v];
+					predecessor[w] = v;
+					queue.add(w, dw);
+				}
+			}
+		}
+		
+		// the edges between the regions of two clusters, cheapest first,
+		// as the float bits of the cost (ordered like the cost, as it is
+		// not negative) followed by the edge’s position in the adjacency
+		long[] bridges = new long[16];
+		int bridgeCount = 0;
+		for (int v = 0; v < nodeCount; ++v) {
+			if (nearest[v] < 0) {
+				continue;
+			}
+			for (int i = adjacencyStart[v]; i < adjacencyStart[v + 1]; ++i) {
+				int w = adjacency[i];
+				// consider each edge from one side only
+				if (w > v && nearest[w] >= 0 && nearest[w] != nearest[v]) {
+					float cost = (float) (distance[v] + distance[w]);
+					if (bridgeCount == bridges.length) {
+						bridges = Arrays.copyOf(bridges, 2 * bridgeCount);
+					}
+					bridges[bridgeCount++] =
+							((long) Float.floatToIntBits(cost) << 32) | i;
+				}
+			}
+		}
+		Arrays.sort(bridges, 0, bridgeCount);
+		
+		// join groups of clusters, Kruskal-style, when worthwhile
+		int[] parent = new int[clusterCount];
+		for (int c = 0; c < clusterCount; ++c) {
+			parent[c] = c;
+		}
+		double[] groupWeights = clusterWeights.clone();
+		int[] usedBridges = new int[Math.min(bridgeCount, clusterCount)];
+		int usedBridgeCount = 0;
+		for (int b = 0; b < bridgeCount; ++b) {
+			int i = (int) bridges[b];
+			int w = adjacency[i];
+			int v = findNode(i);
+			int groupV = find(parent, nearest[v]);
+			int groupW = find(parent, nearest[w]);
+			double cost = distance[v] + distance[w];
+			if (
+					groupV != groupW &&
+					cost < groupWeights[groupV] &&
+					cost < groupWeights[groupW]) {
+				parent[groupW] = groupV;
+				groupWeights[groupV] += groupWeights[groupW] - cost;
+				usedBridges[usedBridgeCount++] = i;
+			}
+		}
+		
+		// take the group worth the most, with the paths joining it
+		int best = -1;
+		for (int c = 0; c < clusterCount; ++c) {
+			if (
+					find(parent, c) == c &&
+					(best < 0 || groupWeights[c] > groupWeights[best])) {
+				best = c;
+			}
+		}
+		boolean[] inModule = new boolean[nodeCount];
+		for (int c = 0; c < clusterCount; ++c) {
+			if (find(parent, c) == best) {
+				addCluster(inModule, c);
+			}
+		}
+		for (int b = 0; b < usedBridgeCount; ++b) {
+			int i = usedBridges[b];
+			int v = findNode(i);
+			if (find(parent, nearest[v]) == best) {
+				for (int u = v; u >= 0 && !inModule[u]; u = predecessor[u]) {
+					inModule[u] = true;
+				}
+				for (
+						int u = adjacency[i];
+						u >= 0 && !inModule[u];
+						u = predecessor[u]) {
+					inModule[u] = true;
+				}
+			}
+		}
+		return inModule;
+	}
+	
+	/**
+	 * Add the neighbouring clusters that are worth more than the node
+	 * connecting them to the module.
+	 *
+	 * @param inModule  the module, to be extended
+	 */
+	private void addNeighbours(boolean[] inModule) {
+		int[] module = toIndices(inModule);
+		// the node that last counted each cluster, so it is counted once
+		int[] countedBy = new int[clusterCount];
+		Arrays.fill(countedBy, -1);
+		for (int v : module) {
+			for (int i = adjacencyStart[v]; i < adjacencyStart[v + 1]; ++i) {
+				int w = adjacency[i];
+				if (inModule[w]) {
+					continue;
+				}
+				if (clusterOf[w] >= 0) {
+					// a positive neighbour brings its whole cluster
+					addCluster(inModule, clusterOf[w]);
+					continue;
+				}
+				// a negative neighbour, worth adding for its clusters
+				double gain = scores[w];
+				for (int j = adjacencyStart[w]; j < adjacencyStart[w + 1]; ++j) {
+					int c = clusterOf[adjacency[j]];
+					if (c >= 0 && countedBy[c] != w &&
+							!inModule[adjacency[j]]) {
+						countedBy[c] = w;
+						gain += clusterWeights[c];
+					}
+				}
+				if (gain > 0.0) {
+					inModule[w] = true;
+					for (int j = adjacencyStart[w]; j < adjacencyStart[w + 1]; ++j) {
+						int c = clusterOf[adjacency[j]];
+						if (c >= 0 && !inModule[adjacency[j]]) {
+							addCluster(inModule, c);
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Reduce the module to the connected subtree of highest score of a
+	 * spanning tree of it.
+	 *
+	 * Takes a breadth-first spanning tree from the highest scoring node,
+	 * then computes for each node the best subtree rooted there, keeping
+	 * the children whose best subtrees are positive.
+	 *
+	 * @param inModule  the module, to be reduced
+	 */
+	private void pruneToBestSubtree(boolean[] inModule) {
+		int[] module = toIndices(inModule);
+		if (module.length == 0) {
+			return;
+		}
+		int root = module[0];
+		for (int v : module) {
+			if (scores[v] > scores[root]) {
+				root = v;
+			}
+		}
+		
+		// breadth-first order of the component of the root
+		int[] order = new int[module.length];
+		int[] parentOf = new int[nodeCount];
+		boolean[] visited = new boolean[nodeCount];
+		int size = 0;
+		order[size++] = root;
+		visited[root] = true;
+		parentOf[root] = -1;
+		for (int head = 0; head < size; ++head) {
+			int v = order[head];
+			for (int i = adjacencyStart[v]; i < adjacencyStart[v + 1]; ++i) {
+				int w = adjacency[i];
+				if (inModule[w] && !visited[w]) {
+					visited[w] = true;
+					parentOf[w] = v;
+					order[size++] = w;
+				}
+			}
+		}
+		
+		// best subtree values, children before parents
+		double[] value = new double[nodeCount];
+		for (int k = size - 1; k >= 0; --k) {
+			int v = order[k];
+			value[v] += scores[v];
+			if (parentOf[v] >= 0 && value[v] > 0.0) {
+				value[parentOf[v]] += value[v];
+			}
+		}
+		int best = root;
+		for (int k = 0; k < size; ++k) {
+			if (value[order[k]] > value[best]) {
+				best = order[k];
+			}
+		}
+		
+		// keep the best subtree: its root, and each node whose subtree is
+		// positive and whose parent is kept
+		for (int v : module) {
+			inModule[v] = false;
+		}
+		inModule[best] = true;
+		for (int k = 0; k < size; ++k) {
+			int v = order[k];
+			if (v != best && value[v] > 0.0 &&
+					parentOf[v] >= 0 && inModule[parentOf[v]]) {
+				inModule[v] = true;
+			}
+		}
+	}
+	
+	/**
+	 * Add all nodes of a cluster to a module.
+	 */
+	private void addCluster(boolean[] inModule, int cluster) {
+		for (int k = clusterStart[cluster]; k < clusterStart[cluster + 1]; ++k) {
+			inModule[clusterMembers[k]] = true;
+		}
+	}
+	
+	/**
+	 * @return  the node whose adjacency list holds the given position
+	 */
+	private int findNode(int position) {
+		// the last start at or before the position
+		int low = 0;
+		int high = nodeCount - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (adjacencyStart[middle] <= position) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+	
+	/**
+	 * @return  the indices of the nodes in the module, in increasing order
+	 */
+	private static int[] toIndices(boolean[] inModule) {
+		int count = 0;
+		for (boolean in : inModule) {
+			if (in) {
+				++count;
+			}
+		}
+		int[] module = new int[count];
+		for (int v = 0, k = 0; k < count; ++v) {
+			if (inModule[v]) {
+				module[k++] = v;
+			}
+		}
+		return module;
+	}
+	
+	/**
+	 * Find the representative of a group, compressing the path to it.
+	 */
+	private static int find(int[] parent, int c) {
+		int root = c;
+		while (parent[root] != root) {
+			root = parent[root];
+		}
+		while (parent[c] != root) {
+			int next = parent[c];
+			parent[c] = root;
+			c = next;
+		}
+		return root;
+	}
+	
+	/**
+	 * A binary min-heap of nodes by distance, allowing duplicate entries.
+	 */
+	private static class NodeQueue {
+		
+		private double[] keys;
+		private int[] nodes;
+		private int size = 0;
+		
+		public NodeQueue(int capacity) {
+			keys = new double[Math.max(capacity, 16)];
+			nodes = new int[keys.length];
+		}
+		
+		public boolean isEmpty() {
+			return size == 0;
+		}
+		
+		public double peekKey() {
+			return keys[0];
+		}
+		
+		public void add(int node, double key) {
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, 2 * size);
+				nodes = Arrays.copyOf(nodes, 2 * size);
+			}
+			// sift up
+			int k = size++;
+			while (k > 0) {
+				int parent = (k - 1) >>> 1;
+				if (keys[parent] <= key) {
+					break;
+				}
+				keys[k] = keys[parent];
+				nodes[k] = nodes[parent];
+				k = parent;
+			}
+			keys[k] = key;
+			nodes[k] = node;
+		}
+		
+		public int poll() {
+			int result = nodes[0];
+			--size;
+			double key = keys[size];
+			int node = nodes[size];
+			// sift down
+			int k = 0;
+			while (true) {
+				int child = 2 * k + 1;
+				if (child >= size) {
+					break;
+				}
+				if (child + 1 < size && keys[child + 1] < keys[child]) {
+					++child;
+				}
+				if (key <= keys[child]) {
+					break;
+				}
+				keys[k] = keys[child];
+				nodes[k] = nodes[child];
+				k = child;
+			}
+			keys[k] = key;
+			nodes[k] = node;
+			return result;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,339 @@
+package org.cytoscape.heinz.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The connected components of a network, to find the best module of each
+ * separately.
+ *
+ * The best module lies within a single component, so the components can
+ * be solved independently, and a component can be skipped once a module
+ * at least as good as its potential, the sum of its positive scores, has
+ * been found elsewhere. The best cluster of each component, a connected
+ * set of positive nodes, is a module too; for a component with a single
+ * cluster it is the best module, so the component need not be solved.
+ *
+ * Only components with positive nodes are kept, in order of decreasing
+ * potential.
+ */
+public class NetworkComponents {
+	
+	private final List<Component> components;
+	
+	private NetworkComponents(List<Component> components) {
+		this.components = components;
+	}
+	
+	/**
+	 * Split a network into its connected components.
+	 *
+	 * @param network  the snapshot holding the p-values and edges
+	 * @param lambda  the BUM model mixture parameter
+	 * @param a  the BUM model shape parameter
+	 * @param fdr  the false discovery rate
+	 *
+	 * @return  the components that have positive nodes
+	 */
+	public static NetworkComponents decompose(
+			NetworkSnapshot network, double lambda, double a, double fdr) {
+		int nodeCount = network.getNodeCount();
+		int edgeCount = network.getEdgeCount();
+		double[] scores =
+				LocalHeinzClient.computeScores(network, lambda, a, fdr);
+		
+		// union-find over all edges for the components, and over the
+		// edges between positive nodes for the clusters
+		int[] componentParent = new int[nodeCount];
+		int[] clusterParent = new int[nodeCount];
+		for (int v = 0; v < nodeCount; ++v) {
+			componentParent[v] = v;
+			clusterParent[v] = v;
+		}
+		for (int i = 0; i < edgeCount; ++i) {
+			int source = network.getEdgeSource(i);
+			int target = network.getEdgeTarget(i);
+			union(componentParent, source, target);
+			if (scores[source] > 0.0 && scores[target] > 0.0) {
+				union(clusterParent, source, target);
+			}
+		}
+		
+		// the potential and best cluster of each component, by its root
+		double[] potentials = new double[nodeCount];
+		double[] clusterWeights = new double[nodeCount];
+		int[] clusterCounts = new int[nodeCount];
+		int[] bestClusters = new int[nodeCount];
+		Arrays.fill(bestClusters, -1);
+		for (int v = 0; v < nodeCount; ++v) {
+			if (scores[v] > 0.0) {
+				potentials[find(componentParent, v)] += scores[v];
+				int cluster = find(clusterParent, v);
+				if (cluster == v) {
+					++clusterCounts[find(componentParent, v)];
+				}
+				clusterWeights[cluster] += scores[v];
+			}
+		}
+		for (int v = 0; v < nodeCount; ++v) {
+			if (scores[v] > 0.0 && find(clusterParent, v) == v) {
+				int root = find(componentParent, v);
+				if (
+						bestClusters[root] < 0 ||
+						clusterWeights[v] > clusterWeights[bestClusters[root]]) {
+					bestClusters[root] = v;
+				}
+			}
+		}
+		
+		// number the components with positive nodes, and each of their
+		// nodes within the component
+		int[] componentOf = new int[nodeCount];
+		int[] localIndex = new int[nodeCount];
+		int[] sizes = new int[nodeCount];
+		int componentCount = 0;
+		int[] roots = new int[nodeCount];
+		for (int v = 0; v < nodeCount; ++v) {
+			int root = find(componentParent, v);
+			if (!(potentials[root] > 0.0)) {
+				componentOf[v] = -1;
+				continue;
+			}
+			if (root == v) {
+				roots[componentCount] = v;
+				// store the number of the component at its root for now
+				localIndex[v] = componentCount++;
+			}
+		}
+		for (int v = 0; v < nodeCount; ++v) {
+			int root = find(componentParent, v);
+			if (potentials[root] > 0.0) {
+				componentOf[v] = localIndex[root];
+			}
+		}
+		for (int v = 0; v < nodeCount; ++v) {
+			if (componentOf[v] >= 0) {
+				localIndex[v] = sizes[componentOf[v]]++;
+			}
+		}
+		
+		long[][] nodeSuids = new long[componentCount][];
+		double[][] pValues = new double[componentCount][];
+		for (int c = 0; c < componentCount; ++c) {
+			nodeSuids[c] = new long[sizes[c]];
+			pValues[c] = new double[sizes[c]];
+		}
+		for (int v = 0; v < nodeCount; ++v) {
+			int c = componentOf[v];
+			if (c >= 0) {
+				nodeSuids[c][localIndex[v]] = network.getNodeSuid(v);
+				pValues[c][localIndex[v]] = network.getPValue(v);
+			}
+		}
+		int[] edgeCounts = new int[componentCount];
+		for (int i = 0; i < edgeCount; ++i) {
+			int c = componentOf[network.getEdgeSource(i)];
+			if (c >= 0) {
+				++edgeCounts[c];
+			}
+		}
+		int[][] edgeSources = new int[componentCount][];
+		int[][] edgeTargets = new int[componentCount][];
+		for (int c = 0; c < componentCount; ++c) {
+			edgeSources[c] = new int[edgeCounts[c]];
+			edgeTargets[c] = new int[edgeCounts[c]];
+			edgeCounts[c] = 0;
+		}
+		for (int i = 0; i < edgeCount; ++i) {
+			int source = network.getEdgeSource(i);
+			int c = componentOf[source];
+			if (c >= 0) {
+				edgeSources[c][edgeCounts[c]] = localIndex[source];
+				edgeTargets[c][edgeCounts[c]] =
+						localIndex[network.getEdgeTarget(i)];
+				++edgeCounts[c];
+			}
+		}
+		
+		// the nodes of the best cluster of each component
+		int[] clusterSizes = new int[componentCount];
+		for (int v = 0; v < nodeCount; ++v) {
+			if (isInBestCluster(
+					v, scores, componentOf, clusterParent, bestClusters, roots)) {
+				++clusterSizes[componentOf[v]];
+			}
+		}
+		long[][] clusters = new long[componentCount][];
+		for (int c = 0; c < componentCount; ++c) {
+			clusters[c] = new long[clusterSizes[c]];
+			clusterSizes[c] = 0;
+		}
+		for (int v = 0; v < nodeCount; ++v) {
+			if (isInBestCluster(
+					v, scores, componentOf, clusterParent, bestClusters, roots)) {
+				int c = componentOf[v];
+				clusters[c][clusterSizes[c]++] = network.getNodeSuid(v);
+			}
+		}
+		
+		List<Component> components = new ArrayList<Component>(componentCount);
+		for (int c = 0; c < componentCount; ++c) {
+			int root = roots[c];
+			components.add(new Component(
+					network.derive(
+							nodeSuids[c],
+							pValues[c],
+							edgeSources[c],
+							edgeTargets[c]),
+					potentials[root],
+					clusterWeights[bestClusters[root]],
+					clusters[c],
+					clusterCounts[root] == 1));
+		}
+		Collections.sort(components, new Comparator<Component>() {
+			@Override
+			public int compare(Component component, Component other) {
+				return Double.compare(
+						other.getPotential(), component.getPotential());
+			}
+		});
+		return new NetworkComponents(components);
+	}
+	
+	/**
+	 * @return  the components with positive nodes, in order of decreasing
+	 *          potential
+	 */
+	public List<Component> getComponents() {
+		return components;
+	}
+	
+	/**
+	 * @return  the component whose best cluster is worth the most, or null
+	 *          if there are no components
+	 */
+	public Component getBestClusterComponent() {
+		Component best = null;
+		for (Component component : components) {
+			if (
+					best == null ||
+					component.getClusterWeight() > best.getClusterWeight()) {
+				best = component;
+			}
+		}
+		return best;
+	}
+	
+	/**
+	 * A connected component with positive nodes.
+	 */
+	public static class Component {
+		
+		private final NetworkSnapshot network;
+		private final double potential;
+		private final double clusterWeight;
+		private final long[] cluster;
+		private final boolean solved;
+		
+		private Component(
+				NetworkSnapshot network,
+				double potential,
+				double clusterWeight,
+				long[] cluster,
+				boolean solved) {
+			this.network = network;
+			this.potential = potential;
+			this.clusterWeight = clusterWeight;
+			this.cluster = cluster;
+			this.solved = solved;
+		}
+		
+		/**
+		 * @return  the nodes and edges of the component
+		 */
+		public NetworkSnapshot getNetwork() {
+			return network;
+		}
+		
+		/**
+		 * @return  the sum of the positive scores, an upper bound for the
+		 *          objective value of any module in the component
+		 */
+		public double getPotential() {
+			return potential;
+		}
+		
+		/**
+		 * @return  the objective value of the best cluster
+		 */
+		public double getClusterWeight() {
+			return clusterWeight;
+		}
+		
+		/**
+		 * @return  the SUIDs of the nodes of the best cluster
+		 */
+		public long[] getCluster() {
+			return cluster;
+		}
+		
+		/**
+		 * @return  whether the best cluster is the best module, as it is
+		 *          the only cluster of the component
+		 */
+		public boolean isSolved() {
+			return solved;
+		}
+		
+	}
+	
+	/**
+	 * @return  whether a node is in the best cluster of its component
+	 */
+	private static boolean isInBestCluster(
+			int v,
+			double[] scores,
+			int[] componentOf,
+			int[] clusterParent,
+			int[] bestClusters,
+			int[] roots) {
+		return
+				scores[v] > 0.0 &&
+				find(clusterParent, v) == bestClusters[roots[componentOf[v]]];
+	}
+	
+	/**
+	 * Find the root of the tree of a node, halving the path on the way.
+	 *
+	 * @param parent  the parent of each node
+	 * @param v  a node
+	 *
+	 * @return  the root
+	 */
+	private static int find(int[] parent, int v) {
+		while (parent[v] != v) {
+			parent[v] = parent[parent[v]];
+			v = parent[v];
+		}
+		return v;
+	}
+	
+	/**
+	 * Join the trees of two nodes.
+	 *
+	 * @param parent  the parent of each node
+	 * @param v  a node
+	 * @param w  another node
+	 */
+	private static void union(int[] parent, int v, int w) {
+		int rootV = find(parent, v);
+		int rootW = find(parent, w);
+		if (rootV != rootW) {
+			parent[rootW] = rootV;
+		}
+	}
+	
+}
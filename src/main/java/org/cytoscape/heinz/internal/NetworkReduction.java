@@ -0,0 +1,611 @@
+package org.cytoscape.heinz.internal;
+
+import java.util.Arrays;
+
+/**
+ * A smaller network with the same best module, to send to Heinz instead.
+ *
+ * Scores the nodes as Heinz does, then applies reductions that cannot
+ * change the objective value of the best module, as long as some node
+ * scores positive:
+ *
+ * <ol>
+ * <li>Adjacent positive nodes are contracted into one node scoring their
+ *     sum, as a module containing one of them only gains by including
+ *     the others.</li>
+ * <li>Negative nodes with at most one neighbour are removed, repeatedly,
+ *     as a module only loses by including them.</li>
+ * <li>Chains of negative nodes with two neighbours each are removed if
+ *     both ends of the chain are the same node or adjacent, and otherwise
+ *     contracted into one node scoring their sum, as a module either
+ *     passes through the whole chain or is better off without it.</li>
+ * </ol>
+ *
+ * A contracted node gets the SUID of its first node, and the p-value for
+ * which Heinz scores it as the sum of its nodes. Where that p-value would
+ * not be a normal number below 1, the nodes are contracted into several
+ * nodes instead. A module found in the reduced network is mapped back to
+ * the nodes of the original network with expand().
+ */
+public class NetworkReduction {
+	
+	private final NetworkSnapshot network;
+	private final NetworkSnapshot reducedNetwork;
+	/**
+	 * The original nodes of reduced node r are members[memberStart[r]] up
+	 * to members[memberStart[r + 1]] (exclusive), or null if the network
+	 * could not be reduced.
+	 */
+	private final int[] memberStart;
+	private final int[] members;
+	
+	private NetworkReduction(
+			NetworkSnapshot network,
+			NetworkSnapshot reducedNetwork,
+			int[] memberStart,
+			int[] members) {
+		this.network = network;
+		this.reducedNetwork = reducedNetwork;
+		this.memberStart = memberStart;
+		this.members = members;
+	}
+	
+	/**
+	 * Reduce a network for a Heinz run.
+	 *
+	 * @param network  the snapshot holding the p-values and edges
+	 * @param lambda  the BUM model mixture parameter
+	 * @param a  the BUM model shape parameter
+	 * @param fdr  the false discovery rate
+	 *
+	 * @return  the reduction, with the network itself as the reduced
+	 *          network if no node scores positive
+	 */
+	public static NetworkReduction reduce(
+			NetworkSnapshot network, double lambda, double a, double fdr) {
+		Reducer reducer = new Reducer(network, lambda, a, fdr);
+		if (!reducer.hasPositiveNode()) {
+			// the best module is a single node, of any score
+			return new NetworkReduction(network, network, null, null);
+		}
+		reducer.contractPositiveNodes();
+		reducer.considerAllLeaves();
+		reducer.removeLeaves();
+		while (reducer.removeRedundantChains()) {
+			// removing chains can leave more chains to remove
+		}
+		reducer.contractChains();
+		return reducer.build();
+	}
+	
+	/**
+	 * @return  the network that was reduced
+	 */
+	public NetworkSnapshot getNetwork() {
+		return network;
+	}
+	
+	/**
+	 * @return  the reduced network, to send to Heinz
+	 */
+	public NetworkSnapshot getReducedNetwork() {
+		return reducedNetwork;
+	}
+	
+	/**
+	 * Map a module in the reduced network to the original network.
+	 *
+	 * @param module  the SUIDs of the nodes of the module, in the reduced
+	 *                network
+	 *
+	 * @return  the SUIDs of the nodes they stand for
+	 *
+	 * @throws IllegalArgumentException  if a node is not in the reduced
+	 *                                   network
+	 */
+	public long[] expand(long[] module) {
+		if (members == null) {
+			return module.clone();
+		}
+		SuidIndex index = reducedNetwork.getNodeIndex();
+		int[] reduced = new int[module.length];
+		int size = 0;
+		for (int k = 0; k < module.length; ++k) {
+			reduced[k] = index.getId(module[k]);
+			if (reduced[k] < 0) {
+				throw new IllegalArgumentException(
+						"Module node " + module[k] +
+						" not in the reduced network.");
+			}
+			size += memberStart[reduced[k] + 1] - memberStart[reduced[k]];
+		}
+		long[] expanded = new long[size];
+		int position = 0;
+		for (int r : reduced) {
+			for (int i = memberStart[r]; i < memberStart[r + 1]; ++i) {
+				expanded[position++] = network.getNodeSuid(members[i]);
+			}
+		}
+		return expanded;
+	}
+	
+	/**
+	 * @return  the sizes of the reduced and original networks
+	 */
+	@Override
+	public String toString() {
+		return
+				reducedNetwork.getNodeCount() + " of " +
+				network.getNodeCount() + " nodes, " +
+				reducedNetwork.getEdgeCount() + " of " +
+				network.getEdgeCount() + " edges";
+	}
+	
+	/**
+	 * The state of a reduction in progress.
+	 *
+	 * Works on groups of nodes: first the positive nodes are contracted
+	 * into groups, each other node forming a group of its own, then groups
+	 * are removed, and finally chains of groups are merged.
+	 */
+	private static class Reducer {
+		
+		private final NetworkSnapshot network;
+		private final BumModel model;
+		private final double threshold;
+		private final double[] scores;
+		
+		private int groupCount = 0;
+		private int[] groupOf;
+		private double[] groupScores;
+		/**
+		 * The distinct neighbours of group g are, in increasing order,
+		 * neighbours[neighbourStart[g]] up to neighbours[neighbourStart[g + 1]]
+		 * (exclusive), including removed groups.
+		 */
+		private int[] neighbourStart;
+		private int[] neighbours;
+		private boolean[] removed;
+		/**
+		 * The number of neighbours of each group that have not been removed.
+		 */
+		private int[] degrees;
+		/**
+		 * The group each group is merged into; itself if not merged.
+		 */
+		private int[] mergedInto;
+		
+		/**
+		 * Groups removed whose neighbours still need to be updated.
+		 */
+		private int[] pending;
+		private int pendingCount = 0;
+		/**
+		 * The groups of the chain found last, in order along the chain.
+		 */
+		private int[] chain;
+		private int chainLength = 0;
+		
+		/**
+		 * @param network  the snapshot holding the p-values and edges
+		 * @param lambda  the BUM model mixture parameter
+		 * @param a  the BUM model shape parameter
+		 * @param fdr  the false discovery rate
+		 */
+		Reducer(NetworkSnapshot network, double lambda, double a, double fdr) {
+			this.network = network;
+			model = new BumModel(lambda, a, Double.NaN);
+			threshold = model.fdrThreshold(fdr);
+			scores = LocalHeinzClient.computeScores(network, lambda, a, fdr);
+		}
+		
+		/**
+		 * @return  whether any node scores positive
+		 */
+		boolean hasPositiveNode() {
+			for (double score : scores) {
+				if (score > 0.0) {
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		/**
+		 * Contract the positive nodes into groups, breadth first, and build
+		 * the graph of the groups.
+		 */
+		void contractPositiveNodes() {
+			int nodeCount = network.getNodeCount();
+			int edgeCount = network.getEdgeCount();
+			
+			// the original graph, in compressed sparse row format
+			int[] adjacencyStart = new int[nodeCount + 1];
+			for (int i = 0; i < edgeCount; ++i) {
+				++adjacencyStart[network.getEdgeSource(i) + 1];
+				++adjacencyStart[network.getEdgeTarget(i) + 1];
+			}
+			for (int v = 0; v < nodeCount; ++v) {
+				adjacencyStart[v + 1] += adjacencyStart[v];
+			}
+			int[] adjacency = new int[adjacencyStart[nodeCount]];
+			int[] position = Arrays.copyOf(adjacencyStart, nodeCount);
+			for (int i = 0; i < edgeCount; ++i) {
+				int source = network.getEdgeSource(i);
+				int target = network.getEdgeTarget(i);
+				adjacency[position[source]++] = target;
+				adjacency[position[target]++] = source;
+			}
+			
+			groupOf = new int[nodeCount];
+			Arrays.fill(groupOf, -1);
+			groupScores = new double[nodeCount];
+			int[] queue = new int[nodeCount];
+			for (int seed = 0; seed < nodeCount; ++seed) {
+				if (groupOf[seed] >= 0) {
+					continue;
+				}
+				int group = groupCount++;
+				groupOf[seed] = group;
+				groupScores[group] = scores[seed];
+				if (!(scores[seed] > 0.0)) {
+					continue;
+				}
+				int size = 0;
+				queue[size++] = seed;
+				for (int head = 0; head < size; ++head) {
+					int v = queue[head];
+					for (int i = adjacencyStart[v]; i < adjacencyStart[v + 1]; ++i) {
+						int w = adjacency[i];
+						double sum = groupScores[group] + scores[w];
+						// nodes that do not fit are left for another group
+						if (
+								scores[w] > 0.0 &&
+								groupOf[w] < 0 &&
+								isRepresentable(sum)) {
+							groupOf[w] = group;
+							groupScores[group] = sum;
+							queue[size++] = w;
+						}
+					}
+				}
+			}
+			
+			// the graph of the groups, without duplicate edges
+			neighbourStart = new int[groupCount + 1];
+			for (int i = 0; i < edgeCount; ++i) {
+				int source = groupOf[network.getEdgeSource(i)];
+				int target = groupOf[network.getEdgeTarget(i)];
+				if (source != target) {
+					++neighbourStart[source + 1];
+					++neighbourStart[target + 1];
+				}
+			}
+			for (int g = 0; g < groupCount; ++g) {
+				neighbourStart[g + 1] += neighbourStart[g];
+			}
+			int[] groupAdjacency = new int[neighbourStart[groupCount]];
+			position = Arrays.copyOf(neighbourStart, groupCount);
+			for (int i = 0; i < edgeCount; ++i) {
+				int source = groupOf[network.getEdgeSource(i)];
+				int target = groupOf[network.getEdgeTarget(i)];
+				if (source != target) {
+					groupAdjacency[position[source]++] = target;
+					groupAdjacency[position[target]++] = source;
+				}
+			}
+			degrees = new int[groupCount];
+			int distinctCount = 0;
+			for (int g = 0; g < groupCount; ++g) {
+				int start = neighbourStart[g];
+				int end = neighbourStart[g + 1];
+				Arrays.sort(groupAdjacency, start, end);
+				neighbourStart[g] = distinctCount;
+				for (int i = start; i < end; ++i) {
+					if (i == start || groupAdjacency[i] != groupAdjacency[i - 1]) {
+						groupAdjacency[distinctCount++] = groupAdjacency[i];
+					}
+				}
+				degrees[g] = distinctCount - neighbourStart[g];
+			}
+			neighbourStart[groupCount] = distinctCount;
+			neighbours = Arrays.copyOf(groupAdjacency, distinctCount);
+			
+			removed = new boolean[groupCount];
+			mergedInto = new int[groupCount];
+			for (int g = 0; g < groupCount; ++g) {
+				mergedInto[g] = g;
+			}
+			pending = new int[groupCount];
+			chain = new int[groupCount];
+		}
+		
+		/**
+		 * Queue every negative group with at most one neighbour for removal.
+		 */
+		void considerAllLeaves() {
+			for (int g = 0; g < groupCount; ++g) {
+				considerLeaf(g);
+			}
+		}
+		
+		/**
+		 * Remove the queued groups, and the groups that become negative
+		 * leaves as a result.
+		 */
+		void removeLeaves() {
+			while (pendingCount > 0) {
+				int g = pending[--pendingCount];
+				for (int i = neighbourStart[g]; i < neighbourStart[g + 1]; ++i) {
+					int h = neighbours[i];
+					if (!removed[h]) {
+						--degrees[h];
+						considerLeaf(h);
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Remove the chains that are of no use to any module: those that
+		 * form a cycle of their own, lead back to where they start, or run
+		 * alongside an edge.
+		 *
+		 * Negative groups left as leaves are removed along the way.
+		 *
+		 * @return  whether any chain was removed, so that there may be
+		 *          more to remove
+		 */
+		boolean removeRedundantChains() {
+			boolean changed = false;
+			boolean[] visited = new boolean[groupCount];
+			for (int g = 0; g < groupCount; ++g) {
+				if (visited[g] || !isChainNode(g)) {
+					continue;
+				}
+				int[] ends = findChain(g, visited);
+				if (
+						ends == null ||
+						ends[0] == ends[1] ||
+						isAdjacent(ends[0], ends[1])) {
+					for (int k = 0; k < chainLength; ++k) {
+						removed[chain[k]] = true;
+					}
+					if (ends != null) {
+						for (int end : ends) {
+							--degrees[end];
+							considerLeaf(end);
+						}
+					}
+					// keep the degrees up to date for the next chain
+					removeLeaves();
+					changed = true;
+				}
+			}
+			return changed;
+		}
+		
+		/**
+		 * Merge each remaining chain into as few groups as possible.
+		 */
+		void contractChains() {
+			boolean[] visited = new boolean[groupCount];
+			for (int g = 0; g < groupCount; ++g) {
+				if (visited[g] || !isChainNode(g)) {
+					continue;
+				}
+				findChain(g, visited);
+				int first = chain[0];
+				double sum = groupScores[first];
+				for (int k = 1; k < chainLength; ++k) {
+					int h = chain[k];
+					if (isRepresentable(sum + groupScores[h])) {
+						mergedInto[h] = first;
+						sum += groupScores[h];
+					} else {
+						// start a new group where the sum gets too low
+						first = h;
+						sum = groupScores[h];
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Build the reduced network from the groups that are left.
+		 *
+		 * @return  the reduction
+		 */
+		NetworkReduction build() {
+			int nodeCount = network.getNodeCount();
+			
+			// number the merged groups, i.e. the nodes of the reduced network
+			int[] reducedOf = new int[groupCount];
+			int reducedCount = 0;
+			for (int g = 0; g < groupCount; ++g) {
+				reducedOf[g] = removed[g] || mergedInto[g] != g ?
+						-1 : reducedCount++;
+			}
+			for (int g = 0; g < groupCount; ++g) {
+				if (!removed[g] && mergedInto[g] != g) {
+					reducedOf[g] = reducedOf[mergedInto[g]];
+				}
+			}
+			
+			// the original nodes of each reduced node, in table order
+			int[] memberStart = new int[reducedCount + 1];
+			double[] reducedScores = new double[reducedCount];
+			for (int v = 0; v < nodeCount; ++v) {
+				int r = reducedOf[groupOf[v]];
+				if (r >= 0) {
+					++memberStart[r + 1];
+					reducedScores[r] += scores[v];
+				}
+			}
+			for (int r = 0; r < reducedCount; ++r) {
+				memberStart[r + 1] += memberStart[r];
+			}
+			int[] members = new int[memberStart[reducedCount]];
+			int[] position = Arrays.copyOf(memberStart, reducedCount);
+			for (int v = 0; v < nodeCount; ++v) {
+				int r = reducedOf[groupOf[v]];
+				if (r >= 0) {
+					members[position[r]++] = v;
+				}
+			}
+			
+			long[] nodeSuids = new long[reducedCount];
+			double[] pValues = new double[reducedCount];
+			for (int r = 0; r < reducedCount; ++r) {
+				int first = members[memberStart[r]];
+				nodeSuids[r] = network.getNodeSuid(first);
+				// keep the p-values of single nodes exactly
+				pValues[r] = memberStart[r + 1] - memberStart[r] == 1 ?
+						network.getPValue(first) :
+						model.pValue(reducedScores[r], threshold);
+			}
+			
+			// each edge between groups once, unless within a merged chain
+			int edgeCount = 0;
+			int[] edgeSources = new int[16];
+			int[] edgeTargets = new int[16];
+			for (int g = 0; g < groupCount; ++g) {
+				if (removed[g]) {
+					continue;
+				}
+				for (int i = neighbourStart[g]; i < neighbourStart[g + 1]; ++i) {
+					int h = neighbours[i];
+					if (h > g && !removed[h] && reducedOf[h] != reducedOf[g]) {
+						if (edgeCount == edgeSources.length) {
+							edgeSources = Arrays.copyOf(edgeSources, 2 * edgeCount);
+							edgeTargets = Arrays.copyOf(edgeTargets, 2 * edgeCount);
+						}
+						edgeSources[edgeCount] = reducedOf[g];
+						edgeTargets[edgeCount] = reducedOf[h];
+						++edgeCount;
+					}
+				}
+			}
+			
+			return new NetworkReduction(
+					network,
+					network.derive(
+							nodeSuids,
+							pValues,
+							Arrays.copyOf(edgeSources, edgeCount),
+							Arrays.copyOf(edgeTargets, edgeCount)),
+					memberStart,
+					members);
+		}
+		
+		/**
+		 * Queue a group for removal if it is a negative leaf.
+		 *
+		 * @param g  the group
+		 */
+		private void considerLeaf(int g) {
+			if (!removed[g] && !(groupScores[g] > 0.0) && degrees[g] <= 1) {
+				removed[g] = true;
+				pending[pendingCount++] = g;
+			}
+		}
+		
+		/**
+		 * @param g  a group
+		 *
+		 * @return  whether it is a negative group with two neighbours left
+		 */
+		private boolean isChainNode(int g) {
+			return !removed[g] && !(groupScores[g] > 0.0) && degrees[g] == 2;
+		}
+		
+		/**
+		 * Find the chain through a group, storing it in the chain array.
+		 *
+		 * @param start  a group for which isChainNode() holds
+		 * @param visited  the groups of chains found so far, to be updated
+		 *
+		 * @return  the groups at the two ends, outside the chain, or null
+		 *          if the chain is a cycle
+		 */
+		private int[] findChain(int start, boolean[] visited) {
+			int[] sides = new int[2];
+			int count = 0;
+			for (int i = neighbourStart[start]; i < neighbourStart[start + 1]; ++i) {
+				if (!removed[neighbours[i]]) {
+					sides[count++] = neighbours[i];
+				}
+			}
+			visited[start] = true;
+			chainLength = 0;
+			int first = walk(start, sides[0], visited);
+			if (first < 0) {
+				chain[chainLength++] = start;
+				return null;
+			}
+			// the first side was walked away from the start
+			for (int k = 0, l = chainLength - 1; k < l; ++k, --l) {
+				int swap = chain[k];
+				chain[k] = chain[l];
+				chain[l] = swap;
+			}
+			chain[chainLength++] = start;
+			int second = walk(start, sides[1], visited);
+			return new int[] {first, second};
+		}
+		
+		/**
+		 * Walk along a chain, adding its groups to the chain array.
+		 *
+		 * @param start  the group the walk starts from
+		 * @param next  the neighbour to walk to first
+		 * @param visited  the groups of chains found so far, to be updated
+		 *
+		 * @return  the group where the chain ends, or -1 if the walk got
+		 *          back to the start
+		 */
+		private int walk(int start, int next, boolean[] visited) {
+			int previous = start;
+			int current = next;
+			while (current != start && isChainNode(current)) {
+				visited[current] = true;
+				chain[chainLength++] = current;
+				int following = -1;
+				for (int i = neighbourStart[current]; i < neighbourStart[current + 1]; ++i) {
+					int h = neighbours[i];
+					if (!removed[h] && h != previous) {
+						following = h;
+						break;
+					}
+				}
+				previous = current;
+				current = following;
+			}
+			return current == start ? -1 : current;
+		}
+		
+		/**
+		 * @param g  a group that has not been removed
+		 * @param h  another group that has not been removed
+		 *
+		 * @return  whether the groups are adjacent
+		 */
+		private boolean isAdjacent(int g, int h) {
+			return Arrays.binarySearch(
+					neighbours, neighbourStart[g], neighbourStart[g + 1], h) >= 0;
+		}
+		
+		/**
+		 * @param score  the score of a group
+		 *
+		 * @return  whether a p-value gives that score within the range
+		 *          Heinz accepts
+		 */
+		private boolean isRepresentable(double score) {
+			double pValue = model.pValue(score, threshold);
+			return pValue >= Double.MIN_NORMAL && pValue < 1.0;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,411 @@
+package org.cytoscape.heinz.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.cytoscape.model.CyEdge;
+import org.cytoscape.model.CyNetwork;
+import org.cytoscape.model.CyRow;
+import org.cytoscape.model.CyTable;
+
+/**
+ * The nodes, p-values and edges of a network, captured once per workflow.
+ *
+ * The node table is read a single time, into primitive arrays: the node
+ * SUIDs and their p-values in table order, and the edges as pairs of
+ * indices into those arrays. Validation, BUM model fitting, cache lookups
+ * and the files sent to Heinz all work from the snapshot, rather than each
+ * going through the rows and boxed values of the table again.
+ */
+public class NetworkSnapshot {
+	
+	/**
+	 * Number of p-values below which validation is not worth spreading
+	 * over several threads.
+	 */
+	private static final int PARALLEL_THRESHOLD = 256 * 1024;
+	
+	private final CyTable nodeTable;
+	private final String pValueColumnName;
+	private final long[] nodeSuids;
+	/**
+	 * The p-values, NaN where missing.
+	 */
+	private final double[] pValues;
+	private final int[] edgeSources;
+	private final int[] edgeTargets;
+	private final SuidIndex nodeIndex;
+	/**
+	 * Time spent reading the network and validating the p-values, in
+	 * nanoseconds.
+	 */
+	private volatile long validationTime = 0;
+	
+	private NetworkSnapshot(
+			CyTable nodeTable,
+			String pValueColumnName,
+			long[] nodeSuids,
+			double[] pValues,
+			int[] edgeSources,
+			int[] edgeTargets,
+			SuidIndex nodeIndex) {
+		this.nodeTable = nodeTable;
+		this.pValueColumnName = pValueColumnName;
+		this.nodeSuids = nodeSuids;
+		this.pValues = pValues;
+		this.edgeSources = edgeSources;
+		this.edgeTargets = edgeTargets;
+		this.nodeIndex = nodeIndex;
+	}
+	
+	/**
+	 * Capture the nodes, p-values and edges of a network.
+	 *
+	 * @param network  the network
+	 * @param pValueColumnName  the node table column holding the p-values
+	 *
+	 * @return  the snapshot
+	 *
+	 * @throws IllegalArgumentException  if the node table is not keyed by
+	 *                                   SUID, or an edge has an unknown node
+	 */
+	public static NetworkSnapshot capture(
+			CyNetwork network, String pValueColumnName) {
+		return capture(
+				network, Collections.singletonList(pValueColumnName)).get(0);
+	}
+	
+	/**
+	 * Capture a network with several columns of p-values, e.g. one per
+	 * contrast of an experiment.
+	 *
+	 * The table and the edges are read once for all columns. The snapshots
+	 * share their nodes and edges, so that files encoded from the graph of
+	 * one, such as the edge file, serve for all of them.
+	 *
+	 * @param network  the network
+	 * @param pValueColumnNames  the node table columns holding the p-values
+	 *
+	 * @return  a snapshot per column, in the same order
+	 *
+	 * @throws IllegalArgumentException  if the node table is not keyed by
+	 *                                   SUID, or an edge has an unknown node
+	 */
+	public static List<NetworkSnapshot> capture(
+			CyNetwork network, List<String> pValueColumnNames) {
+		long start = System.nanoTime();
+		CyTable nodeTable = network.getDefaultNodeTable();
+		SwHeinzClient.checkPrimaryKey(nodeTable);
+		
+		int columnCount = pValueColumnNames.size();
+		List<CyRow> nodeRows = nodeTable.getAllRows();
+		int nodeCount = nodeRows.size();
+		long[] nodeSuids = new long[nodeCount];
+		double[][] pValues = new double[columnCount][nodeCount];
+		for (int i = 0; i < nodeCount; ++i) {
+			CyRow nodeRow = nodeRows.get(i);
+			nodeSuids[i] = nodeRow.get("SUID", Long.class);
+			for (int column = 0; column < columnCount; ++column) {
+				Double pValue = nodeRow.get(
+						pValueColumnNames.get(column), Double.class);
+				pValues[column][i] = pValue == null ? Double.NaN : pValue;
+			}
+		}
+		SuidIndex nodeIndex = new SuidIndex(nodeSuids);
+		
+		List<CyEdge> edgeList = network.getEdgeList();
+		int edgeCount = edgeList.size();
+		int[] edgeSources = new int[edgeCount];
+		int[] edgeTargets = new int[edgeCount];
+		for (int i = 0; i < edgeCount; ++i) {
+			CyEdge edge = edgeList.get(i);
+			edgeSources[i] = getIndex(nodeIndex, edge.getSource().getSUID());
+			edgeTargets[i] = getIndex(nodeIndex, edge.getTarget().getSUID());
+		}
+		
+		// each snapshot counts the whole capture, as each needed all of it
+		long captureTime = System.nanoTime() - start;
+		List<NetworkSnapshot> snapshots =
+				new ArrayList<NetworkSnapshot>(columnCount);
+		for (int column = 0; column < columnCount; ++column) {
+			NetworkSnapshot snapshot = new NetworkSnapshot(
+					nodeTable,
+					pValueColumnNames.get(column),
+					nodeSuids,
+					pValues[column],
+					edgeSources,
+					edgeTargets,
+					nodeIndex);
+			snapshot.validationTime = captureTime;
+			snapshots.add(snapshot);
+		}
+		return snapshots;
+	}
+	
+	/**
+	 * Create a snapshot of a graph that is not in Cytoscape, e.g. a
+	 * synthetic one for benchmarks.
+	 *
+	 * Without a node table, invalid p-values are reported by node SUID
+	 * rather than by name.
+	 *
+	 * @param nodeSuids  the SUIDs of its nodes
+	 * @param pValues  the p-values of its nodes
+	 * @param edgeSources  the index of the source node of each edge
+	 * @param edgeTargets  the index of the target node of each edge
+	 *
+	 * @return  the snapshot
+	 */
+	static NetworkSnapshot create(
+			long[] nodeSuids,
+			double[] pValues,
+			int[] edgeSources,
+			int[] edgeTargets) {
+		return new NetworkSnapshot(
+				null,
+				null,
+				nodeSuids,
+				pValues,
+				edgeSources,
+				edgeTargets,
+				new SuidIndex(nodeSuids));
+	}
+	
+	/**
+	 * Create a snapshot of another graph on the same node table, e.g. a
+	 * reduced version of this network.
+	 *
+	 * @param nodeSuids  the SUIDs of its nodes, each in the node table
+	 * @param pValues  the p-values of its nodes
+	 * @param edgeSources  the index of the source node of each edge
+	 * @param edgeTargets  the index of the target node of each edge
+	 *
+	 * @return  the snapshot
+	 */
+	NetworkSnapshot derive(
+			long[] nodeSuids,
+			double[] pValues,
+			int[] edgeSources,
+			int[] edgeTargets) {
+		return new NetworkSnapshot(
+				nodeTable,
+				pValueColumnName,
+				nodeSuids,
+				pValues,
+				edgeSources,
+				edgeTargets,
+				new SuidIndex(nodeSuids));
+	}
+	
+	/**
+	 * Check that every node has a p-value strictly between 0 and 1.
+	 *
+	 * Large networks are checked in parallel, in one chunk per processor.
+	 *
+	 * @throws IllegalArgumentException  naming the first node without a
+	 *                                   valid p-value, or giving its SUID
+	 *                                   if there is no node table
+	 */
+	public void validatePValues() {
+		long start = System.nanoTime();
+		int invalid = findInvalidPValue();
+		validationTime += System.nanoTime() - start;
+		if (invalid < 0) {
+			return;
+		}
+		if (nodeTable == null) {
+			// no names to report, so name the node by its SUID
+			if (Double.isNaN(pValues[invalid])) {
+				throw new IllegalArgumentException(
+						"p-value for node " + nodeSuids[invalid] + " missing.");
+			}
+			throw new IllegalArgumentException(
+					"Invalid p-value for node " + nodeSuids[invalid] + ".");
+		}
+		CyRow row = nodeTable.getRow(nodeSuids[invalid]);
+		String name = row.get(CyNetwork.NAME, String.class);
+		if (!row.isSet(pValueColumnName)) {
+			throw new IllegalArgumentException(
+					"p-value for node ‘" + name + "’ missing.");
+		}
+		throw new IllegalArgumentException(
+				"Invalid p-value for node ‘" + name + "’.");
+	}
+	
+	/**
+	 * @return  the time spent capturing the network and validating its
+	 *          p-values, in nanoseconds
+	 */
+	public long getValidationTime() {
+		return validationTime;
+	}
+	
+	/**
+	 * @return  the node table column holding the p-values
+	 */
+	public String getPValueColumnName() {
+		return pValueColumnName;
+	}
+	
+	/**
+	 * @return  the number of nodes
+	 */
+	public int getNodeCount() {
+		return nodeSuids.length;
+	}
+	
+	/**
+	 * @param index  the index of a node, in table order
+	 *
+	 * @return  the SUID of the node
+	 */
+	public long getNodeSuid(int index) {
+		return nodeSuids[index];
+	}
+	
+	/**
+	 * @param index  the index of a node, in table order
+	 *
+	 * @return  the p-value of the node, or NaN if it has none
+	 */
+	public double getPValue(int index) {
+		return pValues[index];
+	}
+	
+	/**
+	 * @return  a copy of the p-values, in table order
+	 */
+	public double[] getPValues() {
+		return pValues.clone();
+	}
+	
+	/**
+	 * @return  the index of the nodes by SUID
+	 */
+	public SuidIndex getNodeIndex() {
+		return nodeIndex;
+	}
+	
+	/**
+	 * @return  the number of edges
+	 */
+	public int getEdgeCount() {
+		return edgeSources.length;
+	}
+	
+	/**
+	 * @param edge  the index of an edge, in the order of the edge list
+	 *
+	 * @return  the index of its source node
+	 */
+	public int getEdgeSource(int edge) {
+		return edgeSources[edge];
+	}
+	
+	/**
+	 * @param edge  the index of an edge, in the order of the edge list
+	 *
+	 * @return  the index of its target node
+	 */
+	public int getEdgeTarget(int edge) {
+		return edgeTargets[edge];
+	}
+	
+	/**
+	 * Check if another snapshot has the same nodes and edges, in the same
+	 * order, as do the snapshots of the columns of a single capture.
+	 *
+	 * @param other  the other snapshot
+	 *
+	 * @return  whether files encoded from the graph of one serve for both
+	 */
+	public boolean hasSameGraph(NetworkSnapshot other) {
+		return other == this || (
+				other.nodeSuids == nodeSuids &&
+				other.edgeSources == edgeSources &&
+				other.edgeTargets == edgeTargets);
+	}
+	
+	/**
+	 * Find the first node without a valid p-value.
+	 *
+	 * @return  its index, or -1 if all p-values are valid
+	 */
+	private int findInvalidPValue() {
+		final int nodeCount = pValues.length;
+		int threads = Math.min(
+				Runtime.getRuntime().availableProcessors(),
+				nodeCount / PARALLEL_THRESHOLD);
+		if (threads <= 1) {
+			return findInvalidPValue(0, nodeCount);
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Integer>> chunks = new ArrayList<Future<Integer>>();
+			final int chunkSize = (nodeCount + threads - 1) / threads;
+			for (int start = 0; start < nodeCount; start += chunkSize) {
+				final int from = start;
+				final int to = Math.min(start + chunkSize, nodeCount);
+				chunks.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						return findInvalidPValue(from, to);
+					}
+				}));
+			}
+			// the chunks are in order, so the first hit is the first node
+			for (Future<Integer> chunk : chunks) {
+				int invalid = chunk.get();
+				if (invalid >= 0) {
+					return invalid;
+				}
+			}
+			return -1;
+		} catch (InterruptedException e) {
+			// keep the interrupt for the task, and check sequentially
+			Thread.currentThread().interrupt();
+			return findInvalidPValue(0, nodeCount);
+		} catch (ExecutionException e) {
+			// the checks cannot fail
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * @return  the index of the first invalid p-value from `from` up to
+	 *          `to`, or -1 if there is none
+	 */
+	private int findInvalidPValue(int from, int to) {
+		for (int i = from; i < to; ++i) {
+			// also false for NaN, i.e. a missing p-value
+			if (!(pValues[i] > 0.0 && pValues[i] < 1.0)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * @return  the index of the node with the given SUID
+	 *
+	 * @throws IllegalArgumentException  if the node is not in the table
+	 */
+	private static int getIndex(SuidIndex nodeIndex, long suid) {
+		int index = nodeIndex.getId(suid);
+		if (index < 0) {
+			throw new IllegalArgumentException(
+					"Edge to node " + suid + " not in the node table.");
+		}
+		return index;
+	}
+	
+}
@@ -0,0 +1,246 @@
+package org.cytoscape.heinz.internal;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.cytoscape.model.CyRow;
+import org.cytoscape.model.CyTable;
+
+/**
+ * Where the time of a Heinz run or BUM model fit went, phase by phase,
+ * along with the bytes exchanged and the servers used.
+ *
+ * Clients time the phases they perform themselves, and tasks those around
+ * them. A task collects the metrics of all of its sessions, e.g. one per
+ * component, so the times of concurrent runs add up. Once the task is
+ * done, its metrics are written to the network table next to its results
+ * and added to the totals of the tool.
+ *
+ * @see ToolMetrics
+ */
+public class RunMetrics {
+	
+	/**
+	 * A phase of a run.
+	 */
+	public enum Phase {
+		
+		/**
+		 * Reading the network and validating the p-values.
+		 */
+		VALIDATION("validation"),
+		/**
+		 * Encoding the inputs and sending them to the server, which are
+		 * streamed together.
+		 */
+		UPLOAD("upload"),
+		/**
+		 * Waiting for a free process on the server, if the server
+		 * reports it.
+		 */
+		QUEUE("queue"),
+		/**
+		 * Running the tool, including the queue time if the server does
+		 * not report it separately.
+		 */
+		SOLVE("solve"),
+		/**
+		 * Receiving the output, including parsing it if that happens as
+		 * it arrives.
+		 */
+		DOWNLOAD("download"),
+		/**
+		 * Decoding the output once received.
+		 */
+		PARSE("parse"),
+		/**
+		 * Writing the results into the Cytoscape tables.
+		 */
+		TABLE_WRITE("tableWrite");
+		
+		private final String name;
+		
+		private Phase(String name) {
+			this.name = name;
+		}
+		
+		/**
+		 * @return  the name of the phase in column names, e.g. "upload"
+		 */
+		public String getName() {
+			return name;
+		}
+		
+	}
+	
+	/**
+	 * The time spent in each phase, in nanoseconds.
+	 */
+	private final long[] times = new long[Phase.values().length];
+	private final SwTransferStatistics transferStatistics =
+			new SwTransferStatistics();
+	private final Set<String> endpoints = new LinkedHashSet<String>();
+	
+	/**
+	 * Record time spent in a phase.
+	 *
+	 * @param phase  the phase
+	 * @param nanoseconds  the time spent, e.g. a difference of
+	 *                     System.nanoTime() values
+	 */
+	public synchronized void addTime(Phase phase, long nanoseconds) {
+		times[phase.ordinal()] += nanoseconds;
+	}
+	
+	/**
+	 * Record the time since a moment, in a phase.
+	 *
+	 * @param phase  the phase
+	 * @param start  the start of the phase, from System.nanoTime()
+	 */
+	public void addTimeSince(Phase phase, long start) {
+		addTime(phase, System.nanoTime() - start);
+	}
+	
+	/**
+	 * Add the times, transfers and servers of other metrics to these.
+	 *
+	 * @param other  the metrics to add
+	 */
+	public void add(RunMetrics other) {
+		long[] otherTimes;
+		Set<String> otherEndpoints;
+		synchronized (other) {
+			otherTimes = other.times.clone();
+			otherEndpoints = new LinkedHashSet<String>(other.endpoints);
+		}
+		synchronized (this) {
+			for (int i = 0; i < times.length; ++i) {
+				times[i] += otherTimes[i];
+			}
+			endpoints.addAll(otherEndpoints);
+		}
+		transferStatistics.add(other.transferStatistics);
+	}
+	
+	/**
+	 * Add the metrics of a finished session with a server.
+	 *
+	 * @param client  the client of the session
+	 */
+	public void addSession(AbstractSwClient client) {
+		add(client.getMetrics());
+		transferStatistics.add(client.getTransferStatistics());
+		SwEndpoint endpoint = client.getEndpoint();
+		if (endpoint != null) {
+			synchronized (this) {
+				endpoints.add(endpoint.toString());
+			}
+		}
+	}
+	
+	/**
+	 * @param phase  a phase
+	 *
+	 * @return  the time spent in the phase, in milliseconds
+	 */
+	public synchronized long getMillis(Phase phase) {
+		return times[phase.ordinal()] / (1000 * 1000);
+	}
+	
+	/**
+	 * @return  the payload sizes exchanged with the servers
+	 */
+	public SwTransferStatistics getTransferStatistics() {
+		return transferStatistics;
+	}
+	
+	/**
+	 * @return  the servers used, as ‘host:port’ separated by commas, or
+	 *          an empty string if none
+	 */
+	public synchronized String getEndpoints() {
+		StringBuilder list = new StringBuilder();
+		for (String endpoint : endpoints) {
+			if (list.length() > 0) {
+				list.append(',');
+			}
+			list.append(endpoint);
+		}
+		return list.toString();
+	}
+	
+	/**
+	 * Write the metrics into columns of a network table row, creating
+	 * them as needed: ‘{@code prefix}.time.{@code phase}’ for the time of
+	 * each phase in milliseconds, ‘{@code prefix}.bytesSent’ and the like
+	 * for the transfers, and ‘{@code prefix}.endpoint’ for the servers.
+	 *
+	 * @param row  the network table row
+	 * @param prefix  the start of the column names, e.g. ‘pvalue.BUM’
+	 *
+	 * @throws IllegalArgumentException  if a column exists with another
+	 *                                   type
+	 */
+	public void writeTo(CyRow row, String prefix) {
+		for (Phase phase : Phase.values()) {
+			set(row, prefix + ".time." + phase.getName(), Long.class,
+					getMillis(phase));
+		}
+		set(row, prefix + ".bytesSent", Long.class,
+				transferStatistics.getBytesSent());
+		set(row, prefix + ".wireBytesSent", Long.class,
+				transferStatistics.getWireBytesSent());
+		set(row, prefix + ".bytesReceived", Long.class,
+				transferStatistics.getBytesReceived());
+		set(row, prefix + ".wireBytesReceived", Long.class,
+				transferStatistics.getWireBytesReceived());
+		set(row, prefix + ".endpoint", String.class, getEndpoints());
+	}
+	
+	private static <T> void set(
+			CyRow row, String columnName, Class<T> type, T value) {
+		CyTable table = row.getTable();
+		if (table.getColumn(columnName) == null) {
+			table.createColumn(columnName, type, false);
+		} else if (table.getColumn(columnName).getType() != type) {
+			throw new IllegalArgumentException(
+					"Network table column " + columnName +
+					" is not of type " + type.getSimpleName() + ".");
+		}
+		row.set(columnName, value);
+	}
+	
+	/**
+	 * Describe the metrics, e.g. for a status message.
+	 *
+	 * @return  e.g. ‘upload 40 ms, solve 1250 ms, download 3 ms on
+	 *          localhost:4000’, leaving out phases that took no time
+	 */
+	@Override
+	public String toString() {
+		StringBuilder description = new StringBuilder();
+		for (Phase phase : Phase.values()) {
+			long millis = getMillis(phase);
+			if (millis > 0) {
+				if (description.length() > 0) {
+					description.append(", ");
+				}
+				description.append(phase.getName());
+				description.append(' ');
+				description.append(millis);
+				description.append(" ms");
+			}
+		}
+		if (description.length() == 0) {
+			description.append("no time measured");
+		}
+		String endpointList = getEndpoints();
+		if (endpointList.length() > 0) {
+			description.append(" on ");
+			description.append(endpointList);
+		}
+		return description.toString();
+	}
+	
+}
@@ -0,0 +1,96 @@
+package org.cytoscape.heinz.internal;
+
+/**
+ * Maps SUIDs to dense integer IDs 0..n-1.
+ *
+ * An open-addressing hash table on primitive arrays, so that looking up
+ * the IDs of the endpoints of millions of edges does not box every SUID.
+ */
+public class SuidIndex {
+	
+	/**
+	 * Marks an empty slot; SUIDs are positive.
+	 */
+	private static final long EMPTY = 0;
+	
+	private final long[] suids;
+	private final long[] keys;
+	private final int[] ids;
+	private final int mask;
+	
+	/**
+	 * Index a list of SUIDs, giving each its position in the list as ID.
+	 *
+	 * @param suids  distinct positive SUIDs
+	 *
+	 * @throws IllegalArgumentException  if a SUID is not positive or occurs
+	 *                                   more than once
+	 */
+	public SuidIndex(long[] suids) {
+		this.suids = suids;
+		// keep the table at most half full
+		int capacity = Integer.highestOneBit(Math.max(2, suids.length) * 2);
+		if (capacity < suids.length * 2) {
+			capacity *= 2;
+		}
+		keys = new long[capacity];
+		ids = new int[capacity];
+		mask = capacity - 1;
+		for (int id = 0; id < suids.length; ++id) {
+			long suid = suids[id];
+			if (suid <= EMPTY) {
+				throw new IllegalArgumentException("Invalid SUID: " + suid);
+			}
+			int slot = slot(suid);
+			while (keys[slot] != EMPTY) {
+				if (keys[slot] == suid) {
+					throw new IllegalArgumentException("Duplicate SUID: " + suid);
+				}
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = suid;
+			ids[slot] = id;
+		}
+	}
+	
+	/**
+	 * @return  the number of indexed SUIDs
+	 */
+	public int size() {
+		return suids.length;
+	}
+	
+	/**
+	 * Look up the ID of a SUID.
+	 *
+	 * @param suid  the SUID
+	 *
+	 * @return  its ID, or -1 if it is not indexed
+	 */
+	public int getId(long suid) {
+		int slot = slot(suid);
+		while (keys[slot] != EMPTY) {
+			if (keys[slot] == suid) {
+				return ids[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+	
+	/**
+	 * @param id  an ID
+	 *
+	 * @return  the SUID with that ID
+	 */
+	public long getSuid(int id) {
+		return suids[id];
+	}
+	
+	private int slot(long suid) {
+		// spread consecutive SUIDs over the table (Fibonacci hashing)
+		long hash = suid * 0x9E3779B97F4A7C15L;
+		return (int) (hash >>> 32) & mask;
+	}
+	
+}
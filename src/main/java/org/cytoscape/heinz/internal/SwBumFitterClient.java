@@ -1,15 +1,15 @@
 package org.cytoscape.heinz.internal;
 
 
-import java.io.ByteArrayOutputStream;
-import java.io.Writer;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.io.StringReader;
 import java.io.BufferedReader;
 import java.nio.charset.Charset;
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 
 
@@ -18,10 +18,21 @@ import java.net.UnknownHostException;
  */
 public class SwBumFitterClient extends AbstractSwClient implements BumFitterClient {
 	
+	/**
+	 * The command line flags the client sends, and thus the only ones a
+	 * BUM model fitting server need accept.
+	 */
+	public static final Set<String> FLAGS = Collections.unmodifiableSet(
+			new HashSet<String>(Arrays.asList("-i", "-s", "-b", "-p")));
+	
 	/**
 	 * local copy of the output file contents after the run.
 	 */
 	private String outputFile = null;
+	/**
+	 * Number of histogram bins to send, or 0 to send every p-value.
+	 */
+	private int bins = 0;
 	
 	/**
 	 * Initialise a connection to a Heinz server.
@@ -34,54 +45,115 @@ public class SwBumFitterClient extends AbstractSwClient implements BumFitterClie
 	 */
 	public SwBumFitterClient(String host, int port) throws
 			IOException, UnknownHostException {
+		this(null, host, port);
+	}
+	
+	/**
+	 * Initialise a connection to a BUM model fitting server, reusing a
+	 * pooled one if possible.
+	 * 
+	 * @param pool  the connection pool, or null to open a connection of its own
+	 * @param host  the host name of the server
+	 * @param port  the port number to connect to
+	 * 
+	 * @throws IOException  if a connection to a compatible server cannot be made
+	 * @throws UnknownHostException  if the server’s IP address could not be determined
+	 */
+	public SwBumFitterClient(SwConnectionPool pool, String host, int port)
+			throws IOException, UnknownHostException {
 		
-		// open a connection to the server,
+		// open (or reuse) a connection to the server,
 		// and set outputStream an inputStream
-		super(host, port);
+		super(pool, host, port);
 		
+		// queue the p-values and settings until the script is run, so
+		// that setting up a run takes a single round trip to the server
+		setPipelined(true);
+		
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void enableBinning(int bins) throws IOException {
+		if (bins < 1) {
+			throw new IllegalArgumentException(
+					"At least one bin is needed for binned model fitting.");
+		}
+		this.bins = bins;
 	}
 	
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void sendPValues(double[] pvalues) throws IOException {
+	public void sendPValues(final double[] pvalues) throws IOException {
 		
-		// make an object to build up a byte array in a growing buffer
-		ByteArrayOutputStream fileContents = new ByteArrayOutputStream();
-		// make an object to write bytes encoded as ASCII to that
-		Writer writer = new OutputStreamWriter(
-				fileContents,
-				Charset.forName("US-ASCII"));
-		// and make an object to write to that using print methods
-		PrintWriter printWriter = new PrintWriter(writer, true);
-
-		// for each p-value
-		for (double p : pvalues) {
-			// write a line to the byte array
-			printWriter.format("%.15g\n", p);
+		if (bins > 0) {
+			sendBinnedPValues(BinnedPValues.bin(pvalues, bins));
+			return;
 		}
 		
-		// send the file to the server as the payload of a message
-		new ClientMessage(
-				ClientMessage.TYPE_INPUT_FILE,
+		// send the file to the server as the payload of a message,
+		// unless the server still holds it from an earlier run
+		sendInputFile(
 				"-i",
-				fileContents.toByteArray()).send(outputStream);
-		receiveAck();
+				new EncodedPayload() {
+					@Override
+					protected void encode(AsciiEncoder encoder)
+							throws IOException {
+						// write a line for each p-value
+						for (double p : pvalues) {
+							encoder.writeDouble(p);
+							encoder.writeChar('\n');
+						}
+					}
+				});
 		
 	}
 	
+	/**
+	 * Send a histogram of the p-values, and ask the script to fit to it.
+	 * 
+	 * @param binned  the histogram
+	 * 
+	 * @throws IOException  if an I/O error occurs
+	 */
+	private void sendBinnedPValues(final BinnedPValues binned)
+			throws IOException {
+		// fit to weighted p-values, one per bin
+		sendCommand(new ClientMessage(
+				ClientMessage.TYPE_PARAMETER, "-b", null));
+		sendInputFile(
+				"-i",
+				new EncodedPayload() {
+					@Override
+					protected void encode(AsciiEncoder encoder)
+							throws IOException {
+						// write a line for each bin: its p-value and count
+						double[] logPValues = binned.getLogPValues();
+						double[] counts = binned.getCounts();
+						for (int i = 0; i < logPValues.length; ++i) {
+							encoder.writeDouble(Math.exp(logPValues[i]));
+							encoder.writeChar('\t');
+							encoder.writeLong((long) counts[i]);
+							encoder.writeChar('\n');
+						}
+					}
+				});
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
 	public void sendStarts(int starts) throws IOException {
-		new ClientMessage(
+		sendCommand(new ClientMessage(
 				ClientMessage.TYPE_PARAMETER,
 				"-s",
 				((Integer) starts).toString().getBytes(
-						Charset.forName("US-ASCII"))).send(outputStream);
-		receiveAck();
+						Charset.forName("US-ASCII"))));
 	}
 	
 	/**
@@ -90,9 +162,8 @@ public class SwBumFitterClient extends AbstractSwClient implements BumFitterClie
 	@Override
 	public void enablePlotting() throws IOException {
 		// ask the server to request plots and to prepare for storing them
-		new ClientMessage(
-				ClientMessage.TYPE_OUTPUT_FILE, "-p", null).send(outputStream);
-		receiveAck();
+		sendCommand(new ClientMessage(
+				ClientMessage.TYPE_OUTPUT_FILE, "-p", null));
 	}
 	
 	/**
@@ -101,19 +172,48 @@ public class SwBumFitterClient extends AbstractSwClient implements BumFitterClie
 	@Override
 	public void run() throws IOException {
 		
-		// instruct the server to run the BUM fitting script
-		new ClientMessage(
-				ClientMessage.TYPE_RUN,
-				null,
-				null).send(outputStream);
-		receiveAck();
-		
-		// download the output file generated so it can be parsed locally
-		new ClientMessage(
+		// send everything queued in one go and check it was accepted, then
+		// instruct the server to run the BUM fitting script and wait
+		awaitRun();
+		receiveOutputFile();
+	}
+	
+	/**
+	 * Run the BUM fitting script without holding a thread while it runs,
+	 * as run() does otherwise.
+	 * 
+	 * @param selectorPool  the pool to wait on for the script to finish,
+	 *                      on whose worker threads the output is then
+	 *                      downloaded
+	 * 
+	 * @return  the future of the run, failed with an
+	 *          InterruptedIOException if the run was aborted
+	 * 
+	 * @see AsyncBumFitterClient#run()
+	 */
+	public SwFuture<Void> run(SwSelectorPool selectorPool) {
+		return startRun(selectorPool).transform(
+				new SwFuture.Transformation<Void, Void>() {
+					@Override
+					public Void apply(Void result) throws IOException {
+						receiveOutputFile();
+						return null;
+					}
+				});
+	}
+	
+	/**
+	 * Download the output file of a finished run, so it can be parsed
+	 * locally.
+	 * 
+	 * @throws IOException  if the file is not received
+	 */
+	private void receiveOutputFile() throws IOException {
+		long start = System.nanoTime();
+		ServerMessage response = request(new ClientMessage(
 				ClientMessage.TYPE_GET_OUTPUT,
 				"254",
-				null).send(outputStream);
-		ServerMessage response = ServerMessage.receive(inputStream);
+				null));
 		if (response.getType() != ServerMessage.TYPE_OUTPUT) {
 			throw new IOException("No output file received from server.");
 		}
@@ -122,6 +222,7 @@ public class SwBumFitterClient extends AbstractSwClient implements BumFitterClie
 		outputFile = new String(
 				response.getPayload(),
 				Charset.forName("US-ASCII"));
+		getMetrics().addTimeSince(RunMetrics.Phase.DOWNLOAD, start);
 	}
 	
 	/**
@@ -202,14 +303,15 @@ public class SwBumFitterClient extends AbstractSwClient implements BumFitterClie
 	@Override
 	public byte[] getPlotPng() throws IOException {
 		// retrieve the output file
-		new ClientMessage(
+		long start = System.nanoTime();
+		ServerMessage response = request(new ClientMessage(
 				ClientMessage.TYPE_GET_OUTPUT,
 				"0",
-				null).send(outputStream);
-		ServerMessage response = ServerMessage.receive(inputStream);
+				null));
 		if (response.getType() != ServerMessage.TYPE_OUTPUT) {
 			throw new IOException("No plot file received from server.");
 		}
+		getMetrics().addTimeSince(RunMetrics.Phase.DOWNLOAD, start);
 		return response.getPayload();
 	}
 	
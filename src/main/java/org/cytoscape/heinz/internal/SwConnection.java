@@ -0,0 +1,426 @@
+package org.cytoscape.heinz.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A connection to a server wrapper, possibly shared between runs.
+ *
+ * The connection is a socket channel in blocking mode, read and written
+ * like a socket. Only while a session waits for a run is it switched to
+ * non-blocking mode and left to the selector of a selector pool, so that
+ * the wait holds no thread.
+ *
+ * @see SwConnectionPool
+ * @see SwSelectorPool
+ */
+public class SwConnection {
+
+	/**
+	 * Size of the buffers on the connection’s streams.
+	 */
+	private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Reads from the socket, reporting a closed channel as a closed socket.
+	 */
+	private static class SocketInputStream extends FilterInputStream {
+
+		SocketInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			try {
+				return super.read();
+			} catch (ClosedChannelException e) {
+				throw new SocketException("Socket closed");
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			try {
+				return super.read(b, off, len);
+			} catch (ClosedChannelException e) {
+				throw new SocketException("Socket closed");
+			}
+		}
+
+	}
+
+	/**
+	 * Writes to the channel, in whichever mode it is.
+	 *
+	 * An abort request may be written while the connection is left to a
+	 * selector pool, when the channel does not block; the few bytes then
+	 * fit in the socket’s send buffer but for a server that has stopped
+	 * reading, in which case the write is retried until the connection is
+	 * closed.
+	 */
+	private class ChannelOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len)
+				throws IOException {
+			ByteBuffer source = ByteBuffer.wrap(b, off, len);
+			try {
+				while (source.hasRemaining()) {
+					if (channel.write(source) == 0) {
+						Thread.sleep(1);
+					}
+				}
+			} catch (ClosedChannelException e) {
+				throw new SocketException("Socket closed");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted.");
+			}
+		}
+
+	}
+
+	private final String host;
+	private final int port;
+	private final SocketChannel channel;
+	private final Socket socket;
+	private final InputStream inputStream;
+	private final OutputStream outputStream;
+	/**
+	 * The selectors of pools the channel has been left to, to wake up on
+	 * close.
+	 */
+	private final Set<Selector> poolSelectors =
+			Collections.synchronizedSet(new HashSet<Selector>());
+	/**
+	 * What to do once the server sends something, while the connection is
+	 * left to a selector pool.
+	 */
+	private final AtomicReference<Runnable> parkedCallback =
+			new AtomicReference<Runnable>();
+	/**
+	 * When the server last proved responsive, in milliseconds since the
+	 * epoch, or 0 if it has not done so yet.
+	 */
+	private volatile long lastVerified = 0;
+	/**
+	 * When the connection was last returned to its pool.
+	 */
+	private volatile long lastReleased = 0;
+	/**
+	 * Whether the server accepts files offered by their hash, or null if
+	 * not known yet.
+	 */
+	private volatile Boolean supportsFileOffers = null;
+	/**
+	 * The protocol extensions in effect, or null if not negotiated yet.
+	 */
+	private volatile Set<String> capabilities = null;
+
+	/**
+	 * Open a connection to a server.
+	 *
+	 * @param host  the host name of the server
+	 * @param port  the port number to connect to
+	 *
+	 * @throws IOException  if the connection cannot be made
+	 * @throws UnknownHostException  if the server’s IP address could not be determined
+	 */
+	public SwConnection(String host, int port)
+			throws IOException, UnknownHostException {
+		this.host = host;
+		this.port = port;
+		InetSocketAddress address = new InetSocketAddress(host, port);
+		if (address.isUnresolved()) {
+			throw new UnknownHostException(host);
+		}
+		channel = SocketChannel.open();
+		socket = channel.socket();
+		try {
+			channel.connect(address);
+			// messages are batched in the buffer and flushed explicitly, so
+			// there is no need for Nagle’s algorithm to delay small packets
+			socket.setTcpNoDelay(true);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		// the socket’s own stream, as only it honours the read timeout
+		inputStream = new BufferedInputStream(
+				new SocketInputStream(socket.getInputStream()),
+				STREAM_BUFFER_SIZE);
+		outputStream = new BufferedOutputStream(
+				new ChannelOutputStream(), STREAM_BUFFER_SIZE);
+	}
+
+	/**
+	 * @return  the host name of the server
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * @return  the port number of the server
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * @return  a buffered stream to read server messages from
+	 */
+	public InputStream getInputStream() {
+		return inputStream;
+	}
+
+	/**
+	 * @return  a buffered stream to write client messages to
+	 */
+	public OutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	/**
+	 * Limit how long reads from the server may block.
+	 *
+	 * @param timeout  the limit in milliseconds, or 0 to wait indefinitely
+	 *
+	 * @throws IOException  if the limit cannot be set
+	 */
+	public void setReadTimeout(int timeout) throws IOException {
+		socket.setSoTimeout(timeout);
+	}
+
+	/**
+	 * Record that the server just responded as expected.
+	 */
+	public void markVerified() {
+		lastVerified = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return  milliseconds since the server last responded as expected,
+	 *          or Long.MAX_VALUE if it never did
+	 */
+	public long getTimeSinceVerified() {
+		return lastVerified == 0 ?
+				Long.MAX_VALUE :
+				System.currentTimeMillis() - lastVerified;
+	}
+	
+	/**
+	 * @return  the protocol extensions in effect, or null if they have not
+	 *          been negotiated yet
+	 */
+	public Set<String> getCapabilities() {
+		return capabilities;
+	}
+	
+	/**
+	 * Record the protocol extensions negotiated with the server.
+	 *
+	 * @param capabilities  the extensions both ends support
+	 */
+	public void setCapabilities(Set<String> capabilities) {
+		this.capabilities = Collections.unmodifiableSet(
+				new HashSet<String>(capabilities));
+	}
+	
+	/**
+	 * @param capability  a protocol extension
+	 *
+	 * @return  true if the extension has been negotiated
+	 */
+	public boolean hasCapability(String capability) {
+		Set<String> negotiated = capabilities;
+		return negotiated != null && negotiated.contains(capability);
+	}
+	
+	/**
+	 * @return  whether the server accepts files offered by their hash, or
+	 *          null if not known yet
+	 */
+	public Boolean getSupportsFileOffers() {
+		return supportsFileOffers;
+	}
+	
+	/**
+	 * Record whether the server accepts files offered by their hash.
+	 *
+	 * @param supportsFileOffers  true if it does
+	 */
+	public void setSupportsFileOffers(boolean supportsFileOffers) {
+		this.supportsFileOffers = supportsFileOffers;
+	}
+
+	/**
+	 * Record that the connection was returned to its pool.
+	 */
+	void markReleased() {
+		lastReleased = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return  milliseconds since the connection was returned to its pool
+	 */
+	long getIdleTime() {
+		return System.currentTimeMillis() - lastReleased;
+	}
+
+	/**
+	 * Check, without blocking, whether the connection can still be used.
+	 *
+	 * @return  false if closed, or if the server sent unsolicited data or
+	 *          closed its end
+	 */
+	public boolean isUsable() {
+		if (!channel.isOpen() || isParked()) {
+			return false;
+		}
+		try {
+			// an idle connection should have nothing to read
+			if (inputStream.available() > 0) {
+				return false;
+			}
+			synchronized (channel.blockingLock()) {
+				channel.configureBlocking(false);
+				try {
+					return channel.read(ByteBuffer.allocate(1)) == 0;
+				} finally {
+					channel.configureBlocking(true);
+				}
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Leave the connection to a selector pool until the server sends
+	 * something, or the connection is closed.
+	 *
+	 * Nothing may be read from the connection meanwhile, and nothing but
+	 * an abort request written.
+	 *
+	 * @param callback  what to do then
+	 */
+	void park(Runnable callback) {
+		if (!parkedCallback.compareAndSet(null, callback)) {
+			throw new IllegalStateException("Connection already parked.");
+		}
+		if (!channel.isOpen()) {
+			// closed meanwhile, so no selector will hand it back
+			runParkedCallback();
+		}
+	}
+
+	/**
+	 * @return  whether the connection is waiting for a selector
+	 */
+	boolean isParked() {
+		return parkedCallback.get() != null;
+	}
+
+	/**
+	 * Have a selector watch for the server sending something, on the
+	 * selector’s thread while it is not selecting.
+	 *
+	 * @param selector  the selector of a selector pool
+	 */
+	void register(Selector selector) {
+		poolSelectors.add(selector);
+		try {
+			// only a non-blocking channel can be selected
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ, this);
+		} catch (IOException e) {
+			// e.g. closed meanwhile; hand it back so that the session fails
+			closeQuietly();
+		}
+	}
+
+	/**
+	 * Take back the connection from the selector it was left to, once the
+	 * selector has dropped its key, switching it back to blocking mode.
+	 *
+	 * @return  the callback given when parking it, or null if it has been
+	 *          taken back already
+	 */
+	Runnable unpark() {
+		try {
+			channel.configureBlocking(true);
+		} catch (IOException e) {
+			// closed meanwhile, which the session will notice
+		}
+		return parkedCallback.getAndSet(null);
+	}
+
+	/**
+	 * Close the connection, releasing system resources (the port).
+	 *
+	 * Reads blocked on it fail, and a selector pool it was left to hands
+	 * it back.
+	 *
+	 * @throws IOException  if I/O errors occur
+	 */
+	public void close() throws IOException {
+		try {
+			channel.close();
+		} finally {
+			synchronized (poolSelectors) {
+				for (Selector selector : poolSelectors) {
+					// let it drop the channel
+					selector.wakeup();
+				}
+			}
+			runParkedCallback();
+		}
+	}
+
+	/**
+	 * Close the connection, ignoring any errors.
+	 */
+	void closeQuietly() {
+		try {
+			close();
+		} catch (IOException e) {
+			// nothing more to be done, the connection is gone either way
+		}
+	}
+
+	/**
+	 * Run the callback of a parked connection, if any, e.g. once closed.
+	 */
+	private void runParkedCallback() {
+		Runnable callback = parkedCallback.getAndSet(null);
+		if (callback != null) {
+			callback.run();
+		}
+	}
+
+}
@@ -0,0 +1,253 @@
+package org.cytoscape.heinz.internal;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps connections to server wrappers open for reuse between runs.
+ *
+ * Connections are kept per endpoint (host and port). A client returns its
+ * connection when it is closed, after the server has acknowledged a reset
+ * request; connections that were not reset successfully are closed.
+ * Connections that stay idle too long are closed in the background.
+ *
+ * The pool also keeps the endpoint statistics used for load balancing, so
+ * that they carry over from one run to the next, and the selector pool
+ * that tasks run their sessions on.
+ */
+public class SwConnectionPool {
+
+	/**
+	 * How long a connection may stay idle before it is closed, in ms.
+	 */
+	private static final long IDLE_TIMEOUT = 60 * 1000;
+	/**
+	 * How long after its last response a connection is trusted without
+	 * pinging the server again, in ms.
+	 */
+	private static final long VERIFIED_TIMEOUT = 5 * 1000;
+	/**
+	 * Maximum number of idle connections kept per endpoint.
+	 */
+	private static final int MAX_IDLE_PER_ENDPOINT = 4;
+
+	/**
+	 * Idle connections per endpoint, most recently released last.
+	 */
+	private final Map<String, LinkedList<SwConnection>> idleConnections =
+			new HashMap<String, LinkedList<SwConnection>>();
+	/**
+	 * Endpoint groups, by host list and default port.
+	 */
+	private final Map<String, SwEndpointGroup> endpointGroups =
+			new HashMap<String, SwEndpointGroup>();
+	/**
+	 * Endpoints, by host and port, shared by all groups that include them.
+	 */
+	private final Map<String, SwEndpoint> endpoints =
+			new HashMap<String, SwEndpoint>();
+	private final ScheduledExecutorService evictor;
+	/**
+	 * Threads serving the sessions of all tasks, started when first needed.
+	 */
+	private SwSelectorPool selectorPool = null;
+	private boolean shutDown = false;
+
+	/**
+	 * Create an empty pool, with a background thread to evict idle
+	 * connections.
+	 */
+	public SwConnectionPool() {
+		evictor = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(
+								runnable, "Heinz connection pool evictor");
+						// do not keep Cytoscape from exiting
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		evictor.scheduleWithFixedDelay(
+				new Runnable() {
+					@Override
+					public void run() {
+						evictIdleConnections();
+					}
+				},
+				IDLE_TIMEOUT, IDLE_TIMEOUT / 4, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Get the endpoint group for a list of hosts.
+	 *
+	 * @param hosts  comma-separated host names, each optionally followed by
+	 *               a port number
+	 * @param defaultPort  the port number for hosts without one
+	 *
+	 * @return  the group, sharing statistics with earlier groups that
+	 *          include the same endpoints
+	 *
+	 * @throws IllegalArgumentException  if the list cannot be parsed
+	 *
+	 * @see SwEndpointGroup#parse(String, int)
+	 */
+	public synchronized SwEndpointGroup getEndpointGroup(
+			String hosts, int defaultPort) {
+		String key = hosts + "|" + defaultPort;
+		SwEndpointGroup group = endpointGroups.get(key);
+		if (group == null) {
+			List<SwEndpoint> groupEndpoints =
+					SwEndpointGroup.parse(hosts, defaultPort);
+			for (int i = 0; i < groupEndpoints.size(); ++i) {
+				String endpointKey = groupEndpoints.get(i).toString();
+				SwEndpoint known = endpoints.get(endpointKey);
+				if (known == null) {
+					endpoints.put(endpointKey, groupEndpoints.get(i));
+				} else {
+					groupEndpoints.set(i, known);
+				}
+			}
+			group = new SwEndpointGroup(groupEndpoints);
+			endpointGroups.put(key, group);
+		}
+		return group;
+	}
+
+	/**
+	 * Get a connection to a server, reusing an idle one if possible.
+	 *
+	 * @param host  the host name of the server
+	 * @param port  the port number to connect to
+	 *
+	 * @return  an idle pooled connection, or a new one
+	 *
+	 * @throws IOException  if a new connection cannot be made
+	 * @throws UnknownHostException  if the server’s IP address could not be determined
+	 */
+	public SwConnection acquire(String host, int port)
+			throws IOException, UnknownHostException {
+		String key = host + ":" + port;
+		synchronized (this) {
+			LinkedList<SwConnection> idle = idleConnections.get(key);
+			while (idle != null && !idle.isEmpty()) {
+				// the most recently used connection is the most likely alive
+				SwConnection connection = idle.removeLast();
+				if (connection.isUsable()) {
+					return connection;
+				}
+				connection.closeQuietly();
+			}
+		}
+		return new SwConnection(host, port);
+	}
+
+	/**
+	 * Decide whether the server should be pinged before using a connection.
+	 *
+	 * @param connection  a connection obtained from acquire()
+	 *
+	 * @return  true if the connection is new or has not been used recently
+	 */
+	public boolean needsHandshake(SwConnection connection) {
+		return connection.getTimeSinceVerified() > VERIFIED_TIMEOUT;
+	}
+
+	/**
+	 * Return a connection to the pool for reuse.
+	 *
+	 * Should only be called once the server has been reset, so that the
+	 * next run starts from a clean session.
+	 *
+	 * @param connection  a connection obtained from acquire()
+	 */
+	public void release(SwConnection connection) {
+		String key = connection.getHost() + ":" + connection.getPort();
+		synchronized (this) {
+			if (!shutDown) {
+				LinkedList<SwConnection> idle = idleConnections.get(key);
+				if (idle == null) {
+					idle = new LinkedList<SwConnection>();
+					idleConnections.put(key, idle);
+				}
+				if (idle.size() < MAX_IDLE_PER_ENDPOINT) {
+					connection.markReleased();
+					idle.addLast(connection);
+					return;
+				}
+			}
+		}
+		// the pool is full or closed
+		connection.closeQuietly();
+	}
+
+	/**
+	 * Get the threads to run sessions on, shared by all tasks so that a
+	 * few threads serve any number of simultaneous runs.
+	 *
+	 * @return  a pool with a selector thread and a worker thread per
+	 *          processor
+	 *
+	 * @throws IOException  if the pool has been shut down, or a selector
+	 *                      cannot be opened
+	 */
+	public synchronized SwSelectorPool getSelectorPool() throws IOException {
+		if (shutDown) {
+			throw new IOException("Connection pool shut down.");
+		}
+		if (selectorPool == null) {
+			selectorPool = new SwSelectorPool(
+					1, Runtime.getRuntime().availableProcessors());
+		}
+		return selectorPool;
+	}
+
+	/**
+	 * Close all idle connections and stop pooling, failing the sessions
+	 * still waiting for their servers.
+	 */
+	public void shutDown() {
+		evictor.shutdownNow();
+		synchronized (this) {
+			shutDown = true;
+			if (selectorPool != null) {
+				selectorPool.shutDown();
+			}
+			for (LinkedList<SwConnection> idle : idleConnections.values()) {
+				for (SwConnection connection : idle) {
+					connection.closeQuietly();
+				}
+			}
+			idleConnections.clear();
+		}
+	}
+
+	/**
+	 * Close connections that have been idle for too long or went bad.
+	 */
+	private synchronized void evictIdleConnections() {
+		for (LinkedList<SwConnection> idle : idleConnections.values()) {
+			Iterator<SwConnection> iterator = idle.iterator();
+			while (iterator.hasNext()) {
+				SwConnection connection = iterator.next();
+				if (
+						connection.getIdleTime() > IDLE_TIMEOUT ||
+						!connection.isUsable()) {
+					iterator.remove();
+					connection.closeQuietly();
+				}
+			}
+		}
+	}
+
+}
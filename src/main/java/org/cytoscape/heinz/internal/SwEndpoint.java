@@ -0,0 +1,202 @@
+package org.cytoscape.heinz.internal;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A server wrapper endpoint, with statistics on how it has been serving.
+ *
+ * The statistics are used by SwEndpointGroup to spread sessions over
+ * several servers running the same tool.
+ *
+ * @see SwEndpointGroup
+ */
+public class SwEndpoint {
+	
+	/**
+	 * Weight of the newest response time in the latency average.
+	 */
+	private static final double LATENCY_SMOOTHING = 0.3;
+	/**
+	 * How long an endpoint is avoided after a failure, in ms; doubled for
+	 * every further failure in a row.
+	 */
+	private static final long FAILURE_BACKOFF = 5 * 1000;
+	/**
+	 * Longest time an endpoint is avoided after failures, in ms.
+	 */
+	private static final long MAX_FAILURE_BACKOFF = 5 * 60 * 1000;
+	/**
+	 * The servers found not to answer capability queries, as ‘host:port’,
+	 * so that connections to them use the plain protocol without asking.
+	 * 
+	 * Kept for all endpoints rather than by each, as clients without a
+	 * connection pool create new endpoints for every session, and would
+	 * otherwise wait for the query to time out every time.
+	 */
+	private static final Set<String> PLAIN_PROTOCOL_SERVERS =
+			Collections.synchronizedSet(new HashSet<String>());
+	
+	private final String host;
+	private final int port;
+	/**
+	 * Number of sessions currently using the endpoint.
+	 */
+	private int inFlight = 0;
+	/**
+	 * Exponential moving average of response times, in ms, or NaN if no
+	 * response has been timed yet.
+	 */
+	private double latency = Double.NaN;
+	/**
+	 * Number of sessions in a row that failed.
+	 */
+	private int consecutiveFailures = 0;
+	private int totalFailures = 0;
+	/**
+	 * When the last failure happened, in milliseconds since the epoch.
+	 */
+	private long lastFailure = 0;
+	private final SwTransferStatistics transferStatistics =
+			new SwTransferStatistics();
+	
+	/**
+	 * Create an endpoint without any statistics.
+	 *
+	 * @param host  the host name of the server
+	 * @param port  the port number of the server
+	 */
+	public SwEndpoint(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+	
+	/**
+	 * @return  the host name of the server
+	 */
+	public String getHost() {
+		return host;
+	}
+	
+	/**
+	 * @return  the port number of the server
+	 */
+	public int getPort() {
+		return port;
+	}
+	
+	/**
+	 * @return  the number of sessions currently using the endpoint
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+	
+	/**
+	 * @return  the average response time in ms, or NaN if unknown
+	 */
+	public synchronized double getLatency() {
+		return latency;
+	}
+	
+	/**
+	 * @return  the number of sessions that failed since the app started
+	 */
+	public synchronized int getTotalFailures() {
+		return totalFailures;
+	}
+	
+	/**
+	 * @return  the time of the last failure, or 0 if there was none
+	 */
+	public synchronized long getLastFailure() {
+		return lastFailure;
+	}
+	
+	/**
+	 * @return  the sizes of the payloads exchanged by finished sessions
+	 */
+	public SwTransferStatistics getTransferStatistics() {
+		return transferStatistics;
+	}
+	
+	/**
+	 * @return  true if the server does not answer capability queries, and
+	 *          new connections should use the plain protocol straight away
+	 */
+	public boolean usesPlainProtocol() {
+		return PLAIN_PROTOCOL_SERVERS.contains(toString());
+	}
+	
+	/**
+	 * Record that the server did not answer a capability query, e.g. as it
+	 * ignores unknown messages or closes the connection on them, for all
+	 * endpoints of the server from now on.
+	 */
+	void setPlainProtocol() {
+		PLAIN_PROTOCOL_SERVERS.add(toString());
+	}
+	
+	/**
+	 * Decide whether sessions may be sent to the endpoint.
+	 *
+	 * @return  false if the last session failed, until a back-off time
+	 *          has passed
+	 */
+	public synchronized boolean isHealthy() {
+		if (consecutiveFailures == 0) {
+			return true;
+		}
+		long backoff = FAILURE_BACKOFF << Math.min(consecutiveFailures - 1, 16);
+		return
+				System.currentTimeMillis() - lastFailure >
+				Math.min(backoff, MAX_FAILURE_BACKOFF);
+	}
+	
+	/**
+	 * Record that a session started using the endpoint.
+	 */
+	synchronized void sessionStarted() {
+		++inFlight;
+	}
+	
+	/**
+	 * Record that a session stopped using the endpoint.
+	 *
+	 * @param succeeded  false if the server could not be reached or the
+	 *                   exchange with it broke off
+	 */
+	synchronized void sessionFinished(boolean succeeded) {
+		--inFlight;
+		if (succeeded) {
+			consecutiveFailures = 0;
+		} else {
+			++consecutiveFailures;
+			++totalFailures;
+			lastFailure = System.currentTimeMillis();
+		}
+	}
+	
+	/**
+	 * Record how long the server took to respond to a message.
+	 *
+	 * @param milliseconds  the time from sending to receiving the response
+	 */
+	synchronized void recordLatency(double milliseconds) {
+		if (Double.isNaN(latency)) {
+			latency = milliseconds;
+		} else {
+			latency += LATENCY_SMOOTHING * (milliseconds - latency);
+		}
+	}
+	
+	/**
+	 * @return  ‘host:port’
+	 */
+	@Override
+	public String toString() {
+		return host + ":" + port;
+	}
+	
+}
@@ -0,0 +1,149 @@
+package org.cytoscape.heinz.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A set of server wrapper endpoints running the same tool.
+ *
+ * Each session goes to the least-loaded healthy endpoint: the one with the
+ * fewest sessions in flight, and of those, the one that has been
+ * responding fastest. Endpoints that failed recently are only used when
+ * no healthy endpoint is left.
+ */
+public class SwEndpointGroup {
+	
+	private final List<SwEndpoint> endpoints;
+	
+	/**
+	 * Create a group of endpoints.
+	 *
+	 * @param endpoints  the endpoints, at least one
+	 */
+	public SwEndpointGroup(List<SwEndpoint> endpoints) {
+		if (endpoints.isEmpty()) {
+			throw new IllegalArgumentException("No server endpoints.");
+		}
+		this.endpoints = Collections.unmodifiableList(
+				new ArrayList<SwEndpoint>(endpoints));
+	}
+	
+	/**
+	 * Parse a list of endpoints.
+	 *
+	 * @param hosts  comma-separated host names, each optionally followed by
+	 *               a port number, e.g. ‘node1, node2:9002’
+	 * @param defaultPort  the port number for hosts without one
+	 *
+	 * @return  a new endpoint (without statistics) per host
+	 *
+	 * @throws IllegalArgumentException  if the list cannot be parsed
+	 */
+	public static List<SwEndpoint> parse(String hosts, int defaultPort) {
+		List<SwEndpoint> endpoints = new ArrayList<SwEndpoint>();
+		for (String entry : hosts.split(",")) {
+			entry = entry.trim();
+			if (entry.length() == 0) {
+				continue;
+			}
+			int colon = entry.lastIndexOf(':');
+			// a second colon means an IPv6 address without a port number
+			if (colon < 0 || entry.indexOf(':') != colon) {
+				endpoints.add(new SwEndpoint(entry, defaultPort));
+			} else {
+				try {
+					endpoints.add(new SwEndpoint(
+							entry.substring(0, colon),
+							Integer.parseInt(entry.substring(colon + 1))));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException(
+							"Invalid server port in ‘" + entry + "’.");
+				}
+			}
+		}
+		if (endpoints.isEmpty()) {
+			throw new IllegalArgumentException("No server host given.");
+		}
+		return endpoints;
+	}
+	
+	/**
+	 * @return  the endpoints in the group
+	 */
+	public List<SwEndpoint> getEndpoints() {
+		return endpoints;
+	}
+	
+	/**
+	 * Choose an endpoint for a new session and count the session as started.
+	 *
+	 * The caller must call SwEndpoint.sessionFinished() once done with it.
+	 *
+	 * @param excluded  endpoints not to choose, e.g. because they just
+	 *                  refused a connection
+	 *
+	 * @return  the least-loaded healthy endpoint, the endpoint that failed
+	 *          longest ago if none is healthy, or null if all are excluded
+	 */
+	public synchronized SwEndpoint select(Collection<SwEndpoint> excluded) {
+		SwEndpoint best = null;
+		boolean bestHealthy = false;
+		for (SwEndpoint endpoint : endpoints) {
+			if (excluded.contains(endpoint)) {
+				continue;
+			}
+			boolean healthy = endpoint.isHealthy();
+			if (
+					best == null ||
+					(healthy && !bestHealthy) ||
+					(healthy == bestHealthy && (healthy ?
+							isLessLoaded(endpoint, best) :
+							endpoint.getLastFailure() < best.getLastFailure()))) {
+				best = endpoint;
+				bestHealthy = healthy;
+			}
+		}
+		if (best != null) {
+			best.sessionStarted();
+		}
+		return best;
+	}
+	
+	/**
+	 * Compare the load of two endpoints.
+	 *
+	 * An endpoint with no timed responses counts as the fastest, so that
+	 * every endpoint gets tried.
+	 *
+	 * @return  true if the first endpoint is the better choice
+	 */
+	private static boolean isLessLoaded(SwEndpoint endpoint, SwEndpoint other) {
+		if (endpoint.getInFlight() != other.getInFlight()) {
+			return endpoint.getInFlight() < other.getInFlight();
+		}
+		double latency = endpoint.getLatency();
+		double otherLatency = other.getLatency();
+		if (Double.isNaN(otherLatency)) {
+			return false;
+		}
+		return Double.isNaN(latency) || latency < otherLatency;
+	}
+	
+	/**
+	 * @return  the endpoints, comma-separated
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (SwEndpoint endpoint : endpoints) {
+			if (builder.length() > 0) {
+				builder.append(", ");
+			}
+			builder.append(endpoint);
+		}
+		return builder.toString();
+	}
+	
+}
@@ -0,0 +1,184 @@
+package org.cytoscape.heinz.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The input files held by an embedded server, by their content hash.
+ *
+ * Every input file a client sends is kept here under the SHA-256 digest of
+ * its payload, so that a later session can use it again when offered the
+ * same digest. Files in use by a session are never removed; of the others,
+ * the least recently used are deleted once the store exceeds its size.
+ *
+ * @see SwServer
+ */
+public class SwFileStore {
+	
+	/**
+	 * An input file in the store.
+	 */
+	public static class StoredFile {
+		
+		private final String digest;
+		private final File file;
+		private final int nodeCount;
+		/**
+		 * Number of sessions using the file, guarded by the store.
+		 */
+		private int users = 0;
+		
+		private StoredFile(String digest, File file, int nodeCount) {
+			this.digest = digest;
+			this.file = file;
+			this.nodeCount = nodeCount;
+		}
+		
+		/**
+		 * @return  the hexadecimal SHA-256 digest of the payload
+		 */
+		public String getDigest() {
+			return digest;
+		}
+		
+		/**
+		 * @return  the file, in the format the tool reads
+		 */
+		public File getFile() {
+			return file;
+		}
+		
+		/**
+		 * @return  the number of nodes if the file was sent as a binary node
+		 *          file, otherwise -1
+		 */
+		public int getNodeCount() {
+			return nodeCount;
+		}
+		
+	}
+	
+	private final File directory;
+	private final long maxSize;
+	/**
+	 * The files by digest, least recently used first.
+	 */
+	private final LinkedHashMap<String, StoredFile> files =
+			new LinkedHashMap<String, StoredFile>(16, 0.75f, true);
+	private long size = 0;
+	
+	/**
+	 * @param directory  the directory to keep the files in
+	 * @param maxSize  the total size of the files to keep when not in use,
+	 *                 in bytes
+	 */
+	public SwFileStore(File directory, long maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException(
+					"Invalid maximum store size: " + maxSize);
+		}
+		this.directory = directory;
+		this.maxSize = maxSize;
+	}
+	
+	/**
+	 * Create a file to receive a payload into, before it can be added.
+	 *
+	 * @return  a new empty file in the directory of the store
+	 *
+	 * @throws IOException  if the file cannot be created
+	 */
+	public File createTempFile() throws IOException {
+		return File.createTempFile("upload-", ".tmp", directory);
+	}
+	
+	/**
+	 * Add a received file to the store, and start using it.
+	 *
+	 * If the store already holds a file with the same digest, the received
+	 * file is deleted and the stored one used instead.
+	 *
+	 * @param digest  the hexadecimal SHA-256 digest of the payload
+	 * @param received  the file, as created by createTempFile()
+	 * @param nodeCount  the number of nodes of a binary node file, or -1
+	 *
+	 * @return  the stored file, to be released when no longer used
+	 *
+	 * @throws IOException  if the file cannot be moved into the store
+	 */
+	public synchronized StoredFile add(
+			String digest, File received, int nodeCount) throws IOException {
+		StoredFile stored = files.get(digest);
+		if (stored != null) {
+			received.delete();
+		} else {
+			File file = new File(directory, digest);
+			if (!received.renameTo(file)) {
+				received.delete();
+				throw new IOException("Could not store input file " + file + ".");
+			}
+			stored = new StoredFile(digest, file, nodeCount);
+			files.put(digest, stored);
+			size += file.length();
+		}
+		++stored.users;
+		evict();
+		return stored;
+	}
+	
+	/**
+	 * Start using the file with the given digest, if the store holds it.
+	 *
+	 * @param digest  the hexadecimal SHA-256 digest of the payload
+	 *
+	 * @return  the stored file, to be released when no longer used, or
+	 *          null if the store does not hold it
+	 */
+	public synchronized StoredFile acquire(String digest) {
+		StoredFile stored = files.get(digest);
+		if (stored != null) {
+			++stored.users;
+		}
+		return stored;
+	}
+	
+	/**
+	 * Stop using a file, so that it may be removed.
+	 *
+	 * @param stored  a file returned by add() or acquire()
+	 */
+	public synchronized void release(StoredFile stored) {
+		--stored.users;
+		evict();
+	}
+	
+	/**
+	 * Delete all files, whether in use or not.
+	 */
+	public synchronized void clear() {
+		for (StoredFile stored : files.values()) {
+			stored.file.delete();
+		}
+		files.clear();
+		size = 0;
+	}
+	
+	/**
+	 * Delete the least recently used files not in use, until the store
+	 * fits its size again.
+	 */
+	private void evict() {
+		Iterator<StoredFile> iterator = files.values().iterator();
+		while (size > maxSize && iterator.hasNext()) {
+			StoredFile stored = iterator.next();
+			if (stored.users == 0) {
+				size -= stored.file.length();
+				stored.file.delete();
+				iterator.remove();
+			}
+		}
+	}
+	
+}
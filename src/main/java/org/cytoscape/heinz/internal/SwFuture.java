@@ -0,0 +1,383 @@
+package org.cytoscape.heinz.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The outcome of an asynchronous operation, e.g. a step of a session with
+ * a server wrapper.
+ *
+ * Completed from outside, by whoever performs the operation, rather than
+ * by running a task. Listeners are called once with the outcome: on the
+ * thread that completes the future, or straight away if it is already
+ * done. As futures of sessions are completed by the worker threads of a
+ * selector pool, which serve other sessions too, their listeners should
+ * hand any lengthy work on rather than doing it themselves.
+ *
+ * Java 6 has no CompletableFuture, hence this small one of our own.
+ *
+ * @param <T>  the type of the result
+ *
+ * @see AbstractAsyncSwClient
+ */
+public class SwFuture<T> implements Future<T> {
+	
+	/**
+	 * Receives the outcome of a future.
+	 *
+	 * @param <T>  the type of the result
+	 */
+	public interface Listener<T> {
+		
+		/**
+		 * @param result  the result of the operation
+		 */
+		public void completed(T result);
+		
+		/**
+		 * @param cause  why the operation failed, a CancellationException
+		 *               if it was cancelled
+		 */
+		public void failed(Throwable cause);
+		
+	}
+	
+	/**
+	 * Computes a value from the result of a future.
+	 *
+	 * @param <S>  the type of the result
+	 * @param <T>  the type of the value
+	 */
+	public interface Transformation<S, T> {
+		
+		/**
+		 * @param result  the result of the future
+		 *
+		 * @return  the value
+		 *
+		 * @throws Exception  to fail the transformed future
+		 */
+		public T apply(S result) throws Exception;
+		
+	}
+	
+	/**
+	 * Collects futures as they finish, to handle them in that order, like
+	 * an ExecutorCompletionService does with tasks.
+	 *
+	 * Meant to be used by a single thread, e.g. that of a Cytoscape task
+	 * keeping a number of sessions in progress.
+	 *
+	 * @param <T>  the type of the results
+	 */
+	public static class CompletionQueue<T> {
+		
+		private final BlockingQueue<SwFuture<T>> finished =
+				new LinkedBlockingQueue<SwFuture<T>>();
+		private int pending = 0;
+		
+		/**
+		 * @param future  a future to wait for along with the others
+		 */
+		public void add(final SwFuture<T> future) {
+			++pending;
+			future.addListener(new Listener<T>() {
+				@Override
+				public void completed(T result) {
+					finished.add(future);
+				}
+				@Override
+				public void failed(Throwable cause) {
+					finished.add(future);
+				}
+			});
+		}
+		
+		/**
+		 * Wait for the next future to finish.
+		 *
+		 * @return  the future, which is done
+		 *
+		 * @throws InterruptedException  if interrupted while waiting
+		 * @throws IllegalStateException  if no futures are pending
+		 */
+		public SwFuture<T> take() throws InterruptedException {
+			if (pending == 0) {
+				throw new IllegalStateException("No futures to wait for.");
+			}
+			SwFuture<T> future = finished.take();
+			--pending;
+			return future;
+		}
+		
+		/**
+		 * @return  the number of futures added but not taken yet
+		 */
+		public int getPending() {
+			return pending;
+		}
+		
+	}
+	
+	private T result = null;
+	private Throwable cause = null;
+	private boolean done = false;
+	private boolean cancelled = false;
+	private List<Listener<? super T>> listeners =
+			new ArrayList<Listener<? super T>>();
+	
+	/**
+	 * @param result  a result available already
+	 *
+	 * @return  a future completed with it
+	 */
+	public static <T> SwFuture<T> completed(T result) {
+		SwFuture<T> future = new SwFuture<T>();
+		future.complete(result);
+		return future;
+	}
+	
+	/**
+	 * @param cause  why the operation failed
+	 *
+	 * @return  a future failed with it
+	 */
+	public static <T> SwFuture<T> failed(Throwable cause) {
+		SwFuture<T> future = new SwFuture<T>();
+		future.fail(cause);
+		return future;
+	}
+	
+	/**
+	 * Complete the future, unless it is done already.
+	 *
+	 * @param result  the result of the operation
+	 *
+	 * @return  whether the future was completed by this call
+	 */
+	public boolean complete(T result) {
+		List<Listener<? super T>> notified;
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			this.result = result;
+			notified = finish();
+		}
+		for (Listener<? super T> listener : notified) {
+			listener.completed(result);
+		}
+		return true;
+	}
+	
+	/**
+	 * Fail the future, unless it is done already.
+	 *
+	 * @param cause  why the operation failed
+	 *
+	 * @return  whether the future was failed by this call
+	 */
+	public boolean fail(Throwable cause) {
+		List<Listener<? super T>> notified;
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			this.cause = cause;
+			notified = finish();
+		}
+		for (Listener<? super T> listener : notified) {
+			listener.failed(cause);
+		}
+		return true;
+	}
+	
+	/**
+	 * Fail the future with a CancellationException.
+	 *
+	 * This only stops the operation if whoever performs it listens for the
+	 * cancellation.
+	 *
+	 * @param mayInterruptIfRunning  ignored, as no thread runs the operation
+	 *
+	 * @return  whether the future was cancelled by this call
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			cancelled = true;
+		}
+		return fail(new CancellationException("Operation cancelled."));
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized T get()
+			throws InterruptedException, ExecutionException {
+		while (!done) {
+			wait();
+		}
+		return getOutcome();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized T get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!done) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return getOutcome();
+	}
+	
+	/**
+	 * Wait for the result, rethrowing the cause of a failure as is.
+	 *
+	 * @return  the result
+	 *
+	 * @throws IOException  if the operation failed with an IOException, or
+	 *                      with a checked exception of another kind, which
+	 *                      it then wraps
+	 * @throws InterruptedException  if interrupted while waiting
+	 * @throws CancellationException  if the future was cancelled
+	 */
+	public T await() throws IOException, InterruptedException {
+		try {
+			return get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+	
+	/**
+	 * Add a listener, to be called once the future is done.
+	 *
+	 * @param listener  the listener
+	 */
+	public void addListener(Listener<? super T> listener) {
+		synchronized (this) {
+			if (!done) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		if (cause == null) {
+			listener.completed(result);
+		} else {
+			listener.failed(cause);
+		}
+	}
+	
+	/**
+	 * Create a future of a value computed from the result of this one.
+	 *
+	 * The transformation runs on the thread completing this future. If
+	 * this future fails, or the transformation throws an exception, the
+	 * new future fails with the same cause.
+	 *
+	 * @param transformation  computes the value from the result
+	 *
+	 * @return  the future of the value
+	 */
+	public <U> SwFuture<U> transform(
+			final Transformation<? super T, ? extends U> transformation) {
+		final SwFuture<U> transformed = new SwFuture<U>();
+		addListener(new Listener<T>() {
+			@Override
+			public void completed(T result) {
+				U value;
+				try {
+					value = transformation.apply(result);
+				} catch (Exception e) {
+					transformed.fail(e);
+					return;
+				}
+				transformed.complete(value);
+			}
+			@Override
+			public void failed(Throwable cause) {
+				transformed.fail(cause);
+			}
+		});
+		return transformed;
+	}
+	
+	/**
+	 * Mark the future as done, waking up waiting threads.
+	 *
+	 * Must be called holding the lock.
+	 *
+	 * @return  the listeners to notify, after releasing the lock
+	 */
+	private List<Listener<? super T>> finish() {
+		done = true;
+		notifyAll();
+		List<Listener<? super T>> notified = listeners;
+		listeners = null;
+		return notified;
+	}
+	
+	/**
+	 * @return  the result, once done
+	 *
+	 * @throws ExecutionException  if the operation failed
+	 * @throws CancellationException  if the future was cancelled
+	 */
+	private T getOutcome() throws ExecutionException {
+		if (cancelled) {
+			throw (CancellationException) new CancellationException(
+					"Operation cancelled.").initCause(cause);
+		}
+		if (cause != null) {
+			throw new ExecutionException(cause);
+		}
+		return result;
+	}
+	
+}
@@ -1,19 +1,18 @@
 package org.cytoscape.heinz.internal;
 
 import java.io.ByteArrayOutputStream;
-import java.io.PrintWriter;
-import java.io.StringReader;
-import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.UnknownHostException;
-import java.util.List;
-import java.util.Locale;
 import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.cytoscape.model.CyTable;
-import org.cytoscape.model.CyRow;
 import org.cytoscape.model.CyColumn;
-import org.cytoscape.model.CyEdge;
 
 
 /**
@@ -21,6 +20,40 @@ import org.cytoscape.model.CyEdge;
  */
 public class SwHeinzClient extends AbstractSwClient implements HeinzClient {
 	
+	/**
+	 * The command line flags the client sends, and thus the only ones a
+	 * Heinz server need accept.
+	 */
+	public static final Set<String> FLAGS = Collections.unmodifiableSet(
+			new HashSet<String>(Arrays.asList(
+					"-n", "-e", "-o", "-lambda", "-a", "-FDR", "-p")));
+	
+	/**
+	 * SUIDs of the nodes in the module, once retrieved.
+	 */
+	private long[] moduleNodes = null;
+	/**
+	 * The network whose node file was sent in binary, and whose node
+	 * indices are thus the IDs the server knows the nodes by.
+	 */
+	private NetworkSnapshot binaryNetwork = null;
+	/**
+	 * Whether a node or edge file was sent as text, so that the other one
+	 * must be sent as text too.
+	 */
+	private boolean textFileSent = false;
+	/**
+	 * Whether to send a reduced network instead of the network itself.
+	 */
+	private boolean reductionEnabled = false;
+	/**
+	 * The reduction of the network last sent, or null.
+	 */
+	private NetworkReduction reduction = null;
+	private Double lambda = null;
+	private Double a = null;
+	private Double fdr = null;
+	
 	/**
 	 * Initialise a connection to a Heinz server.
 	 * 
@@ -32,20 +65,36 @@ public class SwHeinzClient extends AbstractSwClient implements HeinzClient {
 	 */
 	public SwHeinzClient(String host, int port) throws
 			IOException, UnknownHostException {
+		this(null, host, port);
+	}
+	
+	/**
+	 * Initialise a connection to a Heinz server, reusing a pooled one if possible.
+	 * 
+	 * @param pool  the connection pool, or null to open a connection of its own
+	 * @param host  the host name of the server
+	 * @param port  the port number to connect to
+	 * 
+	 * @throws IOException  if a connection to a compatible Heinz server cannot be made
+	 * @throws UnknownHostException  if the server’s IP address could not be determined
+	 */
+	public SwHeinzClient(SwConnectionPool pool, String host, int port) throws
+			IOException, UnknownHostException {
 		
-		// open a connection to the server,
+		// open (or reuse) a connection to the server,
 		// and set outputStream an inputStream
-		super(host, port);
+		super(pool, host, port);
 		
 		try {
+			// queue the parameters and files until Heinz is run, so that
+			// setting up a run takes a single round trip to the server
+			setPipelined(true);
 			// enable pre-processing, as will likely be the default in the future
-			new ClientMessage(
-					ClientMessage.TYPE_PARAMETER, "-p", null).send(outputStream);
-			receiveAck();
+			sendCommand(new ClientMessage(
+					ClientMessage.TYPE_PARAMETER, "-p", null));
 			// ask the server to prepare for storing the Heinz output file
-			new ClientMessage(
-					ClientMessage.TYPE_OUTPUT_FILE, "-o", null).send(outputStream);
-			receiveAck();
+			sendCommand(new ClientMessage(
+					ClientMessage.TYPE_OUTPUT_FILE, "-o", null));
 		// if something went wrong sending the parameters 
 		} catch (IOException e) {
 			// close the connection
@@ -64,94 +113,488 @@ public class SwHeinzClient extends AbstractSwClient implements HeinzClient {
 		super.ping();
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void enableReduction() {
+		reductionEnabled = true;
+	}
+	
     /**
      * {@inheritDoc}
      */
 	@Override
-	public void sendNodeTable(
-			final CyTable nodeTable,
-			final String pValueColumnName)
-					throws IOException {
+	public void sendNodes(NetworkSnapshot original) throws IOException {
 		
-		// Check if the table has the node SUIDs as its primary key column
-		if (
-				nodeTable.getPrimaryKey().getName() != "SUID" ||
-				nodeTable.getPrimaryKey().getType() != Long.class) {
-			throw new IllegalArgumentException(
-					"Primary key of node table (" +
-					nodeTable.getPrimaryKey().getName() +
-					") is not the SUID.");
+		final NetworkSnapshot network = reduce(original);
+		if (hasCapability(CAPABILITY_BINARY_NETWORK) && !textFileSent) {
+			sendBinaryNodeFile(network);
+			return;
 		}
+		textFileSent = true;
 		
-		// make an object to build up a byte array in a growing buffer
-		ByteArrayOutputStream fileContents = new ByteArrayOutputStream();
-		// an object to write text to the ByteArrayOutputStream
-		PrintWriter writer = new PrintWriter(fileContents, true);
+		// send the file to the server as the payload of a message,
+		// unless the server still holds it from an earlier run
+		sendInputFile(
+				"-n",
+				new EncodedPayload() {
+					@Override
+					protected void encode(AsciiEncoder encoder)
+							throws IOException {
+						encodeNodeFile(encoder, network);
+					}
+				});
 		
-		// start the file with a commented header line
-		writer.format("#node\tpval\n");
-		// for each row in the node table
-		for (CyRow nodeRow : nodeTable.getAllRows()) {
-			// write the line for this node table row to the byte array
-			writer.format(
-					(Locale) null,
-					"%d\t%.15g\n",
-					nodeRow.get("SUID", Long.class),
-					nodeRow.get(pValueColumnName, Double.class));
+	}
+	
+	/**
+	 * Send the node file shared by several runs on the same network, e.g.
+	 * one per FDR of a sweep.
+	 * 
+	 * The file is sent in binary if the server accepts it, and as text
+	 * otherwise. Either way it is written as it is sent, and its length
+	 * and digest are worked out once for all runs.
+	 * 
+	 * @param nodeFile  the node file of the network
+	 * 
+	 * @throws IOException  if the file cannot be sent successfully
+	 * @throws IllegalStateException  if reduction is enabled, as the nodes
+	 *                                of the reduced network are not shared
+	 */
+	public void sendNodes(SharedNodeFile nodeFile) throws IOException {
+		if (reductionEnabled) {
+			throw new IllegalStateException(
+					"Shared node file cannot be sent for a reduced network.");
+		}
+		if (hasCapability(CAPABILITY_BINARY_NETWORK) && !textFileSent) {
+			binaryNetwork = nodeFile.getNetwork();
+			sendInputFile(
+					ClientMessage.TYPE_BINARY_INPUT_FILE,
+					"-n",
+					nodeFile.getBinaryPayload());
+			return;
 		}
+		textFileSent = true;
+		sendInputFile("-n", nodeFile.getTextPayload());
+	}
+	
+	/**
+	 * The node file of a network, shared by the runs on it, and by the
+	 * threads sending them.
+	 * 
+	 * Neither the text nor the binary file is held in memory: each is
+	 * prepared when first needed, and written on the fly whenever it is
+	 * sent.
+	 */
+	public static class SharedNodeFile {
 		
-		// send the file to the server as the payload of a message
-		new ClientMessage(
-				ClientMessage.TYPE_INPUT_FILE,
-				"-n",
-				fileContents.toByteArray()).send(outputStream);
-		receiveAck();
+		private final NetworkSnapshot network;
+		private StreamedPayload textPayload = null;
+		private BinaryPayload binaryPayload = null;
+		
+		/**
+		 * @param network  the snapshot holding the node SUIDs and p-values
+		 */
+		public SharedNodeFile(NetworkSnapshot network) {
+			this.network = network;
+		}
+		
+		/**
+		 * @return  the snapshot the nodes are taken from
+		 */
+		public NetworkSnapshot getNetwork() {
+			return network;
+		}
 		
+		/**
+		 * @return  the payload of the text file
+		 */
+		synchronized StreamedPayload getTextPayload() {
+			if (textPayload == null) {
+				textPayload = new SharedEncodedPayload() {
+					@Override
+					protected void encode(AsciiEncoder encoder)
+							throws IOException {
+						encodeNodeFile(encoder, network);
+					}
+				};
+			}
+			return textPayload;
+		}
+		
+		/**
+		 * @return  the payload of the binary file
+		 * 
+		 * @throws IOException  if the file is too large to send
+		 */
+		synchronized BinaryPayload getBinaryPayload() throws IOException {
+			if (binaryPayload == null) {
+				binaryPayload = encodeBinaryNodeFile(network);
+			}
+			return binaryPayload;
+		}
+		
+	}
+	
+	/**
+	 * Encode the node file in memory, e.g. to compare it with the file a
+	 * server receives.
+	 * 
+	 * @param network  the snapshot holding the node SUIDs and p-values
+	 * 
+	 * @return  the same bytes sendNodes() would send as text
+	 * 
+	 * @throws IOException  if the file cannot be encoded
+	 */
+	public static byte[] encodeNodeFile(NetworkSnapshot network)
+			throws IOException {
+		AsciiEncoder encoder = new AsciiEncoder();
+		ByteArrayOutputStream nodeFile = new ByteArrayOutputStream();
+		encoder.reset(nodeFile);
+		encodeNodeFile(encoder, network);
+		encoder.finish();
+		return nodeFile.toByteArray();
+	}
+	
+	/**
+	 * Write the node file: a header line and a line per node.
+	 * 
+	 * @param encoder  the encoder to write to
+	 * @param network  the snapshot holding the node SUIDs and p-values
+	 * 
+	 * @throws IOException  if an I/O error occurs
+	 */
+	static void encodeNodeFile(AsciiEncoder encoder, NetworkSnapshot network)
+			throws IOException {
+		// start the file with a commented header line
+		encoder.writeAscii("#node\tpval\n");
+		// write a line for each row in the node table
+		for (int i = 0; i < network.getNodeCount(); ++i) {
+			encoder.writeLong(network.getNodeSuid(i));
+			encoder.writeChar('\t');
+			encoder.writeDouble(network.getPValue(i));
+			encoder.writeChar('\n');
+		}
 	}
 	
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void sendEdgeTable(List<CyEdge> edgeList) throws IOException {
+	public void sendEdges(NetworkSnapshot original) throws IOException {
 		
-		// make an object to build up a byte array in a growing buffer
-		ByteArrayOutputStream fileContents = new ByteArrayOutputStream();
-		// an object to write text to the ByteArrayOutputStream
-		PrintWriter writer = new PrintWriter(fileContents, true);
-		
-		// start the file with a commented header line
-		writer.format("#source\ttarget\n");
-		// for each edge
-		for (CyEdge edge : edgeList) {
-			// write the line for this node table row to the byte array
-			writer.format(
-					(Locale) null,
-					"%d\t%d\n",
-					edge.getSource().getSUID(),
-					edge.getTarget().getSUID());
+		final NetworkSnapshot network = reduce(original);
+		// the edges can only be sent in binary if the nodes have IDs
+		if (binaryNetwork == network) {
+			sendBinaryEdgeFile(network);
+			return;
 		}
+		textFileSent = true;
 		
-		// send the file to the server as the payload of a message
-		new ClientMessage(
-				ClientMessage.TYPE_INPUT_FILE,
+		// send the file to the server as the payload of a message,
+		// unless the server still holds it from an earlier run
+		sendInputFile(
 				"-e",
-				fileContents.toByteArray()).send(outputStream);
-		receiveAck();
+				new EncodedPayload() {
+					@Override
+					protected void encode(AsciiEncoder encoder)
+							throws IOException {
+						encodeEdgeFile(encoder, network);
+					}
+				});
 		
 	}
 	
+	/**
+	 * Send the edge file shared by several runs on the same graph, e.g.
+	 * one per p-value column of a network or per FDR of a sweep.
+	 * 
+	 * The file is sent in binary if the nodes were, and as text otherwise.
+	 * Either way it is written as it is sent, and its length and digest
+	 * are worked out once for all runs.
+	 * 
+	 * @param edgeFile  the edge file of the network whose nodes were sent
+	 * 
+	 * @throws IOException  if the file cannot be sent successfully
+	 * @throws IllegalArgumentException  if the nodes were sent in binary
+	 *                                   for another graph
+	 * @throws IllegalStateException  if reduction is enabled, as the edges
+	 *                                of the reduced network are not shared
+	 */
+	public void sendEdges(SharedEdgeFile edgeFile) throws IOException {
+		if (reductionEnabled) {
+			throw new IllegalStateException(
+					"Shared edge file cannot be sent for a reduced network.");
+		}
+		if (binaryNetwork != null) {
+			if (!binaryNetwork.hasSameGraph(edgeFile.getNetwork())) {
+				throw new IllegalArgumentException(
+						"Shared edge file does not match the nodes sent.");
+			}
+			sendInputFile(
+					ClientMessage.TYPE_BINARY_INPUT_FILE,
+					"-e",
+					edgeFile.getBinaryPayload());
+			return;
+		}
+		textFileSent = true;
+		sendInputFile("-e", edgeFile.getTextPayload());
+	}
+	
+	/**
+	 * The edge file of a network, shared by the runs on any snapshot with
+	 * the same graph, and by the threads sending them.
+	 * 
+	 * Neither the text nor the binary file is held in memory: each is
+	 * prepared when first needed, and written on the fly whenever it is
+	 * sent.
+	 * 
+	 * @see NetworkSnapshot#hasSameGraph(NetworkSnapshot)
+	 */
+	public static class SharedEdgeFile {
+		
+		private final NetworkSnapshot network;
+		private StreamedPayload textPayload = null;
+		private BinaryPayload binaryPayload = null;
+		
+		/**
+		 * @param network  a snapshot holding the edges
+		 */
+		public SharedEdgeFile(NetworkSnapshot network) {
+			this.network = network;
+		}
+		
+		/**
+		 * @return  the snapshot the edges are taken from
+		 */
+		public NetworkSnapshot getNetwork() {
+			return network;
+		}
+		
+		/**
+		 * @return  the payload of the text file
+		 */
+		synchronized StreamedPayload getTextPayload() {
+			if (textPayload == null) {
+				textPayload = new SharedEncodedPayload() {
+					@Override
+					protected void encode(AsciiEncoder encoder)
+							throws IOException {
+						encodeEdgeFile(encoder, network);
+					}
+				};
+			}
+			return textPayload;
+		}
+		
+		/**
+		 * @return  the payload of the binary file
+		 * 
+		 * @throws IOException  if the file is too large to send
+		 */
+		synchronized BinaryPayload getBinaryPayload() throws IOException {
+			if (binaryPayload == null) {
+				binaryPayload = encodeBinaryEdgeFile(network);
+			}
+			return binaryPayload;
+		}
+	
+	}
+	
+	/**
+	 * Encode the edge file in memory, e.g. to compare it with the file a
+	 * server receives.
+	 * 
+	 * @param network  the snapshot holding the edges
+	 * 
+	 * @return  the same bytes sendEdges() would send as text
+	 * 
+	 * @throws IOException  if the file cannot be encoded
+	 */
+	public static byte[] encodeEdgeFile(NetworkSnapshot network)
+			throws IOException {
+		AsciiEncoder encoder = new AsciiEncoder();
+		ByteArrayOutputStream edgeFile = new ByteArrayOutputStream();
+		encoder.reset(edgeFile);
+		encodeEdgeFile(encoder, network);
+		encoder.finish();
+		return edgeFile.toByteArray();
+	}
+	
+	/**
+	 * Write the edge file: a header line and a line per edge.
+	 * 
+	 * @param encoder  the encoder to write to
+	 * @param network  the snapshot holding the edges
+	 * 
+	 * @throws IOException  if an I/O error occurs
+	 */
+	static void encodeEdgeFile(AsciiEncoder encoder, NetworkSnapshot network)
+			throws IOException {
+		// start the file with a commented header line
+		encoder.writeAscii("#source\ttarget\n");
+		// write a line for each edge
+		for (int i = 0; i < network.getEdgeCount(); ++i) {
+			encoder.writeLong(network.getNodeSuid(network.getEdgeSource(i)));
+			encoder.writeChar('\t');
+			encoder.writeLong(network.getNodeSuid(network.getEdgeTarget(i)));
+			encoder.writeChar('\n');
+		}
+	}
+	
+	/**
+	 * Reduce a network before sending it, if enabled.
+	 * 
+	 * @param network  the network to send
+	 * 
+	 * @return  the network to send instead
+	 * 
+	 * @throws IllegalStateException  if the BUM model parameters or the
+	 *                                 FDR have not been sent yet
+	 */
+	private NetworkSnapshot reduce(NetworkSnapshot network) {
+		if (!reductionEnabled) {
+			return network;
+		}
+		// the node and edge files are reduced together
+		if (reduction == null || reduction.getNetwork() != network) {
+			if (lambda == null || a == null || fdr == null) {
+				throw new IllegalStateException(
+						"BUM model parameters and FDR needed to reduce the network.");
+			}
+			reduction = NetworkReduction.reduce(network, lambda, a, fdr);
+		}
+		return reduction.getReducedNetwork();
+	}
+	
+	/**
+	 * @return  the reduction of the network sent, or null if not reduced
+	 */
+	public NetworkReduction getReduction() {
+		return reduction;
+	}
+	
+	/**
+	 * Send the node file in binary, numbering the nodes in table order.
+	 * 
+	 * @param network  the snapshot holding the node SUIDs and p-values
+	 * 
+	 * @throws IOException  if the file cannot be sent successfully
+	 * 
+	 * @see ClientMessage#TYPE_BINARY_INPUT_FILE
+	 */
+	private void sendBinaryNodeFile(NetworkSnapshot network)
+			throws IOException {
+		BinaryPayload nodeFile = encodeBinaryNodeFile(network);
+		binaryNetwork = network;
+		sendInputFile(ClientMessage.TYPE_BINARY_INPUT_FILE, "-n", nodeFile);
+	}
+	
+	/**
+	 * Prepare the binary node file, written as it is sent.
+	 * 
+	 * @param network  the snapshot holding the p-values
+	 * 
+	 * @return  the payload of the file
+	 * 
+	 * @throws IOException  if the file is too large to send
+	 */
+	static BinaryPayload encodeBinaryNodeFile(final NetworkSnapshot network)
+			throws IOException {
+		final int nodeCount = network.getNodeCount();
+		final int length = checkLength(4 + 8L * nodeCount);
+		return new BinaryPayload() {
+			@Override
+			public int getLength() {
+				return length;
+			}
+			@Override
+			protected void write(DataOutputStream stream)
+					throws IOException {
+				stream.writeInt(nodeCount);
+				for (int i = 0; i < nodeCount; ++i) {
+					stream.writeDouble(network.getPValue(i));
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Send the edge file in binary, using the node indices as IDs.
+	 * 
+	 * @param network  the snapshot holding the edges
+	 * 
+	 * @throws IOException  if the file cannot be sent successfully
+	 * 
+	 * @see ClientMessage#TYPE_BINARY_INPUT_FILE
+	 */
+	private void sendBinaryEdgeFile(NetworkSnapshot network)
+			throws IOException {
+		sendInputFile(
+				ClientMessage.TYPE_BINARY_INPUT_FILE,
+				"-e",
+				encodeBinaryEdgeFile(network));
+	}
+	
+	/**
+	 * Prepare the binary edge file, written as it is sent.
+	 * 
+	 * @param network  the snapshot holding the edges
+	 * 
+	 * @return  the payload of the file
+	 * 
+	 * @throws IOException  if the file is too large to send
+	 */
+	static BinaryPayload encodeBinaryEdgeFile(final NetworkSnapshot network)
+			throws IOException {
+		final int edgeCount = network.getEdgeCount();
+		final int length = checkLength(4 + 8L * edgeCount);
+		return new BinaryPayload() {
+			@Override
+			public int getLength() {
+				return length;
+			}
+			@Override
+			protected void write(DataOutputStream stream)
+					throws IOException {
+				stream.writeInt(edgeCount);
+				for (int i = 0; i < edgeCount; ++i) {
+					stream.writeInt(network.getEdgeSource(i));
+					stream.writeInt(network.getEdgeTarget(i));
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Check that a file fits in a message.
+	 * 
+	 * @param length  the length of the file
+	 * 
+	 * @return  the length as an int
+	 * 
+	 * @throws IOException  if the file is too large
+	 */
+	private static int checkLength(long length) throws IOException {
+		// the protocol stores lengths as signed four-byte integers
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("File too large to send to the server.");
+		}
+		return (int) length;
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
 	public void sendLambda(double lambda) throws IOException {
-		new ClientMessage(
+		this.lambda = lambda;
+		sendCommand(new ClientMessage(
 				ClientMessage.TYPE_PARAMETER,
 				"-lambda",
 				((Double) lambda).toString().getBytes(
-						Charset.forName("US-ASCII"))).send(outputStream);
-		receiveAck();
+						Charset.forName("US-ASCII"))));
 	}
 	
 	/**
@@ -159,12 +602,12 @@ public class SwHeinzClient extends AbstractSwClient implements HeinzClient {
 	 */
 	@Override
 	public void sendA(double a) throws IOException {
-		new ClientMessage(
+		this.a = a;
+		sendCommand(new ClientMessage(
 				ClientMessage.TYPE_PARAMETER,
 				"-a",
 				((Double) a).toString().getBytes(
-						Charset.forName("US-ASCII"))).send(outputStream);
-		receiveAck();
+						Charset.forName("US-ASCII"))));
 	}
 	
 	/**
@@ -172,12 +615,12 @@ public class SwHeinzClient extends AbstractSwClient implements HeinzClient {
 	 */
 	@Override
 	public void sendFdr(double fdr) throws IOException {
-		new ClientMessage(
+		this.fdr = fdr;
+		sendCommand(new ClientMessage(
 				ClientMessage.TYPE_PARAMETER,
 				"-FDR",
 				((Double) fdr).toString().getBytes(
-						Charset.forName("US-ASCII"))).send(outputStream);
-		receiveAck();
+						Charset.forName("US-ASCII"))));
 	}
 	
 	/**
@@ -185,11 +628,24 @@ public class SwHeinzClient extends AbstractSwClient implements HeinzClient {
 	 */
 	@Override
 	public void runHeinz() throws IOException {
-		new ClientMessage(
-				ClientMessage.TYPE_RUN,
-				null,
-				null).send(outputStream);
-		receiveAck();
+		// send everything queued in one go and check it was accepted, then
+		// wait for the acknowledgement that means Heinz has finished
+		awaitRun();
+	}
+	
+	/**
+	 * Run Heinz without holding a thread while it runs, as runHeinz() does
+	 * otherwise.
+	 * 
+	 * @param selectorPool  the pool to wait on for Heinz to finish
+	 * 
+	 * @return  the future of the run, failed with an
+	 *          InterruptedIOException if the run was aborted
+	 * 
+	 * @see AsyncHeinzClient#runHeinz()
+	 */
+	public SwFuture<Void> runHeinz(SwSelectorPool selectorPool) {
+		return startRun(selectorPool);
 	}
 	
 	/**
@@ -198,32 +654,146 @@ public class SwHeinzClient extends AbstractSwClient implements HeinzClient {
 	@Override
 	public void retrieveResults(CyTable nodeTable, String resultColumnName)
 			throws IOException, IllegalArgumentException {
+		new ModuleColumnWriter(null).write(
+				nodeTable, resultColumnName, retrieveModule(nodeTable));
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long[] retrieveModule(CyTable nodeTable)
+			throws IOException, IllegalArgumentException {
 		
-		// Check if the node table has (node) SUIDs as its primary key column
-		if (
-				nodeTable.getPrimaryKey().getName() != "SUID" ||
-				nodeTable.getPrimaryKey().getType() != Long.class) {
-			throw new IllegalArgumentException(
-					"Primary key of node table (" +
-					nodeTable.getPrimaryKey().getName() +
-					") is not the SUID.");
+		checkPrimaryKey(nodeTable);
+		
+		long[] module;
+		if (binaryNetwork != null) {
+			module = retrieveBinaryModule();
+		} else {
+			// stream the output file from the server, decoding each line
+			// as it arrives, so that parsing counts as downloading
+			long start = System.nanoTime();
+			InputStream output = requestOutput(new ClientMessage(
+					ClientMessage.TYPE_GET_OUTPUT,
+					"0",
+					null));
+			try {
+				module = HeinzOutputReader.readModule(output);
+			} finally {
+				output.close();
+			}
+			getMetrics().addTimeSince(RunMetrics.Phase.DOWNLOAD, start);
 		}
+		long start = System.nanoTime();
+		moduleNodes = expand(module);
+		getMetrics().addTimeSince(RunMetrics.Phase.PARSE, start);
+		return moduleNodes;
 		
-		// retrieve the output file
-		new ClientMessage(
+	}
+	
+	/**
+	 * Map a module retrieved from the server back to the network.
+	 * 
+	 * @param module  the SUIDs of the nodes in the module, as sent
+	 * 
+	 * @return  the SUIDs of the nodes in the network they stand for
+	 * 
+	 * @throws IOException  if the module has nodes that were not sent
+	 */
+	private long[] expand(long[] module) throws IOException {
+		if (reduction == null) {
+			return module;
+		}
+		try {
+			return reduction.expand(module);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(
+					"Module received from server does not match the nodes.");
+		}
+	}
+	
+	/**
+	 * Retrieve the results as a bitset over the IDs of the binary node file.
+	 * 
+	 * @return  the SUIDs of the nodes in the module
+	 * 
+	 * @throws IOException  if the results could not be retrieved
+	 */
+	private long[] retrieveBinaryModule() throws IOException {
+		
+		long start = System.nanoTime();
+		ServerMessage response = request(new ClientMessage(
 				ClientMessage.TYPE_GET_OUTPUT,
 				"0",
-				null).send(outputStream);
-		ServerMessage response = ServerMessage.receive(inputStream);
+				"bitset".getBytes(Charset.forName("US-ASCII"))));
 		if (response.getType() != ServerMessage.TYPE_OUTPUT) {
 			throw new IOException("Invalid response from server.");
 		}
-		// decode the contents as text
-		String outputFileContents = new String(
-				response.getPayload(),
-				Charset.forName("US-ASCII"));
+		getMetrics().addTimeSince(RunMetrics.Phase.DOWNLOAD, start);
+		
+		start = System.nanoTime();
+		long[] module = decodeBitset(response.getPayload(), binaryNetwork);
+		getMetrics().addTimeSince(RunMetrics.Phase.PARSE, start);
+		return module;
+		
+	}
+	
+	/**
+	 * Decode a module sent as a bitset over the IDs of a binary node file.
+	 * 
+	 * @param bitset  the bitset, as received
+	 * @param network  the network whose node file was sent in binary
+	 * 
+	 * @return  the SUIDs of the nodes in the module
+	 * 
+	 * @throws IOException  if the bitset does not match the nodes
+	 */
+	static long[] decodeBitset(byte[] bitset, NetworkSnapshot network)
+			throws IOException {
+		int nodeCount = network.getNodeCount();
+		if (bitset.length != (nodeCount + 7) / 8) {
+			throw new IOException(
+					"Bitset received from server does not match the nodes.");
+		}
+		// the bits past the last node only pad the last byte
+		if (nodeCount % 8 != 0 &&
+				(bitset[bitset.length - 1] & (0xFF << (nodeCount % 8))) != 0) {
+			throw new IOException(
+					"Bitset received from server marks nodes that do not exist.");
+		}
 		
-		// identify and if necessary create the column to store the results in
+		int moduleSize = 0;
+		for (byte b : bitset) {
+			moduleSize += Integer.bitCount(b & 0xFF);
+		}
+		long[] module = new long[moduleSize];
+		for (int id = 0, i = 0; id < nodeCount; ++id) {
+			if ((bitset[id >>> 3] & (1 << (id & 7))) != 0) {
+				module[i++] = network.getNodeSuid(id);
+			}
+		}
+		return module;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long[] getModuleNodes() {
+		return moduleNodes;
+	}
+	
+	/**
+	 * Identify and if necessary create the column to store results in.
+	 * 
+	 * @param nodeTable  the node table
+	 * @param resultColumnName  name of the column
+	 * 
+	 * @throws IllegalArgumentException  if the column is of the wrong type
+	 */
+	static void createResultColumn(
+			CyTable nodeTable, String resultColumnName) {
 		CyColumn resultColumn = nodeTable.getColumn(resultColumnName);
 		// if there was no column with that name yet
 		if (resultColumn == null) {
@@ -234,37 +804,6 @@ public class SwHeinzClient extends AbstractSwClient implements HeinzClient {
 			throw new IllegalArgumentException(
 					"Selected output column is not of type Boolean.");
 		}
-		
-		// wrap the string in an object that allows reading line by line
-		BufferedReader reader = new BufferedReader(
-				new StringReader(outputFileContents));
-		String line;
-		// for each line in the file
-		while ((line = reader.readLine()) != null) {
-			// if this is a comment line
-			if (line.startsWith("#")) {
-				// skip to the next line
-				continue;
-			}
-			
-			// Split on any (sequence of) whitespace characters
-			String[] fields = line.split("\\s+");
-			if (fields.length != 2) {
-				throw new IOException(
-						"File received from server does not have two columns");
-			}
-			
-			// parse the first field (the ID) as a long integer
-			long nodeSuid = Long.parseLong(fields[0]);
-			// parse the second field as a floating-point number and test it:
-			// it’s a score if the node is in the module or NaN if not
-			boolean inModule = !Double.isNaN(Double.parseDouble(fields[1]));
-			
-			// set the result column item for this node
-			nodeTable.getRow(nodeSuid).set(resultColumnName, inModule);
-			
-		}
-		
 	}
 	
 	/**
@@ -275,4 +814,22 @@ public class SwHeinzClient extends AbstractSwClient implements HeinzClient {
 		super.close();
 	}
 	
-}
\ No newline at end of file
+	/**
+	 * Check if the table has the node SUIDs as its primary key column.
+	 * 
+	 * @param nodeTable  the node table
+	 * 
+	 * @throws IllegalArgumentException  if the primary key is not the SUID
+	 */
+	static void checkPrimaryKey(CyTable nodeTable) {
+		if (
+				nodeTable.getPrimaryKey().getName() != "SUID" ||
+				nodeTable.getPrimaryKey().getType() != Long.class) {
+			throw new IllegalArgumentException(
+					"Primary key of node table (" +
+					nodeTable.getPrimaryKey().getName() +
+					") is not the SUID.");
+		}
+	}
+	
+}
@@ -0,0 +1,318 @@
+package org.cytoscape.heinz.internal;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small pool of threads serving any number of sessions with server
+ * wrappers at once.
+ *
+ * A session waiting for a run, which may take hours, holds no thread: its
+ * connection is left to a selector, which hands it back once the server
+ * has something to say. The other steps of a session, encoding and
+ * sending the input files or reading the output, are bursts of work that
+ * run on a few worker threads, in turn with the steps of other sessions.
+ * They use the connection as a blocking socket, so a slow upload or
+ * download holds its worker thread meanwhile.
+ *
+ * @see AbstractAsyncSwClient
+ */
+public class SwSelectorPool {
+
+	/**
+	 * A selector with its thread, and the tasks to run on that thread.
+	 */
+	private class SelectorThread implements Runnable {
+
+		private final Selector selector;
+		private final Queue<Runnable> tasks =
+				new ConcurrentLinkedQueue<Runnable>();
+		private final Thread thread;
+
+		/**
+		 * @param index  the number of the thread, for its name
+		 *
+		 * @throws IOException  if the selector cannot be opened
+		 */
+		SelectorThread(int index) throws IOException {
+			selector = Selector.open();
+			thread = new Thread(this, "Heinz selector " + index);
+			// do not keep Cytoscape from exiting
+			thread.setDaemon(true);
+		}
+
+		/**
+		 * Run a task on the selector thread, e.g. to register a channel,
+		 * which would otherwise block until the selector wakes up.
+		 *
+		 * @param task  the task
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+			if (!selector.isOpen()) {
+				// closed meanwhile, so the thread will not run it
+				runTasks();
+			}
+		}
+
+		/**
+		 * Select and dispatch until the pool is shut down.
+		 */
+		@Override
+		public void run() {
+			try {
+				while (!shutDown) {
+					selector.select();
+					runTasks();
+					dispatch();
+				}
+			} catch (IOException e) {
+				// the selector broke; let the sessions fail below
+			} catch (ClosedSelectorException e) {
+				// closed while shutting down
+			} finally {
+				close();
+			}
+		}
+
+		/**
+		 * Hand the ready connections back to their sessions.
+		 *
+		 * Their keys are cancelled, and dropped by selecting again, so that
+		 * the channels can block again.
+		 *
+		 * @throws IOException  if selecting fails
+		 */
+		private void dispatch() throws IOException {
+			List<SwConnection> ready = new ArrayList<SwConnection>();
+			while (!selector.selectedKeys().isEmpty()) {
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					key.cancel();
+					ready.add((SwConnection) key.attachment());
+				}
+				selector.selectNow();
+			}
+			for (SwConnection connection : ready) {
+				Runnable callback = connection.unpark();
+				if (callback != null) {
+					callback.run();
+				}
+			}
+		}
+
+		/**
+		 * Close the connections still waiting, so that their sessions
+		 * fail, and close the selector.
+		 */
+		private void close() {
+			// register any connections parked meanwhile first, so that
+			// they are closed along with the others
+			runTasks();
+			try {
+				for (SelectionKey key : selector.keys()) {
+					SwConnection connection = (SwConnection) key.attachment();
+					if (connection.isParked()) {
+						connection.closeQuietly();
+					}
+				}
+			} catch (ClosedSelectorException e) {
+				// nothing left to close
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// not selecting anymore anyway
+			}
+			// fail the registrations that came in meanwhile
+			runTasks();
+		}
+
+		/**
+		 * Run the tasks submitted so far.
+		 */
+		private void runTasks() {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				task.run();
+			}
+		}
+
+	}
+
+	private final SelectorThread[] selectorThreads;
+	private final ExecutorService workers;
+	private volatile boolean shutDown = false;
+
+	/**
+	 * Start a pool of selector and worker threads.
+	 *
+	 * @param selectorThreadCount  the number of selector threads, one of
+	 *                             which will usually do
+	 * @param workerThreadCount  the number of worker threads, e.g. one per
+	 *                           processor, as the steps they run mostly
+	 *                           encode and decode files
+	 *
+	 * @throws IOException  if a selector cannot be opened
+	 */
+	public SwSelectorPool(int selectorThreadCount, int workerThreadCount)
+			throws IOException {
+		if (selectorThreadCount < 1 || workerThreadCount < 1) {
+			throw new IllegalArgumentException(
+					"At least one selector and one worker thread are needed.");
+		}
+		selectorThreads = new SelectorThread[selectorThreadCount];
+		try {
+			for (int i = 0; i < selectorThreadCount; ++i) {
+				selectorThreads[i] = new SelectorThread(i + 1);
+			}
+		} catch (IOException e) {
+			for (SelectorThread selectorThread : selectorThreads) {
+				if (selectorThread != null) {
+					selectorThread.selector.close();
+				}
+			}
+			throw e;
+		}
+		final AtomicInteger workerCount = new AtomicInteger();
+		workers = Executors.newFixedThreadPool(
+				workerThreadCount,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(
+								runnable,
+								"Heinz session worker " +
+										workerCount.incrementAndGet());
+						// do not keep Cytoscape from exiting
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		for (SelectorThread selectorThread : selectorThreads) {
+			selectorThread.thread.start();
+		}
+	}
+
+	/**
+	 * Run a step of a session on a worker thread.
+	 *
+	 * @param step  the step
+	 *
+	 * @return  the future of its result
+	 */
+	public <T> SwFuture<T> submit(final Callable<T> step) {
+		final SwFuture<T> future = new SwFuture<T>();
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				T result;
+				try {
+					result = step.call();
+				} catch (Exception e) {
+					future.fail(e);
+					return;
+				} catch (Error e) {
+					future.fail(e);
+					throw e;
+				}
+				future.complete(result);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Run a task on a worker thread, or on this one once the pool is shut
+	 * down, so that it can still fail its session rather than never run.
+	 *
+	 * @param task  the task
+	 */
+	void execute(Runnable task) {
+		try {
+			workers.execute(task);
+		} catch (RejectedExecutionException e) {
+			task.run();
+		}
+	}
+
+	/**
+	 * Wait for a server to send something, without holding a thread.
+	 *
+	 * The callback runs on a worker thread once the connection has data to
+	 * read, or is closed, whichever comes first.
+	 *
+	 * @param connection  the connection, which the caller stops using
+	 *                    until the callback runs
+	 * @param callback  the rest of the step, e.g. to read the answer to a
+	 *                  run request
+	 */
+	void awaitReadable(final SwConnection connection, final Runnable callback) {
+		connection.park(new Runnable() {
+			@Override
+			public void run() {
+				execute(callback);
+			}
+		});
+		// spread the connections over the selectors
+		final SelectorThread selectorThread = selectorThreads[
+				(System.identityHashCode(connection) & Integer.MAX_VALUE) %
+				selectorThreads.length];
+		Runnable registration = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					connection.register(selectorThread.selector);
+				} catch (ClosedSelectorException e) {
+					// shut down meanwhile
+					connection.closeQuietly();
+				}
+			}
+		};
+		if (shutDown) {
+			// fail the session rather than leaving it waiting forever
+			connection.closeQuietly();
+			return;
+		}
+		selectorThread.execute(registration);
+	}
+
+	/**
+	 * Stop the threads, closing the connections still waiting for their
+	 * servers so that their sessions fail.
+	 *
+	 * Steps already handed to the workers still run, and steps submitted
+	 * after this run on the thread submitting them.
+	 */
+	public void shutDown() {
+		shutDown = true;
+		for (SelectorThread selectorThread : selectorThreads) {
+			selectorThread.selector.wakeup();
+		}
+		workers.shutdown();
+	}
+
+	/**
+	 * @return  whether the pool has been shut down
+	 */
+	public boolean isShutDown() {
+		return shutDown;
+	}
+
+}
@@ -0,0 +1,398 @@
+package org.cytoscape.heinz.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A server wrapper running within Cytoscape, for tools installed locally.
+ *
+ * Speaks the same protocol as the Python server wrapper, including the
+ * extensions of AbstractSwClient, so that clients connect to it like to
+ * any other server. Each connection is served by a session of its own,
+ * but the tool is run by at most a fixed number of sessions at a time;
+ * runs beyond that wait for a process to become free. Input and output
+ * files are kept in a working directory, by default in memory-backed
+ * storage where the system has it.
+ *
+ * The server only accepts connections from the local machine.
+ *
+ * @see SwServerSession
+ * @see <a href="https://github.com/melkebir/server-wrapper">server-wrapper</a>
+ */
+public class SwServer {
+	
+	/**
+	 * Directory of memory-backed storage on Linux.
+	 */
+	private static final File SHARED_MEMORY_DIRECTORY = new File("/dev/shm");
+	/**
+	 * Total size of the input files kept for reuse, in bytes.
+	 */
+	private static final long MAX_STORED_FILES_SIZE = 512L * 1024 * 1024;
+	/**
+	 * How long to wait for sessions to end when shutting down, in ms.
+	 */
+	private static final long SHUTDOWN_TIMEOUT = 5 * 1000;
+	/**
+	 * The protocol extensions the server supports.
+	 */
+	static final List<String> CAPABILITIES = Arrays.asList(
+			AbstractSwClient.CAPABILITY_DEFLATE,
+			AbstractSwClient.CAPABILITY_OFFER_FILE,
+			AbstractSwClient.CAPABILITY_BINARY_NETWORK,
+			AbstractSwClient.CAPABILITY_PROGRESS,
+			AbstractSwClient.CAPABILITY_RUN_TIMES);
+	
+	/**
+	 * Starts the tool for a run, as a process of the system unless
+	 * replaced, e.g. by a simulated tool for measurements.
+	 */
+	public interface ToolRunner {
+		
+		/**
+		 * @param commandLine  the command line of the tool, with the
+		 *                     parameters and files of the run
+		 * @param directory  the working directory of the run
+		 *
+		 * @return  the started tool, which the session waits for, reads
+		 *          the output of and destroys if the run is aborted
+		 *
+		 * @throws IOException  if the tool cannot be started
+		 */
+		Process start(List<String> commandLine, File directory)
+				throws IOException;
+		
+	}
+	
+	/**
+	 * Runs the tool as a process of the system.
+	 */
+	private static final ToolRunner PROCESS_RUNNER = new ToolRunner() {
+		@Override
+		public Process start(List<String> commandLine, File directory)
+				throws IOException {
+			return new ProcessBuilder(commandLine).directory(directory).start();
+		}
+	};
+	
+	private final List<String> command;
+	private final Set<String> flags;
+	private final File workDirectory;
+	private final Semaphore processes;
+	private final SwFileStore fileStore;
+	private final AtomicInteger sessionCount = new AtomicInteger();
+	private volatile ToolRunner toolRunner = PROCESS_RUNNER;
+	private volatile Set<String> capabilities =
+			new HashSet<String>(CAPABILITIES);
+	private final Set<SwServerSession> sessions =
+			Collections.synchronizedSet(new HashSet<SwServerSession>());
+	private ServerSocket serverSocket = null;
+	private ExecutorService executor = null;
+	
+	/**
+	 * Initialise a server, without starting it yet.
+	 *
+	 * @param command  the command line of the tool, e.g. the path of the
+	 *                 heinz executable, to which the parameters and files
+	 *                 sent by clients are appended
+	 * @param flags  the command line flags clients may pass to the tool;
+	 *               messages with any other name are refused
+	 * @param workDirectory  the directory to create, to keep files in
+	 * @param maxProcesses  the maximum number of simultaneous runs
+	 */
+	public SwServer(
+			List<String> command,
+			Set<String> flags,
+			File workDirectory,
+			int maxProcesses) {
+		if (command.isEmpty()) {
+			throw new IllegalArgumentException("No command given to run.");
+		}
+		if (maxProcesses < 1) {
+			throw new IllegalArgumentException(
+					"At least one process is needed to run the tool.");
+		}
+		this.command = new ArrayList<String>(command);
+		this.flags = new HashSet<String>(flags);
+		this.workDirectory = workDirectory;
+		// serve waiting runs in order of arrival
+		processes = new Semaphore(maxProcesses, true);
+		fileStore = new SwFileStore(
+				new File(workDirectory, "files"), MAX_STORED_FILES_SIZE);
+	}
+	
+	/**
+	 * Choose a new working directory, in memory-backed storage if possible.
+	 *
+	 * @param prefix  the start of the name of the directory
+	 *
+	 * @return  a directory that does not exist yet
+	 */
+	public static File createWorkDirectoryName(String prefix) {
+		File parent = SHARED_MEMORY_DIRECTORY;
+		if (!(parent.isDirectory() && parent.canWrite())) {
+			parent = new File(System.getProperty("java.io.tmpdir"));
+		}
+		File directory;
+		do {
+			directory = new File(
+					parent, prefix + "-" + Long.toHexString(System.nanoTime()));
+		} while (directory.exists());
+		return directory;
+	}
+	
+	/**
+	 * Replace how the tool is started, for the runs from then on.
+	 *
+	 * @param toolRunner  starts the tool for each run
+	 */
+	public void setToolRunner(ToolRunner toolRunner) {
+		this.toolRunner = toolRunner;
+	}
+	
+	/**
+	 * Limit the protocol extensions the server agrees to, for the sessions
+	 * from then on, e.g. to serve like an older server wrapper.
+	 *
+	 * @param capabilities  the extensions to agree to, of those supported
+	 *
+	 * @see AbstractSwClient.ClientMessage#TYPE_CAPABILITIES
+	 */
+	public void setCapabilities(Collection<String> capabilities) {
+		this.capabilities = new HashSet<String>(capabilities);
+	}
+	
+	/**
+	 * Start accepting connections.
+	 *
+	 * @param port  the port number to listen on, or 0 for any free one
+	 *
+	 * @throws IOException  if the server cannot listen on the port, or the
+	 *                      working directory cannot be created
+	 */
+	public synchronized void start(int port) throws IOException {
+		if (serverSocket != null) {
+			throw new IllegalStateException("Server already started.");
+		}
+		File filesDirectory = new File(workDirectory, "files");
+		if (!filesDirectory.isDirectory() && !filesDirectory.mkdirs()) {
+			throw new IOException(
+					"Could not create directory " + filesDirectory + ".");
+		}
+		try {
+			// listen on the loopback interface only
+			serverSocket = new ServerSocket(
+					port, 50, InetAddress.getByName(null));
+		} catch (IOException e) {
+			delete(workDirectory);
+			throw e;
+		}
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(
+						runnable, "Heinz embedded server " + command.get(0));
+				// do not keep Cytoscape from exiting
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		final ServerSocket listener = serverSocket;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				accept(listener);
+			}
+		});
+	}
+	
+	/**
+	 * @return  the port number the server listens on
+	 *
+	 * @throws IllegalStateException  if the server has not been started
+	 */
+	public synchronized int getPort() {
+		if (serverSocket == null) {
+			throw new IllegalStateException("Server not started.");
+		}
+		return serverSocket.getLocalPort();
+	}
+	
+	/**
+	 * Stop the server, ending all sessions and deleting all files.
+	 *
+	 * Runs still in progress are aborted.
+	 */
+	public synchronized void shutDown() {
+		if (serverSocket == null) {
+			return;
+		}
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// not accepting connections anyway
+		}
+		synchronized (sessions) {
+			for (SwServerSession session : sessions) {
+				session.close();
+			}
+		}
+		executor.shutdownNow();
+		try {
+			executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		fileStore.clear();
+		delete(workDirectory);
+	}
+	
+	/**
+	 * @return  the command line of the tool
+	 */
+	List<String> getCommand() {
+		return command;
+	}
+	
+	/**
+	 * @return  the command line flags clients may pass to the tool
+	 */
+	Set<String> getFlags() {
+		return flags;
+	}
+	
+	/**
+	 * @return  what starts the tool for a run
+	 */
+	ToolRunner getToolRunner() {
+		return toolRunner;
+	}
+	
+	/**
+	 * @return  the protocol extensions to agree to
+	 */
+	Set<String> getCapabilities() {
+		return capabilities;
+	}
+	
+	/**
+	 * @return  the input files kept for reuse
+	 */
+	SwFileStore getFileStore() {
+		return fileStore;
+	}
+	
+	/**
+	 * Wait for a process to become free, to run the tool with.
+	 *
+	 * @param timeout  how long to wait at most, in milliseconds
+	 *
+	 * @return  whether a process was acquired
+	 *
+	 * @throws InterruptedException  if the server is shut down meanwhile
+	 */
+	boolean tryAcquireProcess(long timeout) throws InterruptedException {
+		return processes.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Free a process acquired with tryAcquireProcess().
+	 */
+	void releaseProcess() {
+		processes.release();
+	}
+	
+	/**
+	 * Accept connections until the server socket is closed, serving each
+	 * in a session of its own.
+	 *
+	 * @param listener  the server socket
+	 */
+	private void accept(ServerSocket listener) {
+		while (true) {
+			Socket socket;
+			try {
+				socket = listener.accept();
+			} catch (IOException e) {
+				// closed by shutDown()
+				return;
+			}
+			final SwServerSession session;
+			try {
+				session = new SwServerSession(
+						this,
+						socket,
+						new File(
+								workDirectory,
+								"session-" + sessionCount.incrementAndGet()));
+			} catch (SocketException e) {
+				closeQuietly(socket);
+				continue;
+			}
+			sessions.add(session);
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							session.run();
+						} finally {
+							sessions.remove(session);
+						}
+					}
+				});
+			} catch (RuntimeException e) {
+				// rejected while shutting down
+				sessions.remove(session);
+				session.close();
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Close a socket, ignoring errors.
+	 *
+	 * @param socket  the socket
+	 */
+	static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing left to release
+		}
+	}
+	
+	/**
+	 * Delete a file, or a directory with everything in it.
+	 *
+	 * @param file  the file or directory
+	 */
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+	
+}
@@ -0,0 +1,1357 @@
+package org.cytoscape.heinz.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import org.cytoscape.heinz.internal.AbstractSwClient.ClientMessage;
+import org.cytoscape.heinz.internal.AbstractSwClient.ServerMessage;
+
+/**
+ * A connection to an embedded server, from a single client.
+ *
+ * Collects the parameters and files of a run as the client sends them,
+ * runs the tool when asked to, and sends back its output files. Input
+ * files are converted from the binary network format, if sent in it, and
+ * are kept in the file store of the server for later sessions.
+ *
+ * While the tool runs, or waits for a free process, the messages that
+ * follow the run request are read ahead, so that a run is aborted as soon
+ * as the client asks to, or disconnects; the other messages are handled
+ * after the run. If the client asks for it, the output of the tool is
+ * streamed to it meanwhile as well.
+ *
+ * @see SwServer
+ * @see AbstractSwClient.ClientMessage
+ */
+public class SwServerSession implements Runnable {
+	
+	/**
+	 * Size of the buffers on the connection’s streams and on files.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+	/**
+	 * Largest payload accepted other than a file, in bytes.
+	 */
+	private static final int MAX_MESSAGE_SIZE = 64 * 1024;
+	/**
+	 * Output file name of the standard output of the tool.
+	 */
+	private static final int STDOUT = 254;
+	/**
+	 * Output file name of the standard error of the tool.
+	 */
+	private static final int STDERR = 255;
+	/**
+	 * How often to check for an abort request while a run waits for a
+	 * process or runs, in milliseconds.
+	 */
+	private static final long ABORT_POLL_INTERVAL = 50;
+	/**
+	 * How long to wait for the next message when checking, in milliseconds.
+	 */
+	private static final int READ_AHEAD_TIMEOUT = 1;
+	
+	/**
+	 * Raised when an input file is not valid, rather than the connection
+	 * failing.
+	 */
+	private static class InvalidFileException extends IOException {
+		
+		private static final long serialVersionUID = 1L;
+		
+		public InvalidFileException(String message) {
+			super(message);
+		}
+		
+	}
+	
+	private final SwServer server;
+	private final Socket socket;
+	private final ClientInputStream clientStream;
+	private final DataInputStream inputStream;
+	private final DataOutputStream outputStream;
+	private final File directory;
+	private final AsciiEncoder encoder = new AsciiEncoder();
+	private boolean deflate = false;
+	private boolean binaryNetwork = false;
+	private boolean progress = false;
+	private boolean runTimes = false;
+	
+	/**
+	 * The arguments for the tool, in the order they were sent.
+	 */
+	private final List<String> arguments = new ArrayList<String>();
+	/**
+	 * The files requested as output files, by number.
+	 */
+	private final List<File> outputFiles = new ArrayList<File>();
+	/**
+	 * The input files in use from the file store.
+	 */
+	private final List<SwFileStore.StoredFile> inputFiles =
+			new ArrayList<SwFileStore.StoredFile>();
+	/**
+	 * Number of nodes of the binary node file sent, or -1 if none.
+	 */
+	private int nodeCount = -1;
+	private boolean hasRun = false;
+	/**
+	 * Whether the last run was aborted at the client’s request.
+	 */
+	private boolean aborted = false;
+	/**
+	 * How long the last run waited for a process, and how long the tool
+	 * ran, in milliseconds.
+	 */
+	private long queueTime = 0;
+	private long runTime = 0;
+	/**
+	 * The messages read ahead during the current run, or null.
+	 */
+	private ByteArrayOutputStream readAhead = null;
+	/**
+	 * Whether reading ahead stopped at a message too large to keep.
+	 */
+	private boolean readAheadStopped = false;
+	
+	/**
+	 * @param server  the server accepting the connection
+	 * @param socket  the connection to the client
+	 * @param directory  the directory to create, to keep output files in
+	 *
+	 * @throws SocketException  if the connection cannot be set up
+	 */
+	public SwServerSession(SwServer server, Socket socket, File directory)
+			throws SocketException {
+		this.server = server;
+		this.socket = socket;
+		this.directory = directory;
+		// responses are flushed once no more messages are waiting
+		socket.setTcpNoDelay(true);
+		try {
+			clientStream = new ClientInputStream(new BufferedInputStream(
+					socket.getInputStream(), BUFFER_SIZE));
+			inputStream = new DataInputStream(clientStream);
+			outputStream = new DataOutputStream(new BufferedOutputStream(
+					socket.getOutputStream(), BUFFER_SIZE));
+		} catch (IOException e) {
+			throw new SocketException(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Serve the client until it disconnects.
+	 */
+	@Override
+	public void run() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				int type = inputStream.read();
+				if (type == -1) {
+					break;
+				}
+				handleMessage(type, readName(), inputStream.readInt());
+				// answer pipelined messages together
+				if (inputStream.available() == 0) {
+					outputStream.flush();
+				}
+			}
+		} catch (IOException e) {
+			// the connection failed, or the client broke the protocol
+		} finally {
+			reset();
+			SwServer.closeQuietly(socket);
+		}
+	}
+	
+	/**
+	 * End the session, e.g. when the server is shut down.
+	 */
+	public void close() {
+		SwServer.closeQuietly(socket);
+	}
+	
+	/**
+	 * Handle a message from the client, whose payload has yet to be read.
+	 *
+	 * @param type  the message type
+	 * @param name  the name (command line flag), possibly empty
+	 * @param length  the length of the payload
+	 *
+	 * @throws IOException  if the connection fails
+	 */
+	private void handleMessage(int type, String name, int length)
+			throws IOException {
+		if (length < 0) {
+			throw new IOException("Invalid payload length: " + length);
+		}
+		switch (type) {
+		case ClientMessage.TYPE_ALIVE:
+			skip(length);
+			send(ServerMessage.TYPE_ACK, null);
+			break;
+		case ClientMessage.TYPE_PARAMETER:
+			String parameter = new String(
+					readPayload(length), Charset.forName("US-ASCII"));
+			// a value starting with a dash would be read as another flag
+			if (!isAllowedFlag(name) || parameter.startsWith("-")) {
+				send(ServerMessage.TYPE_NACK, null);
+				break;
+			}
+			addArgument(name);
+			if (parameter.length() > 0) {
+				arguments.add(parameter);
+			}
+			send(ServerMessage.TYPE_ACK, null);
+			break;
+		case ClientMessage.TYPE_INPUT_FILE:
+			if (!isAllowedFlag(name)) {
+				skip(length);
+				send(ServerMessage.TYPE_NACK, null);
+				break;
+			}
+			receiveFile(name, length, false);
+			break;
+		case ClientMessage.TYPE_BINARY_INPUT_FILE:
+			if (!binaryNetwork || !isAllowedFlag(name)) {
+				skip(length);
+				send(ServerMessage.TYPE_NACK, null);
+				break;
+			}
+			receiveFile(name, length, true);
+			break;
+		case ClientMessage.TYPE_OUTPUT_FILE:
+			skip(length);
+			if (!isAllowedFlag(name)) {
+				send(ServerMessage.TYPE_NACK, null);
+				break;
+			}
+			createDirectory();
+			File outputFile = new File(directory, "output-" + outputFiles.size());
+			outputFiles.add(outputFile);
+			addArgument(name);
+			arguments.add(outputFile.getPath());
+			send(ServerMessage.TYPE_ACK, null);
+			break;
+		case ClientMessage.TYPE_RUN:
+			boolean streamOutput = progress && new String(
+					readPayload(length), Charset.forName("US-ASCII")).equals(
+							ClientMessage.RUN_STREAM_OUTPUT);
+			if (!runTool(streamOutput)) {
+				send(ServerMessage.TYPE_NACK, null);
+			} else if (runTimes) {
+				send(
+						ServerMessage.TYPE_ACK,
+						(queueTime + "," + runTime).getBytes(
+								Charset.forName("US-ASCII")));
+			} else {
+				send(ServerMessage.TYPE_ACK, null);
+			}
+			break;
+		case ClientMessage.TYPE_GET_OUTPUT:
+			sendOutput(name, readPayload(length));
+			break;
+		case ClientMessage.TYPE_RESET:
+			skip(length);
+			reset();
+			send(ServerMessage.TYPE_ACK, null);
+			break;
+		case ClientMessage.TYPE_OFFER_FILE:
+			String digest = new String(
+					readPayload(length), Charset.forName("US-ASCII"));
+			if (!isAllowedFlag(name)) {
+				send(ServerMessage.TYPE_NACK, null);
+				break;
+			}
+			SwFileStore.StoredFile stored =
+					server.getFileStore().acquire(digest);
+			if (stored != null) {
+				useInputFile(name, stored);
+			}
+			send(
+					ServerMessage.TYPE_ACK,
+					(stored != null ? "1" : "0").getBytes(
+							Charset.forName("US-ASCII")));
+			break;
+		case ClientMessage.TYPE_CAPABILITIES:
+			negotiate(readPayload(length));
+			break;
+		case ClientMessage.TYPE_ABORT:
+			skip(length);
+			// the run, if aborted, has released its process by now
+			send(
+					ServerMessage.TYPE_ACK,
+					(aborted ? "1" : "0").getBytes(Charset.forName("US-ASCII")));
+			aborted = false;
+			break;
+		default:
+			skip(length);
+			send(ServerMessage.TYPE_NACK, null);
+		}
+	}
+	
+	/**
+	 * Agree on the protocol extensions the client asks for.
+	 *
+	 * @param query  the comma-separated extensions the client supports
+	 *
+	 * @throws IOException  if the connection fails
+	 *
+	 * @see ClientMessage#TYPE_CAPABILITIES
+	 */
+	private void negotiate(byte[] query) throws IOException {
+		Set<String> requested = new LinkedHashSet<String>();
+		for (String capability :
+				new String(query, Charset.forName("US-ASCII")).split(",")) {
+			requested.add(capability.trim());
+		}
+		Set<String> enabled = server.getCapabilities();
+		Set<String> agreed = new LinkedHashSet<String>();
+		StringBuilder reply = new StringBuilder();
+		for (String capability : SwServer.CAPABILITIES) {
+			if (requested.contains(capability) &&
+					enabled.contains(capability)) {
+				if (reply.length() > 0) {
+					reply.append(',');
+				}
+				reply.append(capability);
+				agreed.add(capability);
+			}
+		}
+		send(
+				ServerMessage.TYPE_ACK,
+				reply.toString().getBytes(Charset.forName("US-ASCII")));
+		// the extensions are in effect from the next message on
+		deflate = agreed.contains(AbstractSwClient.CAPABILITY_DEFLATE);
+		binaryNetwork = agreed.contains(
+				AbstractSwClient.CAPABILITY_BINARY_NETWORK);
+		progress = agreed.contains(AbstractSwClient.CAPABILITY_PROGRESS);
+		runTimes = agreed.contains(AbstractSwClient.CAPABILITY_RUN_TIMES);
+	}
+	
+	/**
+	 * Receive an input file into the file store and pass it to the tool.
+	 *
+	 * @param name  the name (command line flag) of the file
+	 * @param length  the length of the payload
+	 * @param binary  whether the file is in the binary network format
+	 *
+	 * @throws IOException  if the connection fails
+	 *
+	 * @see ClientMessage#TYPE_BINARY_INPUT_FILE
+	 */
+	private void receiveFile(String name, int length, boolean binary)
+			throws IOException {
+		SwFileStore fileStore = server.getFileStore();
+		File received = fileStore.createTempFile();
+		MessageDigest digest = newDigest();
+		int fileNodeCount = -1;
+		PayloadInputStream payload = new PayloadInputStream(length);
+		try {
+			InputStream content = new DigestInputStream(decode(payload), digest);
+			OutputStream file = new BufferedOutputStream(
+					new FileOutputStream(received), BUFFER_SIZE);
+			try {
+				if (!binary) {
+					copy(content, file);
+				} else if (name.equals("-n")) {
+					fileNodeCount = convertNodeFile(content, file);
+				} else if (name.equals("-e")) {
+					convertEdgeFile(content, file);
+				} else {
+					throw new InvalidFileException(
+							"Unknown binary file " + name + ".");
+				}
+			} finally {
+				content.close();
+				file.close();
+			}
+		} catch (IOException e) {
+			received.delete();
+			if (!isInvalidFile(e)) {
+				throw e;
+			}
+			payload.skipRemaining();
+			send(ServerMessage.TYPE_NACK, null);
+			return;
+		}
+		payload.skipRemaining();
+		useInputFile(
+				name,
+				fileStore.add(toHex(digest.digest()), received, fileNodeCount));
+		send(ServerMessage.TYPE_ACK, null);
+	}
+	
+	/**
+	 * @return  whether the exception is due to the file received, rather
+	 *          than the connection
+	 */
+	private static boolean isInvalidFile(IOException e) {
+		// the payload stream itself ends early with a plain IOException
+		return
+				e instanceof InvalidFileException ||
+				e instanceof EOFException ||
+				e instanceof ZipException;
+	}
+	
+	/**
+	 * Pass a stored input file to the tool.
+	 *
+	 * @param name  the name (command line flag) of the file
+	 * @param stored  the file, already acquired from the store
+	 */
+	private void useInputFile(String name, SwFileStore.StoredFile stored) {
+		inputFiles.add(stored);
+		addArgument(name);
+		arguments.add(stored.getFile().getPath());
+		if (name.equals("-n")) {
+			nodeCount = stored.getNodeCount();
+		}
+	}
+	
+	/**
+	 * Convert a binary node file to the text format of Heinz, with the
+	 * node IDs in place of SUIDs.
+	 *
+	 * @return  the number of nodes
+	 *
+	 * @see SwHeinzClient#encodeNodeFile(NetworkSnapshot)
+	 */
+	private int convertNodeFile(InputStream content, OutputStream file)
+			throws IOException {
+		DataInputStream data = new DataInputStream(
+				new BufferedInputStream(content, BUFFER_SIZE));
+		int count = data.readInt();
+		if (count < 0) {
+			throw new InvalidFileException("Invalid node count: " + count);
+		}
+		encoder.reset(file);
+		encoder.writeAscii("#node\tpval\n");
+		for (int i = 0; i < count; ++i) {
+			encoder.writeLong(i);
+			encoder.writeChar('\t');
+			encoder.writeDouble(data.readDouble());
+			encoder.writeChar('\n');
+		}
+		encoder.finish();
+		checkEnd(data);
+		return count;
+	}
+	
+	/**
+	 * Convert a binary edge file to the text format of Heinz, with the
+	 * node IDs in place of SUIDs.
+	 *
+	 * @see SwHeinzClient#encodeEdgeFile(NetworkSnapshot)
+	 */
+	private void convertEdgeFile(InputStream content, OutputStream file)
+			throws IOException {
+		DataInputStream data = new DataInputStream(
+				new BufferedInputStream(content, BUFFER_SIZE));
+		int count = data.readInt();
+		if (count < 0) {
+			throw new InvalidFileException("Invalid edge count: " + count);
+		}
+		encoder.reset(file);
+		encoder.writeAscii("#source\ttarget\n");
+		for (int i = 0; i < count; ++i) {
+			encoder.writeLong(data.readInt());
+			encoder.writeChar('\t');
+			encoder.writeLong(data.readInt());
+			encoder.writeChar('\n');
+		}
+		encoder.finish();
+		checkEnd(data);
+	}
+	
+	/**
+	 * @throws InvalidFileException  if the file goes on past its records
+	 */
+	private static void checkEnd(InputStream data) throws IOException {
+		if (data.read() != -1) {
+			throw new InvalidFileException("Binary file longer than expected.");
+		}
+	}
+	
+	/**
+	 * Run the tool with the arguments sent, waiting for a free process.
+	 *
+	 * @param streamOutput  whether to stream the output of the tool to
+	 *                      the client while it runs
+	 *
+	 * @return  whether the tool ran and exited successfully, false if the
+	 *          run was aborted
+	 *
+	 * @throws IOException  if the server is shutting down, or the
+	 *                      connection fails
+	 */
+	private boolean runTool(boolean streamOutput) throws IOException {
+		createDirectory();
+		List<String> commandLine = new ArrayList<String>(server.getCommand());
+		commandLine.addAll(arguments);
+		File stdout = new File(directory, "stdout");
+		File stderr = new File(directory, "stderr");
+		hasRun = true;
+		aborted = false;
+		readAhead = new ByteArrayOutputStream();
+		readAheadStopped = false;
+		queueTime = 0;
+		runTime = 0;
+		
+		try {
+			long start = System.nanoTime();
+			try {
+				while (!server.tryAcquireProcess(ABORT_POLL_INTERVAL)) {
+					if (readAhead()) {
+						aborted = true;
+						writeMessage(stderr, "Run aborted.");
+						writeMessage(stdout, "");
+						return false;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Server shut down while waiting to run.");
+			}
+			queueTime = (System.nanoTime() - start) / (1000 * 1000);
+			start = System.nanoTime();
+			try {
+				return runProcess(commandLine, stdout, stderr, streamOutput);
+			} finally {
+				runTime = (System.nanoTime() - start) / (1000 * 1000);
+				server.releaseProcess();
+			}
+		} finally {
+			// handle the messages read meanwhile before any later ones
+			clientStream.putBack(readAhead.toByteArray());
+			readAhead = null;
+		}
+	}
+	
+	/**
+	 * Run the tool in a process, killing it if the run is aborted.
+	 *
+	 * @see SwServer.ToolRunner
+	 *
+	 * @param commandLine  the command line of the tool
+	 * @param stdout  the file to write its standard output to
+	 * @param stderr  the file to write its standard error to
+	 * @param streamOutput  whether to stream the output to the client too
+	 *
+	 * @return  whether the tool ran and exited successfully
+	 *
+	 * @throws IOException  if the server is shutting down, or the
+	 *                      connection fails
+	 */
+	private boolean runProcess(
+			List<String> commandLine,
+			File stdout,
+			File stderr,
+			boolean streamOutput)
+			throws IOException {
+		Process process;
+		try {
+			process = server.getToolRunner().start(commandLine, directory);
+		} catch (IOException e) {
+			// report why the tool could not be started as its error output
+			writeMessage(stderr, e.getMessage());
+			writeMessage(stdout, "");
+			return false;
+		}
+		boolean finished = false;
+		try {
+			process.getOutputStream().close();
+			StreamedOutput[] streamed = streamOutput ?
+					new StreamedOutput[] {
+							new StreamedOutput(STDOUT),
+							new StreamedOutput(STDERR)} :
+					new StreamedOutput[0];
+			Thread stdoutCopier = copyInBackground(
+					process.getInputStream(),
+					stdout,
+					streamOutput ? streamed[0] : null);
+			Thread stderrCopier = copyInBackground(
+					process.getErrorStream(),
+					stderr,
+					streamOutput ? streamed[1] : null);
+			Thread waiter = waitInBackground(process);
+			waiter.join(ABORT_POLL_INTERVAL);
+			while (waiter.isAlive()) {
+				if (!aborted && readAhead()) {
+					aborted = true;
+					process.destroy();
+				}
+				if (!aborted) {
+					sendStreamedOutput(streamed, false);
+				}
+				waiter.join(ABORT_POLL_INTERVAL);
+			}
+			int exitValue = process.waitFor();
+			stdoutCopier.join();
+			stderrCopier.join();
+			if (!aborted) {
+				sendStreamedOutput(streamed, true);
+			}
+			finished = true;
+			return !aborted && exitValue == 0;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Server shut down while running.");
+		} finally {
+			// don’t leave the tool running when the session fails
+			if (!finished) {
+				process.destroy();
+			}
+		}
+	}
+	
+	/**
+	 * Send the lines the tool has written since the last call.
+	 *
+	 * @param streamed  the output of the tool, by stream
+	 * @param end  whether the tool has exited, so that a last line without
+	 *             a line break is complete too
+	 *
+	 * @throws IOException  if the connection fails
+	 *
+	 * @see ServerMessage#TYPE_PROGRESS
+	 */
+	private void sendStreamedOutput(StreamedOutput[] streamed, boolean end)
+			throws IOException {
+		boolean sent = false;
+		for (StreamedOutput output : streamed) {
+			byte[] payload = output.takeLines(end);
+			if (payload != null) {
+				send(ServerMessage.TYPE_PROGRESS, payload);
+				sent = true;
+			}
+		}
+		if (sent) {
+			outputStream.flush();
+		}
+	}
+	
+	/**
+	 * Read the messages the client sent since the run request, keeping
+	 * them to be handled after the run, up to an abort request.
+	 *
+	 * Only messages up to MAX_MESSAGE_SIZE are read ahead; from a larger
+	 * one on, e.g. an input file for the next run, the rest waits until
+	 * the run is over.
+	 *
+	 * @return  whether to abort the run, as the client asked to or
+	 *          disconnected
+	 *
+	 * @throws IOException  if the connection fails
+	 */
+	private boolean readAhead() throws IOException {
+		DataOutputStream kept = new DataOutputStream(readAhead);
+		while (!readAheadStopped) {
+			int type;
+			if (clientStream.hasPutBack()) {
+				type = inputStream.read();
+			} else {
+				// only wait for the next message briefly, at its first byte
+				socket.setSoTimeout(READ_AHEAD_TIMEOUT);
+				try {
+					type = inputStream.read();
+				} catch (SocketTimeoutException e) {
+					return false;
+				} finally {
+					socket.setSoTimeout(0);
+				}
+			}
+			if (type == -1) {
+				// nobody is waiting for the run anymore
+				readAheadStopped = true;
+				return true;
+			}
+			byte[] name = readName().getBytes(Charset.forName("US-ASCII"));
+			int length = inputStream.readInt();
+			kept.writeByte(type);
+			kept.writeInt(name.length);
+			kept.write(name);
+			kept.writeInt(length);
+			if (length < 0 || length > MAX_MESSAGE_SIZE) {
+				// leave the payload on the connection
+				readAheadStopped = true;
+				return false;
+			}
+			byte[] payload = new byte[length];
+			inputStream.readFully(payload);
+			kept.write(payload);
+			if (type == ClientMessage.TYPE_ABORT) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Send an output file of the last run.
+	 *
+	 * @param name  the number of the output file, or 254 for the standard
+	 *              output and 255 for the standard error of the tool
+	 * @param format  "bitset" to send the nodes of a Heinz output file as
+	 *                a bitset over the binary node IDs, or empty
+	 *
+	 * @throws IOException  if the connection fails
+	 *
+	 * @see ClientMessage#TYPE_GET_OUTPUT
+	 */
+	private void sendOutput(String name, byte[] format) throws IOException {
+		File file = null;
+		try {
+			int number = Integer.parseInt(name);
+			if (number == STDOUT) {
+				file = new File(directory, "stdout");
+			} else if (number == STDERR) {
+				file = new File(directory, "stderr");
+			} else if (number >= 0 && number < outputFiles.size()) {
+				file = outputFiles.get(number);
+			}
+		} catch (NumberFormatException e) {
+			// no such file
+		}
+		if (!hasRun || file == null || !file.isFile()) {
+			send(ServerMessage.TYPE_NACK, null);
+			return;
+		}
+		
+		String formatName = new String(format, Charset.forName("US-ASCII"));
+		if (formatName.equals("bitset")) {
+			byte[] bitset = readBitset(file);
+			send(
+					bitset != null ?
+							ServerMessage.TYPE_OUTPUT : ServerMessage.TYPE_NACK,
+					bitset);
+		} else if (formatName.length() == 0) {
+			sendFile(file);
+		} else {
+			send(ServerMessage.TYPE_NACK, null);
+		}
+	}
+	
+	/**
+	 * Read the nodes of a Heinz output file into a bitset.
+	 *
+	 * @return  the bitset, or null if the file is invalid or no binary node
+	 *          file was sent
+	 *
+	 * @throws IOException  if the file cannot be read
+	 *
+	 * @see ClientMessage#TYPE_BINARY_INPUT_FILE
+	 */
+	private byte[] readBitset(File file) throws IOException {
+		if (nodeCount < 0) {
+			return null;
+		}
+		byte[] bitset = new byte[(nodeCount + 7) / 8];
+		InputStream stream = new FileInputStream(file);
+		try {
+			HeinzOutputReader reader = new HeinzOutputReader(stream);
+			while (reader.next()) {
+				long id = reader.getNodeSuid();
+				if (id >= nodeCount) {
+					return null;
+				}
+				if (reader.isInModule()) {
+					bitset[(int) id >>> 3] |= 1 << (id & 7);
+				}
+			}
+		} catch (IOException e) {
+			return null;
+		} finally {
+			stream.close();
+		}
+		return bitset;
+	}
+	
+	/**
+	 * Send a file as the payload of an output message.
+	 *
+	 * @param file  the file
+	 *
+	 * @throws IOException  if the connection fails
+	 */
+	private void sendFile(File file) throws IOException {
+		long length = file.length();
+		// leave room for the encoding byte
+		if (length >= Integer.MAX_VALUE) {
+			send(ServerMessage.TYPE_NACK, null);
+			return;
+		}
+		if (deflate && length >= AbstractSwClient.MIN_DEFLATED_SIZE) {
+			// the compressed length must be sent ahead of the payload
+			ByteArrayOutputStream compressed =
+					new ByteArrayOutputStream((int) (length / 4));
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				DeflaterOutputStream deflaterStream =
+						new DeflaterOutputStream(compressed, deflater, BUFFER_SIZE);
+				copyFile(file, deflaterStream);
+				deflaterStream.finish();
+			} finally {
+				deflater.end();
+			}
+			if (compressed.size() < length) {
+				outputStream.writeByte(ServerMessage.TYPE_OUTPUT);
+				outputStream.writeInt(compressed.size() + 1);
+				outputStream.writeByte(AbstractSwClient.ENCODING_DEFLATE);
+				compressed.writeTo(outputStream);
+				return;
+			}
+		}
+		outputStream.writeByte(ServerMessage.TYPE_OUTPUT);
+		if (deflate && length > 0) {
+			outputStream.writeInt((int) length + 1);
+			outputStream.writeByte(AbstractSwClient.ENCODING_STORED);
+		} else {
+			outputStream.writeInt((int) length);
+		}
+		copyFile(file, outputStream);
+	}
+	
+	/**
+	 * Send a message to the client, with the encoding byte if compression
+	 * is in effect.
+	 *
+	 * @param type  the message type, see ServerMessage class constants
+	 * @param payload  the payload, or null
+	 *
+	 * @throws IOException  if the connection fails
+	 */
+	private void send(int type, byte[] payload) throws IOException {
+		outputStream.writeByte(type);
+		if (payload == null || payload.length == 0) {
+			outputStream.writeInt(0);
+		} else if (deflate) {
+			// short payloads are not worth compressing
+			outputStream.writeInt(payload.length + 1);
+			outputStream.writeByte(AbstractSwClient.ENCODING_STORED);
+			outputStream.write(payload);
+		} else {
+			outputStream.writeInt(payload.length);
+			outputStream.write(payload);
+		}
+	}
+	
+	/**
+	 * Forget the parameters, files and outputs of the current run.
+	 */
+	private void reset() {
+		for (SwFileStore.StoredFile stored : inputFiles) {
+			server.getFileStore().release(stored);
+		}
+		inputFiles.clear();
+		arguments.clear();
+		outputFiles.clear();
+		nodeCount = -1;
+		hasRun = false;
+		SwServer.delete(directory);
+	}
+	
+	/**
+	 * @return  whether the name is a command line flag clients may pass to
+	 *          the tool, so that a client cannot slip in other options or
+	 *          arguments of its own
+	 */
+	private boolean isAllowedFlag(String name) {
+		return server.getFlags().contains(name);
+	}
+	
+	/**
+	 * Add a flag to the arguments, unless it is empty.
+	 */
+	private void addArgument(String name) {
+		if (name.length() > 0) {
+			arguments.add(name);
+		}
+	}
+	
+	/**
+	 * Create the directory of the session, if it does not exist yet.
+	 *
+	 * @throws IOException  if the directory cannot be created
+	 */
+	private void createDirectory() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create directory " + directory + ".");
+		}
+	}
+	
+	/**
+	 * @return  the name of the message being read
+	 */
+	private String readName() throws IOException {
+		int length = inputStream.readInt();
+		if (length < 0 || length > MAX_MESSAGE_SIZE) {
+			throw new IOException("Invalid name length: " + length);
+		}
+		byte[] name = new byte[length];
+		inputStream.readFully(name);
+		return new String(name, Charset.forName("US-ASCII"));
+	}
+	
+	/**
+	 * Read a short payload into memory, decoding it.
+	 *
+	 * @param length  the length of the payload
+	 *
+	 * @return  the decoded payload
+	 */
+	private byte[] readPayload(int length) throws IOException {
+		if (length > MAX_MESSAGE_SIZE) {
+			throw new IOException("Message too long: " + length);
+		}
+		PayloadInputStream payload = new PayloadInputStream(length);
+		InputStream decoded = decode(payload);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(length);
+		byte[] buffer = new byte[4 * 1024];
+		int bytesRead;
+		try {
+			while ((bytesRead = decoded.read(buffer)) != -1) {
+				bytes.write(buffer, 0, bytesRead);
+				if (bytes.size() > MAX_MESSAGE_SIZE) {
+					throw new IOException(
+							"Message too long after decompression.");
+				}
+			}
+		} finally {
+			decoded.close();
+		}
+		payload.skipRemaining();
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Skip a payload without reading it.
+	 *
+	 * @param length  the length of the payload
+	 */
+	private void skip(int length) throws IOException {
+		new PayloadInputStream(length).skipRemaining();
+	}
+	
+	/**
+	 * Decode a payload according to its encoding byte, if compression is
+	 * in effect.
+	 *
+	 * @param payload  the payload as received
+	 *
+	 * @return  the payload as sent by the client, to be closed after use
+	 *
+	 * @throws IOException  if the encoding is unknown
+	 */
+	private InputStream decode(PayloadInputStream payload) throws IOException {
+		if (!deflate || payload.remaining == 0) {
+			return payload;
+		}
+		int encoding = payload.read();
+		if (encoding == AbstractSwClient.ENCODING_STORED) {
+			return payload;
+		}
+		if (encoding == AbstractSwClient.ENCODING_DEFLATE) {
+			return new InflaterInputStream(payload, new Inflater(), BUFFER_SIZE) {
+				@Override
+				public void close() throws IOException {
+					// release the inflater’s native memory right away
+					inf.end();
+					super.close();
+				}
+			};
+		}
+		throw new IOException("Unknown payload encoding: " + encoding);
+	}
+	
+	/**
+	 * The payload of a message as it arrives on the connection.
+	 */
+	private class PayloadInputStream extends InputStream {
+		
+		private int remaining;
+		
+		/**
+		 * @param length  the length of the payload on the connection
+		 */
+		public PayloadInputStream(int length) {
+			remaining = length;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+		}
+		
+		@Override
+		public int read(byte[] b, int offset, int length) throws IOException {
+			if (remaining == 0) {
+				return -1;
+			}
+			int bytesRead = inputStream.read(
+					b, offset, Math.min(length, remaining));
+			if (bytesRead == -1) {
+				// not an EOFException, which would blame the file
+				throw new IOException("Connection closed by client.");
+			}
+			remaining -= bytesRead;
+			return bytesRead;
+		}
+		
+		/**
+		 * Skip the rest of the payload, so that the next message can be read.
+		 */
+		public void skipRemaining() throws IOException {
+			byte[] buffer = new byte[8 * 1024];
+			while (read(buffer, 0, buffer.length) != -1) {
+				// discard
+			}
+		}
+		
+	}
+	
+	/**
+	 * The messages from the client, with any read ahead during a run put
+	 * back in front.
+	 */
+	private static class ClientInputStream extends InputStream {
+		
+		private final InputStream in;
+		private byte[] putBack = new byte[0];
+		private int position = 0;
+		
+		/**
+		 * @param in  the stream from the connection
+		 */
+		public ClientInputStream(InputStream in) {
+			this.in = in;
+		}
+		
+		/**
+		 * Put bytes back, to be read again before the rest.
+		 *
+		 * @param bytes  the bytes
+		 */
+		public void putBack(byte[] bytes) {
+			if (bytes.length == 0) {
+				return;
+			}
+			int remaining = putBack.length - position;
+			byte[] joined = new byte[bytes.length + remaining];
+			System.arraycopy(bytes, 0, joined, 0, bytes.length);
+			System.arraycopy(putBack, position, joined, bytes.length, remaining);
+			putBack = joined;
+			position = 0;
+		}
+		
+		/**
+		 * @return  whether bytes put back remain to be read
+		 */
+		public boolean hasPutBack() {
+			return position < putBack.length;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if (hasPutBack()) {
+				return putBack[position++] & 0xFF;
+			}
+			return in.read();
+		}
+		
+		@Override
+		public int read(byte[] b, int offset, int length) throws IOException {
+			if (length > 0 && hasPutBack()) {
+				int bytesRead = Math.min(length, putBack.length - position);
+				System.arraycopy(putBack, position, b, offset, bytesRead);
+				position += bytesRead;
+				return bytesRead;
+			}
+			return in.read(b, offset, length);
+		}
+		
+		@Override
+		public int available() throws IOException {
+			return putBack.length - position + in.available();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+		
+	}
+	
+	/**
+	 * The output of a stream of the tool not yet sent to the client, kept
+	 * by the copier thread until the session sends it in complete lines.
+	 *
+	 * At most MAX_MESSAGE_SIZE bytes are kept: if the tool writes faster
+	 * than the session sends, e.g. while the connection is slow, the
+	 * output is dropped up to the next line break instead. The output
+	 * file is complete either way.
+	 */
+	private static class StreamedOutput {
+		
+		private final int name;
+		/**
+		 * The payload of the next progress message: the name, then the
+		 * output kept.
+		 */
+		private final ByteArrayOutputStream pending =
+				new ByteArrayOutputStream();
+		/**
+		 * The length of the payload up to the end of its last complete line.
+		 */
+		private int completeLength = 1;
+		/**
+		 * Whether output is dropped up to the next line break.
+		 */
+		private boolean dropping = false;
+		
+		/**
+		 * @param name  the output file name of the stream, STDOUT or STDERR
+		 */
+		StreamedOutput(int name) {
+			this.name = name;
+			pending.write(name);
+		}
+		
+		/**
+		 * Keep output of the tool, called by the copier thread.
+		 */
+		synchronized void write(byte[] buffer, int offset, int length) {
+			int end = offset + length;
+			while (offset < end) {
+				if (dropping) {
+					int lineEnd = indexOf(buffer, offset, end, (byte) '\n');
+					if (lineEnd < 0) {
+						return;
+					}
+					dropping = false;
+					offset = lineEnd + 1;
+				} else if (pending.size() + end - offset <= MAX_MESSAGE_SIZE) {
+					int lineEnd = lastIndexOf(buffer, offset, end, (byte) '\n');
+					if (lineEnd >= 0) {
+						completeLength = pending.size() + lineEnd + 1 - offset;
+					}
+					pending.write(buffer, offset, end - offset);
+					return;
+				} else {
+					// keep the complete lines, drop the rest of the last one
+					if (pending.size() > completeLength) {
+						byte[] kept = pending.toByteArray();
+						pending.reset();
+						pending.write(kept, 0, completeLength);
+					}
+					dropping = true;
+				}
+			}
+		}
+		
+		/**
+		 * @param end  whether the tool has exited, so that a last line
+		 *             without a line break is complete too
+		 *
+		 * @return  the payload of a progress message with the complete
+		 *          lines kept, or null if there are none
+		 */
+		synchronized byte[] takeLines(boolean end) {
+			byte[] kept = pending.toByteArray();
+			int length = completeLength;
+			if (end && kept.length > length) {
+				// finish the last line
+				kept = Arrays.copyOf(kept, kept.length + 1);
+				kept[kept.length - 1] = '\n';
+				length = kept.length;
+			}
+			pending.reset();
+			pending.write(name);
+			pending.write(kept, length, kept.length - length);
+			completeLength = 1;
+			return length > 1 ? Arrays.copyOf(kept, length) : null;
+		}
+		
+		private static int indexOf(byte[] buffer, int from, int to, byte b) {
+			for (int i = from; i < to; ++i) {
+				if (buffer[i] == b) {
+					return i;
+				}
+			}
+			return -1;
+		}
+		
+		private static int lastIndexOf(
+				byte[] buffer, int from, int to, byte b) {
+			for (int i = to - 1; i >= from; --i) {
+				if (buffer[i] == b) {
+					return i;
+				}
+			}
+			return -1;
+		}
+		
+	}
+	
+	/**
+	 * Copy the output of the tool to a file in a thread of its own, so that
+	 * the tool does not block on a full pipe.
+	 *
+	 * @param stream  the output stream of the process
+	 * @param file  the file to copy it to
+	 * @param streamed  where to keep the output for the client too, or null
+	 *
+	 * @return  the started thread
+	 *
+	 * @throws IOException  if the file cannot be created
+	 */
+	private static Thread copyInBackground(
+			final InputStream stream,
+			File file,
+			final StreamedOutput streamed)
+			throws IOException {
+		final OutputStream fileStream = new FileOutputStream(file);
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					byte[] buffer = new byte[BUFFER_SIZE];
+					int bytesRead;
+					while ((bytesRead = stream.read(buffer)) != -1) {
+						fileStream.write(buffer, 0, bytesRead);
+						if (streamed != null) {
+							streamed.write(buffer, 0, bytesRead);
+						}
+					}
+				} catch (IOException e) {
+					// the process was destroyed, or the file removed
+				} finally {
+					try {
+						fileStream.close();
+						stream.close();
+					} catch (IOException e) {
+						// nothing left to release
+					}
+				}
+			}
+		}, "Heinz embedded server output copier");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+	
+	/**
+	 * Wait for a process to exit in a thread of its own, so that the
+	 * session can watch for an abort request meanwhile.
+	 *
+	 * @param process  the process
+	 *
+	 * @return  the started thread, which ends when the process exits
+	 */
+	private static Thread waitInBackground(final Process process) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					process.waitFor();
+				} catch (InterruptedException e) {
+					// the session destroys the process
+				}
+			}
+		}, "Heinz embedded server process waiter");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+	
+	/**
+	 * Write a message to a file, replacing its contents.
+	 */
+	private static void writeMessage(File file, String message)
+			throws IOException {
+		OutputStream stream = new FileOutputStream(file);
+		try {
+			stream.write(message.getBytes(Charset.forName("UTF-8")));
+		} finally {
+			stream.close();
+		}
+	}
+	
+	/**
+	 * Copy a file to a stream.
+	 */
+	private static void copyFile(File file, OutputStream stream)
+			throws IOException {
+		InputStream fileStream = new FileInputStream(file);
+		try {
+			copy(fileStream, stream);
+		} finally {
+			fileStream.close();
+		}
+	}
+	
+	/**
+	 * Copy a stream to another until its end.
+	 */
+	private static void copy(InputStream from, OutputStream to)
+			throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int bytesRead;
+		while ((bytesRead = from.read(buffer)) != -1) {
+			to.write(buffer, 0, bytesRead);
+		}
+	}
+	
+	/**
+	 * @return  a new SHA-256 digest
+	 */
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * @return  the bytes as lower-case hexadecimal digits
+	 */
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+			hex.append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+	
+}
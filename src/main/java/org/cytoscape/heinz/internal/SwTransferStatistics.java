@@ -0,0 +1,115 @@
+package org.cytoscape.heinz.internal;
+
+/**
+ * Counts the payload bytes exchanged with a server wrapper, before and
+ * after compression.
+ */
+public class SwTransferStatistics {
+	
+	private long bytesSent = 0;
+	private long wireBytesSent = 0;
+	private long bytesReceived = 0;
+	private long wireBytesReceived = 0;
+	
+	/**
+	 * Record a payload sent to the server.
+	 *
+	 * @param bytes  the size of the payload
+	 * @param wireBytes  the number of bytes actually sent for it
+	 */
+	public synchronized void addSent(long bytes, long wireBytes) {
+		bytesSent += bytes;
+		wireBytesSent += wireBytes;
+	}
+	
+	/**
+	 * Record a payload received from the server.
+	 *
+	 * @param bytes  the size of the payload
+	 * @param wireBytes  the number of bytes actually received for it
+	 */
+	public synchronized void addReceived(long bytes, long wireBytes) {
+		bytesReceived += bytes;
+		wireBytesReceived += wireBytes;
+	}
+	
+	/**
+	 * Add the counts of other statistics to these.
+	 *
+	 * @param other  the statistics to add
+	 */
+	public void add(SwTransferStatistics other) {
+		long[] counts;
+		synchronized (other) {
+			counts = new long[] {
+					other.bytesSent, other.wireBytesSent,
+					other.bytesReceived, other.wireBytesReceived};
+		}
+		synchronized (this) {
+			bytesSent += counts[0];
+			wireBytesSent += counts[1];
+			bytesReceived += counts[2];
+			wireBytesReceived += counts[3];
+		}
+	}
+	
+	/**
+	 * @return  the total size of the payloads sent
+	 */
+	public synchronized long getBytesSent() {
+		return bytesSent;
+	}
+	
+	/**
+	 * @return  the number of bytes actually sent for the payloads
+	 */
+	public synchronized long getWireBytesSent() {
+		return wireBytesSent;
+	}
+	
+	/**
+	 * @return  the total size of the payloads received
+	 */
+	public synchronized long getBytesReceived() {
+		return bytesReceived;
+	}
+	
+	/**
+	 * @return  the number of bytes actually received for the payloads
+	 */
+	public synchronized long getWireBytesReceived() {
+		return wireBytesReceived;
+	}
+	
+	/**
+	 * Describe the transfers, e.g. for a status message.
+	 *
+	 * @return  e.g. ‘sent 1.5 MB as 312 kB (21%), received 80 kB as 2 kB (3%)’
+	 */
+	@Override
+	public synchronized String toString() {
+		return
+				"sent " + describe(bytesSent, wireBytesSent) +
+				", received " + describe(bytesReceived, wireBytesReceived);
+	}
+	
+	private static String describe(long bytes, long wireBytes) {
+		if (bytes == wireBytes) {
+			return formatSize(bytes);
+		}
+		return
+				formatSize(bytes) + " as " + formatSize(wireBytes) +
+				" (" + Math.round(100.0 * wireBytes / bytes) + "%)";
+	}
+	
+	private static String formatSize(long bytes) {
+		if (bytes < 1000) {
+			return bytes + " bytes";
+		} else if (bytes < 1000 * 1000) {
+			return Math.round(bytes / 1e3) + " kB";
+		} else {
+			return Math.round(bytes / 1e5) / 10.0 + " MB";
+		}
+	}
+	
+}
@@ -0,0 +1,240 @@
+package org.cytoscape.heinz.internal;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Adds up the metrics of all runs of a tool, e.g. Heinz, for dashboards
+ * and for spotting regressions across versions.
+ *
+ * Registered as an MXBean named
+ * ‘org.cytoscape.heinz:type=ToolMetrics,name={@code tool}’ while the app
+ * is running.
+ *
+ * @see RunMetrics
+ */
+public class ToolMetrics implements ToolMetricsMXBean {
+	
+	/**
+	 * How a run ended.
+	 */
+	public enum Outcome {
+		FINISHED, CACHED, FAILED
+	}
+	
+	private final String tool;
+	private RunMetrics totals = new RunMetrics();
+	private long runCount = 0;
+	private long cachedRunCount = 0;
+	private long failedRunCount = 0;
+	private String lastEndpoints = "";
+	private ObjectName registeredName = null;
+	
+	/**
+	 * @param tool  the name of the tool, e.g. ‘Heinz’
+	 */
+	public ToolMetrics(String tool) {
+		this.tool = tool;
+	}
+	
+	/**
+	 * Add the metrics of a run to the totals.
+	 *
+	 * @param run  the metrics of the run
+	 * @param outcome  how it ended
+	 */
+	public void record(RunMetrics run, Outcome outcome) {
+		RunMetrics currentTotals;
+		synchronized (this) {
+			if (outcome == Outcome.FAILED) {
+				++failedRunCount;
+			} else {
+				++runCount;
+				if (outcome == Outcome.CACHED) {
+					++cachedRunCount;
+				}
+			}
+			lastEndpoints = run.getEndpoints();
+			currentTotals = totals;
+		}
+		currentTotals.add(run);
+	}
+	
+	/**
+	 * Register the totals with the platform MBean server.
+	 *
+	 * @throws JMException  if registration fails, e.g. another bean has
+	 *                      the name
+	 */
+	public synchronized void register() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(
+				"org.cytoscape.heinz:type=ToolMetrics,name=" + tool);
+		// left over from a previous start of the app, e.g. when updated
+		if (server.isRegistered(name)) {
+			server.unregisterMBean(name);
+		}
+		server.registerMBean(this, name);
+		registeredName = name;
+	}
+	
+	/**
+	 * Unregister the totals, if registered.
+	 */
+	public synchronized void unregister() {
+		if (registeredName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					registeredName);
+		} catch (JMException e) {
+			// gone already
+		}
+		registeredName = null;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized long getRunCount() {
+		return runCount;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized long getCachedRunCount() {
+		return cachedRunCount;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized long getFailedRunCount() {
+		return failedRunCount;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getValidationMillis() {
+		return getMillis(RunMetrics.Phase.VALIDATION);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getUploadMillis() {
+		return getMillis(RunMetrics.Phase.UPLOAD);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getQueueMillis() {
+		return getMillis(RunMetrics.Phase.QUEUE);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getSolveMillis() {
+		return getMillis(RunMetrics.Phase.SOLVE);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getDownloadMillis() {
+		return getMillis(RunMetrics.Phase.DOWNLOAD);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getParseMillis() {
+		return getMillis(RunMetrics.Phase.PARSE);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getTableWriteMillis() {
+		return getMillis(RunMetrics.Phase.TABLE_WRITE);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getBytesSent() {
+		return getTotals().getTransferStatistics().getBytesSent();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getWireBytesSent() {
+		return getTotals().getTransferStatistics().getWireBytesSent();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getBytesReceived() {
+		return getTotals().getTransferStatistics().getBytesReceived();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getWireBytesReceived() {
+		return getTotals().getTransferStatistics().getWireBytesReceived();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized String getLastEndpoints() {
+		return lastEndpoints;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void reset() {
+		totals = new RunMetrics();
+		runCount = 0;
+		cachedRunCount = 0;
+		failedRunCount = 0;
+		lastEndpoints = "";
+	}
+	
+	private synchronized RunMetrics getTotals() {
+		return totals;
+	}
+	
+	private long getMillis(RunMetrics.Phase phase) {
+		return getTotals().getMillis(phase);
+	}
+	
+}
@@ -0,0 +1,74 @@
+package org.cytoscape.heinz.internal;
+
+/**
+ * The totals of the runs of a tool since the app started, as exposed over
+ * JMX for monitoring, e.g. with JConsole.
+ *
+ * Times are in milliseconds and add up over all runs; see
+ * RunMetrics.Phase for what each phase covers.
+ *
+ * @see ToolMetrics
+ */
+public interface ToolMetricsMXBean {
+	
+	/**
+	 * @return  the number of runs that finished, including cached ones
+	 */
+	public long getRunCount();
+	
+	/**
+	 * @return  the number of runs whose result came from the result cache
+	 */
+	public long getCachedRunCount();
+	
+	/**
+	 * @return  the number of runs that failed or were cancelled
+	 */
+	public long getFailedRunCount();
+	
+	public long getValidationMillis();
+	
+	public long getUploadMillis();
+	
+	public long getQueueMillis();
+	
+	public long getSolveMillis();
+	
+	public long getDownloadMillis();
+	
+	public long getParseMillis();
+	
+	public long getTableWriteMillis();
+	
+	/**
+	 * @return  the total size of the payloads sent to servers
+	 */
+	public long getBytesSent();
+	
+	/**
+	 * @return  the number of bytes actually sent for the payloads
+	 */
+	public long getWireBytesSent();
+	
+	/**
+	 * @return  the total size of the payloads received from servers
+	 */
+	public long getBytesReceived();
+	
+	/**
+	 * @return  the number of bytes actually received for the payloads
+	 */
+	public long getWireBytesReceived();
+	
+	/**
+	 * @return  the servers used by the last run, as ‘host:port’ separated
+	 *          by commas, or an empty string if it used none
+	 */
+	public String getLastEndpoints();
+	
+	/**
+	 * Set all totals back to zero, e.g. before measuring a benchmark.
+	 */
+	public void reset();
+	
+}
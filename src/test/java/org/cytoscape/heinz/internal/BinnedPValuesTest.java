@@ -0,0 +1,95 @@
+package org.cytoscape.heinz.internal;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that BUM models fitted to binned p-values match those fitted to
+ * the p-values themselves.
+ *
+ * The p-values are drawn from a BUM model with λ = 0.9 and a = 0.2, as in
+ * the benchmarks, from a fixed seed.
+ */
+public class BinnedPValuesTest {
+	
+	private static final long SEED = 20151216L;
+	private static final int P_VALUE_COUNT = 10000;
+	/**
+	 * Share of the p-values drawn from the skewed component.
+	 */
+	private static final double SIGNAL_SHARE = 0.1;
+	
+	@Test
+	public void testCountsCoverAllPValues() {
+		double[] pValues = pValues();
+		BinnedPValues binned = BinnedPValues.bin(pValues, 1000);
+		double total = 0;
+		for (double count : binned.getCounts()) {
+			total += count;
+		}
+		assertEquals(pValues.length, binned.getPValueCount());
+		assertEquals(pValues.length, total, 0);
+	}
+	
+	@Test
+	public void testBinnedFitMatchesExactFit() {
+		double[] pValues = pValues();
+		BumModel exact = BumModel.fit(BumModel.logTransform(pValues), 0.5, 0.5);
+		assertFitWithin(exact, pValues, 100, 1e-3);
+		assertFitWithin(exact, pValues, 1000, 1e-4);
+	}
+	
+	@Test
+	public void testBinnedFitMatchesExactFitWithExtremePValue() {
+		double[] pValues = pValues();
+		pValues[0] = 1e-300;
+		BumModel exact = BumModel.fit(BumModel.logTransform(pValues), 0.5, 0.5);
+		assertFitWithin(exact, pValues, 100, 1e-3);
+		assertFitWithin(exact, pValues, 1000, 1e-4);
+	}
+	
+	@Test
+	public void testEstimateError() {
+		double error = BinnedPValues.estimateError(
+				pValues(), 1000, 2000, new Random(SEED));
+		assertEquals(0, error, 1e-4);
+	}
+	
+	/**
+	 * Fit a model to the binned p-values and compare it to the exact fit.
+	 */
+	private static void assertFitWithin(
+			BumModel exact, double[] pValues, int bins, double tolerance) {
+		BinnedPValues binned = BinnedPValues.bin(pValues, bins);
+		BumModel approximate = BumModel.fit(
+				binned.getLogPValues(), binned.getCounts(), 0.5, 0.5);
+		assertEquals(
+				"λ with " + bins + " bins",
+				exact.getLambda(), approximate.getLambda(), tolerance);
+		assertEquals(
+				"a with " + bins + " bins",
+				exact.getA(), approximate.getA(), tolerance);
+	}
+	
+	/**
+	 * @return  p-values strictly between 0 and 1, from a BUM model
+	 */
+	private static double[] pValues() {
+		Random random = new Random(SEED);
+		double[] pValues = new double[P_VALUE_COUNT];
+		for (int i = 0; i < pValues.length; ++i) {
+			double u;
+			do {
+				u = random.nextDouble();
+			} while (u == 0.0);
+			// the skewed component has the density a * x^(a - 1)
+			pValues[i] = random.nextDouble() < SIGNAL_SHARE ?
+					Math.pow(u, 1.0 / 0.2) : u;
+		}
+		return pValues;
+	}
+	
+}